@@ -1,9 +1,14 @@
 package org.mercury;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
 import org.mercury.util.StateMachine;
 import org.mercury.entity.Hero;
 import org.mercury.gfx.Camera;
 import org.mercury.gfx.GameDisplay;
+import org.mercury.world.World;
 
 /**
  * A top level finite state machine class which ticks the game's logic,
@@ -18,25 +23,52 @@ public class Game extends StateMachine<Game> implements Runnable {
 	private static final int width = 800;
 	private static final int height = 600;
 	private static int updatesPerSecond = 60;
+	// The number of ticks between hashes of the world in a recording.
+	private static final int hashInterval = 600;
 	private static final String name = "Mercury";
 	private static Game instance;
 	public final ResourceManager resources;
 	private GameDisplay display;
 	private boolean running;
 	private Player player;
+	private final long seed;
+	private final Random random;
+	private final boolean headless;
+	private int ticks;
+	private InputRecorder recorder;
 
 	/**
 	 * Creates a new Game and GameDisplay object according to static parameters.
 	 * 
 	 */
 	public Game() {
+		this(System.nanoTime(), false);
+	}
+
+	/**
+	 * Creates a new Game. A headless game opens no display and loads no
+	 * textures. It is not run, but ticked through update, e.g. by Replay.
+	 *
+	 * @param seed
+	 *            The seed of the random numbers of the game.
+	 * @param headless
+	 *            true to create a headless game.
+	 */
+	public Game(long seed, boolean headless) {
 		super();
 		setOwner(this);
 		instance = this;
+		this.seed = seed;
+		this.headless = headless;
+		random = new Random(seed);
 		player = new Player();
-		display = new GameDisplay();
-		resources = new ResourceManager();		
+		resources = new ResourceManager();
 		changeState(new GameplayState());
+		if (headless) {
+			((GameplayState) getCurrentState()).onInitDone();
+			return;
+		}
+		display = new GameDisplay();
 		display.setIcon("resources/test16.png", "resources/test32.png");
 		display.setTitle(name);
 		display.setResolution(width, height);
@@ -93,6 +125,7 @@ public class Game extends StateMachine<Game> implements Runnable {
 				e.printStackTrace();
 			}
 		}
+		stopRecording();
 	}
 
 	/*
@@ -105,7 +138,44 @@ public class Game extends StateMachine<Game> implements Runnable {
 	 */
 	public void update() {
 		super.update();
+		ticks++;
+		if (recorder != null && recorder.getHashInterval() > 0
+				&& ticks % recorder.getHashInterval() == 0)
+			recorder.hash(getWorld().hashState());
+	}
 
+	/**
+	 * Records the input of every tick to a file, along with a hash of the
+	 * world every so many ticks, for Replay to play back. Must be called
+	 * before the first tick.
+	 *
+	 * @param f
+	 *            The file to record to.
+	 * @param hashInterval
+	 *            The number of ticks between hashes of the world, or 0 for
+	 *            none.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void record(File f, int hashInterval) throws IOException {
+		recorder = new InputRecorder(f, seed, hashInterval);
+		player.setRecorder(recorder);
+	}
+
+	/**
+	 * Stops recording, writing what is left of the recording.
+	 */
+	public void stopRecording() {
+		if (recorder == null)
+			return;
+		player.setRecorder(null);
+		try {
+			recorder.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		recorder = null;
 	}
 
 	/**
@@ -125,6 +195,53 @@ public class Game extends StateMachine<Game> implements Runnable {
 	public Player getPlayer() {
 		return player;
 	}
+
+	/**
+	 * Returns the world being played.
+	 *
+	 * @return The world, or null if the game is not in play.
+	 */
+	public World getWorld() {
+		if (getCurrentState() instanceof GameplayState)
+			return ((GameplayState) getCurrentState()).getWorld();
+		return null;
+	}
+
+	/**
+	 * Returns the source of random numbers of the game. Game logic should
+	 * draw on it alone, so that a recording replays the same.
+	 *
+	 * @return The random numbers, seeded by getSeed.
+	 */
+	public Random getRandom() {
+		return random;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public boolean isHeadless() {
+		return headless;
+	}
+
+	/**
+	 * Returns the width of the game's display.
+	 *
+	 * @return The width in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the height of the game's display.
+	 *
+	 * @return The height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
 	
 	public static ResourceManager resouces() {
 		return instance.resources;
@@ -133,10 +250,16 @@ public class Game extends StateMachine<Game> implements Runnable {
 	 * Creates a new Game and executes it in another thread.
 	 * 
 	 * @param args
-	 *            No command line args yet.
+	 *            -record followed by a file name records the session to that
+	 *            file, for Replay to play back.
+	 * @throws IOException
+	 *             If the recording cannot be written.
 	 */
-	public static void main(String[] args) {
-		new Thread(new Game()).start();
+	public static void main(String[] args) throws IOException {
+		Game game = new Game();
+		if (args.length == 2 && args[0].equals("-record"))
+			game.record(new File(args[1]), hashInterval);
+		new Thread(game).start();
 	}
 	
 }
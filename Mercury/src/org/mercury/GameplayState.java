@@ -22,8 +22,10 @@ public class GameplayState implements GameState {
 
 	@Override
 	public void onInitDone() {
-		game.resources.load("resources/resources.xml");
-		game.getPlayer().setCamera(new Camera());
+		game.resources.load("resources/resources.xml", !game.isHeadless());
+		Camera camera = new Camera();
+		camera.setSize(game.getWidth(), game.getHeight());
+		game.getPlayer().setCamera(camera);
 		game.getPlayer().setHero(new Hero(0, 0));
 		world.addPlayer(game.getPlayer());
 	}
@@ -50,4 +52,8 @@ public class GameplayState implements GameState {
 
 	}
 
+	public World getWorld() {
+		return world;
+	}
+
 }
@@ -17,6 +17,9 @@ public class InputHandler implements KeyListener, MouseListener {
 	public Point clickWorld = new Point();
 	public boolean clickAbsorbed = true;
 	public boolean mouseDown = false;
+	// True for the tick in which the mouse was pressed.
+	public boolean clicked = false;
+	private volatile boolean pressed;
 	private Camera camera;
 	public int deltaNorth;
 	public int deltaEast;
@@ -38,6 +41,45 @@ public class InputHandler implements KeyListener, MouseListener {
 		deltaEast = (right) ? 1 : 0;
 		deltaEast = (left) ? -1 : 0;
 		deltaEast = (right && left) ? 0 : deltaEast;
+		clicked = pressed;
+		pressed = false;
+	}
+
+	public boolean isAttacking() {
+		return attack;
+	}
+
+	/**
+	 * Sets the input of this tick in place of polling the keyboard and mouse,
+	 * e.g. to replay a recording.
+	 *
+	 * @param deltaNorth
+	 *            The movement across the north - south axis.
+	 * @param deltaEast
+	 *            The movement across the east - west axis.
+	 * @param attack
+	 *            Whether the attack key is down.
+	 * @param mouseDown
+	 *            Whether the mouse button is down.
+	 * @param click
+	 *            Whether the mouse was pressed in this tick.
+	 * @param xWorld
+	 *            The x coordinate of the click in the world, if any.
+	 * @param yWorld
+	 *            The y coordinate of the click in the world, if any.
+	 */
+	void set(int deltaNorth, int deltaEast, boolean attack, boolean mouseDown,
+			boolean click, int xWorld, int yWorld) {
+		this.deltaNorth = deltaNorth;
+		this.deltaEast = deltaEast;
+		this.attack = attack;
+		this.mouseDown = mouseDown;
+		clicked = click;
+		if (click) {
+			clickWorld.x = xWorld;
+			clickWorld.y = yWorld;
+			clickAbsorbed = false;
+		}
 	}
 
 	@Override
@@ -82,6 +124,7 @@ public class InputHandler implements KeyListener, MouseListener {
 		clickWorld.y = clickScreen.y + camera.y;
 		clickAbsorbed = false;
 		mouseDown = true;
+		pressed = true;
 	}
 
 	@Override
@@ -90,4 +133,4 @@ public class InputHandler implements KeyListener, MouseListener {
 
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,149 @@
+package org.mercury;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the input of every tick to a file, so a session can be replayed
+ * exactly by an InputReplay. The file starts with a header holding the seed
+ * of the game and the interval between state hashes. Then follow records in
+ * tick order, each a byte with the input state of a run of ticks:
+ * <ul>
+ * <li>bits 0 - 1: deltaNorth + 1
+ * <li>bits 2 - 3: deltaEast + 1
+ * <li>bit 4: attack
+ * <li>bit 5: mouse down
+ * <li>bit 6: the mouse was pressed in the first tick of the run, followed by
+ * the world coordinates of the click as two varints
+ * </ul>
+ * and then the length of the run as a varint. Ticks with the same input are
+ * written as one run, so idle stretches take a few bytes. A HASH byte,
+ * followed by a long, holds the hash of the world after the last tick
+ * recorded, written every so many ticks to detect a replay diverging.
+ *
+ * @author tbertore
+ *
+ */
+public class InputRecorder {
+	static final int MAGIC = 0x4d524543;
+	static final int VERSION = 1;
+	static final int CLICK = 0x40;
+	static final int HASH = 0xff;
+
+	private final DataOutputStream out;
+	private final int hashInterval;
+	// The run of identical ticks not yet written.
+	private int runState = -1;
+	private int runLength;
+
+	/**
+	 * Creates a new InputRecorder, replacing the file if it exists.
+	 *
+	 * @param f
+	 *            The file to record to.
+	 * @param seed
+	 *            The seed the game was started with.
+	 * @param hashInterval
+	 *            The number of ticks between hashes of the world, or 0 for
+	 *            none.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public InputRecorder(File f, long seed, int hashInterval)
+			throws IOException {
+		if (hashInterval < 0)
+			throw new IllegalArgumentException("Interval must be >= 0!");
+		this.hashInterval = hashInterval;
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(f)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(seed);
+		out.writeInt(hashInterval);
+	}
+
+	public int getHashInterval() {
+		return hashInterval;
+	}
+
+	/**
+	 * Records the input of a tick. Should be called once per tick, after the
+	 * input is updated.
+	 *
+	 * @param input
+	 *            The input of the tick.
+	 */
+	public void record(InputHandler input) {
+		int state = (input.deltaNorth + 1) | (input.deltaEast + 1) << 2
+				| (input.isAttacking() ? 0x10 : 0)
+				| (input.mouseDown ? 0x20 : 0);
+		try {
+			if (state == runState && !input.clicked) {
+				runLength++;
+				return;
+			}
+			flush();
+			if (input.clicked) {
+				out.writeByte(state | CLICK);
+				writeVarInt(input.clickWorld.x);
+				writeVarInt(input.clickWorld.y);
+			}
+			else
+				out.writeByte(state);
+			runState = state;
+			runLength = 1;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to record input!", e);
+		}
+	}
+
+	/**
+	 * Records the hash of the world after the last tick recorded.
+	 *
+	 * @param hash
+	 *            The hash, e.g. from World.hashState.
+	 */
+	public void hash(long hash) {
+		try {
+			flush();
+			runState = -1;
+			out.writeByte(HASH);
+			out.writeLong(hash);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to record input!", e);
+		}
+	}
+
+	/**
+	 * Writes what is left of the recording and closes the file.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	// Ends the run in progress by writing its length.
+	private void flush() throws IOException {
+		if (runLength > 0)
+			writeVarInt(runLength);
+		runLength = 0;
+	}
+
+	private void writeVarInt(int value) throws IOException {
+		// Zig zag, so small negative values take a byte too.
+		int v = (value << 1) ^ (value >> 31);
+		while ((v & ~0x7f) != 0) {
+			out.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+}
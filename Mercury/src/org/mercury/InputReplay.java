@@ -0,0 +1,176 @@
+package org.mercury;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+
+/**
+ * Plays back the input recorded by an InputRecorder, one tick at a time, in
+ * place of the keyboard and mouse. Along with each tick, the hash of the
+ * world recorded after it, if any, is made available, so the caller can
+ * check that the replay has not diverged from the session recorded.
+ *
+ * @author tbertore
+ *
+ */
+public class InputReplay {
+	private final PushbackInputStream pushback;
+	private final DataInputStream in;
+	private final long seed;
+	private final int hashInterval;
+	private int ticks;
+	// The input of the current run and the ticks left in it.
+	private int state;
+	private int remaining;
+	private boolean hasHash;
+	private long hash;
+
+	/**
+	 * Opens a recording.
+	 *
+	 * @param f
+	 *            The file written by an InputRecorder.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a recording.
+	 */
+	public InputReplay(File f) throws IOException {
+		pushback = new PushbackInputStream(new BufferedInputStream(
+				new FileInputStream(f)));
+		in = new DataInputStream(pushback);
+		if (in.readInt() != InputRecorder.MAGIC) {
+			in.close();
+			throw new IOException("Not a recording: " + f);
+		}
+		if (in.readInt() != InputRecorder.VERSION) {
+			in.close();
+			throw new IOException("Unsupported recording version: " + f);
+		}
+		seed = in.readLong();
+		hashInterval = in.readInt();
+	}
+
+	/**
+	 * Returns the seed the recorded game was started with.
+	 *
+	 * @return The seed.
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getHashInterval() {
+		return hashInterval;
+	}
+
+	/**
+	 * Returns the number of ticks played back so far.
+	 *
+	 * @return The number of ticks.
+	 */
+	public int getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Checks if there are ticks left to play back.
+	 *
+	 * @return true if next will play back a tick.
+	 */
+	public boolean hasNext() {
+		if (remaining > 0)
+			return true;
+		try {
+			int b = pushback.read();
+			if (b < 0)
+				return false;
+			pushback.unread(b);
+			return true;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to replay input!", e);
+		}
+	}
+
+	/**
+	 * Sets the input to that of the next tick recorded.
+	 *
+	 * @param input
+	 *            The input to set.
+	 * @return true if a tick was played back, or false if the recording has
+	 *         ended.
+	 */
+	public boolean next(InputHandler input) {
+		try {
+			boolean click = false;
+			int x = 0, y = 0;
+			if (remaining == 0) {
+				int b = in.read();
+				// A hash before the first tick has nothing to check.
+				while (b == InputRecorder.HASH) {
+					in.readLong();
+					b = in.read();
+				}
+				if (b < 0)
+					return false;
+				state = b & ~InputRecorder.CLICK;
+				click = (b & InputRecorder.CLICK) != 0;
+				if (click) {
+					x = readVarInt();
+					y = readVarInt();
+				}
+				remaining = readVarInt();
+			}
+			remaining--;
+			ticks++;
+			input.set((state & 3) - 1, (state >> 2 & 3) - 1,
+					(state & 0x10) != 0, (state & 0x20) != 0, click, x, y);
+			// The hash of a run follows its last tick.
+			hasHash = false;
+			if (remaining == 0) {
+				int b = pushback.read();
+				if (b == InputRecorder.HASH) {
+					hash = in.readLong();
+					hasHash = true;
+				}
+				else if (b >= 0)
+					pushback.unread(b);
+			}
+			return true;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to replay input!", e);
+		}
+	}
+
+	/**
+	 * Checks if a hash of the world was recorded after the tick last played
+	 * back.
+	 *
+	 * @return true if getHash holds a hash for this tick.
+	 */
+	public boolean hasHash() {
+		return hasHash;
+	}
+
+	public long getHash() {
+		return hash;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int readVarInt() throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return (v >>> 1) ^ -(v & 1);
+		}
+		throw new IOException("Corrupt recording!");
+	}
+}
@@ -7,6 +7,8 @@ public class Player {
 	private Hero hero;
 	private Camera camera;
 	private InputHandler input;
+	private InputRecorder recorder;
+	private InputReplay replay;
 
 	public Player() {
 
@@ -37,9 +39,34 @@ public class Player {
 		return hero;
 	}
 
+	/**
+	 * Records the input of every tick from now on.
+	 *
+	 * @param recorder
+	 *            The recorder to record to, or null to stop recording.
+	 */
+	public void setRecorder(InputRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Plays back recorded input in place of the keyboard and mouse.
+	 *
+	 * @param replay
+	 *            The recording to play back, or null to stop.
+	 */
+	public void setReplay(InputReplay replay) {
+		this.replay = replay;
+	}
+
 	public void update() {
 		// Get issued commands
-		input.update();
+		if (replay != null)
+			replay.next(input);
+		else
+			input.update();
+		if (recorder != null)
+			recorder.record(input);
 		// Issue move direction.
 		hero.setPropagationVector(input.deltaEast, input.deltaNorth);
 	}
@@ -0,0 +1,81 @@
+package org.mercury;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.mercury.world.World;
+
+/**
+ * Plays back a session recorded with Game.record in a headless game, ticking
+ * it as fast as it can, e.g. to reproduce a performance regression. Every so
+ * many ticks the hash of the world is printed and checked against the one
+ * recorded, if any, so a replay which diverges from the session is caught.
+ * The time spent hashing is not counted in the ticks per second reported.
+ * <p>
+ * Must be run from the directory holding the game's resources, like the
+ * game itself.
+ *
+ * @author tbertore
+ *
+ */
+public class Replay {
+
+	/**
+	 * Replays a recording.
+	 *
+	 * @param args
+	 *            The recording, optionally followed by the number of ticks
+	 *            between hashes printed. By default, the hashes recorded are
+	 *            printed.
+	 * @throws IOException
+	 *             If the recording cannot be read.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: Replay <recording> [ticks per hash]");
+			return;
+		}
+		InputReplay replay = new InputReplay(new File(args[0]));
+		int interval = (args.length > 1) ? Integer.parseInt(args[1]) : replay
+				.getHashInterval();
+		Game game = new Game(replay.getSeed(), true);
+		game.getPlayer().setReplay(replay);
+		World world = game.getWorld();
+
+		long tickNanos = 0;
+		int checked = 0, diverged = -1;
+		while (replay.hasNext()) {
+			long start = System.nanoTime();
+			game.update();
+			tickNanos += System.nanoTime() - start;
+			int tick = replay.getTicks();
+			boolean recorded = replay.hasHash();
+			if (!recorded && (interval <= 0 || tick % interval != 0))
+				continue;
+			long hash = world.hashState();
+			String note = "";
+			if (recorded) {
+				checked++;
+				if (hash != replay.getHash()) {
+					note = String.format(" DIVERGED, recorded %016x",
+							replay.getHash());
+					if (diverged < 0)
+						diverged = tick;
+				}
+			}
+			System.out.println(String.format("Tick %d: hash %016x%s", tick,
+					hash, note));
+		}
+		replay.close();
+
+		int ticks = replay.getTicks();
+		System.out.println(String.format(
+				"Replayed %d ticks in %.3f s: %.1f ticks/s", ticks,
+				tickNanos / 1e9, ticks / Math.max(tickNanos / 1e9, 1e-9)));
+		if (diverged >= 0) {
+			System.out.println("Diverged at tick " + diverged + "!");
+			System.exit(1);
+		}
+		System.out.println("Matched all " + checked + " hashes recorded.");
+	}
+}
@@ -59,14 +59,19 @@ import org.w3c.dom.NodeList;
  */
 public class ResourceManager {
 	private HashMap<String, SpriteSheet> sheets;
+	// The sprite size of every sheet, whether or not its image was read.
+	private HashMap<String, Integer> spriteSizes;
 	private HashMap<String, Sprite> sprites;
 	private HashMap<String, Animation> animations;
+	// Whether sprites get an OpenGL texture, which needs a display.
+	private boolean textures = true;
 	/**
 	 * Constructs a new ResourceManager with empty resource mappings.
 	 *
 	 */
 	public ResourceManager() {
 		sheets = new HashMap<String, SpriteSheet>();
+		spriteSizes = new HashMap<String, Integer>();
 		sprites = new HashMap<String, Sprite>();
 		animations = new HashMap<String, Animation>();
 	}
@@ -78,6 +83,20 @@ public class ResourceManager {
 	 *            The path of the XML file.
 	 */
 	public void load(String xmlPath) {
+		load(xmlPath, true);
+	}
+
+	/**
+	 * Loads all resources specified in the XML file with the specified path.
+	 *
+	 * @param xmlPath
+	 *            The path of the XML file.
+	 * @param textures
+	 *            If false, sprites are left without a texture and cannot be
+	 *            rendered, so that a game can run without a display.
+	 */
+	public void load(String xmlPath, boolean textures) {
+		this.textures = textures;
 		try {
 			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 			InputStream in = new FileInputStream(new File(xmlPath));
@@ -131,11 +150,13 @@ public class ResourceManager {
 	 */
 	private void unloadAllSpriteSheets() {
 		sheets = null;
+		spriteSizes = null;
 	}
 
 	/**
 	 * Builds a SpriteSheet from the specified xml resource element and loads it
-	 * into the SpriteSheet map.
+	 * into the SpriteSheet map. Without textures only its sprite size is kept,
+	 * and the image is never read.
 	 *
 	 * @param resource
 	 *            The XML tag to load from.
@@ -145,9 +166,9 @@ public class ResourceManager {
 		String id = resource.getAttribute("id");
 		int size = Integer.valueOf(resource.getAttribute("size"));
 		int spriteSize = Integer.valueOf(resource.getAttribute("spritesize"));
-		SpriteSheet sheet = new SpriteSheet(path, size, spriteSize);
-
-		sheets.put(id, sheet);
+		spriteSizes.put(id, spriteSize);
+		if (textures)
+			sheets.put(id, new SpriteSheet(path, size, spriteSize));
 	}
 
 	/**
@@ -160,12 +181,13 @@ public class ResourceManager {
 	private void loadSprite(Element resource) {
 		String sheet = resource.getAttribute("sheet");
 		String id = resource.getAttribute("id");
-		int size = sheets.get(sheet).spriteSize;
+		int size = spriteSizes.get(sheet);
 		int x = Integer.valueOf(resource.getAttribute("x"));
 		int y = Integer.valueOf(resource.getAttribute("y"));
 		Sprite sprite = new Sprite(size, size);
 
-		sprite.load(sheets.get(sheet), x, y);
+		if (textures)
+			sprite.load(sheets.get(sheet), x, y);
 		sprites.put(id, sprite);
 
 	}
@@ -179,11 +201,12 @@ public class ResourceManager {
 		int x = Integer.valueOf(resource.getAttribute("x"));
 		int y = Integer.valueOf(resource.getAttribute("y"));
 		Sprite[] sprites = new Sprite[length];
-		int size = sheets.get(sheet).spriteSize;
+		int size = spriteSizes.get(sheet);
 		
 		for (int idx = 0; idx < sprites.length; idx++) {
 			sprites[idx] = new Sprite(size, size);
-			sprites[idx].load(sheets.get(sheet), (x + idx) * size, y * size);
+			if (textures)
+				sprites[idx].load(sheets.get(sheet), (x + idx) * size, y * size);
 		}
 		
 		animations.put(id, new Animation(sprites, speed, loop));
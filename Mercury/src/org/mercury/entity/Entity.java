@@ -1,11 +1,13 @@
 package org.mercury.entity;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 
 import org.mercury.gfx.AnimationList;
 import org.mercury.gfx.Camera;
-import org.mercury.util.BoundingBox;
+import org.mercury.util.QuadTree;
+import org.mercury.util.SweptAABB;
+import org.mercury.util.Timer;
+import org.mercury.world.Terrain;
 
 /**
  * An top level class which represents a game object that has a position in the
@@ -15,25 +17,45 @@ import org.mercury.util.BoundingBox;
  *
  */
 public class Entity {
-	private static int idCount = 0;
-	private final int id;
+	// Assigned by the EntityTable of the owning EntityManager.
+	private int id = -1;
 	// The action entity is performing.
 	protected String currentState = "walk_test";
-	protected double x, y;
-	protected int w, h, deltaNorth, deltaEast;
-	protected double speed = 1;
+	// Held here while this entity is not in an EntityStore, otherwise held by
+	// the store.
+	private double x, y;
+	private int w, h, deltaNorth, deltaEast;
+	private double speed = 1;
+	// The pathing flags of the tiles this entity may enter.
+	private int movementMask = Terrain.PATHING_GROUND;
+	// The store holding this entity's state and its slot there, if packed.
+	private EntityStore store;
+	private int slot = -1;
 	protected EntityManager owner;
 	protected AnimationList animations;
+	// Scratch space reused by every call to propagatePosition.
+	private final ArrayList<Entity> collisions = new ArrayList<Entity>();
+	private final SweptAABB sweep = new SweptAABB();
+	// The move found by the last call to planMove.
+	private double moveX, moveY;
+	private boolean planned;
+	// The position of this entity in its owner's list of awake entities, or
+	// -1 while asleep.
+	private int awakeSlot = -1;
+	// The tick this entity was last updated on and the number of ticks that
+	// update stood for, above 1 while updated at a reduced rate.
+	private int lastTick;
+	private int ticks = 1;
+	// Where a QuadTree holds this entity.
+	private final QuadTree.Slot treeSlot = new QuadTree.Slot();
 	public Entity(int x, int y) {
 		this.x = x;
 		this.y = y;
-		id = idCount++;
 	}
 
 	public Entity(int x, int y, AnimationList animations) {
 		this.x = x;
 		this.y = y;
-		id = idCount++;
 		this.animations = animations;
 	}
 
@@ -43,7 +65,8 @@ public class Entity {
 
 	public void update() {
 		// Update to next frame if necessary.
-		animations.update();
+		for (int tick = 0; tick < ticks; tick++)
+			animations.update();
 		// Move as far as possible
 		propagatePosition();
 	}
@@ -54,56 +77,285 @@ public class Entity {
 	}
 
 	/**
-	 * Primitive collision algorithm that calculates farthest possible valid
-	 * location in the direction of vectors deltaEast and deltaNorth. In a
-	 * moving collision, the entity that is ticked first receives precedence.
+	 * Swept collision algorithm that moves this entity as far as possible in
+	 * the direction of vectors deltaEast and deltaNorth. The earliest contact
+	 * along the whole move is found, so fast entities cannot pass through thin
+	 * ones, and any movement left after a contact slides along the surface
+	 * that was hit. Tiles this entity's movement mask does not allow and the
+	 * edges of the world are hit like entities. In a moving collision, the
+	 * entity that is ticked first receives precedence.
 	 *
 	 * @author Wyatt Bertorelli
 	 *
 	 */
 	private void propagatePosition() {
-		// Calculate magnitude
-		double magnitude = (Math.sqrt(Math.abs(deltaEast)
-				+ Math.abs(deltaNorth)));
-		// Return early if no direction specified.
-		if (magnitude == 0)
-			return;
-		// Calculate velocity vectors(unit vector * speed).
-		double deltaX = deltaEast * speed / magnitude;
-		// y axis points towards south.
-		double deltaY = -deltaNorth * speed / magnitude;
-		// Calculate propagation centroid. +0.5 for round on cast.
-		int propCX = (int) (x + (w / 2) + deltaX + 0.5);
-		int propCY = (int) (y + (h / 2) + deltaY + 0.5);
-		// Generate a bounding box at propagation dimensions.
-		BoundingBox propBounds = new BoundingBox(propCX, propCY, w / 2, h / 2);
+		if (planMove(0))
+			commitMove();
+	}
+
+	/**
+	 * Finds this tick's movement and everything it may run into, without
+	 * changing any state outside this entity.
+	 *
+	 * @param margin
+	 *            How far to widen the collision query, so it also finds
+	 *            entities which will move into the path before this entity
+	 *            commits its move.
+	 * @return true if this entity wants to move, otherwise false.
+	 */
+	private boolean planMove(int margin) {
+		double x = posX();
+		double y = posY();
+		double deltaX, deltaY;
+		if (store != null) {
+			// Already found by EntityStore.computeVelocities.
+			deltaX = store.vx[slot] * ticks;
+			deltaY = store.vy[slot] * ticks;
+			if (deltaX == 0 && deltaY == 0)
+				return false;
+		}
+		else {
+			// Calculate magnitude
+			double magnitude = (Math.sqrt(Math.abs(deltaEast)
+					+ Math.abs(deltaNorth)));
+			// Return early if no direction specified.
+			if (magnitude == 0)
+				return false;
+			// Calculate velocity vectors(unit vector * speed).
+			deltaX = deltaEast * speed * ticks / magnitude;
+			// y axis points towards south.
+			deltaY = -deltaNorth * speed * ticks / magnitude;
+		}
+		moveX = deltaX;
+		moveY = deltaY;
+		// Bound the whole area swept by this move.
+		int x1 = (int) Math.floor(Math.min(x, x + deltaX)) - margin;
+		int y1 = (int) Math.floor(Math.min(y, y + deltaY)) - margin;
+		int x2 = (int) Math.ceil(Math.max(x, x + deltaX)) + getW() + margin;
+		int y2 = (int) Math.ceil(Math.max(y, y + deltaY)) + getH() + margin;
 		// Return entities from that are inside propagation window.
-		ArrayList<Entity> collisions = owner.findCollisions(propBounds);
-		if (collisions == null) {
-			// No collisions were detected in the delta, propagate freely.
-			x = x + deltaX;
-			y = y + deltaY;
+		collisions.clear();
+		owner.findCollisions(this, x1, y1, x2, y2, collisions);
+		// In id order, so contacts at the same time are settled alike
+		// whatever order the index returned them in.
+		for (int idx = 1; idx < collisions.size(); idx++) {
+			Entity e = collisions.get(idx);
+			int pos = idx;
+			for (; pos > 0 && collisions.get(pos - 1).index() > e.index(); pos--)
+				collisions.set(pos, collisions.get(pos - 1));
+			collisions.set(pos, e);
 		}
-		// Preallocate temp arrays for all lower bounds.
-		int[] xVals = new int[collisions.size()];
-		int[] yVals = new int[collisions.size()];
-		for (int j = 0; j < collisions.size(); j++) {
-			// Get scalar distances between faces that intersect first.
-			xVals[j] = (deltaEast > 0) ? Math.abs(collisions.get(j).getX() - (getX() + w)) :
-				Math.abs(getX() - (collisions.get(j).getX() - collisions.get(j).getW()));
-			// +y points towards south, so logic flips here.
-			yVals[j] = (deltaNorth <= 0) ? Math.abs(collisions.get(j).getY() - (getY() + h)) :
-				Math.abs(getY() - (collisions.get(j).getY() - collisions.get(j).getH()));
+		return true;
+	}
+
+
+	/**
+	 * Carries out the move found by planMove against the current positions
+	 * of the entities it found.
+	 */
+	private void commitMove() {
+		double x = posX();
+		double y = posY();
+		int w = getW();
+		int h = getH();
+		double deltaX = moveX;
+		double deltaY = moveY;
+		// Terrain not loaded yet holds whatever stands on it.
+		if (!owner.getWorld().isLoaded(x, y, w, h))
+			return;
+		// Move to the first contact, then slide along it with whatever
+		// movement remains. A second contact ends the move.
+		for (int pass = 0; pass < 2; pass++) {
+			sweep.reset();
+			Entity hit = null;
+			for (int idx = 0; idx < collisions.size(); idx++) {
+				Entity other = collisions.get(idx);
+				if (sweep.sweep(x, y, w, h, deltaX, deltaY, other.posX(),
+						other.posY(), other.getW(), other.getH()))
+					hit = other;
+			}
+			if (owner.getWorld().sweepTerrain(sweep, x, y, w, h, deltaX,
+					deltaY, movementMask))
+				hit = null;
+			if (sweep.time == 1) {
+				x += deltaX;
+				y += deltaY;
+				break;
+			}
+			// Stop exactly against the surface hit.
+			if (sweep.normalX != 0) {
+				x = sweep.contact;
+				y += deltaY * sweep.time;
+			}
+			else {
+				x += deltaX * sweep.time;
+				y = sweep.contact;
+			}
+			// Being run into wakes an entity up.
+			if (hit != null)
+				hit.wake();
+			double remaining = 1 - sweep.time;
+			deltaX = (sweep.normalX != 0) ? 0 : deltaX * remaining;
+			deltaY = (sweep.normalY != 0) ? 0 : deltaY * remaining;
 		}
-		// Nearest values are our closest intersection.
-		Arrays.sort(xVals);
-		Arrays.sort(yVals);
-		// Max move distance is delta or nearest object along axis,
-		// whichever comes first. Revert signs post decision.
-		x = (Math.abs(deltaX) > xVals[0]) ? (double) xVals[0] * deltaEast + x
-				: deltaX + x;
-		y = (Math.abs(deltaY) > yVals[0]) ? (double) yVals[0] * -deltaNorth + y
-				: deltaY + y;
+		// The update was reported to the owner as it began, unless only the
+		// position in the store changes.
+		moveTo(x, y);
+	}
+
+	/**
+	 * The read only half of a two phase update. Finds the movement this
+	 * entity wants this tick and the entities it may collide with, without
+	 * changing anything other entities can see, so it may run concurrently
+	 * with the planning of other entities. Two phase updates call planUpdate
+	 * and commitUpdate in place of update.
+	 *
+	 * @param margin
+	 *            The furthest any entity can move this tick.
+	 */
+	public void planUpdate(int margin) {
+		planned = planMove(margin);
+	}
+
+	/**
+	 * The second half of a two phase update. Advances the animation and
+	 * carries out the planned move. Must be called on one thread, for every
+	 * entity in a fixed order.
+	 */
+	public void commitUpdate() {
+		// Animations may be shared between entities, so they are only
+		// advanced while committing.
+		for (int tick = 0; tick < ticks; tick++)
+			animations.update();
+		if (planned)
+			commitMove();
+		planned = false;
+	}
+
+	/**
+	 * Called when a message addressed to this entity is delivered, at the
+	 * start of its owner's update. The message is recycled afterwards, so
+	 * anything needed later must be copied out of it.
+	 *
+	 * @param m
+	 *            The message delivered.
+	 */
+	public void receive(Message m) {
+	}
+
+	/**
+	 * Sends a message from this entity. Safe to call from any thread.
+	 *
+	 * @param dest
+	 *            The id of the receiving entity.
+	 * @param delay
+	 *            The number of extra ticks to hold the message for.
+	 * @param data
+	 *            The contents of the message.
+	 */
+	protected void send(int dest, int delay, Object data) {
+		owner.getDispatcher().send(id, dest, delay, data);
+	}
+
+	/**
+	 * Checks if this entity is updated every tick.
+	 *
+	 * @return true if awake, false if asleep or not registered.
+	 */
+	public boolean isAwake() {
+		return awakeSlot >= 0;
+	}
+
+	/**
+	 * Makes sure this entity is updated from the next tick on. Must be called
+	 * before changing the state of this entity from outside its update other
+	 * than through its setters, e.g. from a timer.
+	 */
+	public void wake() {
+		changing();
+		if (awakeSlot < 0 && owner != null && id >= 0)
+			owner.wake(this);
+	}
+
+	/**
+	 * Tells the owner this entity is about to change, if registered.
+	 */
+	private void changing() {
+		if (owner != null && id >= 0)
+			owner.changing(this);
+	}
+
+	/**
+	 * Checks if this entity may stop being updated, which is the case while
+	 * it has no movement requested and its animation can no longer change.
+	 * Subclasses with other state changing in update should extend this.
+	 *
+	 * @return true if updating this entity would change nothing.
+	 */
+	protected boolean canSleep() {
+		int east = (store != null) ? store.deltaEast[slot] : deltaEast;
+		int north = (store != null) ? store.deltaNorth[slot] : deltaNorth;
+		return (east == 0 && north == 0)
+				&& (animations == null || animations.isIdle());
+	}
+
+	/**
+	 * Returns the number of ticks the update in progress stands for. Entities
+	 * far from every camera are updated at a reduced rate, and each update
+	 * moves them as far as all the ticks skipped since the last one would
+	 * have. Subclasses counting ticks in update should count this many.
+	 *
+	 * @return The number of ticks since this entity was last updated.
+	 */
+	protected int getElapsedTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Starts an update on the specified tick. Maintained by EntityManager.
+	 */
+	void beginTick(int tick) {
+		ticks = tick - lastTick;
+		lastTick = tick;
+	}
+
+	/**
+	 * Returns the furthest this entity can move, in whole pixels along
+	 * either axis, if its next update is on the specified tick.
+	 */
+	int getReach(int tick) {
+		return (int) Math.ceil(getSpeed() * (tick - lastTick)) + 1;
+	}
+
+	/**
+	 * Sets the tick this entity was last updated on, so that its next update
+	 * does not catch up on ticks it spent asleep. Maintained by
+	 * EntityManager.
+	 */
+	void setLastTick(int tick) {
+		lastTick = tick;
+	}
+
+	int getAwakeSlot() {
+		return awakeSlot;
+	}
+
+	void setAwakeSlot(int awakeSlot) {
+		this.awakeSlot = awakeSlot;
+	}
+
+	/**
+	 * Runs a timer a number of ticks from now on the owner's TimingWheel, in
+	 * place of counting ticks in update. Scheduling a timer which is already
+	 * scheduled moves it to the new deadline.
+	 *
+	 * @param timer
+	 *            The timer to run.
+	 * @param delay
+	 *            The number of updates until the timer expires.
+	 */
+	protected void schedule(Timer timer, int delay) {
+		owner.getTimers().schedule(timer, delay);
 	}
 
 	/**
@@ -116,10 +368,19 @@ public class Entity {
 	 *            vector indicating direction across north - south axis.
 	 */
 	public void setPropagationVector(int deltaEast, int deltaNorth) {
-		this.deltaEast = deltaEast;
-		this.deltaNorth = deltaNorth;
+		changing();
+		if (deltaEast != 0 || deltaNorth != 0)
+			wake();
+		if (store != null) {
+			store.deltaEast[slot] = deltaEast;
+			store.deltaNorth[slot] = deltaNorth;
+		}
+		else {
+			this.deltaEast = deltaEast;
+			this.deltaNorth = deltaNorth;
+		}
 		// Find position entity is pointing towards.
-		int orientation = calculatePointingAngle();
+		int orientation = calculatePointingAngle(deltaEast, deltaNorth);
 		// Update animations if necessary.
 		if (orientation != animations.getOrientation()
 				|| !currentState.equals(animations.getLiveName()))
@@ -131,7 +392,7 @@ public class Entity {
 	 *
 	 * @return orientation, in format of AnimationList
 	 */
-	private int calculatePointingAngle() {
+	private int calculatePointingAngle(int deltaEast, int deltaNorth) {
 		// If all tests fail, orientation is previous state.
 		int orientation = animations.getOrientation();
 
@@ -147,28 +408,256 @@ public class Entity {
 			orientation = 4;
 		return orientation;
 	}
+	/**
+	 * Returns the id of this entity, which combines its slot index in its
+	 * manager's EntityTable with a generation.
+	 *
+	 * @return The id, or -1 if this entity is not registered.
+	 */
 	public int id() {
 		return id;
 	}
 
+	/**
+	 * Returns the slot index part of this entity's id, which is small and
+	 * unique among registered entities and so may index arrays.
+	 *
+	 * @return The slot index, or -1 if this entity is not registered.
+	 */
+	public int index() {
+		return (id < 0) ? -1 : EntityTable.index(id);
+	}
+
+	/**
+	 * Assigns this entity's id. Maintained by EntityTable.
+	 */
+	void setId(int id) {
+		this.id = id;
+	}
+
 	public int getX() {
-		return (int) (x + 0.5);
+		return (int) (posX() + 0.5);
 	}
 
 	public int getY() {
-		return (int) (y + 0.5);
+		return (int) (posY() + 0.5);
 	}
 
 	public int getH() {
-		return h;
+		return (store != null) ? store.h[slot] : h;
+	}
+
+	/**
+	 * Returns the exact upper left x coordinate, which getX rounds.
+	 *
+	 * @return The x coordinate.
+	 */
+	public double getPosX() {
+		return posX();
+	}
+
+	public double getPosY() {
+		return posY();
+	}
+
+	public int getDeltaEast() {
+		return (store != null) ? store.deltaEast[slot] : deltaEast;
+	}
+
+	public int getDeltaNorth() {
+		return (store != null) ? store.deltaNorth[slot] : deltaNorth;
+	}
+
+	/**
+	 * Returns the action this entity is performing, which names the
+	 * animation it shows.
+	 *
+	 * @return The state.
+	 */
+	public String getState() {
+		return currentState;
+	}
+
+	/**
+	 * Changes the action this entity is performing. The animation follows on
+	 * the next call to setPropagationVector.
+	 *
+	 * @param state
+	 *            The name of the new state.
+	 */
+	public void setState(String state) {
+		changing();
+		currentState = state;
+	}
+
+	public AnimationList getAnimations() {
+		return animations;
+	}
+
+	/**
+	 * Returns the name this kind of entity is saved under in a snapshot, and
+	 * recreated from by an EntityFactory. Subclasses sharing a class but
+	 * recreated differently should override this.
+	 *
+	 * @return The kind of this entity, by default its class name.
+	 */
+	public String getKind() {
+		return getClass().getName();
 	}
 
 	public int getW() {
-		return w;
+		return (store != null) ? store.w[slot] : w;
+	}
+
+	/**
+	 * Returns the pathing flags of the tiles this entity may enter.
+	 *
+	 * @return The movement mask, by default Terrain.PATHING_GROUND.
+	 */
+	public int getMovementMask() {
+		return movementMask;
+	}
+
+	/**
+	 * Sets the kind of tiles this entity may enter. A tile may be entered if
+	 * it has no pathing flags or shares one with the mask, unless it has
+	 * Terrain.PATHING_NONE.
+	 *
+	 * @param mask
+	 *            Pathing flags from Terrain, e.g. PATHING_GROUND |
+	 *            PATHING_WATER for an amphibious entity.
+	 */
+	public void setMovementMask(int mask) {
+		changing();
+		movementMask = mask;
+	}
+
+	public double getSpeed() {
+		return (store != null) ? store.speed[slot] : speed;
+	}
+
+	public void setSpeed(double speed) {
+		changing();
+		if (store != null)
+			store.speed[slot] = speed;
+		else
+			this.speed = speed;
+	}
+
+	private double posX() {
+		return (store != null) ? store.x[slot] : x;
 	}
+
+	private double posY() {
+		return (store != null) ? store.y[slot] : y;
+	}
+
+	/**
+	 * Moves this entity without checking for collisions. A registered entity
+	 * must be reindexed by its owner afterwards.
+	 *
+	 * @param x
+	 *            The new upper left x coordinate.
+	 * @param y
+	 *            The new upper left y coordinate.
+	 */
+	public void setPosition(double x, double y) {
+		changing();
+		moveTo(x, y);
+	}
+
+	private void moveTo(double x, double y) {
+		if (store != null) {
+			store.changingPosition(slot);
+			store.x[slot] = x;
+			store.y[slot] = y;
+		}
+		else {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/**
+	 * Resizes this entity without checking for collisions. A registered
+	 * entity must be reindexed by its owner afterwards.
+	 *
+	 * @param w
+	 *            The new width.
+	 * @param h
+	 *            The new height.
+	 */
+	public void setSize(int w, int h) {
+		changing();
+		if (store != null) {
+			store.w[slot] = w;
+			store.h[slot] = h;
+		}
+		else {
+			this.w = w;
+			this.h = h;
+		}
+	}
+
 	@Override
 	public String toString() {
-		return super.toString() + " at " + x + ", " + y;
+		return super.toString() + " at " + posX() + ", " + posY();
+	}
+
+	/**
+	 * Returns the EntityStore holding this entity's state, if any.
+	 *
+	 * @return The store, or null if this entity holds its own state.
+	 */
+	public EntityStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the slot of this entity in its EntityStore.
+	 *
+	 * @return The slot, or -1 if this entity is not in a store.
+	 */
+	public int getSlot() {
+		return slot;
+	}
+
+	/**
+	 * Copies this entity's state into a slot of a store, which holds it from
+	 * then on. Maintained by EntityStore.
+	 */
+	void pack(EntityStore store, int slot) {
+		store.x[slot] = x;
+		store.y[slot] = y;
+		store.w[slot] = w;
+		store.h[slot] = h;
+		store.speed[slot] = speed;
+		store.deltaEast[slot] = deltaEast;
+		store.deltaNorth[slot] = deltaNorth;
+		store.vx[slot] = 0;
+		store.vy[slot] = 0;
+		this.store = store;
+		this.slot = slot;
+	}
+
+	/**
+	 * Copies this entity's state back out of its store. Maintained by
+	 * EntityStore.
+	 */
+	void unpack() {
+		x = store.x[slot];
+		y = store.y[slot];
+		w = store.w[slot];
+		h = store.h[slot];
+		speed = store.speed[slot];
+		deltaEast = store.deltaEast[slot];
+		deltaNorth = store.deltaNorth[slot];
+		store = null;
+		slot = -1;
+	}
+
+	void setSlot(int slot) {
+		this.slot = slot;
 	}
 
 	/**
@@ -180,4 +669,14 @@ public class Entity {
 	public void setOwner(EntityManager e) {
 		owner = e;
 	}
+
+	/**
+	 * Returns where a QuadTree holds this entity. The Slot is opaque outside
+	 * QuadTree, so it cannot be read or changed here or by callers.
+	 *
+	 * @return This entity's QuadTree Slot.
+	 */
+	public QuadTree.Slot getTreeSlot() {
+		return treeSlot;
+	}
 }
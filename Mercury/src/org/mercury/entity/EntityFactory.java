@@ -0,0 +1,22 @@
+package org.mercury.entity;
+
+/**
+ * Recreates entities by kind, e.g. when loading a snapshot of a world.
+ *
+ * @author tbertore
+ *
+ */
+public interface EntityFactory {
+	/**
+	 * Creates an entity, with the animations it is normally created with.
+	 *
+	 * @param kind
+	 *            The kind of the entity, as returned by Entity.getKind.
+	 * @param x
+	 *            The upper left x coordinate.
+	 * @param y
+	 *            The upper left y coordinate.
+	 * @return The new entity, not yet registered.
+	 */
+	public Entity create(String kind, int x, int y);
+}
@@ -0,0 +1,21 @@
+package org.mercury.entity;
+
+/**
+ * Notified by an EntityManager just before the state of one of its entities
+ * changes, e.g. to keep a copy of the state from before the change.
+ *
+ * @author tbertore
+ *
+ */
+public interface EntityListener {
+	/**
+	 * Called before an entity is updated, woken, changed through its setters
+	 * or removed, and before its packed state is moved. An update of a packed
+	 * entity whose animation is idle only changes its position in its
+	 * EntityStore, and is not reported. Called on the tick thread.
+	 *
+	 * @param e
+	 *            The entity about to change.
+	 */
+	public void entityChanging(Entity e);
+}
@@ -1,56 +1,428 @@
 package org.mercury.entity;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.lwjgl.util.Point;
+import org.mercury.gfx.AnimationList;
 import org.mercury.gfx.Camera;
 import org.mercury.util.BoundingBox;
+import org.mercury.util.EntityVisitor;
+import org.mercury.util.MortonOrder;
+import org.mercury.util.NearestNeighbours;
 import org.mercury.util.QuadTree;
+import org.mercury.util.RayCast;
+import org.mercury.util.SpatialIndex;
+import org.mercury.util.TimingWheel;
+import org.mercury.world.Terrain;
 import org.mercury.world.World;
 
 /**
  * A class which organizes entities and contains a mapping of unique entitiy
- * id's to their respective entity.
+ * id's to their respective entity. Ids are handed out by an EntityTable when
+ * entities are registered and recycled once they are removed.
  *
  * @author tbertore
  *
  */
 public class EntityManager {
-	private HashMap<Integer, Entity> idToEntity;
-	private QuadTree tree;
+	// If at least this fraction of entities moved last tick, reindexing is
+	// deferred to the end of the tick and done in one batch.
+	private static final double BATCH_FRACTION = 0.25;
+	// If at least this fraction of entities moved in a batched tick, the whole
+	// index is rebuilt instead of patched.
+	private static final double REBUILD_FRACTION = 0.5;
+
+	private final EntityTable table = new EntityTable();
+	private final TimingWheel timers = new TimingWheel();
+	private final MessageDispatcher dispatcher = new MessageDispatcher(table,
+			timers);
+	private final World world;
+	private SpatialIndex index;
+	private final MortonOrder mortonOrder = new MortonOrder(Terrain.SIZE);
+	// Entities which moved during a batched tick.
+	private Entity[] moved = new Entity[16];
+	private boolean batched;
+	// The furthest any entity has moved unindexed in a batched tick.
+	private int slack;
+	// Finds colliding pairs for the tick when enabled, otherwise null.
+	private SweepAndPrune broadphase;
+	// Holds the state of every entity in packed arrays when enabled,
+	// otherwise null.
+	private EntityStore store;
+	// State of the tick in progress.
+	private int movedCount;
+	// The number of threads planning two phase updates, or 0 to update each
+	// entity in one go.
+	private int parallelism;
+	// Runs the planning phase when parallelism is above 1, otherwise null.
+	private ForkJoinPool pool;
+	// The entities due during a two phase update, in the order a one phase
+	// update would update them.
+	private Entity[] ordered = new Entity[16];
+	// The entities updated every tick. The rest are asleep.
+	private Entity[] awake = new Entity[16];
+	private int awakeCount;
+	// Whether a packed tick is walking the store, and the entities woken
+	// meanwhile, which are left out of the walk and updated after it.
+	private boolean walking;
+	private Entity[] late = new Entity[16];
+	private int lateCount;
+	// Entities further than each of these squared distances from every
+	// camera are updated every 2nd, 4th and 16th tick.
+	private final ArrayList<Camera> cameras = new ArrayList<Camera>();
+	private final long[] lodBands = { Long.MAX_VALUE, Long.MAX_VALUE,
+			Long.MAX_VALUE };
+	// Whether a tick is in progress, and the number of entities updated in
+	// the last one.
+	private boolean updating;
+	private EntityListener listener;
+	private int updatedCount;
+
+	/**
+	 * Creates a new EntityManager which indexes entities with a loose QuadTree
+	 * spanning the specified world.
+	 *
+	 * @param world
+	 *            The world the entities live in.
+	 */
 	public EntityManager(World world) {
-		idToEntity = new HashMap<Integer, Entity>();
-		tree = new QuadTree(new BoundingBox(new Point(0,0), world.getWidth(), world.getHeight()));
+		this(world, new QuadTree(new BoundingBox(new Point(0, 0),
+				world.getWidth(), world.getHeight()), true));
+	}
+
+	/**
+	 * Creates a new EntityManager which indexes entities with the specified
+	 * SpatialIndex.
+	 *
+	 * @param world
+	 *            The world the entities live in.
+	 * @param index
+	 *            An empty SpatialIndex covering the world.
+	 */
+	public EntityManager(World world, SpatialIndex index) {
+		this.world = world;
+		this.index = index;
+	}
+
+	/**
+	 * Returns the world the entities of this EntityManager live in.
+	 *
+	 * @return The world.
+	 */
+	public World getWorld() {
+		return world;
 	}
 
 	/**
-	 * Registers the specified entity with this EntityManager and creates a new
-	 * id mapping for it.
+	 * Registers the specified entity with this EntityManager and assigns it a
+	 * new id.
 	 *
 	 * @param e
 	 *            The entity the register.
 	 * @throws IllegalArgumentException
-	 *             If an entity with this entities id was already registered.
+	 *             If the entity is already registered.
 	 */
 	public void register(Entity e) {
-		if (idToEntity.containsKey(e.id()))
-			throw new IllegalArgumentException("Duplicate entity ids!");
-		idToEntity.put(e.id(), e);
-		tree.insert(e);
+		table.add(e);
+		wake(e);
+		if (store != null)
+			store.add(e);
+		index.insert(e);
+		if (broadphase != null)
+			broadphase.add(e);
 		e.setOwner(this);
 	}
 
 	/**
-	 * Removes the specified entity from this EntityManager and deletes its id
-	 * mapping.
+	 * Removes the specified entity from this EntityManager and frees its id,
+	 * which may later be reused with a new generation.
 	 *
 	 * @param e
 	 *            The entity to remove.
 	 */
 	public void remove(Entity e) {
-		idToEntity.remove(e);
-		tree.remove(e);
+		if (table.get(e.id()) != e)
+			return;
+		changing(e);
+		// The last entity in the store moves into the freed slot.
+		if (store != null)
+			changing(store.get(store.size() - 1));
+		index.remove(e);
+		if (broadphase != null)
+			broadphase.remove(e);
+		if (store != null)
+			store.remove(e);
+		if (e.isAwake())
+			sleep(e);
+		table.remove(e.id());
+	}
+
+	/**
+	 * Chooses how entities find what they may collide with as they move. By
+	 * default each moving entity queries the SpatialIndex. With sweep and
+	 * prune enabled, candidate pairs for every entity are instead found once
+	 * at the start of each tick, which is cheaper when most entities move
+	 * only a little from one tick to the next.
+	 *
+	 * @param enabled
+	 *            true to use a SweepAndPrune broadphase, false to query the
+	 *            SpatialIndex.
+	 */
+	public void setSweepAndPrune(boolean enabled) {
+		if (!enabled) {
+			broadphase = null;
+			return;
+		}
+		if (broadphase != null)
+			return;
+		broadphase = new SweepAndPrune();
+		for (int idx = 0; idx < table.size(); idx++)
+			broadphase.add(table.getDense(idx));
+	}
+
+	/**
+	 * Chooses where the state entities update every tick is kept. By default
+	 * each Entity holds its own. With packing enabled it is moved into the
+	 * parallel arrays of an EntityStore, and entities are updated in slot
+	 * order by walking those arrays rather than the id map, which keeps
+	 * memory access linear when there are many entities.
+	 *
+	 * @param enabled
+	 *            true to pack entity state into an EntityStore, false to keep
+	 *            it in each Entity.
+	 */
+	public void setPacked(boolean enabled) {
+		if (enabled == (store != null))
+			return;
+		for (int idx = 0; idx < table.size(); idx++)
+			changing(table.getDense(idx));
+		if (enabled) {
+			store = new EntityStore();
+			for (int idx = 0; idx < table.size(); idx++)
+				store.add(table.getDense(idx));
+		}
+		else {
+			while (store.size() > 0)
+				store.remove(store.get(store.size() - 1));
+			store = null;
+		}
+	}
+
+	/**
+	 * Returns the store holding the state of every entity when packed. Its
+	 * slots hold the entities in the same order as getEntity.
+	 *
+	 * @return The store, or null if entities are not packed.
+	 */
+	public EntityStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Chooses how entities are updated. By default each entity is updated in
+	 * full before the next, so entities see the moves of those updated before
+	 * them.
+	 * <p>
+	 * With a parallelism of 1 or more, each tick runs in two phases instead.
+	 * Every entity first plans its move and finds what it may collide with
+	 * without changing anything other entities can see, spread over the
+	 * specified number of threads. Moves and animations are then committed
+	 * one entity at a time in the order the default would update them, and
+	 * entities run into meanwhile are updated after the rest, so the outcome
+	 * is the same as the default for any number of threads.
+	 *
+	 * @param threads
+	 *            The number of threads to plan with, or 0 to update each
+	 *            entity in one go.
+	 * @throws IllegalArgumentException
+	 *             If threads is negative.
+	 */
+	public void setParallelism(int threads) {
+		if (threads < 0)
+			throw new IllegalArgumentException("Parallelism must be >= 0!");
+		if (pool != null && threads != parallelism) {
+			pool.shutdown();
+			pool = null;
+		}
+		parallelism = threads;
+		if (threads > 1 && pool == null)
+			pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Adds a camera to update entities near at the full rate when level of
+	 * detail is enabled with setLodDistances.
+	 *
+	 * @param c
+	 *            The camera to add.
+	 */
+	public void addCamera(Camera c) {
+		if (!cameras.contains(c))
+			cameras.add(c);
+	}
+
+	/**
+	 * Removes a camera added with addCamera.
+	 *
+	 * @param c
+	 *            The camera to remove.
+	 */
+	public void removeCamera(Camera c) {
+		cameras.remove(c);
+	}
+
+	/**
+	 * Sets how far from the viewport of the nearest camera entities are
+	 * updated at a reduced rate. An entity updated every nth tick moves and
+	 * animates n ticks' worth at once, and entities on the same rate are
+	 * spread evenly over the ticks by id. By default, and while there are no
+	 * cameras, every entity is updated every tick.
+	 *
+	 * @param half
+	 *            The distance in pixels beyond which entities are updated
+	 *            every 2nd tick.
+	 * @param quarter
+	 *            The distance beyond which entities are updated every 4th
+	 *            tick.
+	 * @param sixteenth
+	 *            The distance beyond which entities are updated every 16th
+	 *            tick.
+	 * @throws IllegalArgumentException
+	 *             If a distance is negative or less than the one before.
+	 */
+	public void setLodDistances(int half, int quarter, int sixteenth) {
+		if (half < 0 || quarter < half || sixteenth < quarter)
+			throw new IllegalArgumentException(
+					"LOD distances must be ascending and >= 0!");
+		lodBands[0] = (long) half * half;
+		lodBands[1] = (long) quarter * quarter;
+		lodBands[2] = (long) sixteenth * sixteenth;
+	}
+
+	/**
+	 * Disables level of detail, updating every entity every tick.
+	 */
+	public void clearLodDistances() {
+		Arrays.fill(lodBands, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns how many ticks apart an entity is updated, from its distance to
+	 * the nearest camera.
+	 */
+	private int lodInterval(Entity e) {
+		if (cameras.isEmpty() || lodBands[0] == Long.MAX_VALUE)
+			return 1;
+		long nearest = Long.MAX_VALUE;
+		for (int idx = 0; idx < cameras.size() && nearest > lodBands[0]; idx++)
+			nearest = Math.min(nearest, cameras.get(idx).distanceSq(
+					e.getX(), e.getY(), e.getW(), e.getH()));
+		if (nearest <= lodBands[0])
+			return 1;
+		if (nearest <= lodBands[1])
+			return 2;
+		if (nearest <= lodBands[2])
+			return 4;
+		return 16;
+	}
+
+	/**
+	 * Checks if an entity is updated on a tick and if so starts its update.
+	 */
+	private boolean isDue(Entity e, int tick) {
+		if (!isScheduled(e, tick))
+			return false;
+		// Packed, an update changes nothing but the store's positions, which
+		// the store keeps itself, unless the entity's animation advances.
+		if (listener != null) {
+			AnimationList animations = e.getAnimations();
+			if (store == null || (animations != null && !animations.isIdle()))
+				listener.entityChanging(e);
+		}
+		e.beginTick(tick);
+		updatedCount++;
+		return true;
+	}
+
+	/**
+	 * Checks if an entity is to be updated on a tick, without starting its
+	 * update.
+	 */
+	private boolean isScheduled(Entity e, int tick) {
+		int interval = lodInterval(e);
+		return interval == 1 || ((tick + e.index()) & (interval - 1)) == 0;
+	}
+
+	/**
+	 * Sets the listener told before the state of an entity changes.
+	 *
+	 * @param l
+	 *            The listener, or null for none.
+	 */
+	public void setEntityListener(EntityListener l) {
+		listener = l;
+	}
+
+	/**
+	 * Tells the listener, if any, that an entity is about to change.
+	 */
+	void changing(Entity e) {
+		if (listener != null)
+			listener.entityChanging(e);
+	}
+
+	/**
+	 * Returns the number of entities updated in the last tick, which falls
+	 * short of getAwakeCount by those updated at a reduced rate.
+	 *
+	 * @return The number of entities updated.
+	 */
+	public int getUpdatedCount() {
+		return updatedCount;
+	}
+
+	/**
+	 * Returns the dispatcher delivering messages between the entities of
+	 * this EntityManager. Messages are delivered at the start of update.
+	 *
+	 * @return The message dispatcher.
+	 */
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Returns the wheel running the timers of the entities of this
+	 * EntityManager. It advances by one tick at the start of update.
+	 *
+	 * @return The timing wheel.
+	 */
+	public TimingWheel getTimers() {
+		return timers;
+	}
+
+	/**
+	 * Returns the number of registered entities.
+	 *
+	 * @return The number of entities.
+	 */
+	public int getEntityCount() {
+		return table.size();
+	}
+
+	/**
+	 * Returns a registered entity by its position among all of them, e.g. to
+	 * visit every entity. Positions change as entities are removed.
+	 *
+	 * @param idx
+	 *            The position, less than getEntityCount().
+	 * @return The entity at that position.
+	 */
+	public Entity getEntity(int idx) {
+		return table.getDense(idx);
 	}
 
 	/**
@@ -58,27 +430,348 @@ public class EntityManager {
 	 *
 	 * @param id
 	 *            The id of the requested entity.
-	 * @return The entity registered with the specified id.
+	 * @return The entity registered with the specified id, or null if the id
+	 *         is unknown or its entity has since been removed.
 	 */
 	public Entity getEntityFromId(int id) {
-		return idToEntity.get(idToEntity);
+		return table.get(id);
 	}
 
+	/**
+	 * Advances the timers of this EntityManager, firing those due and
+	 * delivering the messages due this tick, then updates every awake entity
+	 * and puts those left idle to sleep until they are sent input, a message
+	 * or are hit by a moving entity. Entities far from every camera are
+	 * updated at a reduced rate if set up with setLodDistances. When few
+	 * entities move, each is reindexed as soon as it has moved. When many
+	 * moved last tick, the moved entities are collected and the index is
+	 * patched or rebuilt in Morton order once all updates are done; queries
+	 * meanwhile are widened by the furthest any entity due can move this
+	 * tick, so deferred entities are still found.
+	 */
 	public void update() {
-		for (Entity e : idToEntity.values()) {
+		updating = true;
+		updatedCount = 0;
+		dispatcher.drain();
+		timers.advance();
+		dispatcher.recycle();
+		if (parallelism > 0) {
+			updateTwoPhase();
+			updating = false;
+			return;
+		}
+		movedCount = 0;
+		int tick = dispatcher.getTick();
+		if (batched) {
+			// Catching up on skipped ticks, an entity updated at a reduced
+			// rate moves as far as all of them would have.
+			slack = 0;
+			for (int idx = 0; idx < awakeCount; idx++) {
+				Entity e = awake[idx];
+				if (isScheduled(e, tick))
+					slack = Math.max(slack, e.getReach(tick));
+			}
+			index.setSlack(slack);
+		}
+		if (broadphase != null)
+			broadphase.update(tick);
+		if (store != null)
+			store.computeVelocities();
+		if (store != null)
+			updatePacked(tick);
+		else {
+			// Entities woken during the loop are updated as well.
+			for (int idx = 0; idx < awakeCount; idx++) {
+				Entity e = awake[idx];
+				if (isDue(e, tick))
+					update(e);
+			}
+		}
+		sleepIdle();
+		if (batched)
+			reindexBatch(movedCount);
+		batched = movedCount >= BATCH_FRACTION * table.size()
+				&& movedCount > 0;
+		updating = false;
+	}
+
+	/**
+	 * Updates the awake entities of the store in slot order, so the update
+	 * walks the packed arrays linearly. Entities woken during the walk are
+	 * updated once it is done, in the order they woke, as they are when not
+	 * packed.
+	 */
+	private void updatePacked(int tick) {
+		lateCount = 0;
+		walking = true;
+		for (int slot = 0; slot < store.size(); slot++) {
+			if (!store.awake[slot])
+				continue;
+			Entity e = store.entities[slot];
+			if (isDue(e, tick))
+				update(e);
+		}
+		updateLate(tick);
+	}
+
+	/**
+	 * Updates the entities woken during a walk of the store, including those
+	 * they wake in turn, and ends the walk.
+	 */
+	private void updateLate(int tick) {
+		for (int idx = 0; idx < lateCount; idx++) {
+			Entity e = late[idx];
+			late[idx] = null;
+			if (!e.isAwake() || e.getStore() != store)
+				continue;
+			store.awake[e.getSlot()] = true;
+			if (isDue(e, tick))
+				update(e);
+		}
+		walking = false;
+		lateCount = 0;
+	}
+
+	/**
+	 * Updates a single entity and reindexes it, or collects it to be
+	 * reindexed at the end of a batched tick, if it moved.
+	 */
+	private void update(Entity e) {
+		int x = e.getX();
+		int y = e.getY();
+		e.update();
+		if (e.getX() != x || e.getY() != y) {
+			if (batched) {
+				if (movedCount == moved.length)
+					moved = Arrays.copyOf(moved, movedCount * 2);
+				moved[movedCount] = e;
+				// Entities woken this tick or sped up by their own update
+				// may move further than bounded before the loop.
+				int dist = Math.max(Math.abs(e.getX() - x),
+						Math.abs(e.getY() - y));
+				if (dist > slack) {
+					slack = dist;
+					index.setSlack(slack);
+				}
+			}
+			else
+				index.reindex(e);
+			movedCount++;
+		}
+	}
+
+	/**
+	 * Updates every entity in two phases: a read only planning phase, run in
+	 * parallel when a pool is set, and a commit phase in the order a one
+	 * phase update would follow. Collision queries are widened by the
+	 * furthest any entity can move, so they also find entities that move into
+	 * the path of another before it commits, and the index is brought up to
+	 * date in one batch once all are committed. Entities run into meanwhile
+	 * are then updated one at a time, as a one phase update does.
+	 */
+	private void updateTwoPhase() {
+		int tick = dispatcher.getTick();
+		if (broadphase != null)
+			broadphase.update(tick);
+		if (ordered.length < awakeCount)
+			ordered = new Entity[awakeCount * 2];
+		int count = 0;
+		int first = awakeCount;
+		if (store != null) {
+			for (int slot = 0; slot < store.size(); slot++) {
+				if (store.awake[slot] && isDue(store.entities[slot], tick))
+					ordered[count++] = store.entities[slot];
+			}
+		}
+		else {
+			for (int idx = 0; idx < awakeCount; idx++) {
+				if (isDue(awake[idx], tick))
+					ordered[count++] = awake[idx];
+			}
+		}
+		int margin = 0;
+		for (int idx = 0; idx < count; idx++) {
+			Entity e = ordered[idx];
+			margin = Math.max(margin,
+					(int) Math.ceil(e.getSpeed() * e.getElapsedTicks()) + 1);
+		}
+		if (store != null)
+			store.computeVelocities();
+		if (pool != null)
+			pool.invoke(new Plan(ordered, 0, count, margin));
+		else {
+			for (int idx = 0; idx < count; idx++)
+				ordered[idx].planUpdate(margin);
+		}
+		movedCount = 0;
+		lateCount = 0;
+		walking = store != null;
+		for (int idx = 0; idx < count; idx++) {
+			Entity e = ordered[idx];
 			int x = e.getX();
 			int y = e.getY();
-			e.update();
+			e.commitUpdate();
 			if (e.getX() != x || e.getY() != y) {
-				tree.reindex(e, x, y);
-				tree.print();
+				if (movedCount == moved.length)
+					moved = Arrays.copyOf(moved, movedCount * 2);
+				moved[movedCount++] = e;
+			}
+		}
+		Arrays.fill(ordered, 0, count, null);
+		reindexBatch(movedCount);
+		batched = false;
+		movedCount = 0;
+		if (store != null)
+			updateLate(tick);
+		else {
+			for (int idx = first; idx < awakeCount; idx++) {
+				Entity e = awake[idx];
+				if (isDue(e, tick))
+					update(e);
 			}
 		}
+		sleepIdle();
+	}
+
+	/**
+	 * Adds an entity to the list of entities updated every tick.
+	 */
+	void wake(Entity e) {
+		if (e.isAwake())
+			return;
+		if (awakeCount == awake.length)
+			awake = Arrays.copyOf(awake, awakeCount * 2);
+		e.setAwakeSlot(awakeCount);
+		awake[awakeCount++] = e;
+		// Woken during a tick, the entity is due on this one, otherwise on
+		// the next.
+		int tick = dispatcher.getTick();
+		e.setLastTick(updating ? tick - 1 : tick);
+		// An entity being registered is not in the store yet.
+		if (store != null && e.getStore() == store) {
+			int slot = e.getSlot();
+			store.computeVelocity(slot);
+			if (walking) {
+				if (lateCount == late.length)
+					late = Arrays.copyOf(late, lateCount * 2);
+				late[lateCount++] = e;
+			}
+			else
+				store.awake[slot] = true;
+		}
+
+	}
+
+	/**
+	 * Removes an entity from the list of entities updated every tick.
+	 */
+	private void sleep(Entity e) {
+		int pos = e.getAwakeSlot();
+		Entity last = awake[--awakeCount];
+		awake[pos] = last;
+		last.setAwakeSlot(pos);
+		awake[awakeCount] = null;
+		e.setAwakeSlot(-1);
+		// An entity being removed has already left the store.
+		if (store != null && e.getStore() == store)
+			store.awake[e.getSlot()] = false;
+	}
+
+	/**
+	 * Puts every awake entity which can sleep to sleep. Runs backwards so
+	 * entities moved into a freed position have already been checked.
+	 */
+	private void sleepIdle() {
+		for (int idx = awakeCount - 1; idx >= 0; idx--) {
+			Entity e = awake[idx];
+			if (e.canSleep())
+				sleep(e);
+		}
+	}
+
+	/**
+	 * Returns the number of entities updated every tick.
+	 *
+	 * @return The number of awake entities.
+	 */
+	public int getAwakeCount() {
+		return awakeCount;
+	}
 
+	/**
+	 * Returns the number of entities skipped by update until woken.
+	 *
+	 * @return The number of sleeping entities.
+	 */
+	public int getSleepingCount() {
+		return table.size() - awakeCount;
+	}
+
+	/**
+	 * Plans the updates of a range of entities, splitting it in half across
+	 * the pool until it is small.
+	 */
+	private static class Plan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int THRESHOLD = 256;
+		private final Entity[] entities;
+		private final int start, end, margin;
+
+		Plan(Entity[] entities, int start, int end, int margin) {
+			this.entities = entities;
+			this.start = start;
+			this.end = end;
+			this.margin = margin;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= THRESHOLD) {
+				for (int idx = start; idx < end; idx++)
+					entities[idx].planUpdate(margin);
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new Plan(entities, start, mid, margin), new Plan(
+					entities, mid, end, margin));
+		}
+	}
+
+	/**
+	 * Brings the index up to date after a batched tick.
+	 *
+	 * @param movedCount
+	 *            The number of entities collected in the moved array.
+	 */
+	private void reindexBatch(int movedCount) {
+		if (movedCount >= REBUILD_FRACTION * table.size()) {
+			Arrays.fill(moved, 0, movedCount, null);
+			if (moved.length < table.size())
+				moved = new Entity[table.size() * 2];
+			int count = 0;
+			if (store != null) {
+				count = store.size();
+				System.arraycopy(store.entities, 0, moved, 0, count);
+			}
+			else {
+				for (; count < table.size(); count++)
+					moved[count] = table.getDense(count);
+			}
+			mortonOrder.sort(moved, count);
+			index.rebuild(moved, count);
+			movedCount = count;
+		}
+		else {
+			mortonOrder.sort(moved, movedCount);
+			for (int idx = 0; idx < movedCount; idx++)
+				index.reindex(moved[idx]);
+		}
+		Arrays.fill(moved, 0, movedCount, null);
+		index.setSlack(0);
 	}
 	public void render(Camera c) {
-		for (Entity e : idToEntity.values()) {
-			e.render(c);
+		for (int idx = 0; idx < table.size(); idx++) {
+			table.getDense(idx).render(c);
 		}
 	}
 
@@ -89,7 +782,149 @@ public class EntityManager {
 	 *
 	 */
 	public ArrayList<Entity> findCollisions(BoundingBox bounds) {
-		return tree.searchRect(bounds);
+		return index.searchRect(bounds);
+
+	}
+
+	/**
+	 * Adds every entity overlapping the specified area to a caller supplied
+	 * list, which may be reused between calls to avoid allocating.
+	 *
+	 * @param bounds
+	 *            The area to search.
+	 * @param found
+	 *            The list to append the entities found to.
+	 * @return The number of entities found.
+	 */
+	public int findCollisions(BoundingBox bounds, ArrayList<Entity> found) {
+		return index.searchRect(bounds, found);
+	}
+
+	/**
+	 * Adds every entity other than e overlapping the specified area to a list.
+	 * Uses the candidate pairs found this tick if sweep and prune is enabled,
+	 * otherwise queries the SpatialIndex, as it also does for an entity added
+	 * since the pairs were found. The area must lie within the distance e can
+	 * move this tick.
+	 *
+	 * @param e
+	 *            The entity looking for collisions.
+	 * @param x1
+	 *            The x coordinate of the area's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the area's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the area's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the area's lower right corner.
+	 * @param found
+	 *            The list to append the entities found to.
+	 * @return The number of entities found.
+	 */
+	public int findCollisions(Entity e, int x1, int y1, int x2, int y2,
+			ArrayList<Entity> found) {
+		if (broadphase != null && broadphase.hasPairs(e))
+			return broadphase.findCollisions(e, x1, y1, x2, y2, found);
+		int size = found.size();
+		index.searchRect(x1, y1, x2, y2, found);
+		found.remove(e);
+		return found.size() - size;
+	}
 
+	/**
+	 * Passes every entity overlapping the specified area to a visitor.
+	 *
+	 * @param bounds
+	 *            The area to search.
+	 * @param visitor
+	 *            The visitor to call for each entity found.
+	 * @return false if the visitor stopped the search early, otherwise true.
+	 */
+	public boolean findCollisions(BoundingBox bounds, EntityVisitor visitor) {
+		return index.searchRect(bounds, visitor);
+	}
+
+	/**
+	 * Adds every entity within a given distance of a point to a list.
+	 *
+	 * @param x
+	 *            The x coordinate of the center of the search.
+	 * @param y
+	 *            The y coordinate of the center of the search.
+	 * @param radius
+	 *            The distance to search within.
+	 * @param found
+	 *            The list to append the entities found to.
+	 * @return The number of entities found.
+	 */
+	public int findWithinRadius(int x, int y, int radius,
+			ArrayList<Entity> found) {
+		return index.searchRadius(x, y, radius, found);
+	}
+
+	/**
+	 * Passes every entity within a given distance of a point to a visitor.
+	 *
+	 * @param x
+	 *            The x coordinate of the center of the search.
+	 * @param y
+	 *            The y coordinate of the center of the search.
+	 * @param radius
+	 *            The distance to search within.
+	 * @param visitor
+	 *            The visitor to call for each entity found.
+	 * @return false if the visitor stopped the search early, otherwise true.
+	 */
+	public boolean findWithinRadius(int x, int y, int radius,
+			EntityVisitor visitor) {
+		return index.searchRadius(x, y, radius, visitor);
+	}
+
+	/**
+	 * Finds the k entities closest to a point. The query object may be reused
+	 * between calls to avoid allocating.
+	 *
+	 * @param x
+	 *            The x coordinate of the query point.
+	 * @param y
+	 *            The y coordinate of the query point.
+	 * @param k
+	 *            The number of entities to find.
+	 * @param nearest
+	 *            Receives the entities found, nearest first.
+	 */
+	public void findNearest(int x, int y, int k, NearestNeighbours nearest) {
+		index.searchNearest(x, y, k, nearest);
+	}
+
+	/**
+	 * Returns the k entities closest to a point, nearest first.
+	 *
+	 * @param x
+	 *            The x coordinate of the query point.
+	 * @param y
+	 *            The y coordinate of the query point.
+	 * @param k
+	 *            The number of entities to find.
+	 * @return The entities found.
+	 */
+	public ArrayList<Entity> findNearest(int x, int y, int k) {
+		NearestNeighbours nearest = new NearestNeighbours();
+		index.searchNearest(x, y, k, nearest);
+		ArrayList<Entity> found = new ArrayList<Entity>(nearest.size());
+		for (int idx = 0; idx < nearest.size(); idx++)
+			found.add(nearest.get(idx));
+		return found;
+	}
+
+	/**
+	 * Casts a ray through the entities of the world, ignoring terrain.
+	 *
+	 * @param ray
+	 *            The ray to cast, already started with RayCast.begin. Holds
+	 *            the entities hit once the cast is done.
+	 */
+	public void castRay(RayCast ray) {
+		index.searchRay(ray);
 	}
 }
@@ -0,0 +1,270 @@
+package org.mercury.entity;
+
+import java.util.Arrays;
+
+/**
+ * Packed storage for the state entities update every tick. Positions, sizes,
+ * speeds, direction requests and velocities are kept in parallel primitive
+ * arrays, one slot per entity, so bulk passes walk memory linearly instead of
+ * chasing a pointer to every Entity. Slots are kept dense by moving the last
+ * entity into the slot of one that is removed.
+ * <p>
+ * While an entity is in a store, the store holds its state and the Entity
+ * reads and writes it through its slot, so the Entity API is unchanged.
+ *
+ * @author tbertore
+ *
+ */
+public class EntityStore {
+	private static final int INITIAL_CAPACITY = 64;
+	// Kept positions are copied out this many slots at a time, so moving
+	// entities are never held up for long.
+	private static final int BATCH = 4096;
+
+	Entity[] entities = new Entity[INITIAL_CAPACITY];
+	double[] x = new double[INITIAL_CAPACITY], y = new double[INITIAL_CAPACITY];
+	int[] w = new int[INITIAL_CAPACITY], h = new int[INITIAL_CAPACITY];
+	double[] speed = new double[INITIAL_CAPACITY];
+	int[] deltaEast = new int[INITIAL_CAPACITY];
+	int[] deltaNorth = new int[INITIAL_CAPACITY];
+	// The distance each entity wants to move this tick, from
+	// computeVelocities.
+	double[] vx = new double[INITIAL_CAPACITY], vy = new double[INITIAL_CAPACITY];
+	// Whether each entity is awake. Maintained by EntityManager.
+	boolean[] awake = new boolean[INITIAL_CAPACITY];
+	private int count;
+	// While positions are kept: the number of entities then, and the slots
+	// which have changed since with their positions from before. A slot was
+	// kept if its generation is that of the positions being kept.
+	private volatile boolean keeping;
+	private int keptCount, generation, keptSize;
+	private int[] keptGeneration = new int[INITIAL_CAPACITY];
+	private int[] keptSlots = new int[INITIAL_CAPACITY];
+	private double[] keptX = new double[INITIAL_CAPACITY];
+	private double[] keptY = new double[INITIAL_CAPACITY];
+	private final Object lock = new Object();
+
+	/**
+	 * Moves an entity's state into this store. From then on the entity reads
+	 * and writes its state here.
+	 *
+	 * @param e
+	 *            The entity to add.
+	 * @throws IllegalArgumentException
+	 *             If the entity is already in a store.
+	 */
+	public void add(Entity e) {
+		if (e.getStore() != null)
+			throw new IllegalArgumentException("Entity already in a store!");
+		if (count == entities.length)
+			grow(count * 2);
+		changingPosition(count);
+		entities[count] = e;
+		awake[count] = e.isAwake();
+		e.pack(this, count);
+		count++;
+	}
+
+	/**
+	 * Moves an entity's state back into the entity and frees its slot.
+	 *
+	 * @param e
+	 *            The entity to remove.
+	 * @return true if the entity was found and removed, otherwise false.
+	 */
+	public boolean remove(Entity e) {
+		if (e.getStore() != this)
+			return false;
+		int slot = e.getSlot();
+		e.unpack();
+		int last = --count;
+		if (slot != last) {
+			changingPosition(slot);
+			entities[slot] = entities[last];
+			x[slot] = x[last];
+			y[slot] = y[last];
+			w[slot] = w[last];
+			h[slot] = h[last];
+			speed[slot] = speed[last];
+			deltaEast[slot] = deltaEast[last];
+			deltaNorth[slot] = deltaNorth[last];
+			vx[slot] = vx[last];
+			vy[slot] = vy[last];
+			awake[slot] = awake[last];
+			entities[slot].setSlot(slot);
+		}
+		entities[last] = null;
+		return true;
+	}
+
+	private void grow(int capacity) {
+		entities = Arrays.copyOf(entities, capacity);
+		// Kept positions may be copied out of the new arrays on another
+		// thread.
+		synchronized (lock) {
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+		}
+		keptGeneration = Arrays.copyOf(keptGeneration, capacity);
+		w = Arrays.copyOf(w, capacity);
+		h = Arrays.copyOf(h, capacity);
+		speed = Arrays.copyOf(speed, capacity);
+		deltaEast = Arrays.copyOf(deltaEast, capacity);
+		deltaNorth = Arrays.copyOf(deltaNorth, capacity);
+		vx = Arrays.copyOf(vx, capacity);
+		vy = Arrays.copyOf(vy, capacity);
+		awake = Arrays.copyOf(awake, capacity);
+	}
+
+	/**
+	 * Turns every awake entity's direction request and speed into the
+	 * distance it wants to move this tick, in one linear pass over the
+	 * arrays. Entities woken later in the tick have theirs found as they
+	 * are woken.
+	 *
+	 * @return The greatest speed of any awake entity in the store.
+	 */
+	public double computeVelocities() {
+		double maxSpeed = 0;
+		for (int slot = 0; slot < count; slot++) {
+			if (!awake[slot])
+				continue;
+			maxSpeed = Math.max(maxSpeed, speed[slot]);
+			computeVelocity(slot);
+		}
+		return maxSpeed;
+	}
+
+	/**
+	 * Turns the direction request and speed of the entity in a slot into the
+	 * distance it wants to move this tick.
+	 */
+	void computeVelocity(int slot) {
+		int east = deltaEast[slot];
+		int north = deltaNorth[slot];
+		double s = speed[slot];
+		double magnitude = Math.sqrt(Math.abs(east) + Math.abs(north));
+		if (magnitude == 0) {
+			vx[slot] = 0;
+			vy[slot] = 0;
+		}
+		else {
+			vx[slot] = east * s / magnitude;
+			// y axis points towards south.
+			vy[slot] = -north * s / magnitude;
+		}
+	}
+
+	/**
+	 * Returns the number of entities in this store.
+	 *
+	 * @return The number of entities, which occupy slots 0 to size() - 1.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the entity in a slot.
+	 *
+	 * @param slot
+	 *            The slot, less than size().
+	 * @return The entity in the slot.
+	 */
+	public Entity get(int slot) {
+		return entities[slot];
+	}
+
+	/**
+	 * Copies the position of every entity into arrays, in slot order, so the
+	 * positions of one tick can be kept while the next ticks move entities.
+	 *
+	 * @param x
+	 *            Receives the upper left x coordinates.
+	 * @param y
+	 *            Receives the upper left y coordinates.
+	 * @throws IndexOutOfBoundsException
+	 *             If an array is shorter than size().
+	 */
+	public void copyPositions(double[] x, double[] y) {
+		System.arraycopy(this.x, 0, x, 0, count);
+		System.arraycopy(this.y, 0, y, 0, count);
+	}
+
+	/**
+	 * Starts keeping the position of every entity as it is now, for
+	 * copyKeptPositions to copy while entities go on moving. Nothing is
+	 * copied now: the position in a slot is kept just before it first
+	 * changes. Must be called between ticks, and not again until
+	 * copyKeptPositions has returned.
+	 */
+	public void keepPositions() {
+		synchronized (lock) {
+			keptCount = count;
+			keptSize = 0;
+			generation++;
+			keeping = true;
+		}
+	}
+
+	/**
+	 * Copies the positions kept since keepPositions into arrays, in slot
+	 * order as of then, and stops keeping them. May be called on any thread
+	 * while entities go on moving, and holds them up for at most a batch of
+	 * slots at a time.
+	 *
+	 * @param x
+	 *            Receives the upper left x coordinates.
+	 * @param y
+	 *            Receives the upper left y coordinates.
+	 * @throws IndexOutOfBoundsException
+	 *             If an array is shorter than the number of entities when
+	 *             keepPositions was called.
+	 */
+	public void copyKeptPositions(double[] x, double[] y) {
+		int kept;
+		synchronized (lock) {
+			kept = keptCount;
+		}
+		// A slot may change while it is copied, but then the position from
+		// before is kept, and copied over it below.
+		for (int start = 0; start < kept; start += BATCH) {
+			synchronized (lock) {
+				int length = Math.min(BATCH, kept - start);
+				System.arraycopy(this.x, start, x, start, length);
+				System.arraycopy(this.y, start, y, start, length);
+			}
+		}
+		synchronized (lock) {
+			for (int idx = 0; idx < keptSize; idx++) {
+				x[keptSlots[idx]] = keptX[idx];
+				y[keptSlots[idx]] = keptY[idx];
+			}
+			keeping = false;
+		}
+	}
+
+	/**
+	 * Keeps the position in a slot before it changes, if positions are being
+	 * kept and it has not been kept already.
+	 */
+	void changingPosition(int slot) {
+		if (!keeping || slot >= keptCount
+				|| keptGeneration[slot] == generation)
+			return;
+		synchronized (lock) {
+			if (!keeping)
+				return;
+			if (keptSize == keptSlots.length) {
+				keptSlots = Arrays.copyOf(keptSlots, keptSize * 2);
+				keptX = Arrays.copyOf(keptX, keptSize * 2);
+				keptY = Arrays.copyOf(keptY, keptSize * 2);
+			}
+			keptSlots[keptSize] = slot;
+			keptX[keptSize] = x[slot];
+			keptY[keptSize] = y[slot];
+			keptSize++;
+			keptGeneration[slot] = generation;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package org.mercury.entity;
+
+import java.util.Arrays;
+
+/**
+ * A slot map handing out entity ids. Each id combines the index of a slot in
+ * a table of primitive arrays with the generation of that slot, which is
+ * bumped whenever the slot is freed. Freed slots are recycled through a free
+ * list, so ids stay small and can index arrays directly, while an id kept
+ * after its entity was removed no longer matches its slot and is detected as
+ * stale. A dense array of the live entities is kept alongside for iteration.
+ * <p>
+ * Lookups, adds and removes run in constant time and only allocate when the
+ * table grows.
+ *
+ * @author tbertore
+ *
+ */
+public class EntityTable {
+	/**
+	 * The number of low bits of an id holding its slot index.
+	 */
+	public static final int INDEX_BITS = 20;
+	/**
+	 * The largest number of entities a table can hold.
+	 */
+	public static final int MAX_ENTITIES = 1 << INDEX_BITS;
+	private static final int INDEX_MASK = MAX_ENTITIES - 1;
+	// Generations use the remaining bits, leaving the sign bit clear so that
+	// ids are never negative.
+	private static final int GENERATION_MASK = (1 << (31 - INDEX_BITS)) - 1;
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int NONE = -1;
+
+	// Per slot: the entity held, the generation of the slot, the next free
+	// slot if free, and the position of the entity in the dense array.
+	private Entity[] slots = new Entity[INITIAL_CAPACITY];
+	private int[] generations = new int[INITIAL_CAPACITY];
+	private int[] nextFree = new int[INITIAL_CAPACITY];
+	private int[] denseOf = new int[INITIAL_CAPACITY];
+	private int freeHead = NONE;
+	// The number of slots ever used.
+	private int used;
+	// The live entities, packed at the front of the array.
+	private Entity[] dense = new Entity[INITIAL_CAPACITY];
+	private int count;
+
+	/**
+	 * Returns the slot index of an id, which may be used to index arrays.
+	 *
+	 * @param id
+	 *            An entity id.
+	 * @return The slot index of the id.
+	 */
+	public static int index(int id) {
+		return id & INDEX_MASK;
+	}
+
+	/**
+	 * Returns the generation of an id.
+	 *
+	 * @param id
+	 *            An entity id.
+	 * @return The generation the slot of the id had when it was handed out.
+	 */
+	public static int generation(int id) {
+		return id >>> INDEX_BITS;
+	}
+
+	/**
+	 * Adds an entity to this table and assigns it an id.
+	 *
+	 * @param e
+	 *            The entity to add.
+	 * @return The id assigned to the entity.
+	 * @throws IllegalArgumentException
+	 *             If the entity already has an id.
+	 * @throws IllegalStateException
+	 *             If the table is full.
+	 */
+	public int add(Entity e) {
+		if (e.id() != NONE)
+			throw new IllegalArgumentException("Entity already has an id!");
+		int index;
+		if (freeHead != NONE) {
+			index = freeHead;
+			freeHead = nextFree[index];
+		}
+		else {
+			if (used == MAX_ENTITIES)
+				throw new IllegalStateException("Entity table is full!");
+			index = used++;
+			if (index == slots.length)
+				grow(Math.min(MAX_ENTITIES, index * 2));
+		}
+		if (count == dense.length)
+			dense = Arrays.copyOf(dense, count * 2);
+		slots[index] = e;
+		denseOf[index] = count;
+		dense[count++] = e;
+		int id = (generations[index] << INDEX_BITS) | index;
+		e.setId(id);
+		return id;
+	}
+
+	private void grow(int capacity) {
+		slots = Arrays.copyOf(slots, capacity);
+		generations = Arrays.copyOf(generations, capacity);
+		nextFree = Arrays.copyOf(nextFree, capacity);
+		denseOf = Arrays.copyOf(denseOf, capacity);
+	}
+
+	/**
+	 * Removes the entity with the specified id and frees its slot. The id of
+	 * the entity is reset to -1.
+	 *
+	 * @param id
+	 *            The id of the entity to remove.
+	 * @return The entity removed, or null if the id is stale or unknown.
+	 */
+	public Entity remove(int id) {
+		Entity e = get(id);
+		if (e == null)
+			return null;
+		int index = index(id);
+		// Move the last live entity into the hole in the dense array.
+		int pos = denseOf[index];
+		Entity last = dense[--count];
+		dense[pos] = last;
+		denseOf[index(last.id())] = pos;
+		dense[count] = null;
+		slots[index] = null;
+		generations[index] = (generations[index] + 1) & GENERATION_MASK;
+		nextFree[index] = freeHead;
+		freeHead = index;
+		e.setId(NONE);
+		return e;
+	}
+
+	/**
+	 * Returns the entity with the specified id.
+	 *
+	 * @param id
+	 *            The id of the requested entity.
+	 * @return The entity, or null if the id is stale or unknown.
+	 */
+	public Entity get(int id) {
+		if (id < 0)
+			return null;
+		int index = index(id);
+		if (index >= used || generations[index] != generation(id))
+			return null;
+		return slots[index];
+	}
+
+	/**
+	 * Checks if an id refers to an entity in this table.
+	 *
+	 * @param id
+	 *            The id to check.
+	 * @return true if the id is live, false if it is stale or unknown.
+	 */
+	public boolean contains(int id) {
+		return get(id) != null;
+	}
+
+	/**
+	 * Returns the number of entities in this table.
+	 *
+	 * @return The number of live entities.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns a live entity by its position in the dense array. Positions
+	 * change as entities are removed.
+	 *
+	 * @param idx
+	 *            The position, less than size().
+	 * @return The entity at that position.
+	 */
+	public Entity getDense(int idx) {
+		return dense[idx];
+	}
+
+	/**
+	 * Returns the entity in a slot, in the order of slot indices rather than
+	 * the dense order.
+	 *
+	 * @param index
+	 *            The slot index, less than capacity().
+	 * @return The entity in the slot, or null if the slot is free.
+	 */
+	public Entity getByIndex(int index) {
+		return slots[index];
+	}
+
+	/**
+	 * Returns the number of slot indices handed out so far, which bounds the
+	 * index of every id.
+	 *
+	 * @return One more than the largest slot index in use.
+	 */
+	public int capacity() {
+		return used;
+	}
+}
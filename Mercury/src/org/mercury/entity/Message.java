@@ -1,14 +1,74 @@
 package org.mercury.entity;
 
+import org.mercury.util.Timer;
+
 /**
- * A class for sending messages between entity objects.
- * 
+ * A class for sending messages between entity objects. Messages are pooled by
+ * a MessageDispatcher and recycled once delivered, so a receiver must copy out
+ * anything it needs rather than keep the message. Delayed messages wait on the
+ * dispatcher's TimingWheel as timers.
+ *
  * @author tbertore
- * 
+ *
  */
-public class Message {
+public class Message extends Timer {
 	private int src;
 	private int dest;
 	private int delay;
 	private Object data;
+	// The tick the message is due on.
+	int due;
+	// The next message in the dispatcher's queue or free list.
+	volatile Message nextQueued;
+	private final MessageDispatcher dispatcher;
+
+	Message(MessageDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	void set(int src, int dest, int delay, Object data) {
+		this.src = src;
+		this.dest = dest;
+		this.delay = delay;
+		this.data = data;
+	}
+
+	/**
+	 * Returns the id of the entity which sent this message.
+	 *
+	 * @return The sender's id, or -1 if not sent by an entity.
+	 */
+	public int getSrc() {
+		return src;
+	}
+
+	/**
+	 * Returns the id of the entity this message is addressed to.
+	 *
+	 * @return The receiver's id.
+	 */
+	public int getDest() {
+		return dest;
+	}
+
+	/**
+	 * Returns the number of ticks delivery was delayed by.
+	 *
+	 * @return The delay in ticks.
+	 */
+	public int getDelay() {
+		return delay;
+	}
+
+	public Object getData() {
+		return data;
+	}
+
+	/**
+	 * Delivers this message once its delay is up.
+	 */
+	@Override
+	protected void expire() {
+		dispatcher.dispatch(this);
+	}
 }
@@ -0,0 +1,206 @@
+package org.mercury.entity;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mercury.util.TimingWheel;
+
+/**
+ * Delivers messages between entities. Any thread may send a message without
+ * locking: messages are pushed onto an intrusive multi-producer single-consumer
+ * queue, linked through the messages themselves. Once per tick the
+ * EntityManager drains the queue on its own thread and schedules each message
+ * on its TimingWheel for the tick it is due on, and the wheel delivers it to
+ * its receiver as it advances.
+ * <p>
+ * Messages are pooled. Each thread takes messages from a list of its own,
+ * refilled by taking the whole shared free list at once, and delivered
+ * messages are returned to the shared list in one batch per tick, so sending
+ * does not allocate once the pool has warmed up.
+ *
+ * @author tbertore
+ *
+ */
+public class MessageDispatcher {
+	// The most recently queued message, which producers swap themselves in
+	// as. The queue always holds at least one message, the stub.
+	private final AtomicReference<Message> head;
+	// The oldest queued message, only touched by the consumer.
+	private Message tail;
+	private final Message stub = new Message(this);
+	// Messages free for any thread to take.
+	private final AtomicReference<Message> free = new AtomicReference<Message>();
+	private final ThreadLocal<LocalPool> local = new ThreadLocal<LocalPool>() {
+		@Override
+		protected LocalPool initialValue() {
+			return new LocalPool();
+		}
+	};
+	private final EntityTable table;
+	private final TimingWheel wheel;
+	private volatile int tick;
+	// Messages delivered this tick, to be returned to the free list.
+	private Message delivered, lastDelivered;
+	private int pendingCount;
+
+	/**
+	 * Messages taken from the shared free list by one thread.
+	 */
+	private static class LocalPool {
+		private Message first;
+	}
+
+	/**
+	 * Creates a new MessageDispatcher.
+	 *
+	 * @param table
+	 *            The table to look up receivers in.
+	 * @param wheel
+	 *            The wheel to hold messages on until they are due. It must be
+	 *            advanced once per tick, between calls to drain and recycle.
+	 */
+	public MessageDispatcher(EntityTable table, TimingWheel wheel) {
+		this.table = table;
+		this.wheel = wheel;
+		head = new AtomicReference<Message>(stub);
+		tail = stub;
+	}
+
+	/**
+	 * Sends a message. May be called from any thread. The message is
+	 * delivered at the start of the update delay + 1 ticks after the one in
+	 * progress, so a delay of 0 delivers it at the start of the next update.
+	 *
+	 * @param src
+	 *            The id of the sending entity, or -1.
+	 * @param dest
+	 *            The id of the receiving entity. Messages to entities removed
+	 *            before delivery are dropped.
+	 * @param delay
+	 *            The number of extra ticks to hold the message for.
+	 * @param data
+	 *            The contents of the message.
+	 */
+	public void send(int src, int dest, int delay, Object data) {
+		Message m = obtain();
+		delay = Math.max(0, delay);
+		m.set(src, dest, delay, data);
+		m.due = tick + 1 + delay;
+		push(m);
+	}
+
+	private Message obtain() {
+		LocalPool pool = local.get();
+		Message m = pool.first;
+		if (m == null) {
+			m = free.getAndSet(null);
+			if (m == null)
+				return new Message(this);
+		}
+		pool.first = m.nextQueued;
+		return m;
+	}
+
+	private void push(Message m) {
+		m.nextQueued = null;
+		Message prev = head.getAndSet(m);
+		prev.nextQueued = m;
+	}
+
+	/**
+	 * Removes the oldest message from the queue. A message whose producer
+	 * has not yet linked it in is left for the next call.
+	 */
+	private Message poll() {
+		Message first = tail;
+		Message next = first.nextQueued;
+		if (first == stub) {
+			if (next == null)
+				return null;
+			tail = next;
+			first = next;
+			next = next.nextQueued;
+		}
+		if (next != null) {
+			tail = next;
+			return first;
+		}
+		if (first != head.get())
+			return null;
+		// first is the last message queued. Queue the stub behind it so it
+		// can be removed.
+		push(stub);
+		next = first.nextQueued;
+		if (next != null) {
+			tail = next;
+			return first;
+		}
+		return null;
+	}
+
+	/**
+	 * Starts a new tick and moves every message sent since the last call onto
+	 * the wheel. Called by the EntityManager on its own thread at the start of
+	 * each update, before advancing the wheel.
+	 */
+	void drain() {
+		int now = ++tick;
+		Message m;
+		while ((m = poll()) != null) {
+			pendingCount++;
+			wheel.schedule(m, m.due - now + 1);
+		}
+	}
+
+	/**
+	 * Delivers a message which is due. Called by the message as the wheel
+	 * advances.
+	 */
+	void dispatch(Message m) {
+		pendingCount--;
+		Entity dest = table.get(m.getDest());
+		if (dest != null) {
+			dest.wake();
+			dest.receive(m);
+		}
+		m.set(-1, -1, 0, null);
+		if (lastDelivered == null)
+			lastDelivered = m;
+		m.nextQueued = delivered;
+		delivered = m;
+	}
+
+	/**
+	 * Returns the messages delivered this tick to the free list in one go.
+	 * Called by the EntityManager after advancing the wheel.
+	 */
+	void recycle() {
+		if (delivered == null)
+			return;
+		Message top;
+		do {
+			top = free.get();
+			lastDelivered.nextQueued = top;
+		} while (!free.compareAndSet(top, delivered));
+		delivered = null;
+		lastDelivered = null;
+	}
+
+	/**
+	 * Returns the number of ticks started so far.
+	 *
+	 * @return The current tick.
+	 */
+	public int getTick() {
+		return tick;
+	}
+
+	/**
+	 * Returns the number of messages drained from the queue but not yet
+	 * delivered.
+	 *
+	 * @return The number of delayed messages held.
+	 */
+	public int getPendingCount() {
+		return pendingCount;
+	}
+}
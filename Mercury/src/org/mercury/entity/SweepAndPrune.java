@@ -0,0 +1,340 @@
+package org.mercury.entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A sweep-and-prune broadphase which finds every pair of entities that may
+ * collide during a tick. The interval each entity covers on the x and y axes,
+ * widened by how far it can move during the tick, is kept in a list sorted on
+ * each axis. Since entities barely move between ticks the lists stay nearly sorted,
+ * and an insertion sort brings them back in order in close to linear time.
+ * Sweeping the sorted list of whichever axis entities are more spread out
+ * along then yields the candidate pairs.
+ * <p>
+ * Entities added are appended to the lists, and those removed only marked,
+ * so registering many entities at once costs no more than one sort. Both
+ * lists are brought up to date by the next update.
+ * <p>
+ * All state is kept in primitive arrays indexed by the slot index of each
+ * entity's id.
+ *
+ * @author tbertore
+ *
+ */
+public class SweepAndPrune {
+	// Beyond this many additions in a tick, sorting the lists from scratch is
+	// cheaper than inserting each into place.
+	private static final int MAX_INSERTIONS = 16;
+
+	private Entity[] entities = new Entity[64];
+	// Per entity slot index: the interval covered on each axis, and the start
+	// of its candidates in the neighbours array.
+	private int[] minX = new int[64], maxX = new int[64];
+	private int[] minY = new int[64], maxY = new int[64];
+	private int[] first = new int[65];
+	// Entity slot indices sorted by the start of their interval on each axis.
+	// Slots removed since the last update stay listed until it drops them.
+	private int[] xOrder = new int[64], yOrder = new int[64];
+	private boolean[] listed = new boolean[64];
+	private int count;
+	// The number of slots appended since the last update, and the sort keys
+	// used to order them when too many to insert one by one.
+	private int added;
+	private long[] keys = new long[0];
+	// Candidate pairs found by the last update, and the same pairs grouped by
+	// entity.
+	private int[] pairs = new int[128];
+	private int pairCount;
+	private int[] neighbours = new int[128];
+	// Whether an entity was added since the last update, so that the
+	// candidate pairs it found miss that entity.
+	private boolean stale = true;
+
+	/**
+	 * Adds an entity to this broadphase. Its candidate pairs are found from the
+	 * next call to update, and until then hasPairs returns false for every
+	 * entity.
+	 *
+	 * @param e
+	 *            The entity to add.
+	 */
+	public void add(Entity e) {
+		int id = e.index();
+		if (id < 0)
+			throw new IllegalArgumentException("Entity has no id!");
+		grow(id);
+		if (entities[id] != null)
+			throw new IllegalArgumentException("Entity already added!");
+		entities[id] = e;
+		stale = true;
+		// A slot removed and reused since the last update is still listed.
+		if (listed[id])
+			return;
+		listed[id] = true;
+		xOrder[count] = id;
+		yOrder[count] = id;
+		count++;
+		added++;
+	}
+
+	/**
+	 * Removes an entity from this broadphase.
+	 *
+	 * @param e
+	 *            The entity to remove.
+	 * @return true if the entity was found and removed, otherwise false.
+	 */
+	public boolean remove(Entity e) {
+		int id = e.index();
+		if (id < 0 || id >= entities.length || entities[id] != e)
+			return false;
+		entities[id] = null;
+		return true;
+	}
+
+	/**
+	 * Drops the slots of removed entities from both lists, keeping their
+	 * order.
+	 */
+	private void compact() {
+		int kept = 0;
+		for (int idx = 0; idx < count; idx++) {
+			int id = xOrder[idx];
+			if (entities[id] != null)
+				xOrder[kept++] = id;
+			else
+				listed[id] = false;
+		}
+		if (kept == count)
+			return;
+		kept = 0;
+		for (int idx = 0; idx < count; idx++) {
+			int id = yOrder[idx];
+			if (entities[id] != null)
+				yOrder[kept++] = id;
+		}
+		count = kept;
+	}
+
+	private void grow(int id) {
+		if (id < entities.length)
+			return;
+		int capacity = Math.max(id + 1, entities.length * 2);
+		entities = Arrays.copyOf(entities, capacity);
+		minX = Arrays.copyOf(minX, capacity);
+		maxX = Arrays.copyOf(maxX, capacity);
+		minY = Arrays.copyOf(minY, capacity);
+		maxY = Arrays.copyOf(maxY, capacity);
+		first = Arrays.copyOf(first, capacity + 1);
+		xOrder = Arrays.copyOf(xOrder, capacity);
+		yOrder = Arrays.copyOf(yOrder, capacity);
+		listed = Arrays.copyOf(listed, capacity);
+	}
+
+	/**
+	 * Records the area an entity may cover during the specified tick. An
+	 * entity updated at a reduced rate catches up on every tick skipped, and
+	 * one asleep may be woken to move a single tick.
+	 */
+	private void bound(Entity e, int id, int tick) {
+		int margin = e.isAwake() ? e.getReach(tick) : (int) Math.ceil(e
+				.getSpeed()) + 1;
+		minX[id] = e.getX() - margin;
+		maxX[id] = e.getX() + e.getW() + margin;
+		minY[id] = e.getY() - margin;
+		maxY[id] = e.getY() + e.getH() + margin;
+	}
+
+	/**
+	 * Sorts ids by their interval start. Runs in close to linear time on
+	 * nearly sorted input.
+	 */
+	private void insertionSort(int[] order, int[] min) {
+		for (int idx = 1; idx < count; idx++) {
+			int id = order[idx];
+			int key = min[id];
+			int pos = idx - 1;
+			while (pos >= 0 && min[order[pos]] > key) {
+				order[pos + 1] = order[pos];
+				pos--;
+			}
+			order[pos + 1] = id;
+		}
+	}
+
+	/**
+	 * Sorts ids by their interval start from scratch, in O(n log n) whatever
+	 * the input order.
+	 */
+	private void fullSort(int[] order, int[] min) {
+		if (keys.length < count)
+			keys = new long[order.length];
+		// The interval start in the high half orders the keys, and the slot
+		// index in the low half is recovered afterwards.
+		for (int idx = 0; idx < count; idx++)
+			keys[idx] = (long) min[order[idx]] << 32 | order[idx];
+		Arrays.sort(keys, 0, count);
+		for (int idx = 0; idx < count; idx++)
+			order[idx] = (int) keys[idx];
+	}
+
+	/**
+	 * Refreshes the interval of every entity, restores the sorted order of
+	 * both axes and finds the candidate pairs for the coming tick. Should be
+	 * called once per tick before any entity moves.
+	 *
+	 * @param tick
+	 *            The tick about to be run.
+	 */
+	public void update(int tick) {
+		compact();
+		double sumX = 0, sumY = 0, sumXSq = 0, sumYSq = 0;
+		for (int idx = 0; idx < count; idx++) {
+			int id = xOrder[idx];
+			Entity e = entities[id];
+			bound(e, id, tick);
+			double cx = e.getX() + e.getW() / 2d;
+			double cy = e.getY() + e.getH() / 2d;
+			sumX += cx;
+			sumY += cy;
+			sumXSq += cx * cx;
+			sumYSq += cy * cy;
+		}
+		if (added > MAX_INSERTIONS) {
+			fullSort(xOrder, minX);
+			fullSort(yOrder, minY);
+		}
+		else {
+			insertionSort(xOrder, minX);
+			insertionSort(yOrder, minY);
+		}
+		added = 0;
+		stale = false;
+		// Sweep the axis along which entities are more spread out, since it
+		// will have fewer overlapping intervals.
+		if (sumXSq - sumX * sumX / count >= sumYSq - sumY * sumY / count)
+			sweep(xOrder, minX, maxX, minY, maxY);
+		else
+			sweep(yOrder, minY, maxY, minX, maxX);
+		groupPairs();
+	}
+
+	private void sweep(int[] order, int[] min, int[] max, int[] otherMin,
+			int[] otherMax) {
+		pairCount = 0;
+		for (int i = 0; i < count; i++) {
+			int a = order[i];
+			for (int j = i + 1; j < count && min[order[j]] <= max[a]; j++) {
+				int b = order[j];
+				if (otherMin[b] > otherMax[a] || otherMax[b] < otherMin[a])
+					continue;
+				if (pairCount * 2 == pairs.length)
+					pairs = Arrays.copyOf(pairs, pairs.length * 2);
+				pairs[pairCount * 2] = a;
+				pairs[pairCount * 2 + 1] = b;
+				pairCount++;
+			}
+		}
+	}
+
+	/**
+	 * Builds the per entity candidate lists from the pair list with a
+	 * counting sort.
+	 */
+	private void groupPairs() {
+		int ids = entities.length;
+		Arrays.fill(first, 0, ids + 1, 0);
+		for (int idx = 0; idx < pairCount * 2; idx++)
+			first[pairs[idx] + 1]++;
+		for (int id = 0; id < ids; id++)
+			first[id + 1] += first[id];
+		if (neighbours.length < pairCount * 2)
+			neighbours = new int[pairs.length];
+		// Fill each list backwards from its end, which leaves first[id + 1]
+		// pointing at the start of the list of id.
+		for (int idx = 0; idx < pairCount; idx++) {
+			int a = pairs[idx * 2];
+			int b = pairs[idx * 2 + 1];
+			neighbours[--first[a + 1]] = b;
+			neighbours[--first[b + 1]] = a;
+		}
+		System.arraycopy(first, 1, first, 0, ids);
+		first[ids] = pairCount * 2;
+	}
+
+	/**
+	 * Returns the number of candidate pairs found by the last update.
+	 *
+	 * @return The number of candidate pairs.
+	 */
+	public int getPairCount() {
+		return pairCount;
+	}
+
+	/**
+	 * Returns one entity of a candidate pair.
+	 *
+	 * @param pair
+	 *            The index of the pair, less than getPairCount().
+	 * @param second
+	 *            false for the first entity of the pair, true for the second.
+	 * @return The requested entity, or null if it has since been removed.
+	 */
+	public Entity getPair(int pair, boolean second) {
+		return entities[pairs[pair * 2 + (second ? 1 : 0)]];
+	}
+
+	/**
+	 * Checks if the candidate pairs found by the last update are complete for
+	 * the specified entity, which is if it was added before that update and no
+	 * entity has been added since.
+	 *
+	 * @param e
+	 *            The entity to check.
+	 * @return true if findCollisions finds everything e may collide with,
+	 *         otherwise false.
+	 */
+	public boolean hasPairs(Entity e) {
+		int id = e.index();
+		return !stale && id >= 0 && id < entities.length && entities[id] == e;
+	}
+
+	/**
+	 * Adds every candidate of the specified entity overlapping the specified
+	 * area to a list. The entity itself is never included. The candidates are
+	 * only complete if hasPairs(e) is true.
+	 *
+	 * @param e
+	 *            The entity to find candidates for.
+	 * @param x1
+	 *            The x coordinate of the area's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the area's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the area's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the area's lower right corner.
+	 * @param found
+	 *            The list to append the entities found to.
+	 * @return The number of entities found.
+	 */
+	public int findCollisions(Entity e, int x1, int y1, int x2, int y2,
+			ArrayList<Entity> found) {
+		int id = e.index();
+		if (id < 0 || id >= entities.length || entities[id] != e)
+			return 0;
+		int size = found.size();
+		for (int idx = first[id]; idx < first[id + 1]; idx++) {
+			Entity other = entities[neighbours[idx]];
+			if (other == null)
+				continue;
+			int x = other.getX();
+			int y = other.getY();
+			if (!(x > x2 || x + other.getW() < x1 || y > y2
+					|| y + other.getH() < y1))
+				found.add(other);
+		}
+		return found.size() - size;
+	}
+}
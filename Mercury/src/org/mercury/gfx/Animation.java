@@ -36,8 +36,8 @@ public class Animation {
 	 * ticksPerFrame.
 	 */
 	public void update(){
-		// return early if the animation has died.
-		if (frameIdx == framesPerAnimation && !loop){
+		// return early if the animation has died or has a single frame.
+		if (isIdle()){
 			return;
 		}
 		// Increment tick.
@@ -61,6 +61,41 @@ public class Animation {
 		}
 	}
 
+	/**
+	 * Checks if updating this animation can no longer change its frame,
+	 * because it has a single frame or has finished without looping.
+	 *
+	 * @return true if the animation is static or finished.
+	 */
+	public boolean isIdle() {
+		return framesPerAnimation <= 1
+				|| (frameIdx == framesPerAnimation && !loop);
+	}
+
+	public int getFrameIndex() {
+		return frameIdx;
+	}
+
+	public int getTickIndex() {
+		return tickIdx;
+	}
+
+	/**
+	 * Moves this animation to a point in its playback, e.g. when restoring a
+	 * saved entity.
+	 *
+	 * @param frameIdx
+	 *            The index of the frame, or the number of frames if a
+	 *            finished animation that does not loop.
+	 * @param tickIdx
+	 *            The number of ticks the frame has been shown for.
+	 */
+	public void setFrame(int frameIdx, int tickIdx) {
+		this.frameIdx = Math.max(0, Math.min(frameIdx, framesPerAnimation));
+		this.tickIdx = tickIdx;
+		currentFrame = frames[Math.min(this.frameIdx, framesPerAnimation - 1)];
+	}
+
 	private Sprite getCurrentFrame() {
 		return currentFrame;
 	}
@@ -151,4 +151,14 @@ public class AnimationList {
 		liveAnimation.update();
 
 	}
+
+	/**
+	 * Checks if updating the live animation can no longer change its frame.
+	 *
+	 * @return true if there is no live animation or it is static or
+	 *         finished.
+	 */
+	public boolean isIdle() {
+		return liveAnimation == null || liveAnimation.isIdle();
+	}
 }
@@ -9,12 +9,47 @@ package org.mercury.gfx;
  */
 public class Camera {
 	public int x, y;
+	// The size of the viewport in pixels.
+	public int w, h;
 
 	public void setTarget(int x, int y) {
 		this.x = x;
 		this.y = y;
 	}
 
+	/**
+	 * Sets the size of the area of the world this camera shows.
+	 *
+	 * @param w
+	 *            The width of the viewport in pixels.
+	 * @param h
+	 *            The height of the viewport in pixels.
+	 */
+	public void setSize(int w, int h) {
+		this.w = w;
+		this.h = h;
+	}
+
+	/**
+	 * Returns the squared distance from the viewport of this camera to a
+	 * rectangle.
+	 *
+	 * @param x
+	 *            The upper left x coordinate of the rectangle.
+	 * @param y
+	 *            The upper left y coordinate of the rectangle.
+	 * @param w
+	 *            The width of the rectangle.
+	 * @param h
+	 *            The height of the rectangle.
+	 * @return The squared distance, or 0 if the rectangle is in view.
+	 */
+	public long distanceSq(int x, int y, int w, int h) {
+		long dx = Math.max(0, Math.max(this.x - (x + w), x - (this.x + this.w)));
+		long dy = Math.max(0, Math.max(this.y - (y + h), y - (this.y + this.h)));
+		return dx * dx + dy * dy;
+	}
+
 	public void update() {
 
 	}
@@ -53,6 +53,48 @@ public class BoundingBox {
 		return !(x < cx - xhd || x > cx + xhd || y < cy - yhd || y > cy + yhd);
 	}
 
+	/**
+	 * Checks if this BoundingBox intersects the specified rectangle.
+	 * 
+	 * @param x1
+	 *            The x coordinate of the rectangle's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the rectangle's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the rectangle's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the rectangle's lower right corner.
+	 * @return true if the rectangle intersects this BoundingBox, otherwise
+	 *         false.
+	 */
+	public boolean intersects(int x1, int y1, int x2, int y2) {
+		return !(cx - xhd > x2 || cx + xhd < x1 || cy - yhd > y2 || cy + yhd < y1);
+	}
+
+	/**
+	 * Returns the squared distance from a point to the nearest point of a
+	 * rectangle, which is 0 if the point lies inside it.
+	 * 
+	 * @param x
+	 *            The x coordinate of the point.
+	 * @param y
+	 *            The y coordinate of the point.
+	 * @param x1
+	 *            The x coordinate of the rectangle's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the rectangle's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the rectangle's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the rectangle's lower right corner.
+	 * @return The squared distance from the point to the rectangle.
+	 */
+	public static long distanceSq(int x, int y, int x1, int y1, int x2, int y2) {
+		long dx = (x < x1) ? x1 - x : (x > x2) ? x - x2 : 0;
+		long dy = (y < y1) ? y1 - y : (y > y2) ? y - y2 : 0;
+		return dx * dx + dy * dy;
+	}
+
 	/**
 	 * Checks if this BoundingBox intersects another BoundingBox.
 	 * 
@@ -73,4 +115,4 @@ public class BoundingBox {
 
 		return !(x1 > ox2 || x2 < ox1 || y1 > oy2 || y2 < oy1);
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,21 @@
+package org.mercury.util;
+
+import org.mercury.entity.Entity;
+
+/**
+ * Interface which receives the entities found by a spatial query one at a
+ * time, allowing queries to run without building a list of results.
+ * 
+ * @author tbertore
+ * 
+ */
+public interface EntityVisitor {
+	/**
+	 * Called once for each entity matched by a query.
+	 * 
+	 * @param e
+	 *            The entity found.
+	 * @return true to continue the query, or false to stop it early.
+	 */
+	public boolean visit(Entity e);
+}
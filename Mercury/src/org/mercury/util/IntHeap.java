@@ -0,0 +1,93 @@
+package org.mercury.util;
+
+import java.util.Arrays;
+
+/**
+ * A binary min heap of int values ordered by int keys, held in two primitive
+ * arrays so that searches over large grids do not box or allocate per node.
+ * There is no decrease key: a value is pushed again with its better key, and
+ * the caller skips the stale copy when it is popped.
+ *
+ * @author tbertore
+ *
+ */
+public class IntHeap {
+	private int[] keys = new int[64];
+	private int[] values = new int[64];
+	private int size;
+
+	/**
+	 * Adds a value.
+	 *
+	 * @param key
+	 *            The key to order the value by.
+	 * @param value
+	 *            The value to add.
+	 */
+	public void push(int key, int value) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		int pos = size++;
+		// Sift up.
+		while (pos > 0) {
+			int parent = (pos - 1) >> 1;
+			if (keys[parent] <= key)
+				break;
+			keys[pos] = keys[parent];
+			values[pos] = values[parent];
+			pos = parent;
+		}
+		keys[pos] = key;
+		values[pos] = value;
+	}
+
+	/**
+	 * Returns the key of the value with the lowest key.
+	 *
+	 * @return The lowest key. The heap must not be empty.
+	 */
+	public int peekKey() {
+		return keys[0];
+	}
+
+	/**
+	 * Removes the value with the lowest key.
+	 *
+	 * @return The value removed. The heap must not be empty.
+	 */
+	public int pop() {
+		int top = values[0];
+		int key = keys[--size];
+		int value = values[size];
+		// Sift the last value down from the root.
+		int pos = 0;
+		int half = size >> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			if (child + 1 < size && keys[child + 1] < keys[child])
+				child++;
+			if (key <= keys[child])
+				break;
+			keys[pos] = keys[child];
+			values[pos] = values[child];
+			pos = child;
+		}
+		keys[pos] = key;
+		values[pos] = value;
+		return top;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+}
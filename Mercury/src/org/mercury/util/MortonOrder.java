@@ -0,0 +1,86 @@
+package org.mercury.util;
+
+import java.util.Arrays;
+
+import org.mercury.entity.Entity;
+
+/**
+ * Sorts entities along a Z-order (Morton) curve. Entities which are close in
+ * the world end up close in the sorted array, so inserting them into a spatial
+ * index in this order touches the same nodes and cells consecutively. The
+ * scratch arrays used for sorting are kept between calls.
+ *
+ * @author tbertore
+ *
+ */
+public class MortonOrder {
+	// Positions are quantized to this many bits per axis.
+	private static final int BITS = 16;
+	private static final int MAX = (1 << BITS) - 1;
+
+	private final int cellSize;
+	private long[] keys = new long[0];
+	private Entity[] sorted = new Entity[0];
+
+	/**
+	 * Creates a new MortonOrder.
+	 *
+	 * @param cellSize
+	 *            The size in pixels of the squares positions are quantized to
+	 *            before ordering, e.g. Terrain.SIZE.
+	 */
+	public MortonOrder(int cellSize) {
+		if (cellSize <= 0)
+			throw new IllegalArgumentException("Cell size must be > 0!");
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Interleaves the low 16 bits of x and y into a single Morton key.
+	 *
+	 * @param x
+	 *            The quantized x coordinate.
+	 * @param y
+	 *            The quantized y coordinate.
+	 * @return The Morton key, with x in the even bits and y in the odd bits.
+	 */
+	public static long encode(int x, int y) {
+		return spread(x) | (spread(y) << 1);
+	}
+
+	private static long spread(int v) {
+		long bits = v & MAX;
+		bits = (bits | (bits << 8)) & 0x00FF00FFL;
+		bits = (bits | (bits << 4)) & 0x0F0F0F0FL;
+		bits = (bits | (bits << 2)) & 0x33333333L;
+		bits = (bits | (bits << 1)) & 0x55555555L;
+		return bits;
+	}
+
+	/**
+	 * Sorts the first count entities of the specified array in place by the
+	 * Morton key of their position.
+	 *
+	 * @param entities
+	 *            The entities to sort.
+	 * @param count
+	 *            The number of entities at the start of the array to sort.
+	 */
+	public void sort(Entity[] entities, int count) {
+		if (keys.length < count) {
+			keys = new long[count];
+			sorted = new Entity[count];
+		}
+		for (int idx = 0; idx < count; idx++) {
+			int x = Math.max(0, Math.min(MAX, entities[idx].getX() / cellSize));
+			int y = Math.max(0, Math.min(MAX, entities[idx].getY() / cellSize));
+			// The key occupies the high half, the original index the low half.
+			keys[idx] = (encode(x, y) << 32) | idx;
+		}
+		Arrays.sort(keys, 0, count);
+		for (int idx = 0; idx < count; idx++)
+			sorted[idx] = entities[(int) keys[idx]];
+		System.arraycopy(sorted, 0, entities, 0, count);
+		Arrays.fill(sorted, 0, count, null);
+	}
+}
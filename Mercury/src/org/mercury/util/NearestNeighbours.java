@@ -0,0 +1,253 @@
+package org.mercury.util;
+
+import java.util.Arrays;
+
+import org.mercury.entity.Entity;
+
+/**
+ * The reusable state and result of a k-nearest-neighbour query. Holds the
+ * query point, a bounded max-heap of the closest entities found so far and a
+ * min-heap of index nodes still to visit, so that spatial indices can run
+ * best-first searches without allocating. After a search the results are
+ * sorted from nearest to farthest.
+ * <p>
+ * Distances are measured from the query point to the nearest part of each
+ * entity's body and are kept squared.
+ *
+ * @author tbertore
+ *
+ */
+public class NearestNeighbours implements EntityVisitor {
+	private int x, y, k;
+	// Max-heap of the closest entities found so far while searching, sorted
+	// ascending once the search is finished.
+	private Entity[] entities = new Entity[16];
+	private long[] distances = new long[16];
+	private int size;
+	// Min-heap of index nodes still to visit, keyed by their distance.
+	private Object[] nodes = new Object[16];
+	private long[] nodeDistances = new long[16];
+	private int nodeCount;
+
+	/**
+	 * Clears this query and starts a new search.
+	 *
+	 * @param x
+	 *            The x coordinate of the query point.
+	 * @param y
+	 *            The y coordinate of the query point.
+	 * @param k
+	 *            The number of entities to find.
+	 */
+	public void begin(int x, int y, int k) {
+		Arrays.fill(entities, 0, size, null);
+		Arrays.fill(nodes, 0, nodeCount, null);
+		this.x = x;
+		this.y = y;
+		this.k = Math.max(0, k);
+		size = 0;
+		nodeCount = 0;
+		if (entities.length < this.k) {
+			entities = new Entity[this.k];
+			distances = new long[this.k];
+		}
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	/**
+	 * Returns the squared distance an entity must beat to be added, which is
+	 * the distance of the k-th closest entity once k have been found.
+	 *
+	 * @return The current squared search distance.
+	 */
+	public long bound() {
+		return (size < k) ? Long.MAX_VALUE : distances[0];
+	}
+
+	/**
+	 * Adds an entity to the result if it is among the k closest found so far.
+	 *
+	 * @param e
+	 *            The entity to consider.
+	 * @param distanceSq
+	 *            The squared distance of e from the query point.
+	 * @return true if the entity was added, otherwise false.
+	 */
+	public boolean offer(Entity e, long distanceSq) {
+		if (size < k) {
+			int pos = size++;
+			// Sift up.
+			while (pos > 0 && distances[(pos - 1) / 2] < distanceSq) {
+				entities[pos] = entities[(pos - 1) / 2];
+				distances[pos] = distances[(pos - 1) / 2];
+				pos = (pos - 1) / 2;
+			}
+			entities[pos] = e;
+			distances[pos] = distanceSq;
+			return true;
+		}
+		if (k == 0 || distanceSq >= distances[0])
+			return false;
+		siftDown(e, distanceSq, 0, size);
+		return true;
+	}
+
+	/**
+	 * Places an entity at pos in the max-heap of the first end results and
+	 * moves it down until the heap is valid again.
+	 */
+	private void siftDown(Entity e, long distanceSq, int pos, int end) {
+		while (true) {
+			int child = pos * 2 + 1;
+			if (child >= end)
+				break;
+			if (child + 1 < end && distances[child + 1] > distances[child])
+				child++;
+			if (distances[child] <= distanceSq)
+				break;
+			entities[pos] = entities[child];
+			distances[pos] = distances[child];
+			pos = child;
+		}
+		entities[pos] = e;
+		distances[pos] = distanceSq;
+	}
+
+	/**
+	 * Sorts the results from nearest to farthest. Called by spatial indices
+	 * once a search is done.
+	 */
+	public void finish() {
+		for (int end = size - 1; end > 0; end--) {
+			Entity e = entities[end];
+			long distanceSq = distances[end];
+			entities[end] = entities[0];
+			distances[end] = distances[0];
+			siftDown(e, distanceSq, 0, end);
+		}
+		Arrays.fill(nodes, 0, nodeCount, null);
+		nodeCount = 0;
+	}
+
+	/**
+	 * Offers an entity using its distance from the query point.
+	 */
+	@Override
+	public boolean visit(Entity e) {
+		int ex = e.getX();
+		int ey = e.getY();
+		offer(e, BoundingBox.distanceSq(x, y, ex, ey, ex + e.getW(),
+				ey + e.getH()));
+		return true;
+	}
+
+	/**
+	 * Adds an index node to visit later.
+	 *
+	 * @param node
+	 *            The node.
+	 * @param distanceSq
+	 *            The squared distance from the query point to the node.
+	 */
+	void pushNode(Object node, long distanceSq) {
+		if (nodeCount == nodes.length) {
+			nodes = Arrays.copyOf(nodes, nodeCount * 2);
+			nodeDistances = Arrays.copyOf(nodeDistances, nodeCount * 2);
+		}
+		int pos = nodeCount++;
+		while (pos > 0 && nodeDistances[(pos - 1) / 2] > distanceSq) {
+			nodes[pos] = nodes[(pos - 1) / 2];
+			nodeDistances[pos] = nodeDistances[(pos - 1) / 2];
+			pos = (pos - 1) / 2;
+		}
+		nodes[pos] = node;
+		nodeDistances[pos] = distanceSq;
+	}
+
+	/**
+	 * Checks if any nodes are left to visit.
+	 *
+	 * @return true if popNode will return a node.
+	 */
+	boolean hasNodes() {
+		return nodeCount > 0;
+	}
+
+	/**
+	 * Returns the distance of the closest node left to visit.
+	 *
+	 * @return The smallest squared node distance, or Long.MAX_VALUE if no
+	 *         nodes are left.
+	 */
+	long peekNodeDistance() {
+		return (nodeCount == 0) ? Long.MAX_VALUE : nodeDistances[0];
+	}
+
+	/**
+	 * Removes and returns the closest node left to visit.
+	 */
+	Object popNode() {
+		Object top = nodes[0];
+		nodeCount--;
+		Object last = nodes[nodeCount];
+		long lastDistance = nodeDistances[nodeCount];
+		nodes[nodeCount] = null;
+		int pos = 0;
+		while (true) {
+			int child = pos * 2 + 1;
+			if (child >= nodeCount)
+				break;
+			if (child + 1 < nodeCount
+					&& nodeDistances[child + 1] < nodeDistances[child])
+				child++;
+			if (nodeDistances[child] >= lastDistance)
+				break;
+			nodes[pos] = nodes[child];
+			nodeDistances[pos] = nodeDistances[child];
+			pos = child;
+		}
+		if (nodeCount > 0) {
+			nodes[pos] = last;
+			nodeDistances[pos] = lastDistance;
+		}
+		return top;
+	}
+
+	/**
+	 * Returns the number of entities found.
+	 *
+	 * @return The number of results, at most k.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a result of the last search.
+	 *
+	 * @param idx
+	 *            The rank of the result, 0 being the nearest.
+	 * @return The entity found.
+	 */
+	public Entity get(int idx) {
+		return entities[idx];
+	}
+
+	/**
+	 * Returns the squared distance of a result of the last search.
+	 *
+	 * @param idx
+	 *            The rank of the result, 0 being the nearest.
+	 * @return The squared distance from the query point to the entity.
+	 */
+	public long getDistanceSq(int idx) {
+		return distances[idx];
+	}
+}
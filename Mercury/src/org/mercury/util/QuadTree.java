@@ -1,7 +1,6 @@
 package org.mercury.util;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 
 import org.mercury.entity.Entity;
 
@@ -9,33 +8,79 @@ import org.mercury.entity.Entity;
  * Data structure which allows efficient O(log(n)) lookup of entities in the
  * world. This structure must have its entries kept up to date with any moving
  * entities each game tick in order for spatial queries to be correct.
+ * <p>
+ * By default entities are indexed by their x and y position only. A loose
+ * QuadTree instead indexes the full extent of each entity: an entity is stored
+ * by its center like a point, and every node keeps a rectangle covering the
+ * bodies below it, so rectangle queries find every entity whose body overlaps
+ * the query while only visiting nodes whose bodies can reach it.
  *
  * @author tbertore
  *
  */
-public class QuadTree {
+public class QuadTree implements SpatialIndex {
 	// A QuadTree which can subdivide will have no more than this many entities
 	// in its array.
 	private static int NODE_CAPACITY = 4;
+	// Position of a child within its parent, in traversal order.
+	private static final int NW = 0, NE = 1, SW = 2, SE = 3;
+	// A subdivided QuadTree holding no more than this many entities in total is
+	// collapsed back into a single node. Kept below NODE_CAPACITY so a node
+	// does not immediately split again.
+	private static int COLLAPSE_THRESHOLD = NODE_CAPACITY / 2;
 
 	private QuadTree head;
+	private QuadTree parent;
+	private int quadrant;
 	private QuadTree nw, ne, sw, se;
 	private ArrayList<Entity> entities;
-	private BoundingBox boundary;
+	// The cell this node spans, as a center and half sizes. Plain ints, so
+	// pooled nodes can be moved to a new cell without allocating.
+	private int cx, cy, xhd, yhd;
+	// A rectangle holding the body, or the position unless this QuadTree is
+	// loose, of every entity in this node and its children. Empty, with min
+	// above max, until an entity is added. Only grows until the node is
+	// emptied by a rebuild or pooled, so it may be larger than needed.
+	private int minX, minY, maxX, maxY;
+	private final boolean loose;
+	// The number of entities in this QuadTree and all of its children.
+	private int count;
+	// Links unused nodes in the head's pool.
+	private QuadTree nextFree;
+	// Statistics and node pool, only kept by the head.
+	private QuadTree pool;
+	private int nodeCount = 1, pooledCount;
+	private int slack;
 
 	/**
 	 * Creates a new QuadTree spanning over the specified rectangular area. A
 	 * QuadTree is a data structure which allows efficient O(log(n)) spatial
 	 * queries of entities.
 	 *
-	 * @param bounds
-	 *            The area for this QuadTree to span.
-	 * @param head
-	 *            The head (top level) of the entire QuadTree.
+	 * @param cx
+	 *            The x coordinate of the center of the cell to span.
+	 * @param cy
+	 *            The y coordinate of the center of the cell to span.
+	 * @param xhd
+	 *            Half of the width of the cell to span.
+	 * @param yhd
+	 *            Half of the height of the cell to span.
+	 * @param parent
+	 *            The QuadTree this QuadTree is a child of.
+	 * @param quadrant
+	 *            Which of the parent's four children this QuadTree is.
 	 */
-	private QuadTree(BoundingBox bounds, QuadTree head) {
-		this.head = head;
-		boundary = bounds;
+	private QuadTree(int cx, int cy, int xhd, int yhd, QuadTree parent,
+			int quadrant) {
+		this.head = parent.head;
+		this.parent = parent;
+		this.quadrant = quadrant;
+		loose = head.loose;
+		this.cx = cx;
+		this.cy = cy;
+		this.xhd = xhd;
+		this.yhd = yhd;
+		resetReach();
 		entities = new ArrayList<Entity>(NODE_CAPACITY);
 	}
 
@@ -48,7 +93,27 @@ public class QuadTree {
 	 *            The area for this QuadTree to span.
 	 */
 	public QuadTree(BoundingBox bounds) {
-		boundary = bounds;
+		this(bounds, false);
+	}
+
+	/**
+	 * Creates a new QuadTree spanning over the specified rectangular area. A
+	 * loose QuadTree indexes the width and height of each entity as well as
+	 * its position, so that searchRect returns every entity whose body
+	 * overlaps the searched area.
+	 *
+	 * @param bounds
+	 *            The area for this QuadTree to span.
+	 * @param loose
+	 *            true to index entity extents, false to index positions only.
+	 */
+	public QuadTree(BoundingBox bounds, boolean loose) {
+		this.loose = loose;
+		cx = bounds.cx;
+		cy = bounds.cy;
+		xhd = bounds.xhd;
+		yhd = bounds.yhd;
+		resetReach();
 		head = this;
 		entities = new ArrayList<Entity>(NODE_CAPACITY);
 	}
@@ -74,92 +139,579 @@ public class QuadTree {
 		if (xRadius <= 0 || yRadius <= 0)
 			throw new IllegalArgumentException("Radius must be > 0!");
 		head = this;
-		boundary = new BoundingBox(centerX, centerY, xRadius, yRadius);
+		loose = false;
+		cx = centerX;
+		cy = centerY;
+		xhd = xRadius;
+		yhd = yRadius;
+		resetReach();
 		entities = new ArrayList<Entity>(NODE_CAPACITY);
 	}
 
 	/**
-	 * Inserts an entity into this QuadTree, using its x and y position.
+	 * Inserts an entity into this QuadTree, using its x and y position, and its
+	 * width and height if this QuadTree is loose.
 	 *
 	 * @param e
 	 *            The entity to insert.
 	 * @return True if the entity was successfully added to this QuadTree, or
 	 *         false if the entity's position is not contained by this QuadTree.
 	 */
+	@Override
 	public boolean insert(Entity e) {
-		if (!boundary.contains(e.getX(), e.getY()))
+		int x1 = e.getX();
+		int y1 = e.getY();
+		int x2 = loose ? x1 + e.getW() : x1;
+		int y2 = loose ? y1 + e.getH() : y1;
+		if (!inCell((x1 + x2) / 2, (y1 + y2) / 2))
 			return false;
+		count++;
+		insert(e, x1, y1, x2, y2);
+		return true;
+	}
 
-		// Add the entity to this level if there is room, or if we cannot divide
-		// anymore.
-		if (entities.size() < NODE_CAPACITY || boundary.xhd == 1
-				|| boundary.yhd == 1) {
-			entities.add(e);
-			return true;
+	/**
+	 * Places an entity in this node or the deepest child able to hold it. The
+	 * count of this node is left to the caller, the counts of any children
+	 * descended into are incremented, and every node on the way grows to
+	 * cover its body.
+	 */
+	private void insert(Entity e, int x1, int y1, int x2, int y2) {
+		grow(x1, y1, x2, y2);
+		QuadTree node = this;
+		while (true) {
+			// Add the entity to this level if there is room, or if we cannot
+			// divide anymore.
+			if (node.entities.size() < NODE_CAPACITY || !node.canSubdivide()) {
+				node.add(e);
+				return;
+			}
+			if (node.nw == null)
+				node.subDivide();
+			node = node.childAt((x1 + x2) / 2, (y1 + y2) / 2);
+			node.count++;
+			// The parent already covers the body, so the child stays within
+			// its parent's rectangle.
+			node.minX = Math.min(node.minX, x1);
+			node.minY = Math.min(node.minY, y1);
+			node.maxX = Math.max(node.maxX, x2);
+			node.maxY = Math.max(node.maxY, y2);
 		}
+	}
 
-		if (nw == null)
-			subDivide();
-		if (nw.insert(e))
-			return true;
-		if (ne.insert(e))
-			return true;
-		if (sw.insert(e))
-			return true;
-		if (se.insert(e))
-			return true;
+	/**
+	 * Grows the rectangles of this node and its ancestors to cover a body.
+	 * Each node's rectangle lies within its parent's, so this stops at the
+	 * first node already covering it.
+	 */
+	private void grow(int x1, int y1, int x2, int y2) {
+		for (QuadTree node = this; node != null; node = node.parent) {
+			if (node.minX <= x1 && node.minY <= y1 && node.maxX >= x2
+					&& node.maxY >= y2)
+				return;
+			node.minX = Math.min(node.minX, x1);
+			node.minY = Math.min(node.minY, y1);
+			node.maxX = Math.max(node.maxX, x2);
+			node.maxY = Math.max(node.maxY, y2);
+		}
+	}
 
-		throw new RuntimeException("Could not fit entity?!");
+	/**
+	 * Empties the rectangle of this node.
+	 */
+	private void resetReach() {
+		minX = minY = Integer.MAX_VALUE;
+		maxX = maxY = Integer.MIN_VALUE;
 	}
 
 	/**
-	 * Returns all the entities contained in a given rectangle.
+	 * Returns all the entities contained in a given rectangle. If this QuadTree
+	 * is loose, this is every entity whose body overlaps the rectangle.
 	 *
 	 * @param rect
 	 *            The rectangular area to search in.
 	 * @return An ArrayList containing the entities found.
 	 */
+	@Override
 	public ArrayList<Entity> searchRect(BoundingBox rect) {
 		ArrayList<Entity> found = new ArrayList<Entity>();
+		searchRect(rect, found);
+		return found;
+	}
 
-		if (!boundary.intersects(rect))
-			return found;
+	/**
+	 * Adds all the entities contained in a given rectangle to the specified
+	 * list. Reusing the same list between calls allows queries to run without
+	 * allocating.
+	 *
+	 * @param rect
+	 *            The rectangular area to search in.
+	 * @param found
+	 *            The list to append the entities found to. It is not cleared.
+	 * @return The number of entities found.
+	 */
+	@Override
+	public int searchRect(BoundingBox rect, ArrayList<Entity> found) {
+		return searchRect(rect.cx - rect.xhd, rect.cy - rect.yhd, rect.cx
+				+ rect.xhd, rect.cy + rect.yhd, found);
+	}
+
+	/**
+	 * Adds all the entities contained in a given rectangle to the specified
+	 * list, without needing a BoundingBox for the query.
+	 *
+	 * @param x1
+	 *            The x coordinate of the rectangle's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the rectangle's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the rectangle's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the rectangle's lower right corner.
+	 * @param found
+	 *            The list to append the entities found to. It is not cleared.
+	 * @return The number of entities found.
+	 */
+	@Override
+	public int searchRect(int x1, int y1, int x2, int y2,
+			ArrayList<Entity> found) {
+		int size = found.size();
+		search(x1, y1, x2, y2, found, null);
+		return found.size() - size;
+	}
+
+	/**
+	 * Passes each entity contained in a given rectangle to the specified
+	 * visitor, without allocating.
+	 *
+	 * @param rect
+	 *            The rectangular area to search in.
+	 * @param visitor
+	 *            The visitor to call for each entity found.
+	 * @return false if the visitor stopped the search early, otherwise true.
+	 */
+	@Override
+	public boolean searchRect(BoundingBox rect, EntityVisitor visitor) {
+		return searchRect(rect.cx - rect.xhd, rect.cy - rect.yhd, rect.cx
+				+ rect.xhd, rect.cy + rect.yhd, visitor);
+	}
 
-		for (int idx = 0; idx < entities.size(); idx++) {
-			if (rect.contains(entities.get(idx).getX(), entities.get(idx)
-					.getY()))
-				found.add(entities.get(idx));
+	/**
+	 * Passes each entity contained in a given rectangle to the specified
+	 * visitor, without allocating.
+	 *
+	 * @param x1
+	 *            The x coordinate of the rectangle's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the rectangle's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the rectangle's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the rectangle's lower right corner.
+	 * @param visitor
+	 *            The visitor to call for each entity found.
+	 * @return false if the visitor stopped the search early, otherwise true.
+	 */
+	@Override
+	public boolean searchRect(int x1, int y1, int x2, int y2,
+			EntityVisitor visitor) {
+		return search(x1, y1, x2, y2, null, visitor);
+	}
+
+	/**
+	 * Iterative rectangle search over this QuadTree and its children. Walks
+	 * the tree using parent links rather than a stack so that it needs no
+	 * allocation and may safely be run by several threads at once.
+	 */
+	private boolean search(int rx1, int ry1, int rx2, int ry2,
+			ArrayList<Entity> found, EntityVisitor visitor) {
+		// Nodes are tested against the query widened by the slack, entities
+		// against the query itself.
+		int slack = head.slack;
+		int x1 = rx1 - slack, y1 = ry1 - slack;
+		int x2 = rx2 + slack, y2 = ry2 + slack;
+		QuadTree node = this;
+		while (node != null) {
+			if (!(node.minX > x2 || node.maxX < x1 || node.minY > y2
+					|| node.maxY < y1)) {
+				ArrayList<Entity> entities = node.entities;
+				for (int idx = 0; idx < entities.size(); idx++) {
+					Entity e = entities.get(idx);
+					int x = e.getX();
+					int y = e.getY();
+					// Points are bodies of no width or height.
+					int w = loose ? e.getW() : 0;
+					int h = loose ? e.getH() : 0;
+					if (!(x > rx2 || x + w < rx1 || y > ry2 || y + h < ry1)) {
+						if (found != null)
+							found.add(e);
+						else if (!visitor.visit(e))
+							return false;
+					}
+				}
+				if (node.nw != null) {
+					node = node.nw;
+					continue;
+				}
+			}
+			node = node.next(this);
 		}
+		return true;
+	}
 
-		if (nw != null) {
-			found.addAll(nw.searchRect(rect));
-			found.addAll(ne.searchRect(rect));
-			found.addAll(sw.searchRect(rect));
-			found.addAll(se.searchRect(rect));
+	/**
+	 * Adds all the entities within a given distance of a point to the
+	 * specified list, without allocating if the list has room.
+	 *
+	 * @param x
+	 *            The x coordinate of the center of the search.
+	 * @param y
+	 *            The y coordinate of the center of the search.
+	 * @param radius
+	 *            The distance to search within.
+	 * @param found
+	 *            The list to append the entities found to. It is not cleared.
+	 * @return The number of entities found.
+	 */
+	@Override
+	public int searchRadius(int x, int y, int radius, ArrayList<Entity> found) {
+		int size = found.size();
+		search(x, y, radius, found, null);
+		return found.size() - size;
+	}
+
+	/**
+	 * Passes each entity within a given distance of a point to the specified
+	 * visitor, without allocating.
+	 *
+	 * @param x
+	 *            The x coordinate of the center of the search.
+	 * @param y
+	 *            The y coordinate of the center of the search.
+	 * @param radius
+	 *            The distance to search within.
+	 * @param visitor
+	 *            The visitor to call for each entity found.
+	 * @return false if the visitor stopped the search early, otherwise true.
+	 */
+	@Override
+	public boolean searchRadius(int x, int y, int radius,
+			EntityVisitor visitor) {
+		return search(x, y, radius, null, visitor);
+	}
+
+	/**
+	 * Iterative circle search. Nodes farther from the center than the radius
+	 * are skipped along with their children.
+	 */
+	private boolean search(int px, int py, int radius,
+			ArrayList<Entity> found, EntityVisitor visitor) {
+		long radiusSq = (long) radius * radius;
+		QuadTree node = this;
+		while (node != null) {
+			if (node.distanceSq(px, py) <= radiusSq) {
+				ArrayList<Entity> entities = node.entities;
+				for (int idx = 0; idx < entities.size(); idx++) {
+					Entity e = entities.get(idx);
+					if (distanceSq(e, px, py) <= radiusSq) {
+						if (found != null)
+							found.add(e);
+						else if (!visitor.visit(e))
+							return false;
+					}
+				}
+				if (node.nw != null) {
+					node = node.nw;
+					continue;
+				}
+			}
+			node = node.next(this);
 		}
-		return found;
+		return true;
+	}
+
+	/**
+	 * Finds the k entities closest to a point with a best-first search:
+	 * nodes are visited in order of their distance from the point, and the
+	 * search ends as soon as the closest unvisited node is farther away than
+	 * the k-th closest entity found.
+	 *
+	 * @param x
+	 *            The x coordinate of the query point.
+	 * @param y
+	 *            The y coordinate of the query point.
+	 * @param k
+	 *            The number of entities to find.
+	 * @param nearest
+	 *            The query object to search with and store the results in.
+	 */
+	@Override
+	public void searchNearest(int x, int y, int k, NearestNeighbours nearest) {
+		nearest.begin(x, y, k);
+		if (k > 0 && count > 0)
+			nearest.pushNode(this, distanceSq(x, y));
+		// Until fewer than k entities are found the bound is Long.MAX_VALUE,
+		// which no distance exceeds, so the search also ends once every node
+		// has been visited.
+		while (nearest.hasNodes()
+				&& nearest.peekNodeDistance() <= nearest.bound()) {
+			QuadTree node = (QuadTree) nearest.popNode();
+			for (int idx = 0; idx < node.entities.size(); idx++) {
+				Entity e = node.entities.get(idx);
+				nearest.offer(e, distanceSq(e, x, y));
+			}
+			if (node.nw != null) {
+				node.pushChild(node.nw, nearest);
+				node.pushChild(node.ne, nearest);
+				node.pushChild(node.sw, nearest);
+				node.pushChild(node.se, nearest);
+			}
+		}
+		nearest.finish();
+	}
+
+	/**
+	 * Casts a ray through the entities in this QuadTree. Nodes are visited
+	 * front to back in the order the ray enters them, so when only the first
+	 * hit is wanted the search ends as soon as the next node lies beyond it.
+	 * Only the bodies of entities in a loose QuadTree are guaranteed to be
+	 * found, since a point QuadTree only indexes their positions.
+	 *
+	 * @param ray
+	 *            The ray to cast, already started with RayCast.begin.
+	 */
+	@Override
+	public void searchRay(RayCast ray) {
+		pushChild(this, ray);
+		while (ray.peekNodeTime() <= ray.bound()) {
+			QuadTree node = (QuadTree) ray.popNode();
+			for (int idx = 0; idx < node.entities.size(); idx++)
+				ray.offer(node.entities.get(idx));
+			if (node.nw != null) {
+				pushChild(node.nw, ray);
+				pushChild(node.ne, ray);
+				pushChild(node.sw, ray);
+				pushChild(node.se, ray);
+			}
+		}
+		ray.finish();
+	}
+
+	private void pushChild(QuadTree child, RayCast ray) {
+		if (child.count == 0)
+			return;
+		int slack = head.slack;
+		double time = ray.entry(child.minX - slack, child.minY - slack,
+				child.maxX + slack, child.maxY + slack);
+		if (time <= ray.bound())
+			ray.pushNode(child, time);
+	}
+
+	private void pushChild(QuadTree child, NearestNeighbours nearest) {
+		if (child.count == 0)
+			return;
+		long distanceSq = child.distanceSq(nearest.getX(), nearest.getY());
+		if (distanceSq <= nearest.bound())
+			nearest.pushNode(child, distanceSq);
+	}
+
+	/**
+	 * Returns the squared distance from a point to the area this node's
+	 * entities may lie in, widened by the slack. The node must hold an
+	 * entity.
+	 */
+	private long distanceSq(int x, int y) {
+		int slack = head.slack;
+		return BoundingBox.distanceSq(x, y, minX - slack, minY - slack, maxX
+				+ slack, maxY + slack);
+	}
 
+	/**
+	 * Returns the squared distance from a point to an entity, as indexed by
+	 * this QuadTree.
+	 */
+	private long distanceSq(Entity e, int x, int y) {
+		int ex = e.getX();
+		int ey = e.getY();
+		if (!loose)
+			return BoundingBox.distanceSq(x, y, ex, ey, ex, ey);
+		return BoundingBox.distanceSq(x, y, ex, ey, ex + e.getW(),
+				ey + e.getH());
 	}
 
+	/**
+	 * Returns the node following this one in a depth first traversal of root
+	 * that skips this node's children, or null once root is exhausted.
+	 */
+	private QuadTree next(QuadTree root) {
+		QuadTree node = this;
+		while (node != root) {
+			switch (node.quadrant) {
+			case NW:
+				return node.parent.ne;
+			case NE:
+				return node.parent.sw;
+			case SW:
+				return node.parent.se;
+			default:
+				node = node.parent;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Splits this QuadTree into four children. Odd sizes are rounded up so the
+	 * children always cover this QuadTree's entire boundary.
+	 */
 	private void subDivide() {
-		int cx = boundary.cx;
-		int cy = boundary.cy;
-		int xhd = boundary.xhd;
-		int yhd = boundary.yhd;
-		nw = new QuadTree(new BoundingBox((cx + (cx - xhd)) / 2,
-				(cy + (cy - yhd)) / 2, xhd / 2, yhd / 2), head);
-		sw = new QuadTree(new BoundingBox((cx + (cx - xhd)) / 2,
-				(cy + (cy + yhd)) / 2, xhd / 2, yhd / 2), head);
-		ne = new QuadTree(new BoundingBox((cx + (cx + xhd)) / 2,
-				(cy + (cy - yhd)) / 2, xhd / 2, yhd / 2), head);
-		se = new QuadTree(new BoundingBox((cx + (cx + xhd)) / 2,
-				(cy + (cy + yhd)) / 2, xhd / 2, yhd / 2), head);
+		int hx = (xhd + 1) / 2;
+		int hy = (yhd + 1) / 2;
+		nw = obtain(cx - hx, cy - hy, hx, hy, NW);
+		sw = obtain(cx - hx, cy + hy, hx, hy, SW);
+		ne = obtain(cx + hx, cy - hy, hx, hy, NE);
+		se = obtain(cx + hx, cy + hy, hx, hy, SE);
+
+	}
+
+	/**
+	 * Returns a new child of this node, reusing a pooled node when one is
+	 * available.
+	 */
+	private QuadTree obtain(int cx, int cy, int xhd, int yhd, int quadrant) {
+		head.nodeCount++;
+		QuadTree node = head.pool;
+		if (node == null)
+			return new QuadTree(cx, cy, xhd, yhd, this, quadrant);
+		head.pool = node.nextFree;
+		head.pooledCount--;
+		node.nextFree = null;
+		node.parent = this;
+		node.quadrant = quadrant;
+		node.cx = cx;
+		node.cy = cy;
+		node.xhd = xhd;
+		node.yhd = yhd;
+		node.resetReach();
+		return node;
+	}
+
+	/**
+	 * Moves every entity below this node up into it and returns its children
+	 * to the head's pool.
+	 */
+	private void collapse() {
+		absorb(nw);
+		absorb(ne);
+		absorb(sw);
+		absorb(se);
+		nw = ne = sw = se = null;
+	}
+
+	private void absorb(QuadTree child) {
+		for (int idx = 0; idx < child.entities.size(); idx++)
+			add(child.entities.get(idx));
+		child.entities.clear();
+		if (child.nw != null) {
+			absorb(child.nw);
+			absorb(child.ne);
+			absorb(child.sw);
+			absorb(child.se);
+			child.nw = child.ne = child.sw = child.se = null;
+		}
+		child.count = 0;
+		child.parent = null;
+		child.nextFree = head.pool;
+		head.pool = child;
+		head.pooledCount++;
+		head.nodeCount--;
+	}
+
+	/**
+	 * Checks if this node is subdivided but holds few enough entities to be
+	 * collapsed.
+	 */
+	private boolean underfilled() {
+		return nw != null && count <= COLLAPSE_THRESHOLD;
+	}
 
+	private boolean canSubdivide() {
+		return xhd > 1 && yhd > 1;
+	}
+
+	/**
+	 * Checks if the specified point lies in this node's cell.
+	 */
+	private boolean inCell(int x, int y) {
+		return !(x < cx - xhd || x > cx + xhd || y < cy - yhd || y > cy + yhd);
+	}
+
+	/**
+	 * Returns the child whose cell contains the specified point. This
+	 * QuadTree must already be subdivided.
+	 */
+	private QuadTree childAt(int x, int y) {
+		if (x < cx)
+			return (y < cy) ? nw : sw;
+		return (y < cy) ? ne : se;
+	}
+
+	/**
+	 * Adds an entity to this node's array and points the entity back at it.
+	 */
+	private void add(Entity e) {
+		place(e, this, entities.size());
+		entities.add(e);
+	}
+
+	/**
+	 * Records in an entity's Slot where it is stored.
+	 */
+	private static void place(Entity e, QuadTree node, int index) {
+		Slot slot = e.getTreeSlot();
+		slot.node = node;
+		slot.index = index;
+	}
+
+	/**
+	 * Removes an entity from this node's array in O(1) by moving the last
+	 * entity into its slot.
+	 */
+	private void removeEntity(Entity e) {
+		int slot = e.getTreeSlot().index;
+		Entity last = entities.remove(entities.size() - 1);
+		if (last != e) {
+			entities.set(slot, last);
+			place(last, this, slot);
+		}
+		place(e, null, -1);
+	}
+
+	/**
+	 * Checks if an entity with the specified extent may be stored in this
+	 * node, which is if its center lies in the node's cell.
+	 */
+	private boolean accepts(int x1, int y1, int x2, int y2) {
+		return inCell((x1 + x2) / 2, (y1 + y2) / 2);
+	}
+
+	/**
+	 * Returns the node holding the specified entity.
+	 *
+	 * @return The node containing e, or null if it is not in this QuadTree.
+	 */
+	private QuadTree find(Entity e) {
+		QuadTree node = e.getTreeSlot().node;
+		if (node == null || node.head != head)
+			return null;
+		return node;
 	}
 
 	/**
 	 * Reindexes the specified entity in the QuadTree to its current location if
-	 * it exists. This is an O(log(n)) operation.
+	 * it exists. An entity which is still inside its node's bounds is left
+	 * untouched; otherwise it moves up to the nearest node which can hold it
+	 * and back down from there.
 	 *
 	 * @param e
 	 *            The entity to update the indexing for.
@@ -169,50 +721,184 @@ public class QuadTree {
 	 *            The last y position of e before it was changed.
 	 */
 	public void reindex(Entity e, int prevX, int prevY) {
-		if (!boundary.contains(prevX, prevY)) {
+		reindex(e);
+	}
+
+	/**
+	 * Reindexes the specified entity in the QuadTree to its current location if
+	 * it exists. This is an O(1) operation for entities which stay within
+	 * their node, and otherwise proportional to the distance between the
+	 * entity's old and new nodes.
+	 *
+	 * @param e
+	 *            The entity to update the indexing for.
+	 */
+	@Override
+	public void reindex(Entity e) {
+		QuadTree node = find(e);
+		if (node == null)
+			return;
+		int x1 = e.getX();
+		int y1 = e.getY();
+		int x2 = loose ? x1 + e.getW() : x1;
+		int y2 = loose ? y1 + e.getH() : y1;
+		if (node.accepts(x1, y1, x2, y2)) {
+			node.grow(x1, y1, x2, y2);
 			return;
 		}
-		Iterator<Entity> it = entities.iterator();
-		while (it.hasNext()) {
-			Entity found = it.next();
-			if (e.equals(found)) {
-				it.remove();
-				if (!head.insert(e)) {
-					throw new RuntimeException("Entity moved out of world!");
-				}
-				return;
-			}
-		}
-		if (nw != null) {
-			nw.reindex(e, prevX, prevY);
-			ne.reindex(e, prevX, prevY);
-			sw.reindex(e, prevX, prevY);
-			se.reindex(e, prevX, prevY);
+		// Check before changing anything, so the tree stays consistent.
+		if (!head.accepts(x1, y1, x2, y2))
+			throw new RuntimeException("Entity moved out of world!");
+		node.removeEntity(e);
+		// Only nodes below the lowest common ancestor of the old and new
+		// positions change their counts.
+		QuadTree collapsible = null;
+		while (!node.accepts(x1, y1, x2, y2)) {
+			node.count--;
+			if (node.underfilled())
+				collapsible = node;
+			node = node.parent;
 		}
+		if (collapsible != null)
+			collapsible.collapse();
+		node.insert(e, x1, y1, x2, y2);
 	}
 
+	/**
+	 * Removes the specified entity from this QuadTree, collapsing any
+	 * subdivisions left underfilled by its removal.
+	 *
+	 * @param e
+	 *            The entity to remove.
+	 * @return true if the entity was found and removed, otherwise false.
+	 */
+	@Override
 	public boolean remove(Entity e) {
-		if (!boundary.contains(e.getX(), e.getY()))
+		QuadTree node = find(e);
+		if (node == null)
 			return false;
-		Iterator<Entity> it = entities.iterator();
-		while (it.hasNext()) {
-			Entity found = it.next();
-			if (e.equals(found)) {
-				it.remove();
-				return true;
-			}
+		node.removeEntity(e);
+		QuadTree collapsible = null;
+		for (; node != null; node = node.parent) {
+			node.count--;
+			if (node.underfilled())
+				collapsible = node;
 		}
-		if (nw != null) {
-			if (nw.remove(e))
-				return true;
-			if (ne.remove(e))
-				return true;
-			if (sw.remove(e))
-				return true;
-			if (se.remove(e))
-				return true;
+		if (collapsible != null)
+			collapsible.collapse();
+		return true;
+	}
+
+	/**
+	 * Empties this QuadTree and inserts the specified entities in order. All
+	 * nodes are returned to the pool first, so a rebuild in Morton order
+	 * allocates nothing once the pool has been filled.
+	 *
+	 * @param entities
+	 *            The entities to index.
+	 * @param count
+	 *            The number of entities at the start of the array to index.
+	 * @throws RuntimeException
+	 *             If an entity has moved out of the world, in which case
+	 *             this QuadTree is left unchanged.
+	 */
+	@Override
+	public void rebuild(Entity[] entities, int count) {
+		for (int idx = 0; idx < count; idx++) {
+			Entity e = entities[idx];
+			int x1 = e.getX();
+			int y1 = e.getY();
+			int x2 = loose ? x1 + e.getW() : x1;
+			int y2 = loose ? y1 + e.getH() : y1;
+			if (!head.accepts(x1, y1, x2, y2))
+				throw new RuntimeException("Entity moved out of world!");
+		}
+		clear();
+		for (int idx = 0; idx < count; idx++)
+			head.insert(entities[idx]);
+	}
+
+	/**
+	 * Removes every entity from the entire QuadTree and returns all nodes but
+	 * the head to the pool.
+	 */
+	private void clear() {
+		QuadTree node = head;
+		while (node != null) {
+			for (int idx = 0; idx < node.entities.size(); idx++)
+				place(node.entities.get(idx), null, -1);
+			node.entities.clear();
+			node = (node.nw != null) ? node.nw : node.next(head);
+		}
+		if (head.nw != null)
+			head.collapse();
+		head.count = 0;
+		head.resetReach();
+	}
+
+	@Override
+	public void setSlack(int slack) {
+		head.slack = slack;
+	}
+
+	/**
+	 * Collapses every underfilled subdivision of this QuadTree. Removal and
+	 * reindexing already collapse the nodes they empty, so this is only needed
+	 * after bulk changes.
+	 */
+	public void compact() {
+		if (nw == null)
+			return;
+		if (underfilled()) {
+			collapse();
+			return;
 		}
-		return false;
+		nw.compact();
+		ne.compact();
+		sw.compact();
+		se.compact();
+	}
+
+	/**
+	 * Returns the number of entities in this QuadTree.
+	 *
+	 * @return The number of entities stored in this QuadTree and its children.
+	 */
+	@Override
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of nodes currently making up the entire QuadTree.
+	 *
+	 * @return The number of live nodes, including the head.
+	 */
+	public int getNodeCount() {
+		return head.nodeCount;
+	}
+
+	/**
+	 * Returns the number of unused nodes kept for reuse by future
+	 * subdivisions.
+	 *
+	 * @return The number of pooled nodes.
+	 */
+	public int getPooledNodeCount() {
+		return head.pooledCount;
+	}
+
+	/**
+	 * Returns the depth of this QuadTree.
+	 *
+	 * @return The number of levels in the deepest branch of this QuadTree,
+	 *         which is 1 if it has never subdivided.
+	 */
+	public int getDepth() {
+		if (nw == null)
+			return 1;
+		return 1 + Math.max(Math.max(nw.getDepth(), ne.getDepth()),
+				Math.max(sw.getDepth(), se.getDepth()));
 	}
 
 	/**
@@ -223,22 +909,9 @@ public class QuadTree {
 	 * @return true if this QuadTree contains the specified entity, otherwise
 	 *         false.
 	 */
+	@Override
 	public boolean contains(Entity e) {
-		if (!boundary.contains(e.getX(), e.getY()))
-			return false;
-		if (entities.contains(e))
-			return true;
-		if (nw != null) {
-			if (nw.contains(e))
-				return true;
-			if (ne.contains(e))
-				return true;
-			if (sw.contains(e))
-				return true;
-			if (se.contains(e))
-				return true;
-		}
-		return false;
+		return find(e) != null;
 	}
 
 	/**
@@ -247,51 +920,44 @@ public class QuadTree {
 	 *
 	 */
 	public void reindexAll() {
-		Iterator<Entity> it = entities.iterator();
 		ArrayList<Entity> removed = new ArrayList<Entity>();
-		while (it.hasNext()) {
-			Entity e = it.next();
-			if (!boundary.contains(e.getX(), e.getY())) {
-				it.remove();
-				System.out.println(e + " is in the wrong place!");
-				removed.add(e);
+		QuadTree node = this;
+		while (node != null) {
+			for (int idx = 0; idx < node.entities.size(); idx++) {
+				Entity e = node.entities.get(idx);
+				int x1 = e.getX();
+				int y1 = e.getY();
+				int x2 = loose ? x1 + e.getW() : x1;
+				int y2 = loose ? y1 + e.getH() : y1;
+				if (!node.accepts(x1, y1, x2, y2)) {
+					if (!head.accepts(x1, y1, x2, y2))
+						throw new RuntimeException(
+								"Entity moved out of world!");
+					removed.add(e);
+				}
 			}
+			node = (node.nw != null) ? node.nw : node.next(this);
 		}
+		// Removal may collapse nodes, so wait until the walk is done.
 		for (Entity e : removed) {
-			System.out.println("Reinserting: " + e);
+			head.remove(e);
 			head.insert(e);
 		}
-		if (nw != null) {
-			nw.reindexAll();
-			ne.reindexAll();
-			sw.reindexAll();
-			se.reindexAll();
-		}
-	}
-
-	/**
-	 * Debug method which prints the contents of this QuadTree.
-	 *
-	 */
-	public void print() {
-		System.out.println("Quadtree cx: " + boundary.cx + ", cy: "
-				+ boundary.cy + ", xhd: " + boundary.xhd + ", yhd: "
-				+ boundary.yhd);
-		for (Entity e : entities)
-			System.out.println(e);
-		if (nw != null)
-			nw.print();
-		if (ne != null)
-			ne.print();
-		if (sw != null)
-			sw.print();
-		if (se != null)
-			se.print();
 	}
 
 	@Override
 	public String toString() {
-		return "QuadTree cx: " + boundary.cx + ", cy: " + boundary.cy
-				+ ", xhd: " + boundary.xhd + ", yhd: " + boundary.yhd;
+		return "QuadTree cx: " + cx + ", cy: " + cy + ", xhd: " + xhd
+				+ ", yhd: " + yhd;
+	}
+
+	/**
+	 * Where a QuadTree stores an entity: the node holding it and its index in
+	 * that node's array. Each entity keeps one so that it can be found and
+	 * removed in O(1). Only QuadTree can read or change it.
+	 */
+	public static final class Slot {
+		private QuadTree node;
+		private int index = -1;
 	}
 }
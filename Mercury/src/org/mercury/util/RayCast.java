@@ -0,0 +1,387 @@
+package org.mercury.util;
+
+import java.util.Arrays;
+
+import org.mercury.entity.Entity;
+
+/**
+ * The reusable state and result of a ray cast along a segment. Holds the
+ * segment, the entities hit so far and a min-heap of index nodes still to
+ * visit, so that spatial indices can walk their nodes front to back without
+ * allocating. A cast either keeps only the first entity hit, which lets the
+ * search stop as soon as no closer hit is possible, or every entity hit,
+ * sorted by distance once the search is finished. Entities hit at the same
+ * time are ranked by the slot index of their id, so a cast finds the same
+ * hits in the same order whichever index searched them.
+ * <p>
+ * Distances along the ray are expressed as times: the fraction of the segment
+ * travelled, between 0 at its start and 1 at its end.
+ *
+ * @author tbertore
+ *
+ */
+public class RayCast implements EntityVisitor {
+	private double x, y, dx, dy;
+	private double limit;
+	private boolean all;
+	private Entity ignore;
+	// The entities hit and the time each was hit at, sorted once the search
+	// is finished.
+	private Entity[] entities = new Entity[16];
+	private double[] times = new double[16];
+	private int size;
+	// Min-heap of index nodes still to visit, keyed by the time the ray
+	// enters them.
+	private Object[] nodes = new Object[16];
+	private double[] nodeTimes = new double[16];
+	private int nodeCount;
+
+	/**
+	 * Clears this cast and starts a new one.
+	 *
+	 * @param x1
+	 *            The x coordinate of the start of the segment.
+	 * @param y1
+	 *            The y coordinate of the start of the segment.
+	 * @param x2
+	 *            The x coordinate of the end of the segment.
+	 * @param y2
+	 *            The y coordinate of the end of the segment.
+	 * @param all
+	 *            true to find every entity along the segment, false to find
+	 *            only the first.
+	 */
+	public void begin(double x1, double y1, double x2, double y2, boolean all) {
+		Arrays.fill(entities, 0, size, null);
+		Arrays.fill(nodes, 0, nodeCount, null);
+		x = x1;
+		y = y1;
+		dx = x2 - x1;
+		dy = y2 - y1;
+		this.all = all;
+		limit = 1;
+		ignore = null;
+		size = 0;
+		nodeCount = 0;
+	}
+
+	/**
+	 * Sets an entity which is never reported as hit, typically the one
+	 * casting the ray.
+	 *
+	 * @param e
+	 *            The entity to ignore, or null.
+	 */
+	public void ignore(Entity e) {
+		ignore = e;
+	}
+
+	/**
+	 * Shortens the segment, e.g. to where it is blocked by terrain.
+	 *
+	 * @param time
+	 *            The time past which hits are no longer reported.
+	 */
+	public void clip(double time) {
+		limit = Math.min(limit, time);
+	}
+
+	/**
+	 * Returns the time past which hits are no longer reported, which is 1
+	 * unless the segment has been clipped.
+	 *
+	 * @return The limit of the segment.
+	 */
+	public double getLimit() {
+		return limit;
+	}
+
+	public double getStartX() {
+		return x;
+	}
+
+	public double getStartY() {
+		return y;
+	}
+
+	public double getEndX() {
+		return x + dx;
+	}
+
+	public double getEndY() {
+		return y + dy;
+	}
+
+	/**
+	 * Returns the time a hit must not exceed to be reported: the time of the
+	 * first hit found when only the first is wanted, otherwise the limit.
+	 *
+	 * @return The current search time.
+	 */
+	public double bound() {
+		return (!all && size > 0) ? times[0] : limit;
+	}
+
+	/**
+	 * Returns the time the ray enters a rectangle, with a slab test.
+	 *
+	 * @param x1
+	 *            The x coordinate of the rectangle's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the rectangle's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the rectangle's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the rectangle's lower right corner.
+	 * @return The time of entry, 0 if the ray starts inside the rectangle,
+	 *         or Double.POSITIVE_INFINITY if it misses it before the limit.
+	 */
+	public double entry(double x1, double y1, double x2, double y2) {
+		double enter = 0, exit = limit;
+		if (dx != 0) {
+			double t1 = (x1 - x) / dx;
+			double t2 = (x2 - x) / dx;
+			enter = Math.max(enter, Math.min(t1, t2));
+			exit = Math.min(exit, Math.max(t1, t2));
+		}
+		else if (x < x1 || x > x2)
+			return Double.POSITIVE_INFINITY;
+		if (dy != 0) {
+			double t1 = (y1 - y) / dy;
+			double t2 = (y2 - y) / dy;
+			enter = Math.max(enter, Math.min(t1, t2));
+			exit = Math.min(exit, Math.max(t1, t2));
+		}
+		else if (y < y1 || y > y2)
+			return Double.POSITIVE_INFINITY;
+		return (enter <= exit) ? enter : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Tests the ray against the body of an entity, and records a hit if it is
+	 * wanted.
+	 *
+	 * @param e
+	 *            The entity to test.
+	 * @return true if the entity was hit and recorded, otherwise false.
+	 */
+	public boolean offer(Entity e) {
+		if (e == ignore)
+			return false;
+		int ex = e.getX();
+		int ey = e.getY();
+		double time = entry(ex, ey, ex + e.getW(), ey + e.getH());
+		if (time > bound())
+			return false;
+		if (!all) {
+			if (size > 0 && time == times[0]
+					&& e.index() >= entities[0].index())
+				return false;
+			entities[0] = e;
+			times[0] = time;
+			size = 1;
+			return true;
+		}
+		if (size == entities.length) {
+			entities = Arrays.copyOf(entities, size * 2);
+			times = Arrays.copyOf(times, size * 2);
+		}
+		entities[size] = e;
+		times[size] = time;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Offers an entity to this cast.
+	 */
+	@Override
+	public boolean visit(Entity e) {
+		offer(e);
+		return true;
+	}
+
+	/**
+	 * Sorts the hits by time. Called by spatial indices once a search is
+	 * done.
+	 */
+	public void finish() {
+		// Insertion sort, as few entities lie along any one ray.
+		for (int idx = 1; idx < size; idx++) {
+			Entity e = entities[idx];
+			double time = times[idx];
+			int pos = idx - 1;
+			while (pos >= 0
+					&& (times[pos] > time || times[pos] == time
+							&& entities[pos].index() > e.index())) {
+				entities[pos + 1] = entities[pos];
+				times[pos + 1] = times[pos];
+				pos--;
+			}
+			entities[pos + 1] = e;
+			times[pos + 1] = time;
+		}
+		Arrays.fill(nodes, 0, nodeCount, null);
+		nodeCount = 0;
+	}
+
+	/**
+	 * Adds an index node to visit later.
+	 *
+	 * @param node
+	 *            The node.
+	 * @param time
+	 *            The time the ray enters the node.
+	 */
+	void pushNode(Object node, double time) {
+		if (nodeCount == nodes.length) {
+			nodes = Arrays.copyOf(nodes, nodeCount * 2);
+			nodeTimes = Arrays.copyOf(nodeTimes, nodeCount * 2);
+		}
+		int pos = nodeCount++;
+		while (pos > 0 && nodeTimes[(pos - 1) / 2] > time) {
+			nodes[pos] = nodes[(pos - 1) / 2];
+			nodeTimes[pos] = nodeTimes[(pos - 1) / 2];
+			pos = (pos - 1) / 2;
+		}
+		nodes[pos] = node;
+		nodeTimes[pos] = time;
+	}
+
+	/**
+	 * Returns the entry time of the nearest node left to visit.
+	 *
+	 * @return The smallest node time, or Double.POSITIVE_INFINITY if no nodes
+	 *         are left.
+	 */
+	double peekNodeTime() {
+		return (nodeCount == 0) ? Double.POSITIVE_INFINITY : nodeTimes[0];
+	}
+
+	/**
+	 * Removes and returns the nearest node left to visit.
+	 */
+	Object popNode() {
+		Object top = nodes[0];
+		nodeCount--;
+		Object last = nodes[nodeCount];
+		double lastTime = nodeTimes[nodeCount];
+		nodes[nodeCount] = null;
+		int pos = 0;
+		while (true) {
+			int child = pos * 2 + 1;
+			if (child >= nodeCount)
+				break;
+			if (child + 1 < nodeCount && nodeTimes[child + 1] < nodeTimes[child])
+				child++;
+			if (nodeTimes[child] >= lastTime)
+				break;
+			nodes[pos] = nodes[child];
+			nodeTimes[pos] = nodeTimes[child];
+			pos = child;
+		}
+		if (nodeCount > 0) {
+			nodes[pos] = last;
+			nodeTimes[pos] = lastTime;
+		}
+		return top;
+	}
+
+	/**
+	 * Returns the number of entities hit.
+	 *
+	 * @return The number of hits, at most 1 unless every hit was requested.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a hit of the last cast.
+	 *
+	 * @param idx
+	 *            The rank of the hit, 0 being the first along the ray.
+	 * @return The entity hit.
+	 */
+	public Entity get(int idx) {
+		return entities[idx];
+	}
+
+	/**
+	 * Returns the time of a hit of the last cast.
+	 *
+	 * @param idx
+	 *            The rank of the hit, 0 being the first along the ray.
+	 * @return The fraction of the segment travelled before the hit.
+	 */
+	public double getTime(int idx) {
+		return times[idx];
+	}
+
+	/**
+	 * Walks the square tiles crossed by a segment in order, with a DDA grid
+	 * traversal. Tiles are passed to the visitor starting with the one holding
+	 * the start of the segment, until the visitor stops the walk or the tile
+	 * holding the end of the segment is reached.
+	 *
+	 * @param x1
+	 *            The x coordinate of the start of the segment.
+	 * @param y1
+	 *            The y coordinate of the start of the segment.
+	 * @param x2
+	 *            The x coordinate of the end of the segment.
+	 * @param y2
+	 *            The y coordinate of the end of the segment.
+	 * @param size
+	 *            The width and height of each tile, e.g. Terrain.SIZE.
+	 * @param visitor
+	 *            The visitor to call for each tile crossed.
+	 * @return false if the visitor stopped the walk early, otherwise true.
+	 */
+	public static boolean traverseTiles(double x1, double y1, double x2,
+			double y2, int size, TileVisitor visitor) {
+		int tx = (int) Math.floor(x1 / size);
+		int ty = (int) Math.floor(y1 / size);
+		int endX = (int) Math.floor(x2 / size);
+		int endY = (int) Math.floor(y2 / size);
+		double dx = x2 - x1;
+		double dy = y2 - y1;
+		int stepX = (dx > 0) ? 1 : (dx < 0) ? -1 : 0;
+		int stepY = (dy > 0) ? 1 : (dy < 0) ? -1 : 0;
+		// The time of the next vertical and horizontal tile edge crossed, and
+		// the time taken to cross a whole tile along each axis.
+		double nextX = (stepX > 0) ? ((tx + 1) * (double) size - x1) / dx
+				: (stepX < 0) ? (tx * (double) size - x1) / dx
+						: Double.POSITIVE_INFINITY;
+		double nextY = (stepY > 0) ? ((ty + 1) * (double) size - y1) / dy
+				: (stepY < 0) ? (ty * (double) size - y1) / dy
+						: Double.POSITIVE_INFINITY;
+		double deltaX = (stepX != 0) ? size / Math.abs(dx)
+				: Double.POSITIVE_INFINITY;
+		double deltaY = (stepY != 0) ? size / Math.abs(dy)
+				: Double.POSITIVE_INFINITY;
+		double time = 0;
+		while (true) {
+			if (!visitor.visitTile(tx, ty, time))
+				return false;
+			if (tx == endX && ty == endY)
+				return true;
+			// A segment ending on a tile corner crosses both of its edges at
+			// once, so once the walk reaches the end column or row it only
+			// moves along the other axis, or it would step past the end tile.
+			if (tx != endX && (ty == endY || nextX < nextY)) {
+				time = nextX;
+				tx += stepX;
+				nextX += deltaX;
+			}
+			else {
+				time = nextY;
+				ty += stepY;
+				nextY += deltaY;
+			}
+			// Guards against rounding carrying the walk past the end tile.
+			if (time > 1)
+				return true;
+		}
+	}
+}
@@ -0,0 +1,489 @@
+package org.mercury.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.mercury.entity.Entity;
+
+/**
+ * A uniform spatial hash grid. The world is divided into square cells, and
+ * each entity is linked into the cell holding its upper left corner. On maps
+ * where entities are spread fairly evenly this avoids the traversal cost of a
+ * QuadTree: a query only visits the cells its rectangle covers.
+ * <p>
+ * All bookkeeping is kept in primitive arrays indexed by cell and by the slot
+ * index of each entity's id, so entities must be given an id by an
+ * EntityTable before they are inserted. The extent of every entity is copied
+ * into the grid when it is inserted or reindexed, so queries only touch an
+ * Entity once it is known to match. Cell sizes are best chosen as a multiple
+ * of Terrain.SIZE a little larger than the typical entity.
+ *
+ * @author tbertore
+ *
+ */
+public class SpatialGrid implements SpatialIndex {
+	private static final int EMPTY = -1;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final int cellSize;
+	private final int cols, rows;
+	private final int width, height;
+	// The first entity id linked into each cell.
+	private final int[] cellHead;
+	// Per entity id: the cell it is linked into, its neighbours in that cell's
+	// list, and its extent when last indexed.
+	private int[] cellOf, next, prev;
+	private int[] x1s, y1s, x2s, y2s;
+	private Entity[] entities;
+	// The largest entity extent in the grid, and how many entities have it.
+	// Queries are widened by this much since entities are only linked into
+	// the cell of their corner.
+	private int maxW, maxH;
+	private int maxWCount, maxHCount;
+	private int count;
+	private int slack;
+
+	/**
+	 * Creates a new SpatialGrid covering the rectangle from (0, 0) to (width,
+	 * height).
+	 *
+	 * @param width
+	 *            The width of the area to cover in pixels.
+	 * @param height
+	 *            The height of the area to cover in pixels.
+	 * @param cellSize
+	 *            The width and height of each cell in pixels.
+	 * @throws IllegalArgumentException
+	 *             If any dimension is less than 1.
+	 */
+	public SpatialGrid(int width, int height, int cellSize) {
+		if (width <= 0 || height <= 0 || cellSize <= 0)
+			throw new IllegalArgumentException("Dimensions must be > 0!");
+		this.width = width;
+		this.height = height;
+		this.cellSize = cellSize;
+		cols = width / cellSize + 1;
+		rows = height / cellSize + 1;
+		cellHead = new int[cols * rows];
+		Arrays.fill(cellHead, EMPTY);
+		cellOf = new int[INITIAL_CAPACITY];
+		Arrays.fill(cellOf, EMPTY);
+		next = new int[INITIAL_CAPACITY];
+		prev = new int[INITIAL_CAPACITY];
+		x1s = new int[INITIAL_CAPACITY];
+		y1s = new int[INITIAL_CAPACITY];
+		x2s = new int[INITIAL_CAPACITY];
+		y2s = new int[INITIAL_CAPACITY];
+		entities = new Entity[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Ensures the per entity arrays can hold the specified id.
+	 */
+	private void grow(int id) {
+		int length = cellOf.length;
+		if (id < length)
+			return;
+		int capacity = Math.max(id + 1, length * 2);
+		cellOf = Arrays.copyOf(cellOf, capacity);
+		Arrays.fill(cellOf, length, capacity, EMPTY);
+		next = Arrays.copyOf(next, capacity);
+		prev = Arrays.copyOf(prev, capacity);
+		x1s = Arrays.copyOf(x1s, capacity);
+		y1s = Arrays.copyOf(y1s, capacity);
+		x2s = Arrays.copyOf(x2s, capacity);
+		y2s = Arrays.copyOf(y2s, capacity);
+		entities = Arrays.copyOf(entities, capacity);
+	}
+
+	private int col(int x) {
+		return Math.max(0, Math.min(cols - 1, x / cellSize));
+	}
+
+	private int row(int y) {
+		return Math.max(0, Math.min(rows - 1, y / cellSize));
+	}
+
+	private void link(int id, int cell) {
+		int first = cellHead[cell];
+		cellOf[id] = cell;
+		prev[id] = EMPTY;
+		next[id] = first;
+		if (first != EMPTY)
+			prev[first] = id;
+		cellHead[cell] = id;
+	}
+
+	private void unlink(int id) {
+		int cell = cellOf[id];
+		if (prev[id] == EMPTY)
+			cellHead[cell] = next[id];
+		else
+			next[prev[id]] = next[id];
+		if (next[id] != EMPTY)
+			prev[next[id]] = prev[id];
+		cellOf[id] = EMPTY;
+	}
+
+	/**
+	 * Copies the current extent of an entity into the grid.
+	 */
+	private void store(Entity e, int id) {
+		x1s[id] = e.getX();
+		y1s[id] = e.getY();
+		x2s[id] = x1s[id] + e.getW();
+		y2s[id] = y1s[id] + e.getH();
+		if (e.getW() > maxW) {
+			maxW = e.getW();
+			maxWCount = 0;
+		}
+		if (e.getW() == maxW)
+			maxWCount++;
+		if (e.getH() > maxH) {
+			maxH = e.getH();
+			maxHCount = 0;
+		}
+		if (e.getH() == maxH)
+			maxHCount++;
+	}
+
+	/**
+	 * Forgets an extent which is no longer in the grid, finding the largest
+	 * extent again if it was the last one that large.
+	 */
+	private void discard(int w, int h) {
+		if (w == maxW)
+			maxWCount--;
+		if (h == maxH)
+			maxHCount--;
+		if (maxWCount > 0 && maxHCount > 0)
+			return;
+		maxW = maxH = maxWCount = maxHCount = 0;
+		for (int id = 0; id < entities.length; id++) {
+			if (entities[id] == null)
+				continue;
+			int ew = x2s[id] - x1s[id];
+			int eh = y2s[id] - y1s[id];
+			if (ew > maxW) {
+				maxW = ew;
+				maxWCount = 0;
+			}
+			if (ew == maxW)
+				maxWCount++;
+			if (eh > maxH) {
+				maxH = eh;
+				maxHCount = 0;
+			}
+			if (eh == maxH)
+				maxHCount++;
+		}
+	}
+
+	/**
+	 * Checks if the center of an entity lies inside the grid.
+	 */
+	private boolean centered(Entity e) {
+		int cx = e.getX() + e.getW() / 2;
+		int cy = e.getY() + e.getH() / 2;
+		return cx >= 0 && cx <= width && cy >= 0 && cy <= height;
+	}
+
+	@Override
+	public boolean insert(Entity e) {
+		int id = e.index();
+		if (id < 0)
+			throw new IllegalArgumentException("Entity has no id!");
+		if (!centered(e))
+			return false;
+		grow(id);
+		if (cellOf[id] != EMPTY)
+			throw new IllegalArgumentException("Entity already in grid!");
+		store(e, id);
+		entities[id] = e;
+		link(id, col(x1s[id]) + row(y1s[id]) * cols);
+		count++;
+		return true;
+	}
+
+	@Override
+	public boolean remove(Entity e) {
+		if (!contains(e))
+			return false;
+		int id = e.index();
+		unlink(id);
+		entities[id] = null;
+		count--;
+		discard(x2s[id] - x1s[id], y2s[id] - y1s[id]);
+		return true;
+	}
+
+	@Override
+	public void reindex(Entity e) {
+		if (!contains(e))
+			return;
+		// Check before changing anything, so the grid stays consistent.
+		if (!centered(e))
+			throw new RuntimeException("Entity moved out of world!");
+		int id = e.index();
+		int w = x2s[id] - x1s[id];
+		int h = y2s[id] - y1s[id];
+		store(e, id);
+		discard(w, h);
+		int cell = col(x1s[id]) + row(y1s[id]) * cols;
+		if (cell != cellOf[id]) {
+			unlink(id);
+			link(id, cell);
+		}
+	}
+
+	/**
+	 * Empties this grid and inserts the specified entities.
+	 *
+	 * @param entities
+	 *            The entities to index.
+	 * @param count
+	 *            The number of entities at the start of the array to index.
+	 * @throws RuntimeException
+	 *             If an entity has moved out of the world, in which case
+	 *             this grid is left unchanged.
+	 */
+	@Override
+	public void rebuild(Entity[] entities, int count) {
+		for (int idx = 0; idx < count; idx++) {
+			if (!centered(entities[idx]))
+				throw new RuntimeException("Entity moved out of world!");
+		}
+		Arrays.fill(cellHead, EMPTY);
+		Arrays.fill(cellOf, EMPTY);
+		Arrays.fill(this.entities, null);
+		this.count = 0;
+		maxW = maxH = maxWCount = maxHCount = 0;
+		for (int idx = 0; idx < count; idx++)
+			insert(entities[idx]);
+	}
+
+	@Override
+	public void setSlack(int slack) {
+		this.slack = slack;
+	}
+
+	@Override
+	public boolean contains(Entity e) {
+		int id = e.index();
+		return id >= 0 && id < entities.length && entities[id] == e;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public ArrayList<Entity> searchRect(BoundingBox rect) {
+		ArrayList<Entity> found = new ArrayList<Entity>();
+		search(rect, found, null);
+		return found;
+	}
+
+	@Override
+	public int searchRect(BoundingBox rect, ArrayList<Entity> found) {
+		int size = found.size();
+		search(rect, found, null);
+		return found.size() - size;
+	}
+
+	@Override
+	public boolean searchRect(BoundingBox rect, EntityVisitor visitor) {
+		return search(rect, null, visitor);
+	}
+
+	@Override
+	public int searchRect(int x1, int y1, int x2, int y2,
+			ArrayList<Entity> found) {
+		int size = found.size();
+		search(x1, y1, x2, y2, found, null);
+		return found.size() - size;
+	}
+
+	@Override
+	public boolean searchRect(int x1, int y1, int x2, int y2,
+			EntityVisitor visitor) {
+		return search(x1, y1, x2, y2, null, visitor);
+	}
+
+	private boolean search(BoundingBox rect, ArrayList<Entity> found,
+			EntityVisitor visitor) {
+		return search(rect.cx - rect.xhd, rect.cy - rect.yhd, rect.cx
+				+ rect.xhd, rect.cy + rect.yhd, found, visitor);
+	}
+
+	private boolean search(int rx1, int ry1, int rx2, int ry2,
+			ArrayList<Entity> found, EntityVisitor visitor) {
+		// Stored extents may be out of date by up to the slack, so they are
+		// tested against a widened query and hits checked again exactly.
+		int qx1 = rx1 - slack;
+		int qy1 = ry1 - slack;
+		int qx2 = rx2 + slack;
+		int qy2 = ry2 + slack;
+		// Entities are centered inside the grid, so none can extend further
+		// than their own size past its edges.
+		if (qx2 < -maxW || qy2 < -maxH || qx1 > width + maxW
+				|| qy1 > height + maxH)
+			return true;
+		int c1 = col(qx1 - maxW);
+		int c2 = col(qx2);
+		int r1 = row(qy1 - maxH);
+		int r2 = row(qy2);
+		for (int r = r1; r <= r2; r++) {
+			for (int cell = c1 + r * cols; cell <= c2 + r * cols; cell++) {
+				for (int id = cellHead[cell]; id != EMPTY; id = next[id]) {
+					if (x1s[id] > qx2 || x2s[id] < qx1 || y1s[id] > qy2
+							|| y2s[id] < qy1)
+						continue;
+					Entity e = entities[id];
+					if (slack > 0) {
+						int x = e.getX();
+						int y = e.getY();
+						if (x > rx2 || x + e.getW() < rx1 || y > ry2
+								|| y + e.getH() < ry1)
+							continue;
+					}
+					if (found != null)
+						found.add(e);
+					else if (!visitor.visit(e))
+						return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int searchRadius(int x, int y, int radius, ArrayList<Entity> found) {
+		int size = found.size();
+		search(x, y, radius, found, null);
+		return found.size() - size;
+	}
+
+	@Override
+	public boolean searchRadius(int x, int y, int radius,
+			EntityVisitor visitor) {
+		return search(x, y, radius, null, visitor);
+	}
+
+	private boolean search(int px, int py, int radius,
+			ArrayList<Entity> found, EntityVisitor visitor) {
+		long radiusSq = (long) radius * radius;
+		long widenedSq = (long) (radius + slack) * (radius + slack);
+		int qx1 = px - radius - slack;
+		int qy1 = py - radius - slack;
+		int qx2 = px + radius + slack;
+		int qy2 = py + radius + slack;
+		if (qx2 < -maxW || qy2 < -maxH || qx1 > width + maxW
+				|| qy1 > height + maxH)
+			return true;
+		int c1 = col(qx1 - maxW);
+		int c2 = col(qx2);
+		int r1 = row(qy1 - maxH);
+		int r2 = row(qy2);
+		for (int r = r1; r <= r2; r++) {
+			for (int cell = c1 + r * cols; cell <= c2 + r * cols; cell++) {
+				for (int id = cellHead[cell]; id != EMPTY; id = next[id]) {
+					if (BoundingBox.distanceSq(px, py, x1s[id], y1s[id],
+							x2s[id], y2s[id]) > widenedSq)
+						continue;
+					Entity e = entities[id];
+					if (slack > 0) {
+						int x = e.getX();
+						int y = e.getY();
+						if (BoundingBox.distanceSq(px, py, x, y, x + e.getW(), y
+								+ e.getH()) > radiusSq)
+							continue;
+					}
+					if (found != null)
+						found.add(e);
+					else if (!visitor.visit(e))
+						return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the k entities closest to a point by searching circles of
+	 * doubling radius, starting at one cell, until k entities are found
+	 * within the current radius or the whole grid has been covered.
+	 *
+	 * @param x
+	 *            The x coordinate of the query point.
+	 * @param y
+	 *            The y coordinate of the query point.
+	 * @param k
+	 *            The number of entities to find.
+	 * @param nearest
+	 *            The query object to search with and store the results in.
+	 */
+	@Override
+	public void searchNearest(int x, int y, int k, NearestNeighbours nearest) {
+		// Far enough to reach every entity from anywhere in or near the grid.
+		long reach = Math.abs((long) x) + Math.abs((long) y) + width + height
+				+ maxW + maxH;
+		long radius = cellSize;
+		while (true) {
+			nearest.begin(x, y, k);
+			if (k <= 0)
+				break;
+			int r = (int) Math.min(radius, Integer.MAX_VALUE / 2);
+			search(x, y, r, null, nearest);
+			if (nearest.size() == k
+					&& nearest.bound() <= (long) r * r || radius >= reach)
+				break;
+			radius *= 2;
+		}
+		nearest.finish();
+	}
+
+	/**
+	 * Casts a ray through the entities in this grid by searching the
+	 * rectangle covering the ray.
+	 *
+	 * @param ray
+	 *            The ray to cast, already started with RayCast.begin.
+	 */
+	@Override
+	public void searchRay(RayCast ray) {
+		double limit = ray.getLimit();
+		double x1 = ray.getStartX();
+		double y1 = ray.getStartY();
+		double x2 = x1 + (ray.getEndX() - x1) * limit;
+		double y2 = y1 + (ray.getEndY() - y1) * limit;
+		search((int) Math.floor(Math.min(x1, x2)),
+				(int) Math.floor(Math.min(y1, y2)),
+				(int) Math.ceil(Math.max(x1, x2)),
+				(int) Math.ceil(Math.max(y1, y2)), null, ray);
+		ray.finish();
+	}
+
+	/**
+	 * Returns the largest entity width in the grid, which every query is
+	 * widened by.
+	 */
+	int getMaxW() {
+		return maxW;
+	}
+
+	/**
+	 * Returns the largest entity height in the grid, which every query is
+	 * widened by.
+	 */
+	int getMaxH() {
+		return maxH;
+	}
+
+	@Override
+	public String toString() {
+		return "SpatialGrid cols: " + cols + ", rows: " + rows
+				+ ", cellSize: " + cellSize;
+	}
+}
@@ -0,0 +1,213 @@
+package org.mercury.util;
+
+import java.util.ArrayList;
+
+import org.mercury.entity.Entity;
+
+/**
+ * Interface for data structures which allow spatial lookup of entities in the
+ * world. Entries must be reindexed whenever an entity moves in order for
+ * spatial queries to be correct.
+ * 
+ * @author tbertore
+ * 
+ */
+public interface SpatialIndex {
+	/**
+	 * Inserts an entity into this index at its current position.
+	 * 
+	 * @param e
+	 *            The entity to insert.
+	 * @return true if the entity was added, or false if its position lies
+	 *         outside the area covered by this index.
+	 */
+	public boolean insert(Entity e);
+
+	/**
+	 * Removes an entity from this index.
+	 * 
+	 * @param e
+	 *            The entity to remove.
+	 * @return true if the entity was found and removed, otherwise false.
+	 */
+	public boolean remove(Entity e);
+
+	/**
+	 * Updates the indexing of an entity which has moved since it was
+	 * inserted or last reindexed.
+	 * 
+	 * @param e
+	 *            The entity to update the indexing for.
+	 */
+	public void reindex(Entity e);
+
+	/**
+	 * Checks if the specified entity is contained in this index.
+	 * 
+	 * @param e
+	 *            The entity to find.
+	 * @return true if this index contains the specified entity, otherwise
+	 *         false.
+	 */
+	public boolean contains(Entity e);
+
+	/**
+	 * Replaces the contents of this index with the specified entities,
+	 * inserting them in the order given. Entities sorted by MortonOrder are
+	 * inserted with the best locality.
+	 * 
+	 * @param entities
+	 *            The entities to index.
+	 * @param count
+	 *            The number of entities at the start of the array to index.
+	 */
+	public void rebuild(Entity[] entities, int count);
+
+	/**
+	 * Sets how far, in pixels, entities may have moved since they were last
+	 * indexed. Queries widen their search by this amount so that entities
+	 * whose reindexing has been deferred are still found. The default is 0.
+	 * 
+	 * @param slack
+	 *            The largest distance any entity has moved unindexed.
+	 */
+	public void setSlack(int slack);
+
+	/**
+	 * Returns the number of entities in this index.
+	 * 
+	 * @return The number of entities in this index.
+	 */
+	public int size();
+
+	/**
+	 * Returns all the entities overlapping a given rectangle.
+	 * 
+	 * @param rect
+	 *            The rectangular area to search in.
+	 * @return An ArrayList containing the entities found.
+	 */
+	public ArrayList<Entity> searchRect(BoundingBox rect);
+
+	/**
+	 * Adds all the entities overlapping a given rectangle to the specified
+	 * list.
+	 * 
+	 * @param rect
+	 *            The rectangular area to search in.
+	 * @param found
+	 *            The list to append the entities found to. It is not cleared.
+	 * @return The number of entities found.
+	 */
+	public int searchRect(BoundingBox rect, ArrayList<Entity> found);
+
+	/**
+	 * Passes each entity overlapping a given rectangle to the specified
+	 * visitor.
+	 * 
+	 * @param rect
+	 *            The rectangular area to search in.
+	 * @param visitor
+	 *            The visitor to call for each entity found.
+	 * @return false if the visitor stopped the search early, otherwise true.
+	 */
+	public boolean searchRect(BoundingBox rect, EntityVisitor visitor);
+
+	/**
+	 * Adds all the entities overlapping a given rectangle to the specified
+	 * list. Takes the rectangle as its corners, so a caller may query a
+	 * different area each time without allocating a BoundingBox.
+	 * 
+	 * @param x1
+	 *            The x coordinate of the rectangle's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the rectangle's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the rectangle's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the rectangle's lower right corner.
+	 * @param found
+	 *            The list to append the entities found to. It is not cleared.
+	 * @return The number of entities found.
+	 */
+	public int searchRect(int x1, int y1, int x2, int y2,
+			ArrayList<Entity> found);
+
+	/**
+	 * Passes each entity overlapping a given rectangle to the specified
+	 * visitor.
+	 * 
+	 * @param x1
+	 *            The x coordinate of the rectangle's upper left corner.
+	 * @param y1
+	 *            The y coordinate of the rectangle's upper left corner.
+	 * @param x2
+	 *            The x coordinate of the rectangle's lower right corner.
+	 * @param y2
+	 *            The y coordinate of the rectangle's lower right corner.
+	 * @param visitor
+	 *            The visitor to call for each entity found.
+	 * @return false if the visitor stopped the search early, otherwise true.
+	 */
+	public boolean searchRect(int x1, int y1, int x2, int y2,
+			EntityVisitor visitor);
+
+	/**
+	 * Adds all the entities within a given distance of a point to the
+	 * specified list. Distances are measured to the nearest part of each
+	 * entity's body.
+	 * 
+	 * @param x
+	 *            The x coordinate of the center of the search.
+	 * @param y
+	 *            The y coordinate of the center of the search.
+	 * @param radius
+	 *            The distance to search within.
+	 * @param found
+	 *            The list to append the entities found to. It is not cleared.
+	 * @return The number of entities found.
+	 */
+	public int searchRadius(int x, int y, int radius, ArrayList<Entity> found);
+
+	/**
+	 * Passes each entity within a given distance of a point to the specified
+	 * visitor.
+	 * 
+	 * @param x
+	 *            The x coordinate of the center of the search.
+	 * @param y
+	 *            The y coordinate of the center of the search.
+	 * @param radius
+	 *            The distance to search within.
+	 * @param visitor
+	 *            The visitor to call for each entity found.
+	 * @return false if the visitor stopped the search early, otherwise true.
+	 */
+	public boolean searchRadius(int x, int y, int radius,
+			EntityVisitor visitor);
+
+	/**
+	 * Finds the entities closest to a point. The results are left in the
+	 * specified query object, sorted from nearest to farthest.
+	 * 
+	 * @param x
+	 *            The x coordinate of the query point.
+	 * @param y
+	 *            The y coordinate of the query point.
+	 * @param k
+	 *            The number of entities to find.
+	 * @param nearest
+	 *            The query object to search with and store the results in.
+	 */
+	public void searchNearest(int x, int y, int k, NearestNeighbours nearest);
+
+	/**
+	 * Casts a ray through the entities in this index. The ray must already
+	 * have been started with RayCast.begin, and holds the hits once the cast
+	 * is done.
+	 * 
+	 * @param ray
+	 *            The ray to cast.
+	 */
+	public void searchRay(RayCast ray);
+}
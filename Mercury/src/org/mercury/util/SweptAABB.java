@@ -0,0 +1,137 @@
+package org.mercury.util;
+
+/**
+ * Continuous collision test between a moving and a stationary axis aligned
+ * box. Rather than testing only where the moving box ends up, the time of
+ * impact along its whole path is found, so fast objects cannot pass through
+ * thin ones. A single instance holds the result of the last sweep and may be
+ * reused for any number of sweeps without allocating.
+ * <p>
+ * Boxes which only touch along an edge are not considered overlapping, so an
+ * object resting against another may slide along it freely. Moving a box to
+ * a contact is subject to rounding, so a box which overlaps another by no
+ * more than EPSILON along the axis it approaches on is in contact with it
+ * rather than overlapping, and cannot creep into it over later moves.
+ *
+ * @author tbertore
+ *
+ */
+public class SweptAABB {
+	/**
+	 * The deepest overlap, in pixels, which still counts as contact.
+	 */
+	public static final double EPSILON = 1e-6;
+	/**
+	 * The fraction of the movement completed before the last contact found,
+	 * between 0 and 1.
+	 */
+	public double time;
+	/**
+	 * The surface normal of the last contact found: -1, 0 or 1 on each axis.
+	 */
+	public int normalX, normalY;
+	/**
+	 * The coordinate of the moving box along the axis of the normal which
+	 * puts it exactly against the box it hit last, e.g. its x coordinate
+	 * if normalX is not 0. Moving there in place of by time keeps rounding
+	 * from leaving the boxes overlapping.
+	 */
+	public double contact;
+
+	/**
+	 * Sweeps box a along (dx, dy) against stationary box b. If the boxes come
+	 * into contact before time, time and the contact normal are updated. Boxes
+	 * which already overlap by more than EPSILON are ignored so they are free
+	 * to separate.
+	 *
+	 * @param ax
+	 *            The upper left x coordinate of the moving box.
+	 * @param ay
+	 *            The upper left y coordinate of the moving box.
+	 * @param aw
+	 *            The width of the moving box.
+	 * @param ah
+	 *            The height of the moving box.
+	 * @param dx
+	 *            The distance the moving box travels along the x axis.
+	 * @param dy
+	 *            The distance the moving box travels along the y axis.
+	 * @param bx
+	 *            The upper left x coordinate of the stationary box.
+	 * @param by
+	 *            The upper left y coordinate of the stationary box.
+	 * @param bw
+	 *            The width of the stationary box.
+	 * @param bh
+	 *            The height of the stationary box.
+	 * @return true if an earlier contact was found, otherwise false.
+	 */
+	public boolean sweep(double ax, double ay, double aw, double ah,
+			double dx, double dy, double bx, double by, double bw, double bh) {
+		double entryX, exitX, entryY, exitY;
+		if (dx > 0) {
+			entryX = (bx - (ax + aw)) / dx;
+			exitX = (bx + bw - ax) / dx;
+		}
+		else if (dx < 0) {
+			entryX = (bx + bw - ax) / dx;
+			exitX = (bx - (ax + aw)) / dx;
+		}
+		else if (ax < bx + bw && ax + aw > bx) {
+			entryX = Double.NEGATIVE_INFINITY;
+			exitX = Double.POSITIVE_INFINITY;
+		}
+		else
+			return false;
+		if (dy > 0) {
+			entryY = (by - (ay + ah)) / dy;
+			exitY = (by + bh - ay) / dy;
+		}
+		else if (dy < 0) {
+			entryY = (by + bh - ay) / dy;
+			exitY = (by - (ay + ah)) / dy;
+		}
+		else if (ay < by + bh && ay + ah > by) {
+			entryY = Double.NEGATIVE_INFINITY;
+			exitY = Double.POSITIVE_INFINITY;
+		}
+		else
+			return false;
+
+		double entry = Math.max(entryX, entryY);
+		double exit = Math.min(exitX, exitY);
+		// No contact during this move.
+		if (entry >= exit || entry >= time)
+			return false;
+		if (entry < 0) {
+			// The boxes already overlap. Along the axis entered last, an
+			// overlap within rounding of the contact is the contact itself.
+			double depth = -entry
+					* ((entryX > entryY) ? Math.abs(dx) : Math.abs(dy));
+			if (!(depth <= EPSILON))
+				return false;
+			entry = 0;
+		}
+		time = entry;
+		if (entryX > entryY) {
+			normalX = (dx > 0) ? -1 : 1;
+			normalY = 0;
+			contact = (dx > 0) ? bx - aw : bx + bw;
+		}
+		else {
+			normalX = 0;
+			normalY = (dy > 0) ? -1 : 1;
+			contact = (dy > 0) ? by - ah : by + bh;
+		}
+		return true;
+	}
+
+	/**
+	 * Prepares for a new set of sweeps, as if no contact has been found.
+	 */
+	public void reset() {
+		time = 1;
+		normalX = 0;
+		normalY = 0;
+	}
+}
@@ -0,0 +1,24 @@
+package org.mercury.util;
+
+/**
+ * Interface which receives the tiles crossed by a ray one at a time, in the
+ * order the ray enters them.
+ *
+ * @author tbertore
+ *
+ */
+public interface TileVisitor {
+	/**
+	 * Called once for each tile crossed by a ray.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @param time
+	 *            The fraction of the ray travelled before entering the tile,
+	 *            between 0 and 1.
+	 * @return true to continue along the ray, or false to stop.
+	 */
+	public boolean visitTile(int tx, int ty, double time);
+}
@@ -0,0 +1,52 @@
+package org.mercury.util;
+
+/**
+ * Something to run a number of ticks from now, scheduled on a TimingWheel.
+ * Timers link themselves into the wheel's buckets, so scheduling and
+ * cancelling them never allocates, and a single Timer may be scheduled again
+ * as often as needed, e.g. for a cooldown.
+ *
+ * @author tbertore
+ *
+ */
+public abstract class Timer {
+	// The wheel this timer is scheduled on and its place there, or null if
+	// not scheduled.
+	TimingWheel wheel;
+	Timer prev, next;
+	int bucket;
+	long deadline;
+
+	/**
+	 * Called by the TimingWheel on the tick this timer is due. The timer is
+	 * no longer scheduled by then, so it may schedule itself again.
+	 */
+	protected abstract void expire();
+
+	/**
+	 * Checks if this timer is waiting to expire.
+	 *
+	 * @return true if this timer is scheduled, otherwise false.
+	 */
+	public boolean isScheduled() {
+		return wheel != null;
+	}
+
+	/**
+	 * Returns the tick this timer expires on.
+	 *
+	 * @return The tick of the wheel this timer expires on, if scheduled.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Stops this timer from expiring.
+	 *
+	 * @return true if this timer was scheduled, otherwise false.
+	 */
+	public boolean cancel() {
+		return wheel != null && wheel.cancel(this);
+	}
+}
@@ -0,0 +1,169 @@
+package org.mercury.util;
+
+/**
+ * A hierarchical timing wheel which runs Timers a given number of ticks from
+ * now. Each level is a ring of buckets, one bucket per tick on the lowest
+ * level and 64 times as many ticks per bucket on each level above. A timer is
+ * linked into the bucket of its deadline on the lowest level that can reach
+ * it, so scheduling and cancelling take constant time. Each call to advance
+ * fires the timers in one bucket of the lowest level, and whenever a level
+ * wraps around the next bucket of the level above is spread out over the
+ * levels below.
+ * <p>
+ * Timers further away than the top level reaches wait in an overflow bucket,
+ * which is sorted out again each time the top level wraps.
+ *
+ * @author tbertore
+ *
+ */
+public class TimingWheel {
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final int OVERFLOW = LEVELS * SLOTS;
+
+	// The first and last timer in each bucket, followed by the overflow
+	// bucket.
+	private final Timer[] heads = new Timer[OVERFLOW + 1];
+	private final Timer[] tails = new Timer[OVERFLOW + 1];
+	private long now;
+	private int count;
+
+	/**
+	 * Schedules a timer to expire a number of ticks from now. A timer which
+	 * is already scheduled on this wheel is moved to the new deadline.
+	 *
+	 * @param timer
+	 *            The timer to schedule.
+	 * @param delay
+	 *            The number of calls to advance until the timer expires. A
+	 *            delay below 1 expires on the next call.
+	 * @throws IllegalArgumentException
+	 *             If the timer is scheduled on another wheel.
+	 */
+	public void schedule(Timer timer, long delay) {
+		if (timer.wheel == this)
+			unlink(timer);
+		else if (timer.wheel != null)
+			throw new IllegalArgumentException("Timer is on another wheel!");
+		else
+			count++;
+		timer.wheel = this;
+		timer.deadline = now + Math.max(1, delay);
+		place(timer);
+	}
+
+	/**
+	 * Stops a timer from expiring.
+	 *
+	 * @param timer
+	 *            The timer to cancel.
+	 * @return true if the timer was scheduled on this wheel, otherwise false.
+	 */
+	public boolean cancel(Timer timer) {
+		if (timer.wheel != this)
+			return false;
+		unlink(timer);
+		timer.wheel = null;
+		count--;
+		return true;
+	}
+
+	/**
+	 * Moves to the next tick and expires every timer due on it.
+	 */
+	public void advance() {
+		long tick = ++now;
+		// Each level whose lower levels have all wrapped hands its next
+		// bucket down, from the top so timers can fall through several
+		// levels in one tick.
+		int wrapped = 0;
+		while (wrapped < LEVELS && ((tick >>> (BITS * wrapped)) & MASK) == 0)
+			wrapped++;
+		if (wrapped == LEVELS)
+			cascade(OVERFLOW);
+		for (int level = Math.min(wrapped, LEVELS - 1); level >= 1; level--)
+			cascade(level * SLOTS + (int) ((tick >>> (BITS * level)) & MASK));
+		// Timers are removed one at a time, since each may cancel others.
+		int bucket = (int) (tick & MASK);
+		Timer timer;
+		while ((timer = heads[bucket]) != null) {
+			unlink(timer);
+			timer.wheel = null;
+			count--;
+			timer.expire();
+		}
+	}
+
+	/**
+	 * Places every timer in a bucket again relative to the current tick.
+	 */
+	private void cascade(int bucket) {
+		Timer timer = heads[bucket];
+		heads[bucket] = null;
+		tails[bucket] = null;
+		while (timer != null) {
+			Timer next = timer.next;
+			place(timer);
+			timer = next;
+		}
+	}
+
+	/**
+	 * Appends a timer to the bucket of its deadline on the lowest level that
+	 * reaches it.
+	 */
+	private void place(Timer timer) {
+		long deadline = timer.deadline;
+		long delay = deadline - now;
+		int bucket = OVERFLOW;
+		for (int level = 0; level < LEVELS; level++) {
+			if (delay < 1L << (BITS * (level + 1))) {
+				bucket = level * SLOTS
+						+ (int) ((deadline >>> (BITS * level)) & MASK);
+				break;
+			}
+		}
+		timer.bucket = bucket;
+		timer.next = null;
+		timer.prev = tails[bucket];
+		if (tails[bucket] != null)
+			tails[bucket].next = timer;
+		else
+			heads[bucket] = timer;
+		tails[bucket] = timer;
+	}
+
+	private void unlink(Timer timer) {
+		int bucket = timer.bucket;
+		if (timer.prev != null)
+			timer.prev.next = timer.next;
+		else
+			heads[bucket] = timer.next;
+		if (timer.next != null)
+			timer.next.prev = timer.prev;
+		else
+			tails[bucket] = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+	}
+
+	/**
+	 * Returns the number of calls to advance so far.
+	 *
+	 * @return The current tick.
+	 */
+	public long getTick() {
+		return now;
+	}
+
+	/**
+	 * Returns the number of timers waiting to expire.
+	 *
+	 * @return The number of scheduled timers.
+	 */
+	public int size() {
+		return count;
+	}
+}
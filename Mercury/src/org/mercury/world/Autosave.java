@@ -0,0 +1,220 @@
+package org.mercury.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves a World every so many ticks without stalling the tick thread. At a
+ * tick boundary a WorldSnapshot is begun, which copies nothing up front; a
+ * saver thread then completes it, writes it to a temporary file, forces the
+ * file to disk and moves it over the save file, so a crash mid save leaves
+ * the last save intact. While the snapshot is completed, into the arrays of
+ * the last snapshot saved, the tick thread only copies the tiles, entity
+ * state and positions of packed entities it is about to change.
+ * <p>
+ * The tiles of a world streamed from a ChunkStore are not part of the
+ * snapshot. The chunks changed by the time it is begun are written back to
+ * the region file, which is forced to disk before the save file is replaced.
+ *
+ * @author tbertore
+ *
+ */
+public class Autosave {
+	private final World world;
+	private final File file, temp;
+	private final int interval;
+	private int ticks;
+	private final ExecutorService saver;
+	// The snapshot being saved, and the last one saved, whose arrays the
+	// next reuses. Touched only by the tick thread.
+	private WorldSnapshot pending, spare;
+	private volatile boolean saving;
+	private volatile IOException failure;
+	private volatile long lastWriteNanos;
+	private long lastBeginNanos;
+	private int saveCount;
+
+	/**
+	 * Creates a new Autosave.
+	 *
+	 * @param world
+	 *            The world to save.
+	 * @param f
+	 *            The file to save to. A temporary file next to it is used
+	 *            while saving.
+	 * @param interval
+	 *            The number of ticks between saves.
+	 * @throws IllegalArgumentException
+	 *             If interval is less than 1.
+	 */
+	public Autosave(World world, File f, int interval) {
+		if (interval < 1)
+			throw new IllegalArgumentException("Interval must be >= 1!");
+		this.world = world;
+		file = f;
+		temp = new File(f.getPath() + ".tmp");
+		this.interval = interval;
+		saver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Autosave");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Counts a tick and begins a save once the interval has passed, unless
+	 * the last one is still being written. Called once per tick on the tick
+	 * thread, between updates of the world.
+	 *
+	 * @throws IllegalStateException
+	 *             If the last save failed.
+	 */
+	public void update() {
+		finish();
+		if (++ticks >= interval && pending == null) {
+			ticks = 0;
+			save();
+		}
+	}
+
+	/**
+	 * Begins a save now, unless one is being written. Called on the tick
+	 * thread, between updates of the world.
+	 *
+	 * @return true if a save was begun, otherwise false.
+	 * @throws IllegalStateException
+	 *             If the last save failed.
+	 */
+	public boolean save() {
+		finish();
+		if (pending != null)
+			return false;
+		long start = System.nanoTime();
+		final ChunkStore chunks = world.getChunks();
+		if (chunks != null)
+			chunks.writeChanged();
+		final WorldSnapshot snapshot = WorldSnapshot.begin(world, spare);
+		spare = null;
+		pending = snapshot;
+		saving = true;
+		lastBeginNanos = System.nanoTime() - start;
+		saver.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long start = System.nanoTime();
+					if (chunks != null)
+						chunks.force();
+					write(snapshot);
+					lastWriteNanos = System.nanoTime() - start;
+				}
+				catch (IOException e) {
+					failure = e;
+				}
+				finally {
+					saving = false;
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Detaches the snapshot of a save which has been written.
+	 */
+	private void finish() {
+		if (failure != null)
+			throw new IllegalStateException("Failed to save!", failure);
+		if (pending != null && !saving) {
+			pending.detach();
+			spare = pending;
+			pending = null;
+			saveCount++;
+		}
+	}
+
+	private void write(WorldSnapshot snapshot) throws IOException {
+		FileChannel channel = FileChannel.open(temp.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			snapshot.write(channel);
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Checks if a save is in progress.
+	 *
+	 * @return true if a snapshot is being completed or written.
+	 */
+	public boolean isSaving() {
+		return pending != null;
+	}
+
+	/**
+	 * Returns the number of saves written so far, counted once the tick
+	 * thread has seen them finish.
+	 *
+	 * @return The number of saves.
+	 */
+	public int getSaveCount() {
+		return saveCount;
+	}
+
+	/**
+	 * Returns the time the tick thread spent beginning the last save.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public long getLastBeginNanos() {
+		return lastBeginNanos;
+	}
+
+	/**
+	 * Returns the time the saver thread spent on the last save, completing,
+	 * writing and forcing it and any region file to disk.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public long getLastWriteNanos() {
+		return lastWriteNanos;
+	}
+
+	/**
+	 * Waits for a save in progress to be written and stops the saver thread.
+	 * Called on the tick thread.
+	 *
+	 * @throws IOException
+	 *             If the last save failed.
+	 */
+	public void close() throws IOException {
+		saver.shutdown();
+		try {
+			saver.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+			throw failure;
+		finish();
+	}
+}
@@ -0,0 +1,100 @@
+package org.mercury.world;
+
+/**
+ * A square block of tiles streamed in and out of memory by a ChunkStore, held
+ * in a TileLayer.
+ *
+ * @author tbertore
+ *
+ */
+public class Chunk {
+	/**
+	 * The width and height of a chunk in tiles.
+	 */
+	public static final int SIZE = 32;
+	/**
+	 * The number of tiles in a chunk.
+	 */
+	public static final int TILES = SIZE * SIZE;
+	/**
+	 * The size of a chunk in a region file: the types as shorts, followed by
+	 * the heights and then the pathing flags as bytes.
+	 */
+	public static final int BYTES = TILES * 4;
+
+	// The position of this chunk, in chunks.
+	int cx, cy;
+	final TileLayer tiles = new TileLayer(SIZE, SIZE);
+	// Set once the chunk has been read and handed to the tick thread.
+	boolean loaded;
+	// Set when a tile has changed since the chunk was read.
+	boolean dirty;
+	// The last tick this chunk was within range of a camera.
+	long lastUsed;
+
+	public int getChunkX() {
+		return cx;
+	}
+
+	public int getChunkY() {
+		return cy;
+	}
+
+	/**
+	 * Returns the type of a tile in this chunk.
+	 *
+	 * @param lx
+	 *            The column of the tile within this chunk.
+	 * @param ly
+	 *            The row of the tile within this chunk.
+	 * @return The tile type.
+	 */
+	public int getType(int lx, int ly) {
+		return tiles.getType(lx, ly);
+	}
+
+	public int getHeight(int lx, int ly) {
+		return tiles.getHeight(lx, ly);
+	}
+
+	public int getPathing(int lx, int ly) {
+		return tiles.getPathing(lx, ly);
+	}
+
+	/**
+	 * Returns the tiles of this chunk, e.g. to copy them in bulk. Changes made
+	 * through the layer must be followed by a call to markDirty to be saved.
+	 *
+	 * @return The tiles of this chunk.
+	 */
+	public TileLayer getTiles() {
+		return tiles;
+	}
+
+	/**
+	 * Marks this chunk as changed, so it is written back to the region file.
+	 */
+	public void markDirty() {
+		dirty = true;
+	}
+
+	/**
+	 * Changes a tile in this chunk. The change is written back to the region
+	 * file when the chunk is evicted or the store is flushed.
+	 *
+	 * @param lx
+	 *            The column of the tile within this chunk.
+	 * @param ly
+	 *            The row of the tile within this chunk.
+	 * @param type
+	 *            The tile type.
+	 * @param height
+	 *            The height of the tile, from -128 to 127.
+	 * @param pathing
+	 *            The pathing flags of the tile.
+	 */
+	public void setTile(int lx, int ly, int type, int height, int pathing) {
+		tiles.setTile(lx, ly, type, height, pathing);
+		dirty = true;
+	}
+}
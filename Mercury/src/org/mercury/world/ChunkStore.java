@@ -0,0 +1,551 @@
+package org.mercury.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.mercury.gfx.Camera;
+
+/**
+ * Streams the tiles of a world in Chunks from a region file, so memory use
+ * depends on how much of the world is near a camera rather than on its size.
+ * The region file holds a header followed by every chunk in row major order,
+ * each at a fixed offset, and is memory mapped so loading a chunk is a copy
+ * out of the page cache.
+ * <p>
+ * Once per tick, update requests the chunks around each camera. They are read
+ * on a loader thread and handed back to the tick thread the next time update
+ * is called, so the tick thread never waits on the disk. Once more chunks are
+ * held than the capacity, those least recently near a camera are evicted, and
+ * written back first if they were changed.
+ *
+ * @author tbertore
+ *
+ */
+public class ChunkStore {
+	private static final int MAGIC = 0x4d435247;
+	private static final int VERSION = 1;
+	// The header is padded to a page so chunks stay page aligned.
+	private static final int HEADER_BYTES = 4096;
+	// Chunks are mapped in segments, since one mapping is limited to 2GB.
+	private static final int SEGMENT_BITS = 18;
+	private static final long SEGMENT_BYTES = (long) Chunk.BYTES
+			<< SEGMENT_BITS;
+	private static final int EMPTY = -1;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private final int chunksX, chunksY;
+	private final int capacity;
+	// How many chunks beyond the edges of a viewport to keep loaded.
+	private int margin = 1;
+	private final ArrayList<Camera> cameras = new ArrayList<Camera>();
+	// Loaded and loading chunks, in an open addressed table keyed by chunk
+	// index.
+	private int[] keys;
+	private Chunk[] chunks;
+	private int count, loadedCount;
+	private long tick;
+	// Evicted chunks, reused for the next loads.
+	private final ArrayDeque<Chunk> free = new ArrayDeque<Chunk>();
+	private final ExecutorService loader;
+	// Chunks read by the loader thread, waiting to be handed to the tick
+	// thread.
+	private final ConcurrentLinkedQueue<Chunk> completed =
+			new ConcurrentLinkedQueue<Chunk>();
+	private volatile IOException failure;
+	private TileListener listener;
+
+	/**
+	 * Creates an empty region file, with every tile of type 0, height 0 and
+	 * no pathing flags, and opens it.
+	 *
+	 * @param f
+	 *            The file to create. An existing file is overwritten.
+	 * @param chunksX
+	 *            The width of the world in chunks.
+	 * @param chunksY
+	 *            The height of the world in chunks.
+	 * @param capacity
+	 *            The number of chunks to keep in memory.
+	 * @return The store of the new file.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 * @throws IllegalArgumentException
+	 *             If a dimension is less than 1.
+	 */
+	public static ChunkStore create(File f, int chunksX, int chunksY,
+			int capacity) throws IOException {
+		if (chunksX <= 0 || chunksY <= 0)
+			throw new IllegalArgumentException("Dimensions must be > 0!");
+		RandomAccessFile out = new RandomAccessFile(f, "rw");
+		try {
+			out.setLength(0);
+			out.setLength(HEADER_BYTES + (long) chunksX * chunksY
+					* Chunk.BYTES);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(chunksX);
+			out.writeInt(chunksY);
+		}
+		finally {
+			out.close();
+		}
+		return new ChunkStore(f, capacity);
+	}
+
+	/**
+	 * Opens an existing region file.
+	 *
+	 * @param f
+	 *            The region file.
+	 * @param capacity
+	 *            The number of chunks to keep in memory. More are kept while
+	 *            the cameras need them.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a region file.
+	 */
+	public ChunkStore(File f, int capacity) throws IOException {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be > 0!");
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+		if (file.length() < HEADER_BYTES || file.readInt() != MAGIC
+				|| file.readInt() != VERSION) {
+			file.close();
+			throw new IOException("Not a region file: " + f);
+		}
+		chunksX = file.readInt();
+		chunksY = file.readInt();
+		long chunkCount = (long) chunksX * chunksY;
+		segments = new MappedByteBuffer[(int) ((chunkCount
+				+ (1 << SEGMENT_BITS) - 1) >> SEGMENT_BITS)];
+		this.capacity = capacity;
+		int size = Integer.highestOneBit(capacity * 4 - 1) << 1;
+		keys = new int[size];
+		chunks = new Chunk[size];
+		Arrays.fill(keys, EMPTY);
+		loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Chunk loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public int getChunksX() {
+		return chunksX;
+	}
+
+	public int getChunksY() {
+		return chunksY;
+	}
+
+	public int getTilesX() {
+		return chunksX * Chunk.SIZE;
+	}
+
+	public int getTilesY() {
+		return chunksY * Chunk.SIZE;
+	}
+
+	/**
+	 * Adds a camera to load the chunks around.
+	 *
+	 * @param c
+	 *            The camera to add.
+	 */
+	public void addCamera(Camera c) {
+		if (!cameras.contains(c))
+			cameras.add(c);
+	}
+
+	public void removeCamera(Camera c) {
+		cameras.remove(c);
+	}
+
+	/**
+	 * Sets how many chunks beyond the edges of each viewport are loaded, so
+	 * they are ready by the time they come into view.
+	 *
+	 * @param margin
+	 *            The number of chunks to load ahead. (Default 1).
+	 */
+	public void setMargin(int margin) {
+		this.margin = Math.max(0, margin);
+	}
+
+	/**
+	 * Takes in the chunks read since the last call, requests every chunk
+	 * within range of a camera which is not yet loaded and evicts the least
+	 * recently used chunks over capacity. Called once per tick on the tick
+	 * thread.
+	 *
+	 * @throws IllegalStateException
+	 *             If the loader thread failed to read a chunk.
+	 */
+	public void update() {
+		if (failure != null)
+			throw new IllegalStateException("Failed to load a chunk!",
+					failure);
+		tick++;
+		Chunk c;
+		while ((c = completed.poll()) != null) {
+			c.loaded = true;
+			loadedCount++;
+			changed(c);
+		}
+		int span = Terrain.SIZE * Chunk.SIZE;
+		for (int idx = 0; idx < cameras.size(); idx++) {
+			Camera cam = cameras.get(idx);
+			int cx1 = Math.max(0, floorDiv(cam.x, span) - margin);
+			int cy1 = Math.max(0, floorDiv(cam.y, span) - margin);
+			int cx2 = Math.min(chunksX - 1, floorDiv(cam.x + cam.w, span)
+					+ margin);
+			int cy2 = Math.min(chunksY - 1, floorDiv(cam.y + cam.h, span)
+					+ margin);
+			for (int cy = cy1; cy <= cy2; cy++)
+				for (int cx = cx1; cx <= cx2; cx++)
+					touch(cx, cy);
+		}
+		while (count > capacity && evictOldest())
+			;
+	}
+
+	private static int floorDiv(int a, int b) {
+		return (a >= 0) ? a / b : -((-a + b - 1) / b);
+	}
+
+	/**
+	 * Marks a chunk as in use, requesting it from the loader if necessary.
+	 */
+	private void touch(int cx, int cy) {
+		int key = cx + cy * chunksX;
+		Chunk c = find(key);
+		if (c == null) {
+			c = free.poll();
+			if (c == null)
+				c = new Chunk();
+			c.cx = cx;
+			c.cy = cy;
+			put(key, c);
+			loader.execute(new Load(c));
+		}
+		c.lastUsed = tick;
+	}
+
+	/**
+	 * Evicts the loaded chunk least recently within range of a camera.
+	 *
+	 * @return true if a chunk was evicted, false if every chunk is in use.
+	 */
+	private boolean evictOldest() {
+		int oldest = EMPTY;
+		for (int slot = 0; slot < keys.length; slot++) {
+			Chunk c = chunks[slot];
+			if (c != null && c.loaded && c.lastUsed < tick
+					&& (oldest == EMPTY || c.lastUsed < chunks[oldest].lastUsed))
+				oldest = slot;
+		}
+		if (oldest == EMPTY)
+			return false;
+		Chunk c = chunks[oldest];
+		if (c.dirty)
+			write(c);
+		removeAt(oldest);
+		loadedCount--;
+		c.loaded = false;
+		c.dirty = false;
+		changed(c);
+		free.add(c);
+		return true;
+	}
+
+	private void changed(Chunk c) {
+		if (listener != null)
+			listener.tilesChanged(c.cx * Chunk.SIZE, c.cy * Chunk.SIZE,
+					Chunk.SIZE, Chunk.SIZE);
+	}
+
+	/**
+	 * Sets the listener told whenever a chunk is loaded or evicted, since
+	 * the tiles of a chunk block movement while it is not loaded.
+	 *
+	 * @param listener
+	 *            The listener, or null.
+	 */
+	public void setTileListener(TileListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns a loaded chunk.
+	 *
+	 * @param cx
+	 *            The column of the chunk.
+	 * @param cy
+	 *            The row of the chunk.
+	 * @return The chunk, or null if it lies outside the world or is not
+	 *         loaded.
+	 */
+	public Chunk getChunk(int cx, int cy) {
+		if (cx < 0 || cy < 0 || cx >= chunksX || cy >= chunksY)
+			return null;
+		Chunk c = find(cx + cy * chunksX);
+		return (c != null && c.loaded) ? c : null;
+	}
+
+	/**
+	 * Returns the chunk holding a tile.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @return The chunk, or null if the tile lies outside the world or its
+	 *         chunk is not loaded.
+	 */
+	public Chunk getChunkAt(int tx, int ty) {
+		if (tx < 0 || ty < 0)
+			return null;
+		return getChunk(tx / Chunk.SIZE, ty / Chunk.SIZE);
+	}
+
+	/**
+	 * Returns the pathing flags of a tile.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @return The pathing flags, or 0 if the tile is outside the world or not
+	 *         loaded. World.blocks treats tiles not loaded as blocked.
+	 */
+	public int getPathing(int tx, int ty) {
+		Chunk c = getChunkAt(tx, ty);
+		return (c != null) ? c.getPathing(tx % Chunk.SIZE, ty % Chunk.SIZE)
+				: 0;
+	}
+
+	/**
+	 * Returns the number of chunks read and ready for use.
+	 *
+	 * @return The number of loaded chunks.
+	 */
+	public int getLoadedCount() {
+		return loadedCount;
+	}
+
+	/**
+	 * Returns the number of chunks requested but not yet taken in by update.
+	 *
+	 * @return The number of chunks loading.
+	 */
+	public int getPendingCount() {
+		return count - loadedCount;
+	}
+
+	/**
+	 * Writes every changed chunk back to the region file and forces the file
+	 * to disk.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void flush() throws IOException {
+		writeChanged();
+		force();
+	}
+
+	/**
+	 * Writes every changed chunk back to the mapped region file, without
+	 * waiting for the disk. Called on the tick thread.
+	 */
+	void writeChanged() {
+		for (int slot = 0; slot < keys.length; slot++) {
+			Chunk c = chunks[slot];
+			if (c != null && c.loaded && c.dirty) {
+				write(c);
+				c.dirty = false;
+			}
+		}
+	}
+
+	/**
+	 * Forces everything written to the region file so far to disk. May be
+	 * called on any thread, and does not hold up writes or loads meanwhile.
+	 */
+	void force() {
+		MappedByteBuffer[] mapped;
+		synchronized (this) {
+			mapped = segments.clone();
+		}
+		for (int seg = 0; seg < mapped.length; seg++) {
+			if (mapped[seg] != null)
+				mapped[seg].force();
+		}
+	}
+
+	/**
+	 * Stops the loader thread, flushes changed chunks and closes the region
+	 * file.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void close() throws IOException {
+		loader.shutdown();
+		try {
+			loader.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		file.close();
+	}
+
+	/**
+	 * Returns a view of the region file positioned at the start of a chunk.
+	 */
+	private ByteBuffer view(Chunk c) throws IOException {
+		long idx = c.cx + (long) c.cy * chunksX;
+		ByteBuffer buf = segment((int) (idx >> SEGMENT_BITS)).duplicate();
+		buf.position((int) (idx & ((1 << SEGMENT_BITS) - 1)) * Chunk.BYTES);
+		return buf;
+	}
+
+	private synchronized MappedByteBuffer segment(int seg) throws IOException {
+		if (segments[seg] == null) {
+			long start = HEADER_BYTES + seg * SEGMENT_BYTES;
+			long length = Math.min(SEGMENT_BYTES, HEADER_BYTES
+					+ (long) chunksX * chunksY * Chunk.BYTES - start);
+			segments[seg] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+					length);
+		}
+		return segments[seg];
+	}
+
+	private void read(Chunk c) throws IOException {
+		ByteBuffer buf = view(c);
+		c.tiles.getTypes(buf.asShortBuffer());
+		buf.position(buf.position() + Chunk.TILES * 2);
+		buf.get(c.tiles.heights);
+		buf.get(c.tiles.pathing);
+	}
+
+	private void write(Chunk c) {
+		try {
+			ByteBuffer buf = view(c);
+			c.tiles.putTypes(buf.asShortBuffer());
+			buf.position(buf.position() + Chunk.TILES * 2);
+			buf.put(c.tiles.heights);
+			buf.put(c.tiles.pathing);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to write a chunk!", e);
+		}
+	}
+
+	/**
+	 * Reads a chunk on the loader thread.
+	 */
+	private class Load implements Runnable {
+		private final Chunk chunk;
+
+		Load(Chunk chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		public void run() {
+			try {
+				read(chunk);
+				completed.add(chunk);
+			}
+			catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+
+	private int slotOf(int key) {
+		return (key * 0x9e3779b9) >>> (32 - Integer
+				.numberOfTrailingZeros(keys.length));
+	}
+
+	private Chunk find(int key) {
+		int mask = keys.length - 1;
+		for (int slot = slotOf(key);; slot = (slot + 1) & mask) {
+			if (keys[slot] == key)
+				return chunks[slot];
+			if (keys[slot] == EMPTY)
+				return null;
+		}
+	}
+
+	private void put(int key, Chunk c) {
+		if ((count + 1) * 2 > keys.length)
+			rehash(keys.length * 2);
+		int mask = keys.length - 1;
+		int slot = slotOf(key);
+		while (keys[slot] != EMPTY)
+			slot = (slot + 1) & mask;
+		keys[slot] = key;
+		chunks[slot] = c;
+		count++;
+	}
+
+	/**
+	 * Empties a slot, moving later entries of the same probe run back so
+	 * lookups still find them.
+	 */
+	private void removeAt(int slot) {
+		int mask = keys.length - 1;
+		int next = slot;
+		while (true) {
+			keys[slot] = EMPTY;
+			chunks[slot] = null;
+			int home;
+			do {
+				next = (next + 1) & mask;
+				if (keys[next] == EMPTY) {
+					count--;
+					return;
+				}
+				home = slotOf(keys[next]);
+			} while (slot <= next ? (slot < home && home <= next)
+					: (slot < home || home <= next));
+			keys[slot] = keys[next];
+			chunks[slot] = chunks[next];
+			slot = next;
+		}
+	}
+
+	private void rehash(int size) {
+		int[] oldKeys = keys;
+		Chunk[] oldChunks = chunks;
+		keys = new int[size];
+		chunks = new Chunk[size];
+		Arrays.fill(keys, EMPTY);
+		count = 0;
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldKeys[slot] != EMPTY)
+				put(oldKeys[slot], oldChunks[slot]);
+		}
+	}
+}
@@ -0,0 +1,459 @@
+package org.mercury.world;
+
+import java.util.Arrays;
+
+import org.mercury.entity.Entity;
+
+/**
+ * Steers any number of entities towards one target tile, e.g. a crowd
+ * closing in on the hero, without a path search per entity. A single
+ * Dijkstra search outwards from the target fills an integration field, the
+ * cost of walking from each tile to the target, and a direction field, the
+ * neighbour to step to from each tile, so steering an entity is a lookup.
+ * <p>
+ * The fields are built into a back buffer a slice at a time by update, which
+ * the owner of the field calls once per tick, while entities keep steering by
+ * the last complete field. When the target moves to another tile or tiles
+ * change, the next build is started as soon as the one in progress is done,
+ * so a target moving every tick still gets a fresh field every few ticks. A
+ * range limits how far from the target the fields reach.
+ * <p>
+ * When the target only moves a few steps over unchanged tiles, the new fields
+ * start from the old ones: walking the old field to the old target and then
+ * on to the new one bounds every cost, so the search only spreads through the
+ * tiles that a shorter walk to the new target improves, and the rest keep
+ * their directions.
+ * <p>
+ * Steps cost and cut corners as in PathFinder. A FlowField is not thread
+ * safe.
+ *
+ * @author tbertore
+ *
+ */
+public class FlowField implements TileListener {
+	private static final int STRAIGHT = 10, DIAGONAL = 14;
+	/**
+	 * The direction of tiles the target cannot be reached from, and of the
+	 * target itself.
+	 */
+	public static final int NONE = -1;
+	private static final int DEFAULT_BUDGET = 8192;
+	// The furthest the target may move for the next build to start from the
+	// last one.
+	private static final int INCREMENTAL_COST = 4 * STRAIGHT;
+
+	private final World world;
+	private final int mask;
+	private final int tilesX, tilesY;
+	private final int maxCost;
+	// The complete fields read by entities and the fields being built. A
+	// tile's cost and direction are only valid if its stamp matches the
+	// generation of its buffer.
+	private int[] frontCost, backCost;
+	private byte[] frontDir, backDir;
+	private int[] frontStamp, backStamp;
+	private int frontGeneration = NONE, backGeneration, generation;
+	private final BucketQueue queue = new BucketQueue();
+	private int targetX = NONE, targetY = NONE;
+	private int frontTarget = NONE, backTarget;
+	// The number of tiles reached by each build.
+	private int frontReached, backReached;
+	private boolean building, stale, tilesChanged;
+
+	/**
+	 * A priority queue of tiles for keys which only grow, and never by more
+	 * than a diagonal step past the lowest, as in a search outwards over
+	 * tiles. Each key in that window has a bucket of its own, so pushing and
+	 * popping take constant time where a heap would take log n.
+	 */
+	private static class BucketQueue {
+		// A power of two above the window of keys.
+		private static final int BUCKETS = 16;
+		private final int[][] buckets = new int[BUCKETS][64];
+		private final int[] sizes = new int[BUCKETS];
+		private int key, size;
+
+		void push(int k, int tile) {
+			int b = k & (BUCKETS - 1);
+			if (sizes[b] == buckets[b].length)
+				buckets[b] = Arrays.copyOf(buckets[b], sizes[b] * 2);
+			buckets[b][sizes[b]++] = tile;
+			if (size++ == 0 || k < key)
+				key = k;
+		}
+
+		int peekKey() {
+			while (sizes[key & (BUCKETS - 1)] == 0)
+				key++;
+			return key;
+		}
+
+		/**
+		 * Removes a tile with the lowest key. peekKey must be called first.
+		 */
+		int pop() {
+			size--;
+			int b = key & (BUCKETS - 1);
+			return buckets[b][--sizes[b]];
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void clear() {
+			Arrays.fill(sizes, 0);
+			size = 0;
+		}
+	}
+
+	/**
+	 * Creates a new FlowField covering the whole world.
+	 *
+	 * @param world
+	 *            The world to steer across.
+	 * @param mask
+	 *            The movement mask of the entities to steer.
+	 */
+	public FlowField(World world, int mask) {
+		this(world, mask, Integer.MAX_VALUE / DIAGONAL);
+	}
+
+	/**
+	 * Creates a new FlowField.
+	 *
+	 * @param world
+	 *            The world to steer across.
+	 * @param mask
+	 *            The movement mask of the entities to steer.
+	 * @param range
+	 *            The longest walk, in straight steps, from which entities are
+	 *            steered to the target.
+	 * @throws IllegalArgumentException
+	 *             If range is less than 1.
+	 */
+	public FlowField(World world, int mask, int range) {
+		if (range < 1)
+			throw new IllegalArgumentException("Range must be >= 1!");
+		this.world = world;
+		this.mask = mask;
+		tilesX = world.getTilesX();
+		tilesY = world.getTilesY();
+		maxCost = (int) Math.min(Integer.MAX_VALUE - DIAGONAL, (long) range
+				* STRAIGHT);
+		int count = tilesX * tilesY;
+		frontCost = new int[count];
+		backCost = new int[count];
+		frontDir = new byte[count];
+		backDir = new byte[count];
+		frontStamp = new int[count];
+		backStamp = new int[count];
+		world.addTileListener(this);
+	}
+
+	/**
+	 * Moves the target. The fields are rebuilt by the following calls to
+	 * update if the target enters another tile.
+	 *
+	 * @param tx
+	 *            The column of the target tile.
+	 * @param ty
+	 *            The row of the target tile.
+	 */
+	public void setTarget(int tx, int ty) {
+		if (tx == targetX && ty == targetY)
+			return;
+		targetX = tx;
+		targetY = ty;
+		stale = true;
+	}
+
+	/**
+	 * Moves the target to the tile holding the centre of an entity.
+	 *
+	 * @param e
+	 *            The entity to steer towards.
+	 */
+	public void setTarget(Entity e) {
+		setTarget(tileOf(e.getX() + e.getW() / 2), tileOf(e.getY() + e.getH()
+				/ 2));
+	}
+
+	/**
+	 * Continues building the fields, expanding a default number of tiles.
+	 *
+	 * @return true if entities steer by fields built for the current target
+	 *         and tiles, otherwise false.
+	 */
+	public boolean update() {
+		return update(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Continues building the fields. Once a build completes it replaces the
+	 * fields entities steer by, and if the target has moved or tiles have
+	 * changed since it started, the next one begins.
+	 *
+	 * @param budget
+	 *            The most tiles to expand in this call, to bound its time.
+	 * @return true if entities steer by fields built for the current target
+	 *         and tiles, otherwise false.
+	 */
+	public boolean update(int budget) {
+		while (budget > 0) {
+			if (!building) {
+				if (!stale)
+					return true;
+				begin();
+				if (!building)
+					continue;
+			}
+			budget = expand(budget);
+		}
+		return !building && !stale;
+	}
+
+	/**
+	 * Starts a build from the current target in the back buffer.
+	 */
+	private void begin() {
+		stale = false;
+		queue.clear();
+		building = true;
+		backTarget = NONE;
+		if (world.blocks(targetX, targetY, mask)) {
+			// Nothing can reach the target, so the empty field is complete.
+			if (++generation == 0)
+				resetStamps();
+			backGeneration = generation;
+			backReached = 0;
+			swap();
+			return;
+		}
+		int target = targetX + targetY * tilesX;
+		int moved = getCost(targetX, targetY);
+		if (!tilesChanged && frontTarget != NONE && moved != NONE
+				&& moved <= INCREMENTAL_COST
+				&& (long) frontReached * 16 >= (long) tilesX * tilesY)
+			copyFront(moved);
+		else {
+			tilesChanged = false;
+			if (++generation == 0)
+				resetStamps();
+			backGeneration = generation;
+			backReached = 1;
+		}
+		backTarget = target;
+		backCost[target] = 0;
+		backDir[target] = NONE;
+		backStamp[target] = backGeneration;
+		queue.push(0, target);
+	}
+
+	/**
+	 * Starts the back buffer from the front one, with each cost raised by the
+	 * cost of moving from the old target to the new one. Tiles raised out of
+	 * range are dropped, as a build from scratch would only reach them over a
+	 * shorter walk to the new target. Copying every tile is only worth it
+	 * when the front fields cover much of the world.
+	 */
+	private void copyFront(int moved) {
+		int count = frontCost.length;
+		int gen = frontGeneration;
+		int reached = 0;
+		for (int tile = 0; tile < count; tile++) {
+			int c = frontCost[tile] + moved;
+			if (frontStamp[tile] == gen && c <= maxCost) {
+				backCost[tile] = c;
+				backStamp[tile] = gen;
+				reached++;
+			}
+			else
+				backStamp[tile] = gen - 1;
+		}
+		System.arraycopy(frontDir, 0, backDir, 0, count);
+		backGeneration = gen;
+		backReached = reached;
+		// The old target has no direction, so it must be reached again.
+		if (backStamp[frontTarget] == gen) {
+			backStamp[frontTarget] = gen - 1;
+			backReached--;
+		}
+	}
+
+	private void resetStamps() {
+		Arrays.fill(frontStamp, 0);
+		Arrays.fill(backStamp, 0);
+		frontGeneration = NONE;
+		generation = 1;
+	}
+
+	/**
+	 * Expands tiles of the build in progress in order of cost.
+	 *
+	 * @return The budget left.
+	 */
+	private int expand(int budget) {
+		int[] cost = backCost;
+		int[] stamp = backStamp;
+		int gen = backGeneration;
+		while (!queue.isEmpty()) {
+			if (budget-- == 0)
+				return 0;
+			int key = queue.peekKey();
+			int tile = queue.pop();
+			if (key > cost[tile])
+				continue;
+			int tx = tile % tilesX;
+			int ty = tile / tilesX;
+			// Look each neighbour up once, as diagonals need their sides too.
+			int open = 0;
+			for (int dir = 0; dir < 8; dir++) {
+				if (!world.blocks(tx + TileLayer.DX[dir], ty
+						+ TileLayer.DY[dir], mask))
+					open |= 1 << dir;
+			}
+			for (int dir = 0; dir < 8; dir++) {
+				if ((open & (1 << dir)) == 0)
+					continue;
+				int step = STRAIGHT;
+				if ((dir & 1) != 0) {
+					// Diagonal, which may not cut a blocked corner.
+					if ((open & (1 << (dir - 1))) == 0
+							|| (open & (1 << ((dir + 1) & 7))) == 0)
+						continue;
+					step = DIAGONAL;
+				}
+				int g = key + step;
+				if (g > maxCost)
+					continue;
+				int n = tile + TileLayer.DX[dir] + TileLayer.DY[dir] * tilesX;
+				if (stamp[n] == gen) {
+					if (cost[n] <= g)
+						continue;
+				}
+				else
+					backReached++;
+				stamp[n] = gen;
+				cost[n] = g;
+				// Steps from the neighbour lead back the way it was reached.
+				backDir[n] = (byte) ((dir + 4) & 7);
+				queue.push(g, n);
+			}
+		}
+		swap();
+		return budget;
+	}
+
+	/**
+	 * Makes the completed back buffer the one entities steer by.
+	 */
+	private void swap() {
+		int[] cost = frontCost;
+		frontCost = backCost;
+		backCost = cost;
+		byte[] dir = frontDir;
+		frontDir = backDir;
+		backDir = dir;
+		int[] stamp = frontStamp;
+		frontStamp = backStamp;
+		backStamp = stamp;
+		frontGeneration = backGeneration;
+		frontTarget = backTarget;
+		frontReached = backReached;
+		building = false;
+	}
+
+	/**
+	 * Returns the direction to step in from a tile towards the target.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @return The direction, e.g. TileLayer.NORTH, or NONE if the tile is the
+	 *         target or the target cannot be reached from it within range.
+	 */
+	public int getDirection(int tx, int ty) {
+		if (tx < 0 || ty < 0 || tx >= tilesX || ty >= tilesY)
+			return NONE;
+		int tile = tx + ty * tilesX;
+		return (frontStamp[tile] == frontGeneration) ? frontDir[tile] : NONE;
+	}
+
+	/**
+	 * Returns the cost of walking from a tile to the target.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @return The cost, 10 per straight and 14 per diagonal step, or NONE if
+	 *         the target cannot be reached from the tile within range.
+	 */
+	public int getCost(int tx, int ty) {
+		if (tx < 0 || ty < 0 || tx >= tilesX || ty >= tilesY)
+			return NONE;
+		int tile = tx + ty * tilesX;
+		return (frontStamp[tile] == frontGeneration) ? frontCost[tile] : NONE;
+	}
+
+	/**
+	 * Points an entity's propagation vector along the direction field from
+	 * the tile holding its centre. An entity on the target tile, or one which
+	 * cannot reach it, is stopped.
+	 *
+	 * @param e
+	 *            The entity to steer.
+	 * @return true if the entity was given a direction, otherwise false.
+	 */
+	public boolean steer(Entity e) {
+		int tx = tileOf(e.getX() + e.getW() / 2);
+		int ty = tileOf(e.getY() + e.getH() / 2);
+		int dir = getDirection(tx, ty);
+		if (dir == NONE) {
+			e.setPropagationVector(0, 0);
+			return false;
+		}
+		// North is towards lower rows.
+		e.setPropagationVector(TileLayer.DX[dir], -TileLayer.DY[dir]);
+		return true;
+	}
+
+	/**
+	 * Returns the tile index of the target the fields entities steer by were
+	 * built for.
+	 *
+	 * @return The tile index (tx + ty * world.getTilesX()), or NONE if no
+	 *         field has been built or the target was blocked.
+	 */
+	public int getFieldTarget() {
+		return frontTarget;
+	}
+
+	/**
+	 * Checks if a build is in progress.
+	 *
+	 * @return true if update has work left to do, otherwise false.
+	 */
+	public boolean isBuilding() {
+		return building || stale;
+	}
+
+	@Override
+	public void tilesChanged(int tx, int ty, int w, int h) {
+		// Old costs no longer bound the new ones, so the next build starts
+		// afresh.
+		tilesChanged = true;
+		if (targetX != NONE)
+			stale = true;
+	}
+
+	/**
+	 * Returns the tile column or row holding a pixel coordinate.
+	 */
+	private static int tileOf(int pixel) {
+		return (pixel >= 0) ? pixel / Terrain.SIZE : (pixel + 1)
+				/ Terrain.SIZE - 1;
+	}
+}
@@ -0,0 +1,611 @@
+package org.mercury.world;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mercury.util.IntHeap;
+
+/**
+ * Finds paths across the tiles of a World for entities with a given movement
+ * mask, using hierarchical A*. The world is divided into square clusters of
+ * tiles. Wherever two neighbouring clusters share a run of open border tiles,
+ * a transition between them is made, and the cost of walking between every two
+ * transitions inside a cluster is found once. A path is first found over this
+ * much smaller graph of transitions and then refined into tiles one cluster at
+ * a time, so no search ever spans more than one cluster of tiles.
+ * <p>
+ * Refined segments between transitions are cached, since many paths cross the
+ * same clusters. Clusters are built the first time a path needs them, and
+ * rebuilt, dropping their cached segments, after their tiles change. Searches
+ * use primitive arrays and heaps reused between calls.
+ * <p>
+ * Paths move in eight directions, at a cost of 10 per straight and 14 per
+ * diagonal step, and never cut the corner of a blocked tile. A PathFinder is
+ * not thread safe.
+ *
+ * @author tbertore
+ *
+ */
+public class PathFinder implements TileListener {
+	private static final int STRAIGHT = 10, DIAGONAL = 14;
+	// Runs of open border at least this long get a transition at each end
+	// rather than one in the middle.
+	private static final int LONG_RUN = 6;
+	private static final int NONE = -1;
+	private static final int DEFAULT_CACHE = 4096;
+
+	private final World world;
+	private final int mask;
+	private final int size;
+	private final int tilesX, tilesY;
+	private final int clustersX;
+	private final Cluster[] clusters;
+	// Scratch space for searches within one cluster, by tile relative to the
+	// cluster's upper left tile.
+	private final boolean[] open;
+	private Cluster openCluster;
+	private final int[] cost, parent, stamp;
+	private int generation;
+	private final IntHeap heap = new IntHeap();
+	// Costs from the start to each transition of its cluster and from each
+	// transition of the goal's cluster to the goal.
+	private int[] startCosts = new int[16], goalCosts = new int[16];
+	// The graph search, by node slot in an open addressed table keyed by
+	// tile index.
+	private int[] nodeTile = new int[256], nodeCost = new int[256],
+			nodeParent = new int[256], nodeStamp = new int[256];
+	private int nodeGeneration, nodeCount;
+	private int goalX, goalY;
+	private final IntHeap nodeHeap = new IntHeap();
+	// Refined segments between two tiles of one cluster.
+	private final LinkedHashMap<Long, int[]> segments;
+	private int[] path = new int[64];
+	private int pathLength;
+
+	/**
+	 * A square block of tiles and the transitions out of it.
+	 */
+	private static class Cluster {
+		int x0, y0, w, h;
+		boolean built;
+		// Per transition: the tile inside this cluster and the tile across
+		// the border it leads to.
+		int[] tiles = new int[8];
+		int[] partners = new int[8];
+		int count;
+		// The cost between every two transitions, or NONE.
+		int[] dist = new int[64];
+	}
+
+	/**
+	 * Creates a new PathFinder with clusters of 16 by 16 tiles.
+	 *
+	 * @param world
+	 *            The world to find paths in.
+	 * @param mask
+	 *            The movement mask of the entities to find paths for.
+	 */
+	public PathFinder(World world, int mask) {
+		this(world, mask, 16, DEFAULT_CACHE);
+	}
+
+	/**
+	 * Creates a new PathFinder.
+	 *
+	 * @param world
+	 *            The world to find paths in.
+	 * @param mask
+	 *            The movement mask of the entities to find paths for.
+	 * @param clusterSize
+	 *            The width and height of a cluster in tiles.
+	 * @param cacheSize
+	 *            The number of refined segments to keep.
+	 * @throws IllegalArgumentException
+	 *             If clusterSize is less than 2.
+	 */
+	public PathFinder(World world, int mask, int clusterSize,
+			final int cacheSize) {
+		if (clusterSize < 2)
+			throw new IllegalArgumentException("Cluster size must be >= 2!");
+		this.world = world;
+		this.mask = mask;
+		size = clusterSize;
+		tilesX = world.getTilesX();
+		tilesY = world.getTilesY();
+		clustersX = (tilesX + size - 1) / size;
+		int clustersY = (tilesY + size - 1) / size;
+		clusters = new Cluster[clustersX * clustersY];
+		open = new boolean[size * size];
+		cost = new int[size * size];
+		parent = new int[size * size];
+		stamp = new int[size * size];
+		segments = new LinkedHashMap<Long, int[]>(cacheSize, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		world.addTileListener(this);
+	}
+
+	/**
+	 * Finds a shortest path over the graph of transitions, refined into
+	 * tiles. Within a single cluster, the path is found directly.
+	 *
+	 * @param sx
+	 *            The column of the start tile.
+	 * @param sy
+	 *            The row of the start tile.
+	 * @param gx
+	 *            The column of the goal tile.
+	 * @param gy
+	 *            The row of the goal tile.
+	 * @return The tile indices (tx + ty * world.getTilesX()) of every step
+	 *         after the start up to the goal, or null if the goal cannot be
+	 *         reached.
+	 */
+	public int[] findPath(int sx, int sy, int gx, int gy) {
+		if (world.blocks(sx, sy, mask) || world.blocks(gx, gy, mask))
+			return null;
+		int start = sx + sy * tilesX;
+		int goal = gx + gy * tilesX;
+		pathLength = 0;
+		if (start == goal)
+			return new int[0];
+		Cluster cs = cluster(sx, sy);
+		Cluster cg = cluster(gx, gy);
+		if (cs == cg && appendSegment(cs, start, goal))
+			return finishPath();
+		// Costs from the start out of its cluster and into the goal's.
+		search(cs, start, NONE);
+		startCosts = costsTo(cs, startCosts);
+		search(cg, goal, NONE);
+		goalCosts = costsTo(cg, goalCosts);
+		// A start or goal walled in within its cluster would otherwise have
+		// the whole graph searched.
+		if (!anyReached(startCosts, cs.count)
+				|| !anyReached(goalCosts, cg.count))
+			return null;
+		int last = searchGraph(cs, cg, goal);
+		if (last == NONE)
+			return null;
+		// Walk back through the graph, then refine from the start.
+		int steps = 0;
+		for (int slot = last; slot != NONE; slot = nodeParent[slot])
+			steps++;
+		int[] nodes = new int[steps];
+		for (int slot = last; slot != NONE; slot = nodeParent[slot])
+			nodes[--steps] = nodeTile[slot];
+		int from = start;
+		for (int idx = 0; idx < nodes.length; idx++) {
+			int to = nodes[idx];
+			Cluster cf = cluster(from % tilesX, from / tilesX);
+			if (cf != cluster(to % tilesX, to / tilesX))
+				// Crossing a border between transitions.
+				append(to);
+			else if (!appendSegment(cf, from, to))
+				return null;
+			from = to;
+		}
+		return finishPath();
+	}
+
+	private static boolean anyReached(int[] costs, int count) {
+		for (int i = 0; i < count; i++) {
+			if (costs[i] != NONE)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A* over the transitions, from those of the start's cluster to the
+	 * goal. Returns the node slot of the goal, or NONE.
+	 */
+	private int searchGraph(Cluster cs, Cluster cg, int goal) {
+		if (++nodeGeneration == 0) {
+			Arrays.fill(nodeStamp, 0);
+			nodeGeneration = 1;
+		}
+		nodeHeap.clear();
+		nodeCount = 0;
+		int gx = goal % tilesX;
+		int gy = goal / tilesX;
+		goalX = gx;
+		goalY = gy;
+		reserveNodes(cs.count + 1);
+		for (int i = 0; i < cs.count; i++) {
+			if (startCosts[i] != NONE)
+				relax(cs.tiles[i], startCosts[i], NONE, gx, gy);
+		}
+		while (!nodeHeap.isEmpty()) {
+			int key = nodeHeap.peekKey();
+			int slot = nodeHeap.pop();
+			int tile = nodeTile[slot];
+			int tx = tile % tilesX;
+			int ty = tile / tilesX;
+			int g = nodeCost[slot];
+			if (key > g + estimate(tx, ty, gx, gy))
+				continue;
+			if (tile == goal)
+				return slot;
+			Cluster c = cluster(tx, ty);
+			// Make room for every neighbour first, since growing the table
+			// moves the slots.
+			if (reserveNodes(2 * c.count + 1))
+				slot = nodeSlot(tile);
+			for (int i = 0; i < c.count; i++) {
+				if (c.tiles[i] != tile)
+					continue;
+				relax(c.partners[i], g + STRAIGHT, slot, gx, gy);
+				for (int j = 0; j < c.count; j++) {
+					int d = c.dist[i * c.count + j];
+					if (d != NONE && j != i)
+						relax(c.tiles[j], g + d, slot, gx, gy);
+				}
+				if (c == cg && goalCosts[i] != NONE)
+					relax(goal, g + goalCosts[i], slot, gx, gy);
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Records a cheaper way to reach a node of the graph.
+	 */
+	private void relax(int tile, int g, int from, int gx, int gy) {
+		int slot = nodeSlot(tile);
+		if (nodeStamp[slot] == nodeGeneration) {
+			if (nodeCost[slot] <= g)
+				return;
+		}
+		else
+			nodeCount++;
+		nodeStamp[slot] = nodeGeneration;
+		nodeTile[slot] = tile;
+		nodeCost[slot] = g;
+		nodeParent[slot] = from;
+		nodeHeap.push(g + estimate(tile % tilesX, tile / tilesX, gx, gy), slot);
+	}
+
+	/**
+	 * Returns the slot of a tile in the node table, or the empty slot to
+	 * claim for it if the tile has not been reached in this search.
+	 */
+	private int nodeSlot(int tile) {
+		int bits = nodeTile.length - 1;
+		int slot = (tile * 0x9e3779b9) >>> (32 - Integer
+				.numberOfTrailingZeros(nodeTile.length));
+		while (nodeStamp[slot] == nodeGeneration && nodeTile[slot] != tile)
+			slot = (slot + 1) & bits;
+		return slot;
+	}
+
+	/**
+	 * Makes sure the node table stays at most half full after adding some
+	 * nodes.
+	 *
+	 * @return true if the table grew, which moves every slot.
+	 */
+	private boolean reserveNodes(int extra) {
+		if ((nodeCount + extra) * 2 <= nodeTile.length)
+			return false;
+		int length = nodeTile.length;
+		while ((nodeCount + extra) * 2 > length)
+			length *= 2;
+		growNodes(length);
+		return true;
+	}
+
+	/**
+	 * Moves the nodes reached so far into a larger table, along with the
+	 * links to their parents and the open heap.
+	 */
+	private void growNodes(int length) {
+		int[] tiles = nodeTile, costs = nodeCost, parents = nodeParent,
+				stamps = nodeStamp;
+		nodeTile = new int[length];
+		nodeCost = new int[length];
+		nodeParent = new int[length];
+		nodeStamp = new int[length];
+		int[] moved = new int[tiles.length];
+		int bits = length - 1;
+		for (int old = 0; old < tiles.length; old++) {
+			if (stamps[old] != nodeGeneration)
+				continue;
+			int slot = (tiles[old] * 0x9e3779b9) >>> (32 - Integer
+					.numberOfTrailingZeros(length));
+			while (nodeStamp[slot] == nodeGeneration)
+				slot = (slot + 1) & bits;
+			moved[old] = slot;
+			nodeStamp[slot] = nodeGeneration;
+			nodeTile[slot] = tiles[old];
+			nodeCost[slot] = costs[old];
+		}
+		for (int old = 0; old < tiles.length; old++) {
+			if (stamps[old] == nodeGeneration)
+				nodeParent[moved[old]] = (parents[old] == NONE) ? NONE
+						: moved[parents[old]];
+		}
+		// The heap refers to old slots, so fill it again. Nodes already
+		// expanded are pushed as well and expanded again harmlessly.
+		nodeHeap.clear();
+		for (int slot = 0; slot < length; slot++) {
+			if (nodeStamp[slot] == nodeGeneration) {
+				int tile = nodeTile[slot];
+				nodeHeap.push(nodeCost[slot]
+						+ estimate(tile % tilesX, tile / tilesX, goalX, goalY),
+						slot);
+			}
+		}
+	}
+
+	/**
+	 * The octile distance between two tiles, which never overestimates.
+	 */
+	private static int estimate(int tx, int ty, int gx, int gy) {
+		int dx = Math.abs(gx - tx);
+		int dy = Math.abs(gy - ty);
+		return STRAIGHT * Math.max(dx, dy) + (DIAGONAL - STRAIGHT)
+				* Math.min(dx, dy);
+	}
+
+	/**
+	 * Appends the path between two tiles of a cluster, from the cache if
+	 * possible.
+	 *
+	 * @return false if there is no path within the cluster.
+	 */
+	private boolean appendSegment(Cluster c, int from, int to) {
+		Long key = Long.valueOf(((long) from << 32) | (to & 0xffffffffL));
+		int[] segment = segments.get(key);
+		if (segment == null) {
+			if (search(c, from, to) == NONE)
+				return false;
+			int steps = 0;
+			int last = local(c, to);
+			int first = local(c, from);
+			for (int l = last; l != first; l = parent[l])
+				steps++;
+			segment = new int[steps];
+			for (int l = last; l != first; l = parent[l])
+				segment[--steps] = (c.x0 + l % size) + (c.y0 + l / size)
+						* tilesX;
+			segments.put(key, segment);
+		}
+		for (int idx = 0; idx < segment.length; idx++)
+			append(segment[idx]);
+		return true;
+	}
+
+	private void append(int tile) {
+		if (pathLength == path.length)
+			path = Arrays.copyOf(path, pathLength * 2);
+		path[pathLength++] = tile;
+	}
+
+	private int[] finishPath() {
+		return Arrays.copyOf(path, pathLength);
+	}
+
+	/**
+	 * Returns the cost found by the last search to each transition of a
+	 * cluster, or NONE for those not reached.
+	 */
+	private int[] costsTo(Cluster c, int[] costs) {
+		if (costs.length < c.count)
+			costs = new int[c.count * 2];
+		for (int i = 0; i < c.count; i++) {
+			int l = local(c, c.tiles[i]);
+			costs[i] = (stamp[l] == generation) ? cost[l] : NONE;
+		}
+		return costs;
+	}
+
+	/**
+	 * Searches from a tile within a cluster. With a goal this is A* and
+	 * stops at the goal, otherwise every tile reachable within the cluster
+	 * is found.
+	 *
+	 * @return The cost of reaching the goal, or NONE.
+	 */
+	private int search(Cluster c, int from, int goal) {
+		loadOpen(c);
+		if (++generation == 0) {
+			Arrays.fill(stamp, 0);
+			generation = 1;
+		}
+		heap.clear();
+		int gx = (goal == NONE) ? 0 : goal % tilesX;
+		int gy = (goal == NONE) ? 0 : goal / tilesX;
+		int goalLocal = (goal == NONE) ? NONE : local(c, goal);
+		int first = local(c, from);
+		cost[first] = 0;
+		parent[first] = NONE;
+		stamp[first] = generation;
+		heap.push(0, first);
+		while (!heap.isEmpty()) {
+			int key = heap.peekKey();
+			int l = heap.pop();
+			int lx = l % size;
+			int ly = l / size;
+			int h = (goal == NONE) ? 0 : estimate(c.x0 + lx, c.y0 + ly, gx,
+					gy);
+			if (key > cost[l] + h)
+				continue;
+			if (l == goalLocal)
+				return cost[l];
+			for (int dir = 0; dir < 8; dir++) {
+				int nx = lx + TileLayer.DX[dir];
+				int ny = ly + TileLayer.DY[dir];
+				if (nx < 0 || ny < 0 || nx >= c.w || ny >= c.h
+						|| !open[nx + ny * size])
+					continue;
+				int step = STRAIGHT;
+				if ((dir & 1) != 0) {
+					// Diagonal, which may not cut a blocked corner.
+					if (!open[nx + ly * size] || !open[lx + ny * size])
+						continue;
+					step = DIAGONAL;
+				}
+				int n = nx + ny * size;
+				int g = cost[l] + step;
+				if (stamp[n] == generation && cost[n] <= g)
+					continue;
+				stamp[n] = generation;
+				cost[n] = g;
+				parent[n] = l;
+				heap.push(g + ((goal == NONE) ? 0 : estimate(c.x0 + nx, c.y0
+						+ ny, gx, gy)), n);
+			}
+		}
+		return NONE;
+	}
+
+	private int local(Cluster c, int tile) {
+		return (tile % tilesX - c.x0) + (tile / tilesX - c.y0) * size;
+	}
+
+	/**
+	 * Reads which tiles of a cluster are open into the scratch space.
+	 */
+	private void loadOpen(Cluster c) {
+		if (openCluster == c)
+			return;
+		for (int ly = 0; ly < c.h; ly++)
+			for (int lx = 0; lx < c.w; lx++)
+				open[lx + ly * size] = !world.blocks(c.x0 + lx, c.y0 + ly,
+						mask);
+		openCluster = c;
+	}
+
+	/**
+	 * Returns the cluster holding a tile, building it if necessary.
+	 */
+	private Cluster cluster(int tx, int ty) {
+		int idx = tx / size + (ty / size) * clustersX;
+		Cluster c = clusters[idx];
+		if (c == null) {
+			c = new Cluster();
+			c.x0 = (tx / size) * size;
+			c.y0 = (ty / size) * size;
+			c.w = Math.min(size, tilesX - c.x0);
+			c.h = Math.min(size, tilesY - c.y0);
+			clusters[idx] = c;
+		}
+		if (!c.built)
+			build(c);
+		return c;
+	}
+
+	/**
+	 * Finds the transitions out of a cluster and the costs between them.
+	 */
+	private void build(Cluster c) {
+		c.count = 0;
+		// Both clusters of a border scan it the same way, so they agree on
+		// its transitions.
+		if (c.x0 > 0)
+			scanBorder(c, c.x0, c.y0, 0, 1, c.h, -1, 0);
+		if (c.x0 + c.w < tilesX)
+			scanBorder(c, c.x0 + c.w - 1, c.y0, 0, 1, c.h, 1, 0);
+		if (c.y0 > 0)
+			scanBorder(c, c.x0, c.y0, 1, 0, c.w, 0, -1);
+		if (c.y0 + c.h < tilesY)
+			scanBorder(c, c.x0, c.y0 + c.h - 1, 1, 0, c.w, 0, 1);
+		int n = c.count;
+		if (c.dist.length < n * n)
+			c.dist = new int[n * n];
+		for (int i = 0; i < n; i++) {
+			search(c, c.tiles[i], NONE);
+			for (int j = 0; j < n; j++) {
+				int l = local(c, c.tiles[j]);
+				c.dist[i * n + j] = (stamp[l] == generation) ? cost[l] : NONE;
+			}
+		}
+		c.built = true;
+	}
+
+	/**
+	 * Adds a transition for each run of tiles along one side of a cluster
+	 * which are open on both sides of the border.
+	 */
+	private void scanBorder(Cluster c, int sx, int sy, int stepX, int stepY,
+			int length, int nx, int ny) {
+		int run = 0;
+		for (int i = 0; i <= length; i++) {
+			int tx = sx + i * stepX;
+			int ty = sy + i * stepY;
+			if (i < length && !world.blocks(tx, ty, mask)
+					&& !world.blocks(tx + nx, ty + ny, mask)) {
+				run++;
+				continue;
+			}
+			if (run >= LONG_RUN) {
+				addTransition(c, i - run, sx, sy, stepX, stepY, nx, ny);
+				addTransition(c, i - 1, sx, sy, stepX, stepY, nx, ny);
+			}
+			else if (run > 0)
+				addTransition(c, i - run + (run - 1) / 2, sx, sy, stepX,
+						stepY, nx, ny);
+			run = 0;
+		}
+	}
+
+	private void addTransition(Cluster c, int i, int sx, int sy, int stepX,
+			int stepY, int nx, int ny) {
+		if (c.count == c.tiles.length) {
+			c.tiles = Arrays.copyOf(c.tiles, c.count * 2);
+			c.partners = Arrays.copyOf(c.partners, c.count * 2);
+		}
+		int tx = sx + i * stepX;
+		int ty = sy + i * stepY;
+		c.tiles[c.count] = tx + ty * tilesX;
+		c.partners[c.count] = (tx + nx) + (ty + ny) * tilesX;
+		c.count++;
+	}
+
+	/**
+	 * Marks the clusters touching changed tiles for rebuilding and drops
+	 * their cached segments. Clusters next to the rectangle are included,
+	 * since their transitions depend on the tiles across their borders.
+	 */
+	@Override
+	public void tilesChanged(int tx, int ty, int w, int h) {
+		int cx1 = Math.max(0, (tx - 1) / size);
+		int cy1 = Math.max(0, (ty - 1) / size);
+		int cx2 = Math.min(clustersX - 1, (tx + w) / size);
+		int cy2 = Math.min(clusters.length / clustersX - 1, (ty + h) / size);
+		if (cx1 > cx2 || cy1 > cy2)
+			return;
+		for (int cy = cy1; cy <= cy2; cy++) {
+			for (int cx = cx1; cx <= cx2; cx++) {
+				Cluster c = clusters[cx + cy * clustersX];
+				if (c != null)
+					c.built = false;
+			}
+		}
+		openCluster = null;
+		Iterator<Long> it = segments.keySet().iterator();
+		while (it.hasNext()) {
+			int from = (int) (it.next().longValue() >>> 32);
+			int cx = (from % tilesX) / size;
+			int cy = (from / tilesX) / size;
+			if (cx >= cx1 && cx <= cx2 && cy >= cy1 && cy <= cy2)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Returns the number of refined segments held in the cache.
+	 *
+	 * @return The number of cached segments.
+	 */
+	public int getCachedSegments() {
+		return segments.size();
+	}
+}
@@ -5,7 +5,7 @@ import org.mercury.gfx.Sprite;
 
 public class Terrain {
 	public static final int SIZE = 16;
-	private static final int PATHING_NONE = 1, PATHING_GROUND = 2,
+	public static final int PATHING_NONE = 1, PATHING_GROUND = 2,
 			PATHING_AIR = 4, PATHING_WATER = 8;
 	private int pathing;
 	private int height;
@@ -31,6 +31,47 @@ public class Terrain {
 		pathing |= flag;
 	}
 
+	public int getPathing() {
+		return pathing;
+	}
+
+	/**
+	 * Checks if this tile blocks rays and line of sight, which is the case
+	 * for tiles nothing can path through.
+	 *
+	 * @return true if this tile blocks sight, otherwise false.
+	 */
+	public boolean blocksSight() {
+		return blocksSight(pathing);
+	}
+
+	/**
+	 * Checks if a tile with the specified pathing flags blocks sight.
+	 *
+	 * @param pathing
+	 *            The pathing flags of a tile.
+	 * @return true if the flags block sight, otherwise false.
+	 */
+	public static boolean blocksSight(int pathing) {
+		return (pathing & PATHING_NONE) != 0;
+	}
+
+	/**
+	 * Checks if a tile with the specified pathing flags blocks an entity. A
+	 * tile without flags blocks nothing, and one with PATHING_NONE blocks
+	 * everything.
+	 *
+	 * @param pathing
+	 *            The pathing flags of a tile.
+	 * @param mask
+	 *            The pathing flags the entity may move through.
+	 * @return true if the entity may not enter the tile, otherwise false.
+	 */
+	public static boolean blocks(int pathing, int mask) {
+		return (pathing & PATHING_NONE) != 0
+				|| (pathing != 0 && (pathing & mask) == 0);
+	}
+
 	public int ulx() {
 		return ulx;
 	}
@@ -0,0 +1,427 @@
+package org.mercury.world;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * A rectangle of tiles held in parallel primitive arrays in row major order,
+ * in place of an object per tile. Each tile holds a tile type, which a
+ * TilePalette maps to its sprite, a height and its pathing flags, a byte
+ * each. Types are widened to shorts the first time one above 255 is stored,
+ * so a tile only takes four bytes once the palette outgrows a byte. The
+ * position of a tile is implied by its index, and the tiles around it are
+ * found by adding the offsets of getNeighbourOffset to that index.
+ *
+ * @author tbertore
+ *
+ */
+public class TileLayer {
+	/**
+	 * The directions of a tile's neighbours, clockwise from north, as used by
+	 * getNeighbourOffset and the bits of getNeighbours.
+	 */
+	public static final int NORTH = 0, NORTH_EAST = 1, EAST = 2,
+			SOUTH_EAST = 3, SOUTH = 4, SOUTH_WEST = 5, WEST = 6,
+			NORTH_WEST = 7;
+	/**
+	 * The column and row offsets of each direction. The y axis points
+	 * towards south.
+	 */
+	public static final int[] DX = { 0, 1, 1, 1, 0, -1, -1, -1 };
+	public static final int[] DY = { -1, -1, 0, 1, 1, 1, 0, -1 };
+
+	private final int tilesX, tilesY;
+	// The tile types, in exactly one of these.
+	private byte[] byteTypes;
+	private short[] shortTypes;
+	final byte[] heights;
+	final byte[] pathing;
+	// A snapshot to hand tiles to before they change, while it is taken.
+	WorldSnapshot saving;
+
+	/**
+	 * Creates a new TileLayer with every tile of type 0, height 0 and no
+	 * pathing flags.
+	 *
+	 * @param tilesX
+	 *            The width of the layer in tiles.
+	 * @param tilesY
+	 *            The height of the layer in tiles.
+	 * @throws IllegalArgumentException
+	 *             If a dimension is less than 1.
+	 */
+	public TileLayer(int tilesX, int tilesY) {
+		if (tilesX <= 0 || tilesY <= 0)
+			throw new IllegalArgumentException("Dimensions must be > 0!");
+		this.tilesX = tilesX;
+		this.tilesY = tilesY;
+		int count = tilesX * tilesY;
+		byteTypes = new byte[count];
+		heights = new byte[count];
+		pathing = new byte[count];
+	}
+
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	public int getTilesY() {
+		return tilesY;
+	}
+
+	/**
+	 * Checks if a tile lies inside this layer.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @return true if the tile is inside, otherwise false.
+	 */
+	public boolean contains(int tx, int ty) {
+		return tx >= 0 && ty >= 0 && tx < tilesX && ty < tilesY;
+	}
+
+	/**
+	 * Returns the index of a tile in the arrays of this layer.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @return The index of the tile.
+	 */
+	public int index(int tx, int ty) {
+		return tx + ty * tilesX;
+	}
+
+	/**
+	 * Returns what to add to the index of a tile to get the index of one of
+	 * its neighbours. The result is only valid if the neighbour lies inside
+	 * this layer.
+	 *
+	 * @param direction
+	 *            The direction of the neighbour, e.g. NORTH.
+	 * @return The index offset of the neighbour.
+	 */
+	public int getNeighbourOffset(int direction) {
+		return DX[direction] + DY[direction] * tilesX;
+	}
+
+	public int getType(int tx, int ty) {
+		return getType(index(tx, ty));
+	}
+
+	/**
+	 * Returns the type of a tile by its index.
+	 *
+	 * @param idx
+	 *            The index of the tile.
+	 * @return The tile type.
+	 */
+	public int getType(int idx) {
+		return (byteTypes != null) ? byteTypes[idx] & 0xff : shortTypes[idx];
+	}
+
+	public int getHeight(int tx, int ty) {
+		return heights[index(tx, ty)];
+	}
+
+	public int getPathing(int tx, int ty) {
+		return pathing[index(tx, ty)] & 0xff;
+	}
+
+	/**
+	 * Returns the pathing flags of a tile by its index.
+	 *
+	 * @param idx
+	 *            The index of the tile.
+	 * @return The pathing flags of the tile.
+	 */
+	public int getPathing(int idx) {
+		return pathing[idx] & 0xff;
+	}
+
+	/**
+	 * Changes a tile.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @param type
+	 *            The tile type, from 0 to 32767.
+	 * @param height
+	 *            The height of the tile, from -128 to 127.
+	 * @param pathing
+	 *            The pathing flags of the tile.
+	 */
+	public void setTile(int tx, int ty, int type, int height, int pathing) {
+		int idx = index(tx, ty);
+		if (saving != null)
+			saving.preserveTiles(idx, idx + 1);
+		if (byteTypes != null && !fitsByte(type))
+			widen();
+		if (byteTypes != null)
+			byteTypes[idx] = (byte) type;
+		else
+			shortTypes[idx] = (short) type;
+		heights[idx] = (byte) height;
+		this.pathing[idx] = (byte) pathing;
+	}
+
+	public void setPathing(int tx, int ty, int pathing) {
+		int idx = index(tx, ty);
+		if (saving != null)
+			saving.preserveTiles(idx, idx + 1);
+		this.pathing[idx] = (byte) pathing;
+	}
+
+	/**
+	 * Sets every tile of a rectangle to the same tile. The rectangle is
+	 * clipped to this layer.
+	 *
+	 * @param tx
+	 *            The column of the upper left tile.
+	 * @param ty
+	 *            The row of the upper left tile.
+	 * @param w
+	 *            The width of the rectangle in tiles.
+	 * @param h
+	 *            The height of the rectangle in tiles.
+	 * @param type
+	 *            The tile type.
+	 * @param height
+	 *            The height of the tiles.
+	 * @param pathing
+	 *            The pathing flags of the tiles.
+	 */
+	public void fill(int tx, int ty, int w, int h, int type, int height,
+			int pathing) {
+		int x1 = Math.max(0, tx);
+		int y1 = Math.max(0, ty);
+		int x2 = Math.min(tilesX, tx + w);
+		int y2 = Math.min(tilesY, ty + h);
+		if (x1 >= x2 || y1 >= y2)
+			return;
+		if (byteTypes != null && !fitsByte(type))
+			widen();
+		for (int y = y1; y < y2; y++) {
+			int from = index(x1, y);
+			int to = index(x2, y);
+			if (saving != null)
+				saving.preserveTiles(from, to);
+			if (byteTypes != null)
+				Arrays.fill(byteTypes, from, to, (byte) type);
+			else
+				Arrays.fill(shortTypes, from, to, (short) type);
+			Arrays.fill(heights, from, to, (byte) height);
+			Arrays.fill(this.pathing, from, to, (byte) pathing);
+		}
+	}
+
+	/**
+	 * Copies a rectangle of tiles from another layer, or from elsewhere in
+	 * this one. The rectangle is clipped to both layers.
+	 *
+	 * @param src
+	 *            The layer to copy from.
+	 * @param sx
+	 *            The column of the upper left tile to copy.
+	 * @param sy
+	 *            The row of the upper left tile to copy.
+	 * @param w
+	 *            The width of the rectangle in tiles.
+	 * @param h
+	 *            The height of the rectangle in tiles.
+	 * @param dx
+	 *            The column to copy the upper left tile to.
+	 * @param dy
+	 *            The row to copy the upper left tile to.
+	 */
+	public void copy(TileLayer src, int sx, int sy, int w, int h, int dx,
+			int dy) {
+		// Clip the left and top edges against both layers, then the right
+		// and bottom ones.
+		int skipX = Math.max(0, Math.max(-sx, -dx));
+		int skipY = Math.max(0, Math.max(-sy, -dy));
+		sx += skipX;
+		dx += skipX;
+		sy += skipY;
+		dy += skipY;
+		w = Math.min(w - skipX, Math.min(src.tilesX - sx, tilesX - dx));
+		h = Math.min(h - skipY, Math.min(src.tilesY - sy, tilesY - dy));
+		if (w <= 0 || h <= 0)
+			return;
+		if (byteTypes != null && src.shortTypes != null
+				&& !src.typesFitByte(sx, sy, w, h))
+			widen();
+		// Rows are copied bottom up when moving down within one layer, so
+		// no row is overwritten before it is copied.
+		boolean up = src == this && dy > sy;
+		for (int row = 0; row < h; row++) {
+			int r = up ? h - 1 - row : row;
+			int from = src.index(sx, sy + r);
+			int to = index(dx, dy + r);
+			if (saving != null)
+				saving.preserveTiles(to, to + w);
+			copyTypes(src, from, to, w);
+			System.arraycopy(src.heights, from, heights, to, w);
+			System.arraycopy(src.pathing, from, pathing, to, w);
+		}
+	}
+
+	/**
+	 * Copies the types of a row of tiles, converting them if the layers hold
+	 * them at different widths.
+	 */
+	private void copyTypes(TileLayer src, int from, int to, int w) {
+		if (byteTypes != null && src.byteTypes != null)
+			System.arraycopy(src.byteTypes, from, byteTypes, to, w);
+		else if (shortTypes != null && src.shortTypes != null)
+			System.arraycopy(src.shortTypes, from, shortTypes, to, w);
+		else if (byteTypes != null) {
+			for (int idx = 0; idx < w; idx++)
+				byteTypes[to + idx] = (byte) src.shortTypes[from + idx];
+		}
+		else {
+			for (int idx = 0; idx < w; idx++)
+				shortTypes[to + idx] = (short) (src.byteTypes[from + idx]
+						& 0xff);
+		}
+	}
+
+	private static boolean fitsByte(int type) {
+		return (type & ~0xff) == 0;
+	}
+
+	/**
+	 * Checks if every type in a rectangle of tiles fits in a byte.
+	 */
+	private boolean typesFitByte(int tx, int ty, int w, int h) {
+		if (byteTypes != null)
+			return true;
+		for (int y = ty; y < ty + h; y++) {
+			for (int idx = index(tx, y), end = idx + w; idx < end; idx++) {
+				if (!fitsByte(shortTypes[idx]))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Switches the types to shorts. A snapshot being taken copies every tile
+	 * first, so it never reads the types while they are switched.
+	 */
+	private void widen() {
+		if (saving != null)
+			saving.preserveTiles(0, heights.length);
+		short[] wide = new short[byteTypes.length];
+		for (int idx = 0; idx < wide.length; idx++)
+			wide[idx] = (short) (byteTypes[idx] & 0xff);
+		shortTypes = wide;
+		byteTypes = null;
+	}
+
+	/**
+	 * Checks if the types of this layer are held as bytes, which they are
+	 * until one above 255 is stored.
+	 *
+	 * @return true if each type takes a byte, false if it takes two.
+	 */
+	public boolean hasByteTypes() {
+		return byteTypes != null;
+	}
+
+	/**
+	 * Copies the types of a range of tiles into a new array.
+	 */
+	short[] copyTypes(int from, int to) {
+		if (shortTypes != null)
+			return Arrays.copyOfRange(shortTypes, from, to);
+		short[] copy = new short[to - from];
+		for (int idx = from; idx < to; idx++)
+			copy[idx - from] = (short) (byteTypes[idx] & 0xff);
+		return copy;
+	}
+
+	/**
+	 * Reads the type of every tile from a buffer, widening the types if one
+	 * does not fit in a byte.
+	 */
+	void getTypes(ShortBuffer in) {
+		if (shortTypes != null) {
+			in.get(shortTypes);
+			return;
+		}
+		for (int idx = 0; idx < heights.length; idx++) {
+			short type = in.get();
+			if (byteTypes == null)
+				shortTypes[idx] = type;
+			else if (fitsByte(type))
+				byteTypes[idx] = (byte) type;
+			else {
+				widen();
+				shortTypes[idx] = type;
+			}
+		}
+	}
+
+	/**
+	 * Writes the type of every tile to a buffer, as shorts.
+	 */
+	void putTypes(ShortBuffer out) {
+		if (shortTypes != null) {
+			out.put(shortTypes);
+			return;
+		}
+		for (int idx = 0; idx < byteTypes.length; idx++)
+			out.put((short) (byteTypes[idx] & 0xff));
+	}
+
+	/**
+	 * Hashes the types as Arrays.hashCode does an array of shorts, whichever
+	 * width they are held in.
+	 */
+	int hashTypes() {
+		if (shortTypes != null)
+			return Arrays.hashCode(shortTypes);
+		int h = 1;
+		for (int idx = 0; idx < byteTypes.length; idx++)
+			h = 31 * h + (byteTypes[idx] & 0xff);
+		return h;
+	}
+
+	/**
+	 * Finds which of the eight neighbours of a tile share any of the
+	 * specified pathing flags, e.g. to find where a ground unit can step.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @param flags
+	 *            The pathing flags to look for.
+	 * @return A mask with the bit 1 << direction set for every neighbour
+	 *         inside this layer sharing a flag.
+	 */
+	public int getNeighbours(int tx, int ty, int flags) {
+		int idx = index(tx, ty);
+		int mask = 0;
+		if (tx > 0 && ty > 0 && tx < tilesX - 1 && ty < tilesY - 1) {
+			// Away from the edges, no bounds checks are needed.
+			for (int dir = 0; dir < 8; dir++) {
+				if ((pathing[idx + DX[dir] + DY[dir] * tilesX] & flags) != 0)
+					mask |= 1 << dir;
+			}
+			return mask;
+		}
+		for (int dir = 0; dir < 8; dir++) {
+			if (contains(tx + DX[dir], ty + DY[dir])
+					&& (pathing[idx + DX[dir] + DY[dir] * tilesX] & flags) != 0)
+				mask |= 1 << dir;
+		}
+		return mask;
+	}
+}
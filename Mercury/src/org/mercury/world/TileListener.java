@@ -0,0 +1,24 @@
+package org.mercury.world;
+
+/**
+ * Notified when tiles of a World change, e.g. to drop paths found across
+ * them.
+ *
+ * @author tbertore
+ *
+ */
+public interface TileListener {
+	/**
+	 * Called after the tiles in a rectangle have changed.
+	 *
+	 * @param tx
+	 *            The column of the upper left tile.
+	 * @param ty
+	 *            The row of the upper left tile.
+	 * @param w
+	 *            The width of the rectangle in tiles.
+	 * @param h
+	 *            The height of the rectangle in tiles.
+	 */
+	public void tilesChanged(int tx, int ty, int w, int h);
+}
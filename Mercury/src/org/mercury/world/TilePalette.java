@@ -0,0 +1,67 @@
+package org.mercury.world;
+
+import java.util.Arrays;
+
+import org.mercury.gfx.Sprite;
+
+/**
+ * Maps the tile types of a TileLayer to the sprites they are drawn with, so
+ * tiles only need to store a small type id.
+ *
+ * @author tbertore
+ *
+ */
+public class TilePalette {
+	private Sprite[] sprites = new Sprite[16];
+	private int count;
+
+	/**
+	 * Adds a tile type.
+	 *
+	 * @param sprite
+	 *            The sprite to draw tiles of the new type with.
+	 * @return The id of the new type.
+	 * @throws IllegalStateException
+	 *             If the palette is full.
+	 */
+	public int add(Sprite sprite) {
+		if (count > Short.MAX_VALUE)
+			throw new IllegalStateException("Tile palette is full!");
+		if (count == sprites.length)
+			sprites = Arrays.copyOf(sprites, count * 2);
+		sprites[count] = sprite;
+		return count++;
+	}
+
+	/**
+	 * Changes the sprite of a tile type.
+	 *
+	 * @param type
+	 *            The id of the type.
+	 * @param sprite
+	 *            The sprite to draw tiles of the type with.
+	 */
+	public void set(int type, Sprite sprite) {
+		sprites[type] = sprite;
+	}
+
+	/**
+	 * Returns the sprite of a tile type.
+	 *
+	 * @param type
+	 *            The id of the type.
+	 * @return The sprite, or null if the type has none.
+	 */
+	public Sprite get(int type) {
+		return (type >= 0 && type < count) ? sprites[type] : null;
+	}
+
+	/**
+	 * Returns the number of tile types.
+	 *
+	 * @return The number of types added.
+	 */
+	public int size() {
+		return count;
+	}
+}
@@ -1,22 +1,86 @@
 package org.mercury.world;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.mercury.Player;
 import org.mercury.entity.Entity;
 import org.mercury.entity.EntityManager;
+import org.mercury.gfx.Animation;
+import org.mercury.gfx.AnimationList;
 import org.mercury.gfx.Camera;
+import org.mercury.gfx.Sprite;
+import org.mercury.util.RayCast;
+import org.mercury.util.SpatialIndex;
+import org.mercury.util.SweptAABB;
+import org.mercury.util.TileVisitor;
 
 public class World {
+	private static final long HASH_OFFSET = 0xcbf29ce484222325L;
 	private EntityManager entityManager;
-	private ArrayList<Terrain> tiles;
+	// The tiles of the world, or null if they are streamed in chunks.
+	private TileLayer tiles;
+	private ChunkStore chunks;
+	private final TilePalette palette = new TilePalette();
+	private final ArrayList<TileListener> tileListeners =
+			new ArrayList<TileListener>();
 	private int tilesX, tilesY;
+	// Holds no state, so every line of sight check may share it.
+	private final SightBlocker sightBlocker = new SightBlocker();
 	public World(int tilesX, int tilesY) {
-		tiles = new ArrayList<Terrain>(tilesX * tilesY);
+		tiles = new TileLayer(tilesX, tilesY);
 		this.tilesX = tilesX;
 		this.tilesY = tilesY;
 		entityManager = new EntityManager(this);
 	}
+
+	/**
+	 * Creates a new World whose entities are organized by the specified
+	 * SpatialIndex, e.g. a SpatialGrid for maps of fairly even density.
+	 *
+	 * @param tilesX
+	 *            The width of the world in tiles.
+	 * @param tilesY
+	 *            The height of the world in tiles.
+	 * @param index
+	 *            An empty SpatialIndex covering getWidth() by getHeight()
+	 *            pixels.
+	 */
+	public World(int tilesX, int tilesY, SpatialIndex index) {
+		tiles = new TileLayer(tilesX, tilesY);
+		this.tilesX = tilesX;
+		this.tilesY = tilesY;
+		entityManager = new EntityManager(this, index);
+	}
+
+	/**
+	 * Creates a new World whose tiles are streamed in around its cameras from
+	 * a region file, for worlds too large to hold in memory.
+	 *
+	 * @param chunks
+	 *            The store to read tiles from.
+	 */
+	public World(ChunkStore chunks) {
+		this.chunks = chunks;
+		tilesX = chunks.getTilesX();
+		tilesY = chunks.getTilesY();
+		chunks.setTileListener(new TileListener() {
+			@Override
+			public void tilesChanged(int tx, int ty, int w, int h) {
+				World.this.tilesChanged(tx, ty, w, h);
+			}
+		});
+		entityManager = new EntityManager(this);
+	}
+
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	public int getTilesY() {
+		return tilesY;
+	}
+
 	public int getWidth() {
 		return Terrain.SIZE * tilesX;
 	}
@@ -24,16 +88,402 @@ public class World {
 	public int getHeight() {
 		return Terrain.SIZE * tilesY;
 	}
+	/**
+	 * Returns the tiles of this world.
+	 *
+	 * @return The tile layer, or null if the world is streamed in chunks.
+	 */
+	public TileLayer getTiles() {
+		return tiles;
+	}
+
+	/**
+	 * Returns the palette mapping the tile types of this world to sprites.
+	 *
+	 * @return The tile palette.
+	 */
+	public TilePalette getPalette() {
+		return palette;
+	}
+
+	/**
+	 * Changes the tile at the specified column and row.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @param type
+	 *            The tile type, an id from the palette.
+	 * @param height
+	 *            The height of the tile.
+	 * @param pathing
+	 *            The pathing flags of the tile.
+	 * @return true if the tile was changed, false if it lies outside the
+	 *         world or has not been loaded.
+	 */
+	public boolean setTile(int tx, int ty, int type, int height, int pathing) {
+		if (chunks != null) {
+			Chunk c = chunks.getChunkAt(tx, ty);
+			if (c == null)
+				return false;
+			c.setTile(tx % Chunk.SIZE, ty % Chunk.SIZE, type, height, pathing);
+		}
+		else if (tiles.contains(tx, ty))
+			tiles.setTile(tx, ty, type, height, pathing);
+		else
+			return false;
+		tilesChanged(tx, ty, 1, 1);
+		return true;
+	}
+
+	/**
+	 * Adds a listener told whenever tiles change.
+	 *
+	 * @param l
+	 *            The listener to add.
+	 */
+	public void addTileListener(TileListener l) {
+		tileListeners.add(l);
+	}
+
+	public void removeTileListener(TileListener l) {
+		tileListeners.remove(l);
+	}
+
+	/**
+	 * Tells every tile listener that the tiles in a rectangle have changed.
+	 * Called by setTile and when chunks are streamed in or out, and must be
+	 * called after changing tiles through getTiles directly.
+	 *
+	 * @param tx
+	 *            The column of the upper left tile.
+	 * @param ty
+	 *            The row of the upper left tile.
+	 * @param w
+	 *            The width of the rectangle in tiles.
+	 * @param h
+	 *            The height of the rectangle in tiles.
+	 */
+	public void tilesChanged(int tx, int ty, int w, int h) {
+		for (int idx = 0; idx < tileListeners.size(); idx++)
+			tileListeners.get(idx).tilesChanged(tx, ty, w, h);
+	}
+
+	/**
+	 * Returns the pathing flags of the tile at the specified column and row.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @return The pathing flags, or 0 if the tile lies outside the world or
+	 *         has not been loaded.
+	 */
+	public int getPathing(int tx, int ty) {
+		if (chunks != null)
+			return chunks.getPathing(tx, ty);
+		return tiles.contains(tx, ty) ? tiles.getPathing(tx, ty) : 0;
+	}
+
+	/**
+	 * Checks if an entity with the specified movement mask may not enter a
+	 * tile. Tiles outside the world are blocked, and so are tiles whose chunk
+	 * is not loaded, since nothing is known of them yet.
+	 *
+	 * @param tx
+	 *            The column of the tile.
+	 * @param ty
+	 *            The row of the tile.
+	 * @param mask
+	 *            The pathing flags the entity may move through.
+	 * @return true if the tile is blocked, otherwise false.
+	 */
+	public boolean blocks(int tx, int ty, int mask) {
+		if (tx < 0 || ty < 0 || tx >= tilesX || ty >= tilesY)
+			return true;
+		if (chunks != null) {
+			Chunk c = chunks.getChunkAt(tx, ty);
+			return c == null
+					|| Terrain.blocks(c.getPathing(tx % Chunk.SIZE, ty
+							% Chunk.SIZE), mask);
+		}
+		return Terrain.blocks(tiles.getPathing(tx, ty), mask);
+	}
+
+	/**
+	 * Checks if every tile under a box has been loaded. Boxes already over
+	 * tiles that are not loaded may not move, since those tiles block them
+	 * but boxes overlapping a tile are free to leave it.
+	 *
+	 * @param x
+	 *            The upper left x coordinate of the box.
+	 * @param y
+	 *            The upper left y coordinate of the box.
+	 * @param w
+	 *            The width of the box.
+	 * @param h
+	 *            The height of the box.
+	 * @return true if every tile of the world under the box is loaded,
+	 *         otherwise false.
+	 */
+	public boolean isLoaded(double x, double y, int w, int h) {
+		if (chunks == null)
+			return true;
+		int cx1 = Math.max(0, floorDiv((int) Math.floor(x))) / Chunk.SIZE;
+		int cy1 = Math.max(0, floorDiv((int) Math.floor(y))) / Chunk.SIZE;
+		int cx2 = Math.min(tilesX - 1, floorDiv((int) Math.ceil(x) + w - 1))
+				/ Chunk.SIZE;
+		int cy2 = Math.min(tilesY - 1, floorDiv((int) Math.ceil(y) + h - 1))
+				/ Chunk.SIZE;
+		for (int cy = cy1; cy <= cy2; cy++) {
+			for (int cx = cx1; cx <= cx2; cx++) {
+				if (chunks.getChunk(cx, cy) == null)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sweeps a moving box against the tiles it may not enter and the edges of
+	 * the world, updating the sweep if it makes contact earlier. Only the
+	 * tiles covered by the whole move are looked up.
+	 *
+	 * @param sweep
+	 *            The sweep holding the earliest contact so far.
+	 * @param x
+	 *            The upper left x coordinate of the box.
+	 * @param y
+	 *            The upper left y coordinate of the box.
+	 * @param w
+	 *            The width of the box.
+	 * @param h
+	 *            The height of the box.
+	 * @param dx
+	 *            The distance the box travels along the x axis.
+	 * @param dy
+	 *            The distance the box travels along the y axis.
+	 * @param mask
+	 *            The pathing flags the box may move through.
+	 * @return true if an earlier contact was found, otherwise false.
+	 */
+	public boolean sweepTerrain(SweptAABB sweep, double x, double y, int w,
+			int h, double dx, double dy, int mask) {
+		int tx1 = floorDiv((int) Math.floor(Math.min(x, x + dx)));
+		int ty1 = floorDiv((int) Math.floor(Math.min(y, y + dy)));
+		int tx2 = floorDiv((int) Math.ceil(Math.max(x, x + dx)) + w - 1);
+		int ty2 = floorDiv((int) Math.ceil(Math.max(y, y + dy)) + h - 1);
+		boolean hit = false;
+		for (int ty = ty1; ty <= ty2; ty++) {
+			for (int tx = tx1; tx <= tx2; tx++) {
+				if (blocks(tx, ty, mask)
+						&& sweep.sweep(x, y, w, h, dx, dy, tx * Terrain.SIZE,
+								ty * Terrain.SIZE, Terrain.SIZE, Terrain.SIZE))
+					hit = true;
+			}
+		}
+		return hit;
+	}
+
+	/**
+	 * Returns the tile column or row holding a pixel coordinate.
+	 */
+	private static int floorDiv(int pixel) {
+		return (pixel >= 0) ? pixel / Terrain.SIZE : (pixel + 1)
+				/ Terrain.SIZE - 1;
+	}
+
+	public EntityManager getEntityManager() {
+		return entityManager;
+	}
+
+	/**
+	 * Returns the store streaming the tiles of this world.
+	 *
+	 * @return The chunk store, or null if every tile is held in memory.
+	 */
+	public ChunkStore getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * Finds how far along a segment sight reaches before being blocked by a
+	 * tile. The edges of the world block sight.
+	 *
+	 * @param x1
+	 *            The x coordinate of the start of the segment.
+	 * @param y1
+	 *            The y coordinate of the start of the segment.
+	 * @param x2
+	 *            The x coordinate of the end of the segment.
+	 * @param y2
+	 *            The y coordinate of the end of the segment.
+	 * @return The fraction of the segment travelled before entering a
+	 *         blocking tile, or 1 if none is crossed.
+	 */
+	public double castTerrain(double x1, double y1, double x2, double y2) {
+		SightLine sightLine = new SightLine();
+		RayCast.traverseTiles(x1, y1, x2, y2, Terrain.SIZE, sightLine);
+		return sightLine.time;
+	}
+
+	/**
+	 * Checks if the end of a segment can be seen from its start, i.e. no tile
+	 * along it blocks sight. Allocates nothing, and may be called by several
+	 * threads at once.
+	 *
+	 * @param x1
+	 *            The x coordinate of the start of the segment.
+	 * @param y1
+	 *            The y coordinate of the start of the segment.
+	 * @param x2
+	 *            The x coordinate of the end of the segment.
+	 * @param y2
+	 *            The y coordinate of the end of the segment.
+	 * @return true if nothing blocks the segment, otherwise false.
+	 */
+	public boolean hasLineOfSight(double x1, double y1, double x2, double y2) {
+		return RayCast.traverseTiles(x1, y1, x2, y2, Terrain.SIZE,
+				sightBlocker);
+	}
+
+	/**
+	 * Casts a ray through the entities of the world, stopping at the first
+	 * tile which blocks sight. If the ray is blocked its limit is left below
+	 * 1, at the time it enters the blocking tile.
+	 *
+	 * @param ray
+	 *            The ray to cast, already started with RayCast.begin. Holds
+	 *            the entities hit once the cast is done.
+	 */
+	public void castRay(RayCast ray) {
+		ray.clip(castTerrain(ray.getStartX(), ray.getStartY(), ray.getEndX(),
+				ray.getEndY()));
+		entityManager.castRay(ray);
+	}
+
 	public void addEntity(Entity e) {
 		entityManager.register(e);
 	}
 	public void addPlayer(Player player) {
 		entityManager.register(player.getHero());
+		if (player.getCamera() != null) {
+			entityManager.addCamera(player.getCamera());
+			if (chunks != null)
+				chunks.addCamera(player.getCamera());
+		}
 	}
 	public void update() {
+		if (chunks != null)
+			chunks.update();
 		entityManager.update();
 	}
+
+	/**
+	 * Hashes the tiles held in memory and the state of every entity, e.g. to
+	 * check that a replay of a session has not diverged from the original.
+	 * Equal worlds ticked the same way hash the same, in any run of the game.
+	 * Takes a pass over every tile and entity.
+	 *
+	 * @return The hash.
+	 */
+	public long hashState() {
+		long h = HASH_OFFSET;
+		if (tiles != null) {
+			h = mix(h, tiles.hashTypes());
+			h = mix(h, Arrays.hashCode(tiles.heights));
+			h = mix(h, Arrays.hashCode(tiles.pathing));
+		}
+		int count = entityManager.getEntityCount();
+		h = mix(h, count);
+		for (int idx = 0; idx < count; idx++) {
+			Entity e = entityManager.getEntity(idx);
+			h = mix(h, Double.doubleToLongBits(e.getPosX()));
+			h = mix(h, Double.doubleToLongBits(e.getPosY()));
+			h = mix(h, Double.doubleToLongBits(e.getSpeed()));
+			h = mix(h, e.getDeltaEast() << 16 ^ e.getDeltaNorth());
+			// An entity may not have been given a state yet.
+			String state = e.getState();
+			h = mix(h, (state != null) ? state.hashCode() : 0);
+			AnimationList animations = e.getAnimations();
+			Animation live = (animations != null) ? animations.getLive()
+					: null;
+			if (live != null) {
+				h = mix(h, animations.getOrientation());
+				h = mix(h, live.getFrameIndex() << 16 ^ live.getTickIndex());
+			}
+		}
+		// Spread every bit over the result, so nearby states print apart.
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		return h ^ (h >>> 33);
+	}
+
+	// One step of FNV-1a over a long in place of a byte.
+	private static long mix(long h, long value) {
+		return (h ^ value) * 0x100000001b3L;
+	}
 	public void render(Camera c) {
+		// Draw the tiles in view whose type has a sprite.
+		int tx1 = Math.max(0, c.x / Terrain.SIZE);
+		int ty1 = Math.max(0, c.y / Terrain.SIZE);
+		int tx2 = Math.min(tilesX - 1, (c.x + c.w) / Terrain.SIZE);
+		int ty2 = Math.min(tilesY - 1, (c.y + c.h) / Terrain.SIZE);
+		for (int ty = ty1; ty <= ty2; ty++) {
+			for (int tx = tx1; tx <= tx2; tx++) {
+				Sprite sprite = palette.get(getType(tx, ty));
+				if (sprite != null)
+					sprite.render(c, tx * Terrain.SIZE, ty * Terrain.SIZE);
+			}
+		}
 		entityManager.render(c);
 	}
+
+	/**
+	 * Returns the type of a tile inside the world, or -1 if it has not been
+	 * loaded.
+	 */
+	private int getType(int tx, int ty) {
+		if (chunks == null)
+			return tiles.getType(tx, ty);
+		Chunk chunk = chunks.getChunkAt(tx, ty);
+		return (chunk != null) ? chunk.getType(tx % Chunk.SIZE, ty
+				% Chunk.SIZE) : -1;
+	}
+
+	/**
+	 * Checks if a tile blocks sight. The edges of the world do.
+	 */
+	private boolean blocksSight(int tx, int ty) {
+		if (tx < 0 || ty < 0 || tx >= tilesX || ty >= tilesY)
+			return true;
+		return Terrain.blocksSight(getPathing(tx, ty));
+	}
+
+	/**
+	 * Stops a walk along a ray at the first tile which blocks sight and
+	 * records when it was entered. Created for each cast, so that casts do
+	 * not share their result.
+	 */
+	private class SightLine implements TileVisitor {
+		private double time = 1;
+
+		@Override
+		public boolean visitTile(int tx, int ty, double time) {
+			if (!blocksSight(tx, ty))
+				return true;
+			this.time = time;
+			return false;
+		}
+	}
+
+	/**
+	 * Stops a walk along a ray at the first tile which blocks sight.
+	 */
+	private class SightBlocker implements TileVisitor {
+		@Override
+		public boolean visitTile(int tx, int ty, double time) {
+			return !blocksSight(tx, ty);
+		}
+	}
 }
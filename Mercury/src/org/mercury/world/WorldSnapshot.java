@@ -0,0 +1,829 @@
+package org.mercury.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityFactory;
+import org.mercury.entity.EntityListener;
+import org.mercury.entity.EntityManager;
+import org.mercury.entity.EntityStore;
+import org.mercury.gfx.Animation;
+import org.mercury.gfx.AnimationList;
+
+/**
+ * The state of a World at one moment: its tiles and the position, size,
+ * movement and animation of every entity, kept in primitive arrays so it can
+ * be written and read in bulk. A snapshot is taken by capture and applied to
+ * a world by restore, and written to and read from a file in between.
+ * Capturing copies everything it keeps, so a snapshot may be written on
+ * another thread while the world goes on changing.
+ * <p>
+ * For large worlds, begin takes a snapshot without copying anything: tiles
+ * and entities are copied into it just before they next change, the
+ * positions of packed entities by their EntityStore, and whatever has not
+ * changed is copied by complete, on another thread, while the world keeps
+ * ticking.
+ * <p>
+ * The file is little endian. A header of HEADER_BYTES gives the version and
+ * the offset of each section; the tiles follow as the type, height and
+ * pathing arrays of a TileLayer, then each entity field as one column, then a
+ * table of the strings naming entity kinds, states and animations. Every
+ * column starts on a multiple of eight bytes. Files are written through a
+ * large direct buffer and read by mapping them into memory.
+ * <p>
+ * The tiles of a world streamed from a ChunkStore live in its region file,
+ * which is flushed on save rather than copied. Entity ids, pending messages
+ * and timers are not kept; entities are recreated by an EntityFactory and
+ * registered in their saved order.
+ *
+ * @author tbertore
+ *
+ */
+public class WorldSnapshot {
+	private static final int MAGIC = 0x4d534e50;
+	/**
+	 * The version of the file format written.
+	 */
+	public static final int VERSION = 1;
+	/**
+	 * The size of the file header in bytes.
+	 */
+	public static final int HEADER_BYTES = 64;
+	private static final int FLAG_TILES = 1;
+	private static final int BUFFER_BYTES = 1 << 20;
+	private static final int NONE = -1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Tiles are handed over in pages of this many, as they are about to
+	// change or as the snapshot is completed.
+	private static final int PAGE_TILES = 4096;
+	// Entities are completed this many at a time, so the tick thread is
+	// never held up for long.
+	private static final int BATCH = 256;
+
+	private int tilesX, tilesY;
+	// The tiles, or null if the world streams them.
+	private short[] types;
+	private byte[] heights, pathing;
+	private int count;
+	private double[] x, y, speed;
+	private int[] w, h, deltaEast, deltaNorth, movementMask;
+	// Indices into strings, or NONE.
+	private int[] kind, state, animation;
+	private int[] orientation, frame, tick;
+	private final ArrayList<String> strings = new ArrayList<String>();
+	// Whether the positions are copied from an EntityStore, in bulk.
+	private boolean packed;
+	// While the snapshot is being taken: the world, its entities in their
+	// order at the time, the state of those changed since, and the pages of
+	// tiles copied before they changed.
+	private World world;
+	private TileLayer layer;
+	private EntityStore store;
+	private Entity[] order;
+	private IdentityHashMap<Entity, EntityState> changed;
+	private short[][] typePages;
+	private byte[][] heightPages, pathingPages;
+	private volatile boolean complete = true;
+	private final Object lock = new Object();
+
+	/**
+	 * The state of one entity.
+	 */
+	private static class EntityState {
+		double x, y, speed;
+		int w, h, deltaEast, deltaNorth, movementMask;
+		String kind, state, animation;
+		int orientation, frame, tick;
+
+		void read(Entity e) {
+			x = e.getPosX();
+			y = e.getPosY();
+			w = e.getW();
+			h = e.getH();
+			speed = e.getSpeed();
+			deltaEast = e.getDeltaEast();
+			deltaNorth = e.getDeltaNorth();
+			movementMask = e.getMovementMask();
+			kind = e.getKind();
+			state = e.getState();
+			AnimationList animations = e.getAnimations();
+			Animation live = (animations != null) ? animations.getLive()
+					: null;
+			animation = (live != null) ? animations.getLiveName() : null;
+			if (live != null) {
+				orientation = animations.getOrientation();
+				frame = live.getFrameIndex();
+				tick = live.getTickIndex();
+			}
+		}
+	}
+
+	private WorldSnapshot() {
+	}
+
+	private WorldSnapshot(World world, WorldSnapshot spare) {
+		tilesX = world.getTilesX();
+		tilesY = world.getTilesY();
+		this.world = world;
+		layer = world.getTiles();
+		EntityManager manager = world.getEntityManager();
+		count = manager.getEntityCount();
+		order = new Entity[count];
+		for (int idx = 0; idx < count; idx++)
+			order[idx] = manager.getEntity(idx);
+		if (spare != null && spare.x.length >= count)
+			reuse(spare);
+		else
+			allocate(count);
+		store = manager.getStore();
+		packed = store != null;
+	}
+
+	/**
+	 * Takes a snapshot of a world. Must be called between ticks.
+	 *
+	 * @param world
+	 *            The world to take a snapshot of.
+	 * @return The snapshot.
+	 */
+	public static WorldSnapshot capture(World world) {
+		WorldSnapshot s = new WorldSnapshot(world, null);
+		s.complete = false;
+		s.complete();
+		s.world = null;
+		s.layer = null;
+		s.store = null;
+		return s;
+	}
+
+	/**
+	 * Starts taking a snapshot of a world, as it is between two ticks, while
+	 * copying nothing on the tick thread. The world goes on ticking while
+	 * complete is called on another thread. Until then, tiles and entities
+	 * are copied into the snapshot just before they change; if the entities
+	 * are packed, their EntityStore keeps their positions, as only setters
+	 * change the rest of their state. Only one snapshot of a world may be in
+	 * progress at a time.
+	 * <p>
+	 * Entities sharing an animation are saved at the frame it has when the
+	 * first of them is copied.
+	 *
+	 * @param world
+	 *            The world to take a snapshot of. Its tiles must be changed
+	 *            through TileLayer or World, and its entities through their
+	 *            setters, their update, or after being woken.
+	 * @return The snapshot in progress.
+	 */
+	public static WorldSnapshot begin(World world) {
+		return begin(world, null);
+	}
+
+	/**
+	 * Starts taking a snapshot of a world as begin(World) does, reusing the
+	 * arrays of a snapshot which has been written and is no longer needed,
+	 * so they are not allocated anew on the tick thread. The spare snapshot
+	 * must not be used afterwards.
+	 */
+	static WorldSnapshot begin(World world, WorldSnapshot spare) {
+		final WorldSnapshot s = new WorldSnapshot(world, spare);
+		s.changed = new IdentityHashMap<Entity, EntityState>();
+		if (s.layer != null) {
+			int pages = (s.layer.heights.length + PAGE_TILES - 1)
+					/ PAGE_TILES;
+			s.typePages = new short[pages][];
+			s.heightPages = new byte[pages][];
+			s.pathingPages = new byte[pages][];
+			s.layer.saving = s;
+		}
+		if (s.store != null)
+			s.store.keepPositions();
+		world.getEntityManager().setEntityListener(new EntityListener() {
+			@Override
+			public void entityChanging(Entity e) {
+				s.preserve(e);
+			}
+		});
+		s.complete = false;
+		return s;
+	}
+
+	/**
+	 * Copies the state of an entity before it changes, unless it was copied
+	 * before.
+	 */
+	private void preserve(Entity e) {
+		if (complete)
+			return;
+		synchronized (lock) {
+			if (complete || changed.containsKey(e))
+				return;
+			EntityState saved = new EntityState();
+			saved.read(e);
+			changed.put(e, saved);
+		}
+	}
+
+	/**
+	 * Copies the pages holding a range of tiles before they change, unless
+	 * they were copied before.
+	 */
+	void preserveTiles(int from, int to) {
+		if (complete)
+			return;
+		synchronized (lock) {
+			if (complete)
+				return;
+			int last = (to - 1) / PAGE_TILES;
+			for (int page = from / PAGE_TILES; page <= last; page++)
+				copyPage(page);
+		}
+	}
+
+	private void copyPage(int page) {
+		if (typePages[page] != null)
+			return;
+		int from = page * PAGE_TILES;
+		int to = Math.min(from + PAGE_TILES, layer.heights.length);
+		typePages[page] = layer.copyTypes(from, to);
+		heightPages[page] = Arrays.copyOfRange(layer.heights, from, to);
+		pathingPages[page] = Arrays.copyOfRange(layer.pathing, from, to);
+	}
+
+	/**
+	 * Finishes taking a snapshot started by begin, copying everything which
+	 * has not changed since. May be called on any thread while the world
+	 * goes on ticking, and holds up the tick thread for at most a batch of
+	 * entities or a page of tiles at a time. Does nothing if the snapshot is
+	 * complete.
+	 */
+	public void complete() {
+		if (complete)
+			return;
+		if (layer != null && typePages == null) {
+			// Taken between ticks, so the tiles cannot change.
+			types = layer.copyTypes(0, layer.heights.length);
+			heights = layer.heights.clone();
+			pathing = layer.pathing.clone();
+		}
+		else if (layer != null) {
+			for (int page = 0; page < typePages.length; page++) {
+				synchronized (lock) {
+					copyPage(page);
+				}
+			}
+			int tiles = layer.heights.length;
+			types = new short[tiles];
+			heights = new byte[tiles];
+			pathing = new byte[tiles];
+			for (int page = 0; page < typePages.length; page++) {
+				int from = page * PAGE_TILES;
+				int length = typePages[page].length;
+				System.arraycopy(typePages[page], 0, types, from, length);
+				System.arraycopy(heightPages[page], 0, heights, from, length);
+				System.arraycopy(pathingPages[page], 0, pathing, from, length);
+			}
+		}
+		if (store != null && changed == null)
+			store.copyPositions(x, y);
+		else if (store != null)
+			store.copyKeptPositions(x, y);
+		HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		EntityState live = new EntityState();
+		for (int start = 0; start < count; start += BATCH) {
+			int end = Math.min(count, start + BATCH);
+			if (changed == null) {
+				for (int idx = start; idx < end; idx++) {
+					live.read(order[idx]);
+					put(idx, live, ids);
+				}
+				continue;
+			}
+			synchronized (lock) {
+				for (int idx = start; idx < end; idx++) {
+					EntityState saved = changed.get(order[idx]);
+					if (saved == null) {
+						live.read(order[idx]);
+						saved = live;
+					}
+					put(idx, saved, ids);
+				}
+			}
+		}
+		synchronized (lock) {
+			complete = true;
+			changed = null;
+			typePages = null;
+			heightPages = null;
+			pathingPages = null;
+			order = null;
+		}
+	}
+
+	/**
+	 * Stops the world handing changes to this snapshot once it is complete.
+	 * Must be called on the tick thread, between ticks.
+	 */
+	public void detach() {
+		if (world == null)
+			return;
+		if (layer != null && layer.saving == this)
+			layer.saving = null;
+		world.getEntityManager().setEntityListener(null);
+		world = null;
+		layer = null;
+		store = null;
+	}
+
+	/**
+	 * Checks if complete has finished.
+	 *
+	 * @return true if the snapshot holds all of its state.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	private void put(int idx, EntityState e, HashMap<String, Integer> ids) {
+		if (!packed) {
+			x[idx] = e.x;
+			y[idx] = e.y;
+		}
+		w[idx] = e.w;
+		h[idx] = e.h;
+		speed[idx] = e.speed;
+		deltaEast[idx] = e.deltaEast;
+		deltaNorth[idx] = e.deltaNorth;
+		movementMask[idx] = e.movementMask;
+		kind[idx] = intern(ids, e.kind);
+		state[idx] = intern(ids, e.state);
+		animation[idx] = intern(ids, e.animation);
+		orientation[idx] = e.orientation;
+		frame[idx] = e.frame;
+		tick[idx] = e.tick;
+	}
+
+	private void allocate(int count) {
+		this.count = count;
+		x = new double[count];
+		y = new double[count];
+		speed = new double[count];
+		w = new int[count];
+		h = new int[count];
+		deltaEast = new int[count];
+		deltaNorth = new int[count];
+		movementMask = new int[count];
+		kind = new int[count];
+		state = new int[count];
+		animation = new int[count];
+		orientation = new int[count];
+		frame = new int[count];
+		tick = new int[count];
+	}
+
+	/**
+	 * Takes over the arrays of another snapshot, which may be longer than
+	 * the number of entities.
+	 */
+	private void reuse(WorldSnapshot spare) {
+		x = spare.x;
+		y = spare.y;
+		speed = spare.speed;
+		w = spare.w;
+		h = spare.h;
+		deltaEast = spare.deltaEast;
+		deltaNorth = spare.deltaNorth;
+		movementMask = spare.movementMask;
+		kind = spare.kind;
+		state = spare.state;
+		animation = spare.animation;
+		orientation = spare.orientation;
+		frame = spare.frame;
+		tick = spare.tick;
+	}
+
+	private int intern(HashMap<String, Integer> ids, String string) {
+		if (string == null)
+			return NONE;
+		Integer id = ids.get(string);
+		if (id == null) {
+			id = strings.size();
+			ids.put(string, id);
+			strings.add(string);
+		}
+		return id;
+	}
+
+	/**
+	 * Applies this snapshot to a world holding no entities. The tiles are
+	 * copied into the world, unless it streams them, and every entity is
+	 * recreated and registered.
+	 *
+	 * @param world
+	 *            The world to restore.
+	 * @param factory
+	 *            Creates entities by kind.
+	 * @throws IllegalArgumentException
+	 *             If the world is of a different size than this snapshot,
+	 *             or the factory returns null for a kind.
+	 */
+	public void restore(World world, EntityFactory factory) {
+		if (world.getTilesX() != tilesX || world.getTilesY() != tilesY)
+			throw new IllegalArgumentException("World size does not match!");
+		TileLayer layer = world.getTiles();
+		if (layer != null && types != null) {
+			layer.getTypes(ShortBuffer.wrap(types));
+			System.arraycopy(heights, 0, layer.heights, 0, heights.length);
+			System.arraycopy(pathing, 0, layer.pathing, 0, pathing.length);
+			world.tilesChanged(0, 0, tilesX, tilesY);
+		}
+		for (int idx = 0; idx < count; idx++) {
+			String k = strings.get(kind[idx]);
+			Entity e = factory.create(k, (int) x[idx], (int) y[idx]);
+			if (e == null)
+				throw new IllegalArgumentException("Unknown entity kind: "
+						+ k);
+			e.setPosition(x[idx], y[idx]);
+			e.setSize(w[idx], h[idx]);
+			e.setSpeed(speed[idx]);
+			e.setMovementMask(movementMask[idx]);
+			// The animation set up for the direction is replaced below by
+			// the saved one.
+			if (deltaEast[idx] != 0 || deltaNorth[idx] != 0)
+				e.setPropagationVector(deltaEast[idx], deltaNorth[idx]);
+			if (state[idx] != NONE)
+				e.setState(strings.get(state[idx]));
+			AnimationList animations = e.getAnimations();
+			if (animation[idx] != NONE && animations != null) {
+				String name = strings.get(animation[idx]);
+				if (animations.shouldReinitialize(orientation[idx], name))
+					animations.setLive(name, orientation[idx]);
+				animations.getLive().setFrame(frame[idx], tick[idx]);
+			}
+			world.addEntity(e);
+		}
+	}
+
+	/**
+	 * Saves a world to a file, flushing its region file if it streams its
+	 * tiles.
+	 *
+	 * @param world
+	 *            The world to save. Must not be ticking.
+	 * @param f
+	 *            The file to write.
+	 * @throws IOException
+	 *             If a file cannot be written.
+	 */
+	public static void save(World world, File f) throws IOException {
+		if (world.getChunks() != null)
+			world.getChunks().flush();
+		capture(world).write(f);
+	}
+
+	/**
+	 * Loads a world saved by save into a world of the same size holding no
+	 * entities.
+	 *
+	 * @param f
+	 *            The file to read.
+	 * @param world
+	 *            The world to restore.
+	 * @param factory
+	 *            Creates entities by kind.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a snapshot.
+	 */
+	public static void load(File f, World world, EntityFactory factory)
+			throws IOException {
+		read(f).restore(world, factory);
+	}
+
+	/**
+	 * Writes this snapshot to a file, replacing its contents.
+	 *
+	 * @param f
+	 *            The file to write.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void write(File f) throws IOException {
+		FileChannel channel = FileChannel.open(f.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			write(channel);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes this snapshot to the start of a channel, without forcing it to
+	 * disk. A snapshot started by begin is completed first.
+	 *
+	 * @param channel
+	 *            An empty channel open for writing.
+	 * @throws IOException
+	 *             If the channel cannot be written.
+	 */
+	public void write(FileChannel channel) throws IOException {
+		complete();
+		Output out = new Output(channel);
+		out.skip(HEADER_BYTES);
+		long tilesOffset = out.position();
+		if (types != null) {
+			out.putShorts(types);
+			out.putBytes(heights);
+			out.putBytes(pathing);
+		}
+		long entitiesOffset = out.position();
+		out.putDoubles(x, count);
+		out.putDoubles(y, count);
+		out.putDoubles(speed, count);
+		out.putInts(w, count);
+		out.putInts(h, count);
+		out.putInts(deltaEast, count);
+		out.putInts(deltaNorth, count);
+		out.putInts(movementMask, count);
+		out.putInts(kind, count);
+		out.putInts(state, count);
+		out.putInts(animation, count);
+		out.putInts(orientation, count);
+		out.putInts(frame, count);
+		out.putInts(tick, count);
+		long stringsOffset = out.position();
+		for (int idx = 0; idx < strings.size(); idx++) {
+			byte[] bytes = strings.get(idx).getBytes(UTF8);
+			out.putInts(new int[] { bytes.length }, 1);
+			out.putBytes(bytes);
+		}
+		long length = out.position();
+		out.flush();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(
+				ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION);
+		header.putInt((types != null) ? FLAG_TILES : 0);
+		header.putInt(tilesX).putInt(tilesY).putInt(count);
+		header.putInt(strings.size()).putInt(0);
+		header.putLong(tilesOffset).putLong(entitiesOffset);
+		header.putLong(stringsOffset).putLong(length);
+		header.flip();
+		for (long pos = 0; header.hasRemaining();)
+			pos += channel.write(header, pos);
+	}
+
+	/**
+	 * Reads a snapshot from a file by mapping it into memory.
+	 *
+	 * @param f
+	 *            The file to read.
+	 * @return The snapshot.
+	 * @throws IOException
+	 *             If the file cannot be read, is not a snapshot or is of
+	 *             another version.
+	 */
+	public static WorldSnapshot read(File f) throws IOException {
+		FileChannel channel = FileChannel.open(f.toPath(),
+				StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < HEADER_BYTES || size > Integer.MAX_VALUE)
+				throw new IOException("Not a snapshot: " + f);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			return read(map, f);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	private static WorldSnapshot read(ByteBuffer in, File f)
+			throws IOException {
+		if (in.getInt() != MAGIC)
+			throw new IOException("Not a snapshot: " + f);
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version
+					+ ": " + f);
+		int flags = in.getInt();
+		WorldSnapshot s = new WorldSnapshot();
+		s.tilesX = in.getInt();
+		s.tilesY = in.getInt();
+		int count = in.getInt();
+		int stringCount = in.getInt();
+		in.getInt();
+		long tilesOffset = in.getLong();
+		long entitiesOffset = in.getLong();
+		long stringsOffset = in.getLong();
+		long length = in.getLong();
+		long tiles = (long) s.tilesX * s.tilesY;
+		if (s.tilesX <= 0 || s.tilesY <= 0 || count < 0 || stringCount < 0
+				|| length != in.capacity()
+				|| tilesOffset != HEADER_BYTES
+				|| entitiesOffset != tilesOffset
+						+ (((flags & FLAG_TILES) != 0) ? align(tiles * 2)
+								+ 2 * align(tiles) : 0)
+				|| stringsOffset != entitiesOffset + 3 * align(count * 8L)
+						+ 11 * align(count * 4L) || stringsOffset > length)
+			throw new IOException("Corrupt snapshot: " + f);
+		in.position((int) tilesOffset);
+		if ((flags & FLAG_TILES) != 0) {
+			s.types = new short[(int) tiles];
+			s.heights = new byte[(int) tiles];
+			s.pathing = new byte[(int) tiles];
+			in.asShortBuffer().get(s.types);
+			in.position(in.position() + (int) align(tiles * 2));
+			in.get(s.heights);
+			skip(in, tiles);
+			in.get(s.pathing);
+			skip(in, tiles);
+		}
+		s.allocate(count);
+		getDoubles(in, s.x);
+		getDoubles(in, s.y);
+		getDoubles(in, s.speed);
+		getInts(in, s.w);
+		getInts(in, s.h);
+		getInts(in, s.deltaEast);
+		getInts(in, s.deltaNorth);
+		getInts(in, s.movementMask);
+		getInts(in, s.kind);
+		getInts(in, s.state);
+		getInts(in, s.animation);
+		getInts(in, s.orientation);
+		getInts(in, s.frame);
+		getInts(in, s.tick);
+		for (int idx = 0; idx < stringCount; idx++) {
+			// Each length is padded like a column of one int.
+			int bytes = in.getInt();
+			skip(in, 4);
+			if (bytes < 0 || bytes > in.remaining())
+				throw new IOException("Corrupt snapshot: " + f);
+			byte[] utf = new byte[bytes];
+			in.get(utf);
+			skip(in, bytes);
+			s.strings.add(new String(utf, UTF8));
+		}
+		for (int idx = 0; idx < count; idx++) {
+			if (s.kind[idx] < 0 || s.kind[idx] >= stringCount
+					|| s.state[idx] >= stringCount
+					|| s.animation[idx] >= stringCount)
+				throw new IOException("Corrupt snapshot: " + f);
+		}
+		return s;
+	}
+
+	private static void getDoubles(ByteBuffer in, double[] values) {
+		in.asDoubleBuffer().get(values);
+		in.position(in.position() + (int) align(values.length * 8L));
+	}
+
+	private static void getInts(ByteBuffer in, int[] values) {
+		in.asIntBuffer().get(values);
+		in.position(in.position() + (int) align(values.length * 4L));
+	}
+
+	/**
+	 * Skips the padding after a column of the specified number of bytes,
+	 * which has been read.
+	 */
+	private static void skip(ByteBuffer in, long bytes) {
+		in.position(in.position() + (int) (align(bytes) - bytes));
+	}
+
+	/**
+	 * Rounds a number of bytes up to a multiple of eight.
+	 */
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	public int getTilesY() {
+		return tilesY;
+	}
+
+	/**
+	 * Returns the number of entities in this snapshot.
+	 *
+	 * @return The number of entities.
+	 */
+	public int getEntityCount() {
+		return count;
+	}
+
+	/**
+	 * Writes columns to a channel through a direct buffer, padding each to a
+	 * multiple of eight bytes.
+	 */
+	private static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(
+				BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		private long flushed;
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		long position() {
+			return flushed + buffer.position();
+		}
+
+		void skip(int bytes) throws IOException {
+			while (bytes > 0) {
+				if (!buffer.hasRemaining())
+					flush();
+				int n = Math.min(bytes, buffer.remaining());
+				for (int idx = 0; idx < n; idx++)
+					buffer.put((byte) 0);
+				bytes -= n;
+			}
+		}
+
+		void putShorts(short[] values) throws IOException {
+			for (int off = 0; off < values.length;) {
+				int n = Math.min(values.length - off, buffer.remaining() / 2);
+				if (n == 0) {
+					flush();
+					continue;
+				}
+				buffer.asShortBuffer().put(values, off, n);
+				buffer.position(buffer.position() + n * 2);
+				off += n;
+			}
+			pad();
+		}
+
+		void putBytes(byte[] values) throws IOException {
+			for (int off = 0; off < values.length;) {
+				int n = Math.min(values.length - off, buffer.remaining());
+				if (n == 0) {
+					flush();
+					continue;
+				}
+				buffer.put(values, off, n);
+				off += n;
+			}
+			pad();
+		}
+
+		void putInts(int[] values, int count) throws IOException {
+			for (int off = 0; off < count;) {
+				int n = Math.min(count - off, buffer.remaining() / 4);
+				if (n == 0) {
+					flush();
+					continue;
+				}
+				buffer.asIntBuffer().put(values, off, n);
+				buffer.position(buffer.position() + n * 4);
+				off += n;
+			}
+			pad();
+		}
+
+		void putDoubles(double[] values, int count) throws IOException {
+			for (int off = 0; off < count;) {
+				int n = Math.min(count - off, buffer.remaining() / 8);
+				if (n == 0) {
+					flush();
+					continue;
+				}
+				buffer.asDoubleBuffer().put(values, off, n);
+				buffer.position(buffer.position() + n * 8);
+				off += n;
+			}
+			pad();
+		}
+
+		private void pad() throws IOException {
+			skip((int) (align(position()) - position()));
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				flushed += channel.write(buffer);
+			buffer.clear();
+		}
+	}
+}
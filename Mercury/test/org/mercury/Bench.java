@@ -0,0 +1,48 @@
+package org.mercury;
+
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Helpers shared by the benchmarks. The timings of a benchmark vary with the
+ * machine and the JIT, so each is the best of several runs after a warm up,
+ * and only the ratios between runs of the same benchmark mean much.
+ *
+ * @author tbertore
+ *
+ */
+public class Bench {
+	private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	/**
+	 * Runs a task a number of times and returns the time of the fastest run.
+	 * The first run is a warm up and is not counted.
+	 *
+	 * @param runs
+	 *            The number of runs to time.
+	 * @param task
+	 *            The task to run.
+	 * @return The nanoseconds taken by the fastest run.
+	 */
+	public static long best(int runs, Runnable task) {
+		task.run();
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < runs; run++) {
+			long start = System.nanoTime();
+			task.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread so far.
+	 *
+	 * @return The number of bytes.
+	 */
+	public static long allocatedBytes() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,172 @@
+package org.mercury;
+
+import static org.mercury.Tests.check;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.gfx.Camera;
+
+/**
+ * Records a headless session driven by random input, replays the recording
+ * in a new game, and checks that every hash recorded matches the replayed
+ * world, including one holding an entity with no state. Then checks that a
+ * replay catches a recording whose input or hashes were tampered with, and
+ * that a file which is not a recording is rejected. Run from the Mercury
+ * directory, as the game loads its world from resources.
+ *
+ * @author tbertore
+ *
+ */
+public class ReplayTest {
+	private static final long SEED = 7;
+	private static final int TICKS = 1200;
+	private static final int HASH_INTERVAL = 50;
+	// The header: magic, version, seed and hash interval.
+	private static final int HEADER_BYTES = 20;
+
+	public static void main(String[] args) throws IOException {
+		File script = File.createTempFile("script", ".rec");
+		File f = File.createTempFile("session", ".rec");
+		try {
+			script(script);
+			record(script, f);
+			check(replay(f) == -1, "Replay diverges from the session");
+			tamperInput(f);
+			check(replay(f) >= 0, "Replay of altered input matches");
+			record(script, f);
+			tamperHash(f);
+			check(replay(f) >= 0, "Replay matches an altered hash");
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try {
+				file.writeInt(0x12345678);
+			}
+			finally {
+				file.close();
+			}
+			try {
+				new InputReplay(f).close();
+				check(false, "Read a file which is not a recording");
+			}
+			catch (IOException e) {
+			}
+		}
+		finally {
+			script.delete();
+			f.delete();
+		}
+	}
+
+	/**
+	 * Writes the input a player might give, holding each direction for a
+	 * while and clicking now and then, as a recording without hashes.
+	 */
+	private static void script(File f) throws IOException {
+		Random random = new Random(1);
+		InputRecorder recorder = new InputRecorder(f, SEED, 0);
+		InputHandler input = new InputHandler(new Camera());
+		// Heads south first, into the world from the hero's corner, so the
+		// first run of input moves the hero.
+		int north = -1, east = 0;
+		for (int tick = 0; tick < TICKS; tick++) {
+			if (random.nextInt(30) == 0) {
+				north = random.nextInt(3) - 1;
+				// Facing west has no animation, so heroes never head west.
+				east = random.nextInt(2);
+			}
+			boolean click = random.nextInt(100) == 0;
+			input.set(north, east, random.nextInt(20) == 0, click, click,
+					random.nextInt(800), random.nextInt(600));
+			recorder.record(input);
+		}
+		recorder.close();
+	}
+
+	/**
+	 * Plays the script in a headless game while recording the session, with
+	 * hashes.
+	 */
+	private static void record(File script, File f) throws IOException {
+		Game game = start();
+		InputReplay replay = new InputReplay(script);
+		game.getPlayer().setReplay(replay);
+		game.record(f, HASH_INTERVAL);
+		while (replay.hasNext())
+			game.update();
+		game.stopRecording();
+		replay.close();
+	}
+
+	/**
+	 * Replays a recording in a new headless game, and returns the first tick
+	 * whose hash differs from the one recorded, or -1 if none does.
+	 */
+	private static int replay(File f) throws IOException {
+		InputReplay replay = new InputReplay(f);
+		check(replay.getSeed() == SEED, "Seed differs after recording");
+		Game game = start();
+		game.getPlayer().setReplay(replay);
+		int checked = 0, diverged = -1;
+		while (replay.hasNext() && diverged < 0) {
+			game.update();
+			if (replay.hasHash()) {
+				checked++;
+				if (game.getWorld().hashState() != replay.getHash())
+					diverged = replay.getTicks();
+			}
+		}
+		replay.close();
+		check(diverged >= 0 || checked == TICKS / HASH_INTERVAL,
+				"Replay checked " + checked + " hashes");
+		return diverged;
+	}
+
+	/**
+	 * Creates a headless game whose world also holds an entity with no
+	 * state.
+	 */
+	private static Game start() {
+		Game game = new Game(SEED, true);
+		Entity e = new Box(40, 40, 8, 8);
+		e.setState(null);
+		game.getWorld().addEntity(e);
+		return game;
+	}
+
+	/**
+	 * Stops the hero during the first run of input after the header.
+	 */
+	private static void tamperInput(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			file.seek(HEADER_BYTES);
+			int state = file.read();
+			// Stands still north to south, where the hero headed south.
+			file.seek(HEADER_BYTES);
+			file.write(state & ~3 | 1);
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Flips a bit of the last hash, which ends the file.
+	 */
+	private static void tamperHash(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			file.seek(file.length() - 1);
+			int b = file.read();
+			file.seek(file.length() - 1);
+			file.write(b ^ 1);
+		}
+		finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.mercury;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Runs every test of the project. A test is a class whose main method runs
+ * its checks and throws an AssertionError at the first one to fail, so each
+ * may also be run on its own. The project has no build tool, so from the
+ * Mercury directory:
+ *
+ * <pre>
+ * javac -d bin -cp lwjgl/lwjgl.jar:lwjgl/lwjgl_util.jar $(find src test -name '*.java')
+ * java -cp bin:lwjgl/lwjgl.jar:lwjgl/lwjgl_util.jar org.mercury.Tests
+ * </pre>
+ *
+ * Benchmarks are run the same way, one class ending in Bench at a time.
+ *
+ * @author tbertore
+ *
+ */
+public class Tests {
+	private static final String[] TESTS = {
+			"org.mercury.ReplayTest",
+			"org.mercury.entity.EntityTableTest",
+			"org.mercury.entity.MessageDispatcherTest",
+			"org.mercury.entity.ParallelTest",
+			"org.mercury.entity.SweepAndPruneTest",
+			"org.mercury.util.QuadTreeTest",
+			"org.mercury.util.SpatialGridTest",
+			"org.mercury.util.NearestTest",
+			"org.mercury.util.RayCastTest",
+			"org.mercury.util.SweptAABBTest",
+			"org.mercury.util.TimingWheelTest",
+			"org.mercury.world.ChunkStoreTest",
+			"org.mercury.world.FlowFieldTest",
+			"org.mercury.world.PathFinderTest",
+			"org.mercury.world.TerrainCollisionTest",
+			"org.mercury.world.TileLayerTest",
+			"org.mercury.world.WorldSnapshotTest" };
+
+	/**
+	 * Fails the test in progress unless a condition holds.
+	 *
+	 * @param condition
+	 *            The condition to check.
+	 * @param message
+	 *            What went wrong if it does not hold.
+	 * @throws AssertionError
+	 *             If the condition does not hold.
+	 */
+	public static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	/**
+	 * Runs every test, printing the outcome of each.
+	 *
+	 * @param args
+	 *            Not used.
+	 */
+	public static void main(String[] args) throws Exception {
+		int failed = 0;
+		for (String name : TESTS) {
+			Method main = Class.forName(name).getMethod("main", String[].class);
+			long start = System.nanoTime();
+			try {
+				main.invoke(null, (Object) new String[0]);
+				System.out.println(String.format("PASS %s (%d ms)", name,
+						(System.nanoTime() - start) / 1000000));
+			}
+			catch (InvocationTargetException e) {
+				failed++;
+				System.out.println("FAIL " + name);
+				e.getCause().printStackTrace(System.out);
+			}
+		}
+		System.out.println((TESTS.length - failed) + " of " + TESTS.length
+				+ " tests passed.");
+		if (failed > 0)
+			System.exit(1);
+	}
+}
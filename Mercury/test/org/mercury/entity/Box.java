@@ -0,0 +1,41 @@
+package org.mercury.entity;
+
+import org.mercury.gfx.AnimationList;
+
+/**
+ * An entity of a given size with nothing to render, for tests and
+ * benchmarks. It may face any direction and is idle unless it moves.
+ *
+ * @author tbertore
+ *
+ */
+public class Box extends Entity {
+
+	public Box(int x, int y, int w, int h) {
+		super(x, y, new Blank());
+		setSize(w, h);
+	}
+
+	/**
+	 * An animation list without animations.
+	 */
+	private static class Blank extends AnimationList {
+		@Override
+		public void setLive(String animationName, Integer orientation) {
+		}
+
+		@Override
+		public Integer getOrientation() {
+			return 0;
+		}
+
+		@Override
+		public void update() {
+		}
+
+		@Override
+		public boolean isIdle() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package org.mercury.entity;
+
+import static org.mercury.Tests.check;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that EntityTable detects ids kept after their entity was removed,
+ * recycles freed slots before using new ones, wraps generations at 2048
+ * without ever handing out a negative id, and keeps its slots and dense
+ * array in step with a map of the live entities through random adds and
+ * removes.
+ *
+ * @author tbertore
+ *
+ */
+public class EntityTableTest {
+	private static final int GENERATIONS = 1 << (31 - EntityTable.INDEX_BITS);
+
+	public static void main(String[] args) {
+		stale();
+		freeList();
+		wrap();
+		random();
+	}
+
+	private static void stale() {
+		EntityTable table = new EntityTable();
+		Entity a = new Box(0, 0, 4, 4);
+		Entity b = new Box(0, 0, 4, 4);
+		int id = table.add(a);
+		table.add(b);
+		check(a.id() == id && table.get(id) == a, "Entity not found by id");
+		try {
+			table.add(a);
+			check(false, "Added an entity twice");
+		}
+		catch (IllegalArgumentException e) {
+		}
+		check(table.remove(id) == a && a.id() == -1, "Remove failed");
+		check(table.get(id) == null && !table.contains(id),
+				"Stale id still found");
+		check(table.remove(id) == null && table.size() == 1,
+				"Stale id removed twice");
+		// The slot is reused with a new generation, which the old id lacks.
+		Entity c = new Box(0, 0, 4, 4);
+		int reused = table.add(c);
+		check(EntityTable.index(reused) == EntityTable.index(id)
+				&& EntityTable.generation(reused) == EntityTable
+						.generation(id) + 1, "Freed slot not reused");
+		check(table.get(id) == null && table.get(reused) == c,
+				"Stale id found in a reused slot");
+		check(table.remove(id) == null && table.get(reused) == c,
+				"Stale id removed the slot's new entity");
+		// A removed entity may be added again, with a new id.
+		int again = table.add(a);
+		check(again != id && table.get(again) == a, "Entity not re-added");
+		check(table.get(-1) == null && table.get(table.capacity()) == null,
+				"Unknown id found");
+	}
+
+	/**
+	 * Freed slots are reused before new ones, most recently freed first, so
+	 * slot indices stay as small as the most entities ever live at once.
+	 */
+	private static void freeList() {
+		EntityTable table = new EntityTable();
+		Entity[] boxes = new Entity[100];
+		for (int idx = 0; idx < boxes.length; idx++) {
+			boxes[idx] = new Box(0, 0, 4, 4);
+			check(EntityTable.index(table.add(boxes[idx])) == idx,
+					"Slots not handed out in order");
+		}
+		int[] freed = { 17, 3, 99, 42, 0 };
+		for (int index : freed)
+			table.remove(boxes[index].id());
+		for (int idx = freed.length - 1; idx >= 0; idx--) {
+			int id = table.add(new Box(0, 0, 4, 4));
+			check(EntityTable.index(id) == freed[idx],
+					"Freed slots not reused last first");
+		}
+		check(table.capacity() == boxes.length,
+				"New slot used while free slots were left");
+		check(EntityTable.index(table.add(new Box(0, 0, 4, 4))) == boxes.length,
+				"New slot not used once the free list was empty");
+	}
+
+	/**
+	 * A slot's generation takes 11 bits, and wraps to 0 after 2048 reuses.
+	 * Until then every older id of the slot is stale.
+	 */
+	private static void wrap() {
+		check(GENERATIONS == 2048, "Generations wrap at " + GENERATIONS);
+		EntityTable table = new EntityTable();
+		Entity e = new Box(0, 0, 4, 4);
+		int[] ids = new int[GENERATIONS + 1];
+		for (int gen = 0; gen <= GENERATIONS; gen++) {
+			ids[gen] = table.add(e);
+			check(ids[gen] >= 0, "Negative id handed out");
+			check(EntityTable.index(ids[gen]) == 0, "Slot not reused");
+			check(EntityTable.generation(ids[gen]) == gen % GENERATIONS,
+					"Generation " + EntityTable.generation(ids[gen])
+							+ " handed out, expected " + gen % GENERATIONS);
+			if (gen < GENERATIONS)
+				table.remove(ids[gen]);
+		}
+		// The last id has wrapped around to the first, so only the ids in
+		// between are known to be stale.
+		check(ids[GENERATIONS] == ids[0], "Wrapped id differs");
+		for (int gen = 1; gen < GENERATIONS; gen++)
+			check(table.get(ids[gen]) == null, "Stale id found after wrapping");
+		check(table.get(ids[GENERATIONS]) == e, "Wrapped id not found");
+	}
+
+	/**
+	 * Random adds and removes, checked against a map of live ids.
+	 */
+	private static void random() {
+		Random random = new Random(1);
+		EntityTable table = new EntityTable();
+		Map<Integer, Entity> live = new HashMap<Integer, Entity>();
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		ArrayList<Integer> dead = new ArrayList<Integer>();
+		int most = 0;
+		for (int step = 0; step < 100000; step++) {
+			// Grows for a while, then shrinks, then grows again.
+			boolean add = ids.isEmpty()
+					|| random.nextInt(100) < ((step / 20000) % 2 == 0 ? 60 : 40);
+			if (add) {
+				Entity e = new Box(0, 0, 4, 4);
+				int id = table.add(e);
+				check(!live.containsKey(id), "Live id handed out twice");
+				live.put(id, e);
+				ids.add(id);
+				most = Math.max(most, live.size());
+			}
+			else {
+				int id = ids.remove(random.nextInt(ids.size()));
+				Entity e = live.remove(id);
+				check(table.remove(id) == e, "Wrong entity removed");
+				dead.add(id);
+			}
+			check(table.size() == live.size(), "Wrong size");
+			check(table.capacity() == most, "Slots used beyond the most live");
+			if (step % 1000 == 0) {
+				HashSet<Entity> dense = new HashSet<Entity>();
+				for (int idx = 0; idx < table.size(); idx++)
+					dense.add(table.getDense(idx));
+				check(dense.equals(new HashSet<Entity>(live.values())),
+						"Dense array differs from the live entities");
+				for (Map.Entry<Integer, Entity> entry : live.entrySet()) {
+					int id = entry.getKey();
+					check(table.get(id) == entry.getValue()
+							&& table.getByIndex(EntityTable.index(id)) == entry
+									.getValue(), "Live id not found");
+				}
+				for (int id : dead)
+					check(!live.containsKey(id) == !table.contains(id),
+							"Stale id found");
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package org.mercury.entity;
+
+import static org.mercury.Tests.check;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.mercury.util.TimingWheel;
+
+/**
+ * Sends messages from several threads at once and checks that each is
+ * delivered exactly once, to its receiver and unchanged, and that the pool
+ * of messages stays bounded, so none is lost or handed out twice. Producers
+ * first take turns with the ticks, so every message must arrive on exactly
+ * the tick its delay asks for, then send while ticks run, when a message
+ * may arrive late but never early.
+ *
+ * @author tbertore
+ *
+ */
+public class MessageDispatcherTest {
+	private static final int PRODUCERS = 4;
+	private static final int RECEIVERS = 8;
+
+	public static void main(String[] args) throws Exception {
+		lockstep();
+		freeRunning();
+	}
+
+	/**
+	 * Records every message delivered.
+	 */
+	private static class Run {
+		private final EntityTable table = new EntityTable();
+		private final TimingWheel wheel = new TimingWheel();
+		private final MessageDispatcher dispatcher = new MessageDispatcher(
+				table, wheel);
+		private final int[] ids = new int[RECEIVERS];
+		// The tick each message was delivered on, by producer and sequence.
+		private final int[][] delivered;
+		// Messages are held for long delays one time in this many.
+		private final int longOdds;
+		private final boolean exact;
+		private final Set<Message> seen = Collections
+				.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+		private final Set<Message> thisTick = Collections
+				.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+		private int count, inFlight, peakInFlight;
+
+		private Run(int messages, int longOdds, boolean exact) {
+			this.longOdds = longOdds;
+			this.exact = exact;
+			delivered = new int[PRODUCERS][messages];
+			for (int idx = 0; idx < RECEIVERS; idx++)
+				ids[idx] = table.add(new Receiver(this));
+		}
+
+		/**
+		 * Sends a message whose contents record who sent it, to whom, and
+		 * the earliest tick it may arrive on.
+		 */
+		private void send(int producer, int seq, Random random) {
+			int dest = ids[random.nextInt(RECEIVERS)];
+			// Mostly short delays, with some long enough to cascade down
+			// from the upper levels of the wheel.
+			int delay = (random.nextInt(longOdds) == 0) ? random
+					.nextInt(5000) : random.nextInt(4);
+			int due = dispatcher.getTick() + 1 + delay;
+			dispatcher.send(producer, dest, delay, new int[] { producer, seq,
+					dest, delay, due });
+		}
+
+		/**
+		 * Runs a tick as EntityManager.update does.
+		 */
+		private void tick(int sent) {
+			dispatcher.drain();
+			thisTick.clear();
+			wheel.advance();
+			dispatcher.recycle();
+			inFlight = sent - count;
+			peakInFlight = Math.max(peakInFlight, inFlight);
+		}
+
+		private void receive(Message m) {
+			check(thisTick.add(m), "Message delivered twice in a tick");
+			seen.add(m);
+			int[] data = (int[]) m.getData();
+			int tick = dispatcher.getTick();
+			check(m.getSrc() == data[0] && m.getDest() == data[2]
+					&& m.getDelay() == data[3], "Message changed in flight");
+			check(delivered[data[0]][data[1]] == 0, "Message delivered twice");
+			delivered[data[0]][data[1]] = tick;
+			check(exact ? tick == data[4] : tick >= data[4], "Message due on "
+					+ data[4] + " delivered on " + tick);
+			count++;
+		}
+
+		private void checkAll(int ticks) {
+			for (int[] ticksOf : delivered) {
+				for (int tick : ticksOf)
+					check(tick > 0, "Message lost");
+			}
+			check(dispatcher.getPendingCount() == 0 && wheel.size() == 0,
+					"Messages left over after " + ticks + " ticks");
+		}
+	}
+
+	private static class Receiver extends Box {
+		private final Run run;
+
+		private Receiver(Run run) {
+			super(0, 0, 4, 4);
+			this.run = run;
+		}
+
+		@Override
+		public void receive(Message m) {
+			run.receive(m);
+		}
+	}
+
+	/**
+	 * Each tick every producer sends a burst of messages at once, then the
+	 * tick runs while they wait.
+	 */
+	private static void lockstep() throws Exception {
+		final int ticks = 1500;
+		final int burst = 20;
+		final Run run = new Run(ticks * burst, 10, true);
+		final CyclicBarrier barrier = new CyclicBarrier(PRODUCERS + 1);
+		Thread[] threads = new Thread[PRODUCERS];
+		for (int idx = 0; idx < PRODUCERS; idx++) {
+			final int producer = idx;
+			threads[idx] = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(producer);
+					try {
+						for (int tick = 0; tick < ticks; tick++) {
+							for (int seq = 0; seq < burst; seq++)
+								run.send(producer, tick * burst + seq, random);
+							barrier.await();
+							barrier.await();
+						}
+					}
+					catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					catch (BrokenBarrierException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[idx].start();
+		}
+		int sent = 0;
+		for (int tick = 0; tick < ticks; tick++) {
+			barrier.await();
+			sent += PRODUCERS * burst;
+			run.tick(sent);
+			barrier.await();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		int tick = ticks;
+		while (run.count < sent && tick++ < ticks + 5000)
+			run.tick(sent);
+		run.checkAll(tick);
+		// Every message is recycled the tick it is delivered, so beyond
+		// those in flight the pool only holds what each producer took from
+		// the free list at once.
+		int bound = run.peakInFlight + 2 * PRODUCERS * PRODUCERS * burst;
+		check(run.seen.size() <= bound, run.seen.size()
+				+ " messages pooled, expected at most " + bound);
+	}
+
+	/**
+	 * Producers send while the ticks run. Neither side gets more than a few
+	 * ticks ahead of the other, so the number of messages in flight stays
+	 * small.
+	 */
+	private static void freeRunning() throws Exception {
+		final int messages = 100000;
+		final int rate = 50;
+		final Run run = new Run(messages, 100, false);
+		final AtomicIntegerArray progress = new AtomicIntegerArray(PRODUCERS);
+		Thread[] threads = new Thread[PRODUCERS];
+		for (int idx = 0; idx < PRODUCERS; idx++) {
+			final int producer = idx;
+			threads[idx] = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(producer);
+					for (int seq = 0; seq < messages; seq++) {
+						while (seq > (run.dispatcher.getTick() + 2) * rate)
+							Thread.yield();
+						run.send(producer, seq, random);
+						progress.set(producer, seq + 1);
+					}
+				}
+			};
+			threads[idx].start();
+		}
+		int total = PRODUCERS * messages;
+		int tick = 0;
+		while (run.count < total) {
+			run.tick(waitFor(progress, Math.min(messages, (tick - 2) * rate)));
+			check(++tick < 1000000, "Messages still undelivered");
+		}
+		for (Thread thread : threads)
+			thread.join();
+		run.checkAll(tick);
+		// A pool growing with every message sent would have lost them.
+		check(run.seen.size() < total / 10, run.seen.size()
+				+ " messages pooled for " + total + " sent");
+	}
+
+	/**
+	 * Waits until every producer has sent at least the specified number of
+	 * messages, and returns how many they have sent in all.
+	 */
+	private static int waitFor(AtomicIntegerArray progress, int least) {
+		while (true) {
+			int sent = 0;
+			boolean behind = false;
+			for (int idx = 0; idx < progress.length(); idx++) {
+				int done = progress.get(idx);
+				sent += done;
+				behind |= done < least;
+			}
+			if (!behind)
+				return sent;
+			Thread.yield();
+		}
+	}
+}
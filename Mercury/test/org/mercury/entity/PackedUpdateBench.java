@@ -0,0 +1,79 @@
+package org.mercury.entity;
+
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.util.SpatialGrid;
+import org.mercury.world.World;
+
+/**
+ * Compares the ticks per second of 100k entities kept in each Entity with
+ * the same entities packed into an EntityStore, and times the velocity pass
+ * over the store on its own. About a third of the entities are awake at any
+ * time, and every tick a few hundred stop or start moving, so the list of
+ * awake entities is in no particular order, as in a long running game. The
+ * world is indexed by a SpatialGrid, since with a QuadTree its queries take
+ * most of each tick.
+ *
+ * @author tbertore
+ *
+ */
+public class PackedUpdateBench {
+	private static final int COUNT = 100000;
+	private static final int TICKS = 20;
+
+	public static void main(String[] args) {
+		System.out.println("mode      ms/tick  ticks/s  velocities us/tick");
+		run(false);
+		run(true);
+	}
+
+	private static void run(boolean packed) {
+		final Random random = new Random(1);
+		final World world = new World(2000, 2000, new SpatialGrid(32000,
+				32000, 64));
+		final EntityManager manager = world.getEntityManager();
+		manager.setPacked(packed);
+		final Entity[] boxes = new Entity[COUNT];
+		for (int idx = 0; idx < COUNT; idx++) {
+			boxes[idx] = new Box(100 + random.nextInt(31700),
+					100 + random.nextInt(31700), 8, 8);
+			world.addEntity(boxes[idx]);
+			boxes[idx].setSpeed(0.5 + random.nextDouble());
+		}
+		Runnable ticks = new Runnable() {
+			@Override
+			public void run() {
+				for (int tick = 0; tick < TICKS; tick++) {
+					for (int idx = 0; idx < COUNT / 200; idx++) {
+						Entity e = boxes[random.nextInt(COUNT)];
+						if (random.nextBoolean())
+							e.setPropagationVector(0, 0);
+						else
+							e.setPropagationVector(random.nextInt(3) - 1,
+									random.nextInt(3) - 1);
+					}
+					world.update();
+				}
+			}
+		};
+		// Let the awake list settle into the order churn leaves it in.
+		for (int run = 0; run < 10; run++)
+			ticks.run();
+		double ms = Bench.best(10, ticks) / 1e6 / TICKS;
+		String velocities = "-";
+		if (packed) {
+			final EntityStore store = boxes[0].getStore();
+			long nanos = Bench.best(10, new Runnable() {
+				@Override
+				public void run() {
+					for (int tick = 0; tick < 1000; tick++)
+						store.computeVelocities();
+				}
+			});
+			velocities = String.format("%.1f", nanos / 1e3 / 1000);
+		}
+		System.out.println(String.format("%-8s  %7.2f  %7.1f  %18s",
+				packed ? "packed" : "objects", ms, 1000 / ms, velocities));
+	}
+}
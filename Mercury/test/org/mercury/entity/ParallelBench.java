@@ -0,0 +1,71 @@
+package org.mercury.entity;
+
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.util.SpatialGrid;
+import org.mercury.world.World;
+
+/**
+ * Times ticks of 50k moving entities updated one at a time and in two phases
+ * planned on 1 thread up to twice the number of cores, and prints the speed
+ * up of each over one at a time. Every entity changes direction now and
+ * then, so all stay awake and most of each tick is spent planning. The world
+ * is indexed by a SpatialGrid, whose queries are safe to run concurrently.
+ *
+ * @author tbertore
+ *
+ */
+public class ParallelBench {
+	private static final int COUNT = 50000;
+	private static final int TICKS = 20;
+
+	public static void main(String[] args) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println(cores + " cores");
+		System.out.println("threads  ms/tick  ticks/s  speed up");
+		double serial = run(0, 0);
+		for (int threads = 1; threads <= cores * 2; threads *= 2)
+			run(threads, serial);
+	}
+
+	/**
+	 * Prints and returns the time per tick planned on the specified number of
+	 * threads, or updated one entity at a time for 0.
+	 */
+	private static double run(int threads, double serial) {
+		final Random random = new Random(1);
+		final World world = new World(2000, 2000, new SpatialGrid(32000,
+				32000, 64));
+		world.getEntityManager().setParallelism(threads);
+		final Entity[] boxes = new Entity[COUNT];
+		for (int idx = 0; idx < COUNT; idx++) {
+			boxes[idx] = new Box(100 + random.nextInt(31700),
+					100 + random.nextInt(31700), 8, 8);
+			world.addEntity(boxes[idx]);
+			boxes[idx].setSpeed(0.5 + random.nextDouble());
+			boxes[idx].setPropagationVector(random.nextInt(2) * 2 - 1,
+					random.nextInt(3) - 1);
+		}
+		Runnable ticks = new Runnable() {
+			@Override
+			public void run() {
+				for (int tick = 0; tick < TICKS; tick++) {
+					for (int idx = 0; idx < COUNT / 50; idx++)
+						boxes[random.nextInt(COUNT)].setPropagationVector(
+								random.nextInt(2) * 2 - 1,
+								random.nextInt(3) - 1);
+					world.update();
+				}
+			}
+		};
+		ticks.run();
+		double ms = Bench.best(5, ticks) / 1e6 / TICKS;
+		world.getEntityManager().setParallelism(0);
+		System.out.println(String.format("%7s  %7.2f  %7.1f  %8s",
+				threads == 0 ? "serial" : String.valueOf(threads), ms,
+				1000 / ms, threads == 0 ? "-" : String.format("%.2fx",
+						serial / ms)));
+		return ms;
+	}
+}
@@ -0,0 +1,85 @@
+package org.mercury.entity;
+
+import static org.mercury.Tests.check;
+
+import java.util.Random;
+
+import org.mercury.gfx.Camera;
+import org.mercury.world.Terrain;
+import org.mercury.world.World;
+
+/**
+ * Runs the same crowd through the same walls and the same direction changes
+ * updated one entity at a time and in two phases planned on 1, 2 and 4
+ * threads, and checks that the hash of the world matches bit for bit after
+ * every tick. The crowd is dense enough that entities run into each other and wake
+ * sleeping ones, some move faster than a tile per tick, and those far from
+ * the camera are updated at a reduced rate. Each is run with entities kept in
+ * objects, packed into an EntityStore and found through SweepAndPrune.
+ *
+ * @author tbertore
+ *
+ */
+public class ParallelTest {
+	private static final int TILES = 30;
+	private static final int COUNT = 400;
+	private static final int TICKS = 500;
+	private static final int[] PARALLELISM = { 1, 2, 4 };
+
+	public static void main(String[] args) {
+		for (String mode : new String[] { "objects", "packed", "sweep" }) {
+			long[] serial = run(mode, 0);
+			for (int threads : PARALLELISM) {
+				long[] parallel = run(mode, threads);
+				for (int tick = 0; tick < TICKS; tick++)
+					check(parallel[tick] == serial[tick], mode + ", "
+							+ threads + " threads: differs from serial after"
+							+ " tick " + tick);
+			}
+		}
+	}
+
+	/**
+	 * Runs the crowd with entities kept as mode names, and returns the hash
+	 * of the world after each tick.
+	 */
+	static long[] run(String mode, int threads) {
+		Random random = new Random(1);
+		World world = new World(TILES, TILES);
+		for (int idx = 0; idx < 60; idx++)
+			world.setTile(random.nextInt(TILES), random.nextInt(TILES), 0, 0,
+					Terrain.PATHING_NONE);
+		EntityManager manager = world.getEntityManager();
+		manager.setPacked(mode.equals("packed"));
+		manager.setSweepAndPrune(mode.equals("sweep"));
+		manager.setParallelism(threads);
+		manager.addCamera(new Camera());
+		manager.setLodDistances(150, 250, 350);
+		Entity[] boxes = new Entity[COUNT];
+		for (int idx = 0; idx < COUNT; idx++) {
+			int size = 4 + random.nextInt(10);
+			boxes[idx] = new Box(random.nextInt(TILES * Terrain.SIZE - size),
+					random.nextInt(TILES * Terrain.SIZE - size), size, size);
+			boxes[idx].setState("idle");
+			world.addEntity(boxes[idx]);
+		}
+		long[] hashes = new long[TICKS];
+		for (int tick = 0; tick < TICKS; tick++) {
+			for (Entity e : boxes) {
+				int roll = random.nextInt(40);
+				if (roll == 0)
+					e.setPropagationVector(0, 0);
+				else if (roll < 3) {
+					e.setSpeed(random.nextInt(10) == 0 ? 20 + random
+							.nextDouble() * 20 : 0.2 + random.nextDouble() * 3);
+					e.setPropagationVector(random.nextInt(3) - 1,
+							random.nextInt(3) - 1);
+				}
+			}
+			world.update();
+			hashes[tick] = world.hashState();
+		}
+		manager.setParallelism(0);
+		return hashes;
+	}
+}
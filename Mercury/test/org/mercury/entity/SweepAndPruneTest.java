@@ -0,0 +1,145 @@
+package org.mercury.entity;
+
+import static org.mercury.Tests.check;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.mercury.gfx.Camera;
+import org.mercury.world.World;
+
+/**
+ * Checks the candidates SweepAndPrune finds against a brute force search,
+ * after adding many entities at once, adding a few, removing entities and
+ * reusing their slots between updates, that entities added since the last
+ * update find and are found by their neighbours, and that entities updated
+ * at a reduced rate find what they run into while catching up.
+ *
+ * @author tbertore
+ *
+ */
+public class SweepAndPruneTest {
+	private static final int SIZE = 2000;
+
+	public static void main(String[] args) {
+		candidates();
+		added();
+		catchUp();
+	}
+
+	private static void candidates() {
+		Random random = new Random(1);
+		EntityTable table = new EntityTable();
+		SweepAndPrune sap = new SweepAndPrune();
+		ArrayList<Entity> boxes = new ArrayList<Entity>();
+		for (int idx = 0; idx < 3000; idx++)
+			add(random, table, sap, boxes);
+		sap.update(0);
+		compare(sap, boxes);
+		for (int tick = 1; tick <= 30; tick++) {
+			for (Entity e : boxes)
+				e.setPosition(clamp(e.getX() + random.nextInt(7) - 3),
+						clamp(e.getY() + random.nextInt(7) - 3));
+			// Removed slots are reused by the entities added after them.
+			int removals = random.nextInt(tick % 3 == 0 ? 100 : 5);
+			for (int idx = 0; idx < removals; idx++) {
+				Entity e = boxes.remove(random.nextInt(boxes.size()));
+				check(sap.remove(e), "Remove failed");
+				check(!sap.remove(e), "Removed twice");
+				table.remove(e.id());
+			}
+			int additions = random.nextInt(tick % 2 == 0 ? 100 : 5);
+			for (int idx = 0; idx < additions; idx++)
+				add(random, table, sap, boxes);
+			sap.update(tick);
+			compare(sap, boxes);
+		}
+	}
+
+	/**
+	 * An entity added after the pairs were found has none, so the manager
+	 * must search its SpatialIndex until the next update, both for the new
+	 * entity and for those it may run into.
+	 */
+	private static void added() {
+		World world = new World(100, 100);
+		EntityManager manager = world.getEntityManager();
+		manager.setSweepAndPrune(true);
+		Entity old = new Box(200, 200, 8, 8);
+		world.addEntity(old);
+		world.update();
+		Entity added = new Box(210, 200, 8, 8);
+		world.addEntity(added);
+		ArrayList<Entity> found = new ArrayList<Entity>();
+		manager.findCollisions(added, 190, 190, 230, 220, found);
+		check(found.size() == 1 && found.contains(old),
+				"Added entity missed its neighbour");
+		found.clear();
+		manager.findCollisions(old, 190, 190, 230, 220, found);
+		check(found.size() == 1 && found.contains(added),
+				"Added entity missed by its neighbour");
+		world.update();
+		found.clear();
+		manager.findCollisions(added, 190, 190, 230, 220, found);
+		check(found.size() == 1 && found.contains(old),
+				"Neighbour missed after update");
+	}
+
+	/**
+	 * An entity far from the camera, updated every 16th tick, moves 16 ticks
+	 * worth at once and must still stop against a wall in its way.
+	 */
+	private static void catchUp() {
+		World world = new World(100, 100);
+		EntityManager manager = world.getEntityManager();
+		manager.addCamera(new Camera());
+		manager.setLodDistances(10, 20, 30);
+		manager.setSweepAndPrune(true);
+		Entity wall = new Box(1000, 400, 4, 400);
+		world.addEntity(wall);
+		Entity mover = new Box(900, 580, 8, 8);
+		world.addEntity(mover);
+		mover.setSpeed(10);
+		mover.setPropagationVector(1, 0);
+		for (int tick = 0; tick < 64; tick++) {
+			world.update();
+			check(mover.getPosX() + 8 <= wall.getPosX(),
+					"Passed through a wall while catching up");
+		}
+		check(mover.getPosX() + 8 == wall.getPosX(), "Stopped short of wall");
+	}
+
+	private static void add(Random random, EntityTable table,
+			SweepAndPrune sap, ArrayList<Entity> boxes) {
+		Entity e = new Box(random.nextInt(SIZE), random.nextInt(SIZE),
+				4 + random.nextInt(20), 4 + random.nextInt(20));
+		table.add(e);
+		sap.add(e);
+		boxes.add(e);
+	}
+
+	/**
+	 * Checks that every entity overlapping another is found as its candidate,
+	 * and that no removed entity is.
+	 */
+	private static void compare(SweepAndPrune sap, ArrayList<Entity> boxes) {
+		ArrayList<Entity> found = new ArrayList<Entity>();
+		for (Entity a : boxes) {
+			int x1 = a.getX() - 1, y1 = a.getY() - 1;
+			int x2 = a.getX() + a.getW() + 1, y2 = a.getY() + a.getH() + 1;
+			found.clear();
+			sap.findCollisions(a, x1, y1, x2, y2, found);
+			for (Entity b : found)
+				check(b != a && boxes.contains(b), "Wrong candidate found");
+			for (Entity b : boxes) {
+				if (b != a && b.getX() <= x2 && b.getX() + b.getW() >= x1
+						&& b.getY() <= y2 && b.getY() + b.getH() >= y1)
+					check(found.contains(b), "Candidate missed");
+			}
+		}
+	}
+
+	private static int clamp(int v) {
+		return Math.max(0, Math.min(SIZE, v));
+	}
+}
@@ -0,0 +1,122 @@
+package org.mercury.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityTable;
+
+/**
+ * Compares finding the 8 entities closest to a point, as AI targeting does,
+ * with best-first searchNearest against searching a rectangle and sorting
+ * the results, as callers did before, and times 64 pixel radius searches,
+ * as aggro checks and area damage do. Crowds of 1k to 20k entities of up to
+ * 24 by 24 pixels fill a world at about one entity per 64 by 64 pixels, on
+ * a loose QuadTree and on a SpatialGrid.
+ *
+ * @author tbertore
+ *
+ */
+public class NearestBench {
+	private static final int K = 8;
+	private static final int RADIUS = 64;
+	private static final int QUERIES = 20000;
+
+	public static void main(String[] args) {
+		System.out.println("entities  index     rect+sort ns/query  nearest ns/query  radius ns/query");
+		for (int count : new int[] { 1000, 5000, 20000 }) {
+			run(count, false);
+			run(count, true);
+		}
+	}
+
+	private static void run(int count, boolean grid) {
+		final int size = (int) Math.sqrt(count) * 64;
+		Random random = new Random(count);
+		EntityTable table = new EntityTable();
+		final SpatialIndex index = grid ? new SpatialGrid(size, size, 64)
+				: new QuadTree(new BoundingBox(size / 2, size / 2, size / 2,
+						size / 2), true);
+		for (int idx = 0; idx < count; idx++) {
+			Entity e = new Box(random.nextInt(size - 24), random.nextInt(size
+					- 24), 4 + random.nextInt(21), 4 + random.nextInt(21));
+			table.add(e);
+			index.insert(e);
+		}
+		final int[] points = new int[QUERIES * 2];
+		for (int idx = 0; idx < points.length; idx++)
+			points[idx] = random.nextInt(size);
+		final long[] sink = new long[1];
+
+		long rect = Bench.best(5, new Runnable() {
+			private final ArrayList<Entity> found = new ArrayList<Entity>();
+
+			@Override
+			public void run() {
+				for (int idx = 0; idx < QUERIES; idx++) {
+					final int x = points[idx * 2], y = points[idx * 2 + 1];
+					// Grow the square until it holds k entities. The k-th
+					// closest is then at most half * sqrt(2) away, so a
+					// square 1.5 times larger holds all k closest.
+					int half = 32;
+					while (true) {
+						found.clear();
+						index.searchRect(x - half, y - half, x + half, y
+								+ half, found);
+						if (found.size() >= K || half > size)
+							break;
+						half *= 2;
+					}
+					int reach = half * 3 / 2;
+					found.clear();
+					index.searchRect(x - reach, y - reach, x + reach, y
+							+ reach, found);
+					Collections.sort(found, new Comparator<Entity>() {
+						@Override
+						public int compare(Entity a, Entity b) {
+							return Long.compare(distanceSq(a, x, y),
+									distanceSq(b, x, y));
+						}
+					});
+					sink[0] += found.size();
+				}
+			}
+		});
+		long nearest = Bench.best(5, new Runnable() {
+			private final NearestNeighbours nearest = new NearestNeighbours();
+
+			@Override
+			public void run() {
+				for (int idx = 0; idx < QUERIES; idx++) {
+					index.searchNearest(points[idx * 2], points[idx * 2 + 1],
+							K, nearest);
+					sink[0] += nearest.size();
+				}
+			}
+		});
+		long radius = Bench.best(5, new Runnable() {
+			private final ArrayList<Entity> found = new ArrayList<Entity>();
+
+			@Override
+			public void run() {
+				for (int idx = 0; idx < QUERIES; idx++) {
+					found.clear();
+					sink[0] += index.searchRadius(points[idx * 2],
+							points[idx * 2 + 1], RADIUS, found);
+				}
+			}
+		});
+		System.out.println(String.format("%8d  %-8s  %18.0f  %16.0f  %15.0f",
+				count, grid ? "grid" : "quadtree", (double) rect / QUERIES,
+				(double) nearest / QUERIES, (double) radius / QUERIES));
+	}
+
+	private static long distanceSq(Entity e, int x, int y) {
+		return BoundingBox.distanceSq(x, y, e.getX(), e.getY(), e.getX()
+				+ e.getW(), e.getY() + e.getH());
+	}
+}
@@ -0,0 +1,155 @@
+package org.mercury.util;
+
+import static org.mercury.Tests.check;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityManager;
+import org.mercury.entity.EntityTable;
+import org.mercury.world.World;
+
+/**
+ * Checks nearest neighbour and radius queries of every SpatialIndex against
+ * a brute force search, including asking for more entities than there are
+ * and searching an empty index.
+ *
+ * @author tbertore
+ *
+ */
+public class NearestTest {
+	private static final int SIZE = 1600;
+
+	public static void main(String[] args) {
+		for (int mode = 0; mode < 3; mode++) {
+			empty(mode);
+			fewerThanK(mode);
+			queries(mode);
+		}
+		managers();
+	}
+
+	/**
+	 * Creates an index of the kind numbered mode: a point QuadTree, a loose
+	 * QuadTree or a SpatialGrid.
+	 */
+	private static SpatialIndex create(int mode) {
+		if (mode == 2)
+			return new SpatialGrid(SIZE, SIZE, 64);
+		return new QuadTree(new BoundingBox(SIZE / 2, SIZE / 2, SIZE / 2,
+				SIZE / 2), mode == 1);
+	}
+
+	/**
+	 * Returns the squared distance from a point to an entity as the index of
+	 * the kind numbered mode measures it.
+	 */
+	private static long distanceSq(int mode, Entity e, int x, int y) {
+		if (mode == 0)
+			return BoundingBox.distanceSq(x, y, e.getX(), e.getY(), e.getX(),
+					e.getY());
+		return BoundingBox.distanceSq(x, y, e.getX(), e.getY(), e.getX()
+				+ e.getW(), e.getY() + e.getH());
+	}
+
+	private static void empty(int mode) {
+		SpatialIndex index = create(mode);
+		NearestNeighbours nearest = new NearestNeighbours();
+		index.searchNearest(0, 0, 5, nearest);
+		check(nearest.size() == 0, "Found entities in an empty index");
+		index.searchNearest(SIZE / 2, SIZE / 2, 1, nearest);
+		check(nearest.size() == 0, "Found entities in an empty index");
+	}
+
+	private static void fewerThanK(int mode) {
+		SpatialIndex index = create(mode);
+		EntityTable table = new EntityTable();
+		for (int idx = 0; idx < 3; idx++) {
+			Entity e = new Box(10 + idx * 200, 10 + idx * 100, 8, 8);
+			table.add(e);
+			index.insert(e);
+		}
+		NearestNeighbours nearest = new NearestNeighbours();
+		for (int k : new int[] { 3, 4, 5, 100 }) {
+			index.searchNearest(0, 0, k, nearest);
+			check(nearest.size() == 3, "Not every entity found for k " + k);
+			for (int idx = 1; idx < 3; idx++)
+				check(nearest.getDistanceSq(idx - 1) <= nearest
+						.getDistanceSq(idx), "Results out of order");
+		}
+		index.searchNearest(0, 0, 0, nearest);
+		check(nearest.size() == 0, "Found entities for k 0");
+	}
+
+	private static void queries(int mode) {
+		Random random = new Random(mode);
+		SpatialIndex index = create(mode);
+		EntityTable table = new EntityTable();
+		ArrayList<Entity> boxes = new ArrayList<Entity>();
+		for (int idx = 0; idx < 2000; idx++) {
+			Entity e = new Box(random.nextInt(SIZE - 20),
+					random.nextInt(SIZE - 20), 1 + random.nextInt(20),
+					1 + random.nextInt(20));
+			table.add(e);
+			index.insert(e);
+			boxes.add(e);
+		}
+		NearestNeighbours nearest = new NearestNeighbours();
+		ArrayList<Entity> found = new ArrayList<Entity>();
+		long[] all = new long[boxes.size()];
+		for (int query = 0; query < 300; query++) {
+			// Some query points lie outside the world.
+			int x = random.nextInt(SIZE + 400) - 200;
+			int y = random.nextInt(SIZE + 400) - 200;
+			for (int idx = 0; idx < boxes.size(); idx++)
+				all[idx] = distanceSq(mode, boxes.get(idx), x, y);
+			Arrays.sort(all);
+			int k = 1 + random.nextInt(50);
+			index.searchNearest(x, y, k, nearest);
+			check(nearest.size() == k, "Wrong number of nearest entities");
+			for (int idx = 0; idx < k; idx++) {
+				check(nearest.getDistanceSq(idx) == all[idx],
+						"Nearest entities differ from brute force");
+				check(distanceSq(mode, nearest.get(idx), x, y) == all[idx],
+						"Distance reported wrongly");
+			}
+			int radius = random.nextInt(200);
+			found.clear();
+			index.searchRadius(x, y, radius, found);
+			int expected = 0;
+			while (expected < all.length
+					&& all[expected] <= (long) radius * radius)
+				expected++;
+			// A point QuadTree finds entities by their corner only.
+			if (mode != 0)
+				check(found.size() == expected,
+						"Radius search differs from brute force");
+			for (Entity e : found)
+				check(distanceSq(mode, e, x, y) <= (long) radius * radius,
+						"Entity outside the radius found");
+		}
+	}
+
+	/**
+	 * The queries as EntityManager offers them, in worlds with and without
+	 * entities.
+	 */
+	private static void managers() {
+		World[] worlds = { new World(10, 10),
+				new World(10, 10, new SpatialGrid(160, 160, 32)) };
+		for (World world : worlds) {
+			EntityManager manager = world.getEntityManager();
+			check(manager.findNearest(0, 0, 5).isEmpty(),
+					"Found entities in an empty world");
+			for (int idx = 0; idx < 3; idx++)
+				manager.register(new Box(10 + idx * 20, 10, 8, 8));
+			check(manager.findNearest(0, 0, 2).size() == 2,
+					"Wrong number of nearest entities");
+			check(manager.findNearest(0, 0, 5).size() == 3,
+					"Not every entity found");
+		}
+	}
+}
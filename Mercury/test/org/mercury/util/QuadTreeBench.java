@@ -0,0 +1,109 @@
+package org.mercury.util;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+
+/**
+ * Compares overlap queries on a loose QuadTree with the same queries on a
+ * point QuadTree, at 10k to 100k entities of up to 24 by 24 pixels spread
+ * evenly over the world. Each query is the area an entity sweeps in one
+ * move, as searched by Entity.propagatePosition. A point tree only finds
+ * entities by their upper left corner, so it must be searched over an area
+ * widened by the largest entity size and its results filtered.
+ *
+ * @author tbertore
+ *
+ */
+public class QuadTreeBench {
+	private static final int MAX_SIZE = 24;
+	private static final int QUERIES = 100000;
+	private static final int ROUNDS = 4;
+
+	public static void main(String[] args) {
+		System.out.println("entities  point ns/query  loose ns/query  point candidates  loose candidates");
+		for (int count : new int[] { 10000, 30000, 100000 })
+			run(count);
+	}
+
+	private static void run(int count) {
+		// About one entity per 64 by 64 pixels.
+		int half = (int) Math.sqrt(count) * 32;
+		Random random = new Random(count);
+		Entity[] boxes = new Entity[count];
+		for (int idx = 0; idx < count; idx++)
+			boxes[idx] = new Box(random.nextInt(2 * half - MAX_SIZE),
+					random.nextInt(2 * half - MAX_SIZE),
+					4 + random.nextInt(MAX_SIZE - 3),
+					4 + random.nextInt(MAX_SIZE - 3));
+		final int[] queries = new int[QUERIES * 4];
+		for (int idx = 0; idx < QUERIES; idx++) {
+			Entity e = boxes[random.nextInt(count)];
+			// A move of up to 8 pixels in any direction.
+			queries[idx * 4] = e.getX() - 8;
+			queries[idx * 4 + 1] = e.getY() - 8;
+			queries[idx * 4 + 2] = e.getX() + e.getW() + 8;
+			queries[idx * 4 + 3] = e.getY() + e.getH() + 8;
+		}
+		long[] candidates = new long[2];
+		Runnable[] tasks = new Runnable[2];
+		final long[] found = new long[1];
+		for (int mode = 0; mode < 2; mode++) {
+			final boolean loose = mode == 1;
+			final QuadTree tree = new QuadTree(new BoundingBox(half, half,
+					half, half), loose);
+			for (Entity e : boxes)
+				tree.insert(e);
+			tasks[mode] = new Runnable() {
+				private final ArrayList<Entity> result = new ArrayList<Entity>();
+
+				@Override
+				public void run() {
+					found[0] = 0;
+					for (int idx = 0; idx < QUERIES; idx++) {
+						int x1 = queries[idx * 4], y1 = queries[idx * 4 + 1];
+						int x2 = queries[idx * 4 + 2], y2 = queries[idx * 4 + 3];
+						// A point tree must also find entities whose corner
+						// lies above or left of the area.
+						int grow = loose ? 0 : MAX_SIZE;
+						result.clear();
+						tree.searchRect(x1 - grow, y1 - grow, x2, y2, result);
+						found[0] += result.size();
+						for (int r = 0; r < result.size(); r++) {
+							Entity e = result.get(r);
+							if (e.getX() + e.getW() < x1 || e.getX() > x2
+									|| e.getY() + e.getH() < y1
+									|| e.getY() > y2)
+								found[0]--;
+						}
+					}
+				}
+			};
+			// Count what each tree returned before filtering.
+			candidates[mode] = 0;
+			ArrayList<Entity> result = new ArrayList<Entity>();
+			for (int idx = 0; idx < QUERIES; idx++) {
+				int x1 = queries[idx * 4], y1 = queries[idx * 4 + 1];
+				int x2 = queries[idx * 4 + 2], y2 = queries[idx * 4 + 3];
+				int grow = loose ? 0 : MAX_SIZE;
+				result.clear();
+				tree.searchRect(x1 - grow, y1 - grow, x2, y2, result);
+				candidates[mode] += result.size();
+			}
+		}
+		// The trees take turns, so neither is timed only while the machine
+		// is busy.
+		long[] nanos = { Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int mode = 0; mode < 2; mode++)
+				nanos[mode] = Math.min(nanos[mode], Bench.best(3, tasks[mode]));
+		}
+		System.out.println(String.format("%8d  %14.0f  %14.0f  %16.2f  %16.2f",
+				count, (double) nanos[0] / QUERIES, (double) nanos[1] / QUERIES,
+				(double) candidates[0] / QUERIES, (double) candidates[1]
+						/ QUERIES));
+	}
+}
@@ -0,0 +1,132 @@
+package org.mercury.util;
+
+import static org.mercury.Tests.check;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+
+/**
+ * Checks QuadTree queries against a brute force search, in both point and
+ * loose mode, after moving and resizing entities, and that moves out of the
+ * world leave the tree unchanged.
+ *
+ * @author tbertore
+ *
+ */
+public class QuadTreeTest {
+	private static final int SIZE = 1600;
+
+	public static void main(String[] args) {
+		for (int mode = 0; mode < 2; mode++) {
+			boolean loose = mode == 1;
+			queries(loose);
+			moveOutOfWorld(loose);
+		}
+	}
+
+	private static void queries(boolean loose) {
+		Random random = new Random(1);
+		QuadTree tree = new QuadTree(new BoundingBox(SIZE / 2, SIZE / 2,
+				SIZE / 2, SIZE / 2), loose);
+		ArrayList<Entity> boxes = new ArrayList<Entity>();
+		for (int idx = 0; idx < 5000; idx++) {
+			Box b = new Box(random.nextInt(SIZE - 20), random.nextInt(SIZE - 20),
+					random.nextInt(20), random.nextInt(20));
+			check(tree.insert(b), "Insert failed");
+			boxes.add(b);
+		}
+		for (int idx = 0; idx < 20000; idx++) {
+			Entity b = boxes.get(random.nextInt(boxes.size()));
+			b.setPosition(clamp(b.getX() + random.nextInt(41) - 20),
+					clamp(b.getY() + random.nextInt(41) - 20));
+			// Some grow past any size inserted, staying in their nodes.
+			if (idx % 10 == 0)
+				b.setSize(random.nextInt(40), random.nextInt(40));
+			tree.reindex(b);
+		}
+		compare(tree, boxes, random, loose);
+		// A rebuild must index the same entities.
+		tree.rebuild(boxes.toArray(new Entity[0]), boxes.size());
+		compare(tree, boxes, random, loose);
+		for (Entity b : boxes)
+			check(tree.remove(b), "Remove failed");
+		check(tree.size() == 0, "Entities left after removing all");
+		check(tree.getNodeCount() == 1, "Nodes left after removing all");
+	}
+
+	private static void compare(QuadTree tree, ArrayList<Entity> boxes,
+			Random random, boolean loose) {
+		check(tree.size() == boxes.size(), "Wrong size");
+		ArrayList<Entity> found = new ArrayList<Entity>();
+		for (int query = 0; query < 500; query++) {
+			BoundingBox rect = new BoundingBox(random.nextInt(SIZE),
+					random.nextInt(SIZE), 1 + random.nextInt(50),
+					1 + random.nextInt(50));
+			found.clear();
+			tree.searchRect(rect, found);
+			HashSet<Entity> set = new HashSet<Entity>(found);
+			check(set.size() == found.size(), "Entity found twice");
+			int expected = 0;
+			for (Entity b : boxes) {
+				boolean hit = loose ? rect.intersects(b.getX(), b.getY(),
+						b.getX() + b.getW(), b.getY() + b.getH()) : rect
+						.contains(b.getX(), b.getY());
+				if (hit) {
+					expected++;
+					check(set.contains(b), "Entity missed by searchRect");
+				}
+			}
+			check(expected == found.size(), "Extra entity from searchRect");
+		}
+	}
+
+	private static void moveOutOfWorld(boolean loose) {
+		QuadTree tree = new QuadTree(new BoundingBox(SIZE / 2, SIZE / 2,
+				SIZE / 2, SIZE / 2), loose);
+		Random random = new Random(2);
+		Entity[] boxes = new Entity[200];
+		for (int idx = 0; idx < boxes.length; idx++) {
+			boxes[idx] = new Box(random.nextInt(SIZE - 20),
+					random.nextInt(SIZE - 20), 8, 8);
+			tree.insert(boxes[idx]);
+		}
+		int nodes = tree.getNodeCount();
+		Entity lost = boxes[17];
+		lost.setPosition(SIZE * 3, SIZE * 3);
+		boolean thrown = false;
+		try {
+			tree.reindex(lost);
+		}
+		catch (RuntimeException e) {
+			thrown = true;
+		}
+		check(thrown, "Move out of the world not reported by reindex");
+		check(tree.size() == boxes.length && tree.contains(lost),
+				"reindex changed the tree before failing");
+		check(tree.getNodeCount() == nodes, "reindex collapsed nodes");
+		thrown = false;
+		try {
+			tree.rebuild(boxes, boxes.length);
+		}
+		catch (RuntimeException e) {
+			thrown = true;
+		}
+		check(thrown, "Move out of the world not reported by rebuild");
+		check(tree.size() == boxes.length && tree.contains(lost),
+				"rebuild changed the tree before failing");
+		// Once back inside, everything can be removed again.
+		lost.setPosition(10, 10);
+		tree.reindex(lost);
+		for (Entity b : boxes)
+			check(tree.remove(b), "Remove failed");
+		check(tree.size() == 0, "Entities left after removing all");
+	}
+
+	private static int clamp(int v) {
+		return Math.max(0, Math.min(SIZE - 21, v));
+	}
+}
@@ -0,0 +1,104 @@
+package org.mercury.util;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.world.World;
+
+/**
+ * Measures the bytes allocated per QuadTree query by each form of
+ * searchRect, and per tick by a world of moving entities, whose collision
+ * queries use the buffered form. The list returning searchRect allocates its
+ * result as every query did before the buffer and visitor forms were added.
+ *
+ * @author tbertore
+ *
+ */
+public class QueryAllocationBench {
+	private static final int COUNT = 10000;
+	private static final int QUERIES = 100000;
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		final QuadTree tree = new QuadTree(new BoundingBox(1600, 1600, 1600,
+				1600), true);
+		for (int idx = 0; idx < COUNT; idx++)
+			tree.insert(new Box(random.nextInt(3180), random.nextInt(3180),
+					4 + random.nextInt(16), 4 + random.nextInt(16)));
+		final BoundingBox[] rects = new BoundingBox[QUERIES];
+		for (int idx = 0; idx < QUERIES; idx++)
+			rects[idx] = new BoundingBox(random.nextInt(3200),
+					random.nextInt(3200), 8 + random.nextInt(16),
+					8 + random.nextInt(16));
+
+		report("searchRect(rect)", new Runnable() {
+			@Override
+			public void run() {
+				for (BoundingBox rect : rects)
+					tree.searchRect(rect);
+			}
+		}, QUERIES, "query");
+		final ArrayList<Entity> found = new ArrayList<Entity>();
+		report("searchRect(rect, buffer)", new Runnable() {
+			@Override
+			public void run() {
+				for (BoundingBox rect : rects) {
+					found.clear();
+					tree.searchRect(rect, found);
+				}
+			}
+		}, QUERIES, "query");
+		final int[] visits = new int[1];
+		final EntityVisitor visitor = new EntityVisitor() {
+			@Override
+			public boolean visit(Entity e) {
+				visits[0]++;
+				return true;
+			}
+		};
+		report("searchRect(rect, visitor)", new Runnable() {
+			@Override
+			public void run() {
+				for (BoundingBox rect : rects)
+					tree.searchRect(rect, visitor);
+			}
+		}, QUERIES, "query");
+
+		final World world = new World(200, 200);
+		for (int idx = 0; idx < COUNT; idx++) {
+			Box b = new Box(16 + random.nextInt(3100),
+					16 + random.nextInt(3100), 8, 8);
+			world.addEntity(b);
+			b.setPropagationVector(random.nextInt(3) - 1,
+					random.nextInt(3) - 1);
+		}
+		// A tick runs far more code than a query, so until it is all
+		// compiled the interpreter allocates a few hundred bytes a tick.
+		for (int tick = 0; tick < 3000; tick++)
+			world.update();
+		report("World.update, " + COUNT + " moving", new Runnable() {
+			@Override
+			public void run() {
+				for (int tick = 0; tick < 20; tick++)
+					world.update();
+			}
+		}, 20, "tick");
+	}
+
+	private static void report(String name, Runnable task, int ops,
+			String op) {
+		// Warm up so the JIT has compiled the code measured.
+		for (int run = 0; run < 5; run++)
+			task.run();
+		long before = Bench.allocatedBytes();
+		long start = System.nanoTime();
+		task.run();
+		long nanos = System.nanoTime() - start;
+		long bytes = Bench.allocatedBytes() - before;
+		System.out.println(String.format("%-32s %10.1f bytes/%s %10.0f ns/%s",
+				name, (double) bytes / ops, op, (double) nanos / ops, op));
+	}
+}
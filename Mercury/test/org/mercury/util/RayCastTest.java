@@ -0,0 +1,363 @@
+package org.mercury.util;
+
+import static org.mercury.Tests.check;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityTable;
+import org.mercury.world.Terrain;
+import org.mercury.world.World;
+
+/**
+ * Checks the tiles walked by RayCast.traverseTiles against points sampled
+ * along each segment, including segments through exact tile corners and of
+ * no length, the hits of first and all hit casts through a loose QuadTree
+ * and a SpatialGrid against a brute force search, how hits at the same time
+ * are ranked, and that line of sight checks allocate nothing and may run on
+ * several threads at once.
+ *
+ * @author tbertore
+ *
+ */
+public class RayCastTest {
+	private static final int SIZE = 1600;
+
+	public static void main(String[] args) throws InterruptedException {
+		tiles();
+		corners();
+		for (int mode = 0; mode < 2; mode++) {
+			hits(mode);
+			ties(mode);
+			zeroLength(mode);
+		}
+		sight();
+		threads();
+	}
+
+	/**
+	 * Creates an index of the kind numbered mode: a loose QuadTree or a
+	 * SpatialGrid. A point QuadTree does not index bodies, so it may miss
+	 * hits.
+	 */
+	private static SpatialIndex create(int mode) {
+		if (mode == 1)
+			return new SpatialGrid(SIZE, SIZE, 64);
+		return new QuadTree(new BoundingBox(SIZE / 2, SIZE / 2, SIZE / 2,
+				SIZE / 2), true);
+	}
+
+	/**
+	 * Records every tile a walk visits.
+	 */
+	private static class Walk implements TileVisitor {
+		private final ArrayList<int[]> tiles = new ArrayList<int[]>();
+		private final ArrayList<Double> times = new ArrayList<Double>();
+
+		@Override
+		public boolean visitTile(int tx, int ty, double time) {
+			tiles.add(new int[] { tx, ty });
+			times.add(time);
+			return true;
+		}
+
+		private boolean visited(int tx, int ty) {
+			for (int[] tile : tiles) {
+				if (tile[0] == tx && tile[1] == ty)
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Walks a segment and checks that it starts and ends in the right tiles,
+	 * moves one tile at a time forwards along the segment, and visits every
+	 * tile a point sampled along the segment lies in.
+	 */
+	private static Walk walk(double x1, double y1, double x2, double y2) {
+		int size = Terrain.SIZE;
+		Walk walk = new Walk();
+		check(RayCast.traverseTiles(x1, y1, x2, y2, size, walk),
+				"Walk stopped early");
+		int[] first = walk.tiles.get(0);
+		int[] last = walk.tiles.get(walk.tiles.size() - 1);
+		check(first[0] == (int) Math.floor(x1 / size)
+				&& first[1] == (int) Math.floor(y1 / size)
+				&& walk.times.get(0) == 0, "Walk started in the wrong tile");
+		check(last[0] == (int) Math.floor(x2 / size)
+				&& last[1] == (int) Math.floor(y2 / size),
+				"Walk ended in the wrong tile");
+		for (int idx = 1; idx < walk.tiles.size(); idx++) {
+			int[] from = walk.tiles.get(idx - 1);
+			int[] to = walk.tiles.get(idx);
+			check(Math.abs(to[0] - from[0]) + Math.abs(to[1] - from[1]) == 1,
+					"Walk skipped a tile");
+			double time = walk.times.get(idx);
+			check(time >= walk.times.get(idx - 1) && time <= 1,
+					"Walk went backwards");
+		}
+		for (int step = 0; step < 1000; step++) {
+			double t = (step + 0.5) / 1000;
+			int tx = (int) Math.floor((x1 + (x2 - x1) * t) / size);
+			int ty = (int) Math.floor((y1 + (y2 - y1) * t) / size);
+			check(walk.visited(tx, ty), "Walk missed a tile");
+		}
+		return walk;
+	}
+
+	private static void tiles() {
+		Random random = new Random(1);
+		for (int idx = 0; idx < 2000; idx++) {
+			double x1 = random.nextDouble() * 400 - 200;
+			double y1 = random.nextDouble() * 400 - 200;
+			// Some segments run along an axis.
+			double x2 = (idx % 5 == 0) ? x1 : random.nextDouble() * 400 - 200;
+			double y2 = (idx % 7 == 0) ? y1 : random.nextDouble() * 400 - 200;
+			walk(x1, y1, x2, y2);
+		}
+		// Along tile edges.
+		walk(0, 0, 160, 0);
+		walk(32, 100, 32, -100);
+		// A segment of no length visits only the tile it lies in.
+		Walk walk = walk(-5, 20, -5, 20);
+		check(walk.tiles.size() == 1, "Zero length walk left its tile");
+		walk = walk(48, 48, 48, 48);
+		check(walk.tiles.size() == 1, "Zero length walk left its tile");
+	}
+
+	/**
+	 * Segments through exact tile corners cross into one of the tiles beside
+	 * the corner before the tile across it, at the same time.
+	 */
+	private static void corners() {
+		int size = Terrain.SIZE;
+		Walk walk = walk(8, 8, 56, 56);
+		check(walk.tiles.size() == 7, "Diagonal visited "
+				+ walk.tiles.size() + " tiles");
+		for (int idx = 1; idx < 7; idx += 2)
+			check(walk.times.get(idx).equals(walk.times.get(idx + 1)),
+					"Corner crossed at two times");
+		// Starting and ending on corners, moving up and left.
+		walk = walk(2 * size, 2 * size, 0, 0);
+		check(walk.tiles.size() == 5, "Diagonal from a corner visited "
+				+ walk.tiles.size() + " tiles");
+		// Ending on a corner, which it reaches across both edges at once.
+		walk = walk(-size, size, size, -size);
+		check(walk.tiles.size() == 5, "Diagonal across the origin visited "
+				+ walk.tiles.size() + " tiles");
+		// Crosses into a tile beside the end corner before the end tile.
+		walk = walk(0, 0, 3 * size, 2 * size);
+		check(walk.tiles.size() == 6, "Slope through a corner visited "
+				+ walk.tiles.size() + " tiles");
+	}
+
+	/**
+	 * Casts random rays and compares the hits with every entity the ray
+	 * enters, in order of time and then slot index.
+	 */
+	private static void hits(int mode) {
+		Random random = new Random(mode);
+		SpatialIndex index = create(mode);
+		EntityTable table = new EntityTable();
+		ArrayList<Entity> boxes = new ArrayList<Entity>();
+		for (int idx = 0; idx < 2000; idx++) {
+			Entity e = new Box(random.nextInt(SIZE - 40),
+					random.nextInt(SIZE - 40), 1 + random.nextInt(40),
+					1 + random.nextInt(40));
+			table.add(e);
+			index.insert(e);
+			boxes.add(e);
+		}
+		RayCast ray = new RayCast();
+		RayCast probe = new RayCast();
+		for (int cast = 0; cast < 300; cast++) {
+			double x1 = random.nextInt(SIZE), y1 = random.nextInt(SIZE);
+			double x2 = random.nextInt(SIZE), y2 = random.nextInt(SIZE);
+			probe.begin(x1, y1, x2, y2, true);
+			ArrayList<Entity> expected = new ArrayList<Entity>();
+			for (Entity e : boxes) {
+				if (entry(probe, e) <= 1)
+					expected.add(e);
+			}
+			ray.begin(x1, y1, x2, y2, true);
+			index.searchRay(ray);
+			check(ray.size() == expected.size(), "Found " + ray.size()
+					+ " hits, expected " + expected.size());
+			for (int idx = 0; idx < ray.size(); idx++) {
+				Entity e = ray.get(idx);
+				check(expected.contains(e), "Hit an entity off the ray");
+				check(ray.getTime(idx) == entry(probe, e), "Wrong hit time");
+				if (idx > 0)
+					check(before(ray.get(idx - 1), ray.getTime(idx - 1), e,
+							ray.getTime(idx)), "Hits out of order");
+			}
+			ray.begin(x1, y1, x2, y2, false);
+			index.searchRay(ray);
+			Entity first = null;
+			for (Entity e : expected) {
+				if (first == null
+						|| before(e, entry(probe, e), first, entry(probe,
+								first)))
+					first = e;
+			}
+			check((first == null) ? ray.size() == 0 : ray.size() == 1
+					&& ray.get(0) == first, "Wrong first hit");
+		}
+	}
+
+	private static double entry(RayCast probe, Entity e) {
+		return probe.entry(e.getX(), e.getY(), e.getX() + e.getW(), e.getY()
+				+ e.getH());
+	}
+
+	/**
+	 * Checks if a hit ranks before another: earlier, or at the same time with
+	 * a lower slot index.
+	 */
+	private static boolean before(Entity a, double timeA, Entity b,
+			double timeB) {
+		return timeA < timeB || timeA == timeB && a.index() < b.index();
+	}
+
+	/**
+	 * Entities entered at the same time are ranked by slot index, whatever
+	 * order the index holds them in.
+	 */
+	private static void ties(int mode) {
+		for (int order = 0; order < 2; order++) {
+			SpatialIndex index = create(mode);
+			EntityTable table = new EntityTable();
+			Entity[] boxes = new Entity[4];
+			for (int idx = 0; idx < boxes.length; idx++) {
+				// Every box's left edge lies at x = 200, and all but the
+				// last cross the ray.
+				boxes[idx] = new Box(200, 91 + idx * 4, 10, 10);
+				table.add(boxes[idx]);
+			}
+			for (int idx = 0; idx < boxes.length; idx++)
+				index.insert(boxes[(order == 0) ? idx : boxes.length - 1 - idx]);
+			RayCast ray = new RayCast();
+			ray.begin(100, 100, 300, 100, true);
+			index.searchRay(ray);
+			check(ray.size() == 3, "Found " + ray.size() + " tied hits");
+			for (int idx = 0; idx < ray.size(); idx++) {
+				check(ray.getTime(idx) == 0.5, "Wrong tied hit time");
+				check(ray.get(idx) == boxes[idx], "Tied hits out of order");
+			}
+			ray.begin(100, 100, 300, 100, false);
+			index.searchRay(ray);
+			check(ray.size() == 1 && ray.get(0) == boxes[0],
+					"Wrong first of tied hits");
+		}
+	}
+
+	/**
+	 * A ray of no length hits what its point lies in, at time 0.
+	 */
+	private static void zeroLength(int mode) {
+		SpatialIndex index = create(mode);
+		EntityTable table = new EntityTable();
+		Entity inside = new Box(100, 100, 20, 20);
+		Entity outside = new Box(130, 100, 20, 20);
+		table.add(inside);
+		table.add(outside);
+		index.insert(inside);
+		index.insert(outside);
+		RayCast ray = new RayCast();
+		for (int all = 0; all < 2; all++) {
+			ray.begin(110, 110, 110, 110, all == 1);
+			index.searchRay(ray);
+			check(ray.size() == 1 && ray.get(0) == inside
+					&& ray.getTime(0) == 0, "Zero length ray missed");
+			ray.begin(125, 110, 125, 110, all == 1);
+			index.searchRay(ray);
+			check(ray.size() == 0, "Zero length ray hit nothing it is in");
+		}
+	}
+
+	/**
+	 * Checks line of sight and terrain casts against a wall, and that line
+	 * of sight checks allocate nothing.
+	 */
+	private static void sight() {
+		int size = Terrain.SIZE;
+		World world = new World(20, 20);
+		for (int ty = 0; ty < 20; ty++)
+			world.setTile(10, ty, 0, 0, Terrain.PATHING_NONE);
+		double time = world.castTerrain(5 * size, 40, 15 * size, 40);
+		check(Math.abs(time - 0.5) < 1e-9, "Wall entered at " + time);
+		check(world.castTerrain(size, 40, 9 * size, 40) == 1,
+				"Blocked before the wall");
+		check(world.castTerrain(5 * size, 40, -size, 40) < 1,
+				"Edge of the world did not block");
+		Random random = new Random(1);
+		for (int idx = 0; idx < 2000; idx++) {
+			double x1 = random.nextDouble() * 20 * size;
+			double y1 = random.nextDouble() * 20 * size;
+			double x2 = random.nextDouble() * 20 * size;
+			double y2 = random.nextDouble() * 20 * size;
+			boolean across = (int) (x1 / size) == 10
+					|| (int) (x2 / size) == 10
+					|| (x1 < 10 * size) != (x2 < 10 * size);
+			check(world.hasLineOfSight(x1, y1, x2, y2) == !across,
+					"Wrong line of sight");
+			check(world.hasLineOfSight(x1, y1, x2, y2) == (world
+					.castTerrain(x1, y1, x2, y2) >= 1),
+					"Line of sight disagrees with terrain cast");
+		}
+		int sum = 0;
+		for (int idx = 0; idx < 100000; idx++)
+			sum += los(world, idx) ? 1 : 0;
+		long before = Bench.allocatedBytes();
+		for (int idx = 0; idx < 100000; idx++)
+			sum += los(world, idx) ? 1 : 0;
+		long bytes = Bench.allocatedBytes() - before;
+		check(sum > 0, "Every line of sight blocked");
+		// Allows for the counter itself, but not a byte per check.
+		check(bytes < 100000, "Line of sight allocated " + bytes + " bytes");
+	}
+
+	private static boolean los(World world, int idx) {
+		int size = Terrain.SIZE;
+		return world.hasLineOfSight(size * (idx % 19) + 3, 40, size
+				* (idx % 17) + 5, 200);
+	}
+
+	/**
+	 * Two threads cast different segments through the same world at once,
+	 * and each must always find its own result.
+	 */
+	private static void threads() throws InterruptedException {
+		final int size = Terrain.SIZE;
+		final World world = new World(20, 20);
+		for (int ty = 0; ty < 20; ty++)
+			world.setTile(10, ty, 0, 0, Terrain.PATHING_NONE);
+		final double blocked = world.castTerrain(5 * size, 40, 15 * size, 40);
+		final boolean[] failed = new boolean[2];
+		Thread[] threads = new Thread[2];
+		for (int idx = 0; idx < 2; idx++) {
+			final int which = idx;
+			threads[idx] = new Thread() {
+				@Override
+				public void run() {
+					// One thread is blocked halfway, the other never.
+					double x2 = (which == 0) ? 15 * size : 9 * size;
+					double expected = (which == 0) ? blocked : 1;
+					for (int cast = 0; cast < 200000; cast++) {
+						if (world.castTerrain(5 * size, 40, x2, 40) != expected
+								|| world.hasLineOfSight(5 * size, 40, x2, 40) != (which == 1))
+							failed[which] = true;
+					}
+				}
+			};
+			threads[idx].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		check(!failed[0] && !failed[1], "Casts on two threads interfered");
+	}
+}
@@ -0,0 +1,164 @@
+package org.mercury.util;
+
+import static org.mercury.Tests.check;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityTable;
+
+/**
+ * Checks SpatialGrid queries against a brute force search, that the widening
+ * of queries shrinks again once the largest entity leaves, and that moves out
+ * of the world leave the grid unchanged.
+ *
+ * @author tbertore
+ *
+ */
+public class SpatialGridTest {
+	private static final int SIZE = 1600;
+	private static final int CELL = 64;
+
+	public static void main(String[] args) {
+		queries();
+		shrink();
+		moveOutOfWorld();
+	}
+
+	private static void queries() {
+		Random random = new Random(1);
+		EntityTable table = new EntityTable();
+		SpatialGrid grid = new SpatialGrid(SIZE, SIZE, CELL);
+		ArrayList<Entity> boxes = new ArrayList<Entity>();
+		for (int idx = 0; idx < 5000; idx++) {
+			Box b = new Box(random.nextInt(SIZE - 20), random.nextInt(SIZE - 20),
+					random.nextInt(20), random.nextInt(20));
+			table.add(b);
+			check(grid.insert(b), "Insert failed");
+			boxes.add(b);
+		}
+		for (int idx = 0; idx < 20000; idx++) {
+			Entity b = boxes.get(random.nextInt(boxes.size()));
+			b.setPosition(clamp(b.getX() + random.nextInt(41) - 20),
+					clamp(b.getY() + random.nextInt(41) - 20));
+			grid.reindex(b);
+		}
+		compare(grid, boxes, random);
+		grid.rebuild(boxes.toArray(new Entity[0]), boxes.size());
+		compare(grid, boxes, random);
+		for (Entity b : boxes)
+			check(grid.remove(b), "Remove failed");
+		check(grid.size() == 0, "Entities left after removing all");
+	}
+
+	private static void compare(SpatialGrid grid, ArrayList<Entity> boxes,
+			Random random) {
+		check(grid.size() == boxes.size(), "Wrong size");
+		ArrayList<Entity> found = new ArrayList<Entity>();
+		for (int query = 0; query < 500; query++) {
+			BoundingBox rect = new BoundingBox(random.nextInt(SIZE),
+					random.nextInt(SIZE), 1 + random.nextInt(50),
+					1 + random.nextInt(50));
+			found.clear();
+			grid.searchRect(rect, found);
+			HashSet<Entity> set = new HashSet<Entity>(found);
+			check(set.size() == found.size(), "Entity found twice");
+			int expected = 0;
+			for (Entity b : boxes) {
+				if (rect.intersects(b.getX(), b.getY(), b.getX() + b.getW(),
+						b.getY() + b.getH())) {
+					expected++;
+					check(set.contains(b), "Entity missed by searchRect");
+				}
+			}
+			check(expected == found.size(), "Extra entity from searchRect");
+		}
+	}
+
+	private static void shrink() {
+		EntityTable table = new EntityTable();
+		SpatialGrid grid = new SpatialGrid(SIZE, SIZE, CELL);
+		Entity small = new Box(100, 100, 10, 12);
+		Entity other = new Box(300, 300, 10, 12);
+		Entity big = new Box(500, 500, 400, 300);
+		table.add(small);
+		table.add(other);
+		table.add(big);
+		grid.insert(small);
+		grid.insert(other);
+		grid.insert(big);
+		check(grid.getMaxW() == 400 && grid.getMaxH() == 300,
+				"Largest extent not tracked");
+		// Shrinking the largest entity in place must shrink the widening.
+		big.setSize(20, 8);
+		grid.reindex(big);
+		check(grid.getMaxW() == 20 && grid.getMaxH() == 12,
+				"Widening kept after the largest entity shrank");
+		check(grid.searchRect(new BoundingBox(105, 106, 1, 1)).contains(small),
+				"Entity missed after shrinking");
+		// Removing one of two equally large entities keeps the widening.
+		other.setSize(20, 12);
+		grid.reindex(other);
+		grid.remove(big);
+		check(grid.getMaxW() == 20 && grid.getMaxH() == 12,
+				"Widening lost while an entity that large is left");
+		grid.remove(other);
+		check(grid.getMaxW() == 10 && grid.getMaxH() == 12,
+				"Widening kept after the largest entity left");
+		grid.remove(small);
+		check(grid.getMaxW() == 0 && grid.getMaxH() == 0,
+				"Widening kept in an empty grid");
+	}
+
+	private static void moveOutOfWorld() {
+		EntityTable table = new EntityTable();
+		SpatialGrid grid = new SpatialGrid(SIZE, SIZE, CELL);
+		Random random = new Random(2);
+		Entity[] boxes = new Entity[200];
+		for (int idx = 0; idx < boxes.length; idx++) {
+			boxes[idx] = new Box(random.nextInt(SIZE - 20),
+					random.nextInt(SIZE - 20), 8, 8);
+			table.add(boxes[idx]);
+			grid.insert(boxes[idx]);
+		}
+		Entity lost = boxes[17];
+		int x = lost.getX(), y = lost.getY();
+		lost.setPosition(SIZE * 3, SIZE * 3);
+		lost.setSize(50, 50);
+		boolean thrown = false;
+		try {
+			grid.reindex(lost);
+		}
+		catch (RuntimeException e) {
+			thrown = true;
+		}
+		check(thrown, "Move out of the world not reported by reindex");
+		check(grid.getMaxW() == 8, "reindex stored the extent before failing");
+		thrown = false;
+		try {
+			grid.rebuild(boxes, boxes.length);
+		}
+		catch (RuntimeException e) {
+			thrown = true;
+		}
+		check(thrown, "Move out of the world not reported by rebuild");
+		check(grid.size() == boxes.length && grid.contains(lost),
+				"rebuild changed the grid before failing");
+		// The stale extent must still be found where it was indexed.
+		check(grid.searchRect(new BoundingBox(x + 4, y + 4, 1, 1)).contains(
+				lost), "reindex moved the entity before failing");
+		lost.setPosition(10, 10);
+		lost.setSize(8, 8);
+		grid.reindex(lost);
+		for (Entity b : boxes)
+			check(grid.remove(b), "Remove failed");
+		check(grid.size() == 0, "Entities left after removing all");
+	}
+
+	private static int clamp(int v) {
+		return Math.max(0, Math.min(SIZE - 21, v));
+	}
+}
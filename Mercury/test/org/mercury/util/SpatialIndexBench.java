@@ -0,0 +1,119 @@
+package org.mercury.util;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityTable;
+import org.mercury.world.Terrain;
+
+/**
+ * Compares a loose QuadTree with a SpatialGrid as the index of an
+ * EntityManager, under three workloads of 20k entities in a 6400 by 6400
+ * pixel world:
+ * <ul>
+ * <li>uniform: entities spread evenly, each taking a small random step
+ * <li>clustered: entities crowded around an 8 by 8 grid of points,
+ * stepping randomly
+ * <li>streaming: a crowd crossing the world from west to east in a band,
+ * each entity leaving at the east edge entering again at the west
+ * </ul>
+ * A tick moves every entity, reindexes it and searches the area it covers
+ * for collisions, as EntityManager.update does. Entities leaving the world
+ * are removed and inserted again. JMH is not available without a build tool,
+ * so this is a plain main like the other benchmarks.
+ *
+ * @author tbertore
+ *
+ */
+public class SpatialIndexBench {
+	private static final int SIZE = 6400;
+	private static final int COUNT = 20000;
+	private static final int TICKS = 20;
+	private static final int CELL = Terrain.SIZE * 4;
+
+	public static void main(String[] args) {
+		System.out.println("workload   quadtree ms/tick  grid ms/tick");
+		for (String workload : new String[] { "uniform", "clustered",
+				"streaming" }) {
+			double quad = run(workload, false);
+			double grid = run(workload, true);
+			System.out.println(String.format("%-9s  %16.2f  %12.2f", workload,
+					quad, grid));
+		}
+	}
+
+	private static double run(final String workload, boolean grid) {
+		final Random random = new Random(1);
+		final Entity[] boxes = new Entity[COUNT];
+		EntityTable table = new EntityTable();
+		for (int idx = 0; idx < COUNT; idx++) {
+			int x, y;
+			if (workload.equals("clustered")) {
+				x = clamp(cluster(idx % 8) + (int) (random.nextGaussian() * 150));
+				y = clamp(cluster(idx / 8 % 8) + (int) (random.nextGaussian() * 150));
+			}
+			else if (workload.equals("streaming")) {
+				x = random.nextInt(SIZE - 20);
+				y = SIZE / 2 - 400 + random.nextInt(800);
+			}
+			else {
+				x = random.nextInt(SIZE - 20);
+				y = random.nextInt(SIZE - 20);
+			}
+			boxes[idx] = new Box(x, y, 8 + random.nextInt(9),
+					8 + random.nextInt(9));
+			table.add(boxes[idx]);
+		}
+		final SpatialIndex index = grid ? new SpatialGrid(SIZE, SIZE, CELL)
+				: new QuadTree(new BoundingBox(SIZE / 2, SIZE / 2, SIZE / 2,
+						SIZE / 2), true);
+		for (Entity e : boxes)
+			index.insert(e);
+		final long[] found = new long[1];
+		long nanos = Bench.best(5, new Runnable() {
+			private final ArrayList<Entity> result = new ArrayList<Entity>();
+
+			@Override
+			public void run() {
+				for (int tick = 0; tick < TICKS; tick++) {
+					for (Entity e : boxes) {
+						int x, y;
+						if (workload.equals("streaming")) {
+							x = e.getX() + 2 + random.nextInt(3);
+							y = e.getY() + random.nextInt(3) - 1;
+						}
+						else {
+							x = e.getX() + random.nextInt(5) - 2;
+							y = e.getY() + random.nextInt(5) - 2;
+						}
+						if (x > SIZE - 20) {
+							index.remove(e);
+							e.setPosition(0, clamp(y));
+							index.insert(e);
+						}
+						else {
+							e.setPosition(clamp(x), clamp(y));
+							index.reindex(e);
+						}
+						result.clear();
+						found[0] += index.searchRect(e.getX(), e.getY(),
+								e.getX() + e.getW(), e.getY() + e.getH(), result);
+					}
+				}
+			}
+		});
+		return nanos / 1e6 / TICKS;
+	}
+
+	// The center of one of 8 clusters along an axis.
+	private static int cluster(int idx) {
+		return SIZE / 16 + idx * SIZE / 8;
+	}
+
+	private static int clamp(int v) {
+		return Math.max(0, Math.min(SIZE - 20, v));
+	}
+}
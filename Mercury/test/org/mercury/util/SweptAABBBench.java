@@ -0,0 +1,162 @@
+package org.mercury.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+
+/**
+ * Compares resolving a move against the entities found near it with
+ * SweptAABB, in one pass without allocating, against the method
+ * Entity.propagatePosition used before, which allocated a BoundingBox and
+ * two arrays per move and sorted the distances to every face to find the
+ * nearest. Each move is resolved against 2 to 32 entities, as found by the
+ * collision query of a crowded world.
+ *
+ * @author tbertore
+ *
+ */
+public class SweptAABBBench {
+	private static final int MOVES = 4096;
+	private static final int ROUNDS = 50;
+
+	public static void main(String[] args) {
+		System.out.println("candidates  sort ns/move  swept ns/move  sort bytes/move  swept bytes/move");
+		for (int candidates : new int[] { 2, 8, 32 })
+			run(candidates);
+	}
+
+	private static void run(int candidates) {
+		Random random = new Random(candidates);
+		final Entity[] movers = new Entity[MOVES];
+		final int[] east = new int[MOVES];
+		final int[] north = new int[MOVES];
+		final double[] speeds = new double[MOVES];
+		final ArrayList<ArrayList<Entity>> found = new ArrayList<ArrayList<Entity>>();
+		for (int idx = 0; idx < MOVES; idx++) {
+			movers[idx] = new Box(500, 500, 8, 8);
+			east[idx] = random.nextInt(3) - 1;
+			north[idx] = (east[idx] == 0) ? 1 : random.nextInt(3) - 1;
+			speeds[idx] = 0.5 + random.nextDouble() * 4;
+			ArrayList<Entity> near = new ArrayList<Entity>();
+			while (near.size() < candidates) {
+				int x = 460 + random.nextInt(80);
+				int y = 460 + random.nextInt(80);
+				// Only entities not already overlapping the mover.
+				if (x + 8 <= 500 || x >= 508 || y + 8 <= 500 || y >= 508)
+					near.add(new Box(x, y, 8, 8));
+			}
+			found.add(near);
+		}
+		final double[] sink = new double[1];
+		Runnable sort = new Runnable() {
+			@Override
+			public void run() {
+				for (int round = 0; round < ROUNDS; round++) {
+					for (int idx = 0; idx < MOVES; idx++)
+						sink[0] += sortMove(movers[idx], east[idx],
+								north[idx], speeds[idx], found.get(idx));
+				}
+			}
+		};
+		Runnable swept = new Runnable() {
+			private final SweptAABB sweep = new SweptAABB();
+
+			@Override
+			public void run() {
+				for (int round = 0; round < ROUNDS; round++) {
+					for (int idx = 0; idx < MOVES; idx++)
+						sink[0] += sweptMove(sweep, movers[idx], east[idx],
+								north[idx], speeds[idx], found.get(idx));
+				}
+			}
+		};
+		long sortNanos = Bench.best(5, sort);
+		long sweptNanos = Bench.best(5, swept);
+		long before = Bench.allocatedBytes();
+		sort.run();
+		long sortBytes = Bench.allocatedBytes() - before;
+		before = Bench.allocatedBytes();
+		swept.run();
+		long sweptBytes = Bench.allocatedBytes() - before;
+		double moves = (double) MOVES * ROUNDS;
+		System.out.println(String.format("%10d  %12.1f  %13.1f  %15.1f  %16.1f",
+				candidates, sortNanos / moves, sweptNanos / moves, sortBytes
+						/ moves, sweptBytes / moves));
+	}
+
+	/**
+	 * The move the old Entity.propagatePosition made, returning the distance
+	 * moved rather than moving the entity.
+	 */
+	private static double sortMove(Entity e, int deltaEast, int deltaNorth,
+			double speed, ArrayList<Entity> collisions) {
+		double magnitude = Math.sqrt(Math.abs(deltaEast)
+				+ Math.abs(deltaNorth));
+		double deltaX = deltaEast * speed / magnitude;
+		double deltaY = -deltaNorth * speed / magnitude;
+		int w = e.getW(), h = e.getH();
+		int propCX = (int) (e.getPosX() + (w / 2) + deltaX + 0.5);
+		int propCY = (int) (e.getPosY() + (h / 2) + deltaY + 0.5);
+		BoundingBox propBounds = new BoundingBox(propCX, propCY, w / 2, h / 2);
+		int[] xVals = new int[collisions.size()];
+		int[] yVals = new int[collisions.size()];
+		for (int j = 0; j < collisions.size(); j++) {
+			Entity c = collisions.get(j);
+			xVals[j] = (deltaEast > 0) ? Math.abs(c.getX() - (e.getX() + w))
+					: Math.abs(e.getX() - (c.getX() - c.getW()));
+			yVals[j] = (deltaNorth <= 0) ? Math.abs(c.getY() - (e.getY() + h))
+					: Math.abs(e.getY() - (c.getY() - c.getH()));
+		}
+		Arrays.sort(xVals);
+		Arrays.sort(yVals);
+		double x = (Math.abs(deltaX) > xVals[0]) ? (double) xVals[0]
+				* deltaEast : deltaX;
+		double y = (Math.abs(deltaY) > yVals[0]) ? (double) yVals[0]
+				* -deltaNorth : deltaY;
+		return x + y + propBounds.cx;
+	}
+
+	/**
+	 * The move Entity.commitMove makes: to the first contact, then sliding
+	 * along it.
+	 */
+	private static double sweptMove(SweptAABB sweep, Entity e,
+			int deltaEast, int deltaNorth, double speed,
+			ArrayList<Entity> collisions) {
+		double magnitude = Math.sqrt(Math.abs(deltaEast)
+				+ Math.abs(deltaNorth));
+		double deltaX = deltaEast * speed / magnitude;
+		double deltaY = -deltaNorth * speed / magnitude;
+		double x = e.getPosX(), y = e.getPosY();
+		int w = e.getW(), h = e.getH();
+		for (int pass = 0; pass < 2; pass++) {
+			sweep.reset();
+			for (int idx = 0; idx < collisions.size(); idx++) {
+				Entity c = collisions.get(idx);
+				sweep.sweep(x, y, w, h, deltaX, deltaY, c.getPosX(),
+						c.getPosY(), c.getW(), c.getH());
+			}
+			if (sweep.time == 1) {
+				x += deltaX;
+				y += deltaY;
+				break;
+			}
+			if (sweep.normalX != 0) {
+				x = sweep.contact;
+				y += deltaY * sweep.time;
+			}
+			else {
+				x += deltaX * sweep.time;
+				y = sweep.contact;
+			}
+			double remaining = 1 - sweep.time;
+			deltaX = (sweep.normalX != 0) ? 0 : deltaX * remaining;
+			deltaY = (sweep.normalY != 0) ? 0 : deltaY * remaining;
+		}
+		return x + y;
+	}
+}
@@ -0,0 +1,151 @@
+package org.mercury.util;
+
+import static org.mercury.Tests.check;
+
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.world.World;
+
+/**
+ * Checks SweptAABB contacts, and that entities moving through a World stop
+ * against thin and fast moving obstacles rather than passing through them,
+ * whatever their speed and however rounding falls.
+ *
+ * @author tbertore
+ *
+ */
+public class SweptAABBTest {
+
+	public static void main(String[] args) {
+		sweeps();
+		highSpeed();
+		thinObstacle();
+		rounding();
+	}
+
+	private static void sweeps() {
+		SweptAABB sweep = new SweptAABB();
+		// Head on, hitting the west face of b half way.
+		sweep.reset();
+		check(sweep.sweep(0, 0, 10, 10, 20, 0, 20, 0, 10, 10), "Missed hit");
+		check(sweep.time == 0.5 && sweep.normalX == -1 && sweep.normalY == 0
+				&& sweep.contact == 10, "Wrong contact");
+		// A thin box crossed in one move far longer than it is wide.
+		sweep.reset();
+		check(sweep.sweep(0, 0, 10, 10, 1000, 0, 500, 0, 1, 10),
+				"Thin box tunnelled");
+		check(sweep.contact == 490, "Wrong contact with thin box");
+		// The earliest of several contacts is kept.
+		sweep.reset();
+		sweep.sweep(0, 0, 10, 10, 1000, 0, 500, 0, 1, 10);
+		check(!sweep.sweep(0, 0, 10, 10, 1000, 0, 700, 0, 1, 10),
+				"Later contact replaced earlier one");
+		check(sweep.sweep(0, 0, 10, 10, 1000, 0, 100, 0, 1, 10)
+				&& sweep.contact == 90, "Earlier contact not found");
+		// Passing beside a box, and sliding along one touched.
+		sweep.reset();
+		check(!sweep.sweep(0, 0, 10, 10, 100, 0, 50, 10, 10, 10),
+				"Hit a box passed beside");
+		check(!sweep.sweep(0, 0, 10, 10, 0, 100, 10, 20, 10, 10),
+				"Hit a box slid along");
+		// Resting against a box, or within rounding of it, is a contact.
+		sweep.reset();
+		check(sweep.sweep(10, 0, 10, 10, 5, 0, 20, 0, 10, 10)
+				&& sweep.time == 0, "Resting contact missed");
+		sweep.reset();
+		check(sweep.sweep(10 + 1e-9, 0, 10, 10, 5, 0, 20, 0, 10, 10)
+				&& sweep.time == 0 && sweep.contact == 10,
+				"Contact within rounding missed");
+		// Boxes overlapping deeper than that are free to separate.
+		sweep.reset();
+		check(!sweep.sweep(12, 0, 10, 10, 5, 0, 20, 0, 10, 10),
+				"Deep overlap blocked");
+		check(!sweep.sweep(12, 0, 10, 10, -5, 0, 20, 0, 10, 10),
+				"Deep overlap blocked separation");
+	}
+
+	/**
+	 * Entities moving many times their own size a tick stop against those
+	 * in their path.
+	 */
+	private static void highSpeed() {
+		for (int speed : new int[] { 10, 40, 100, 300 }) {
+			World world = new World(100, 100);
+			Entity wall = new Box(800, 100, 16, 400);
+			world.addEntity(wall);
+			Entity mover = new Box(40, 300, 8, 8);
+			world.addEntity(mover);
+			mover.setSpeed(speed);
+			mover.setPropagationVector(1, 0);
+			for (int tick = 0; tick < 100; tick++) {
+				world.update();
+				check(mover.getPosX() + 8 <= 800, "Tunnelled at speed "
+						+ speed);
+			}
+			check(mover.getPosX() == 792, "Stopped short at speed " + speed);
+		}
+		// Two fast entities running at each other meet without crossing.
+		World world = new World(100, 100);
+		Entity a = new Box(100, 300, 8, 8);
+		Entity b = new Box(1200, 300, 8, 8);
+		world.addEntity(a);
+		world.addEntity(b);
+		a.setSpeed(150);
+		b.setSpeed(150);
+		a.setPropagationVector(1, 0);
+		b.setPropagationVector(-1, 0);
+		for (int tick = 0; tick < 50; tick++) {
+			world.update();
+			check(a.getPosX() + 8 <= b.getPosX(), "Fast entities crossed");
+		}
+	}
+
+	/**
+	 * An entity one pixel thick, spanning the world, stops movers of any
+	 * speed and direction.
+	 */
+	private static void thinObstacle() {
+		Random random = new Random(1);
+		for (int run = 0; run < 50; run++) {
+			World world = new World(100, 100);
+			Entity thin = new Box(600, 0, 1, 1600);
+			world.addEntity(thin);
+			Entity mover = new Box(400, 300 + random.nextInt(200), 6, 6);
+			world.addEntity(mover);
+			mover.setSpeed(1 + random.nextDouble() * 60);
+			mover.setPropagationVector(1, random.nextInt(3) - 1);
+			for (int tick = 0; tick < 60; tick++) {
+				world.update();
+				check(mover.getPosX() + 6 <= 600, "Passed through thin entity");
+			}
+		}
+	}
+
+	/**
+	 * Entities at fractional speeds, pressing into obstacles diagonally for
+	 * many ticks, never end a tick inside them.
+	 */
+	private static void rounding() {
+		Random random = new Random(2);
+		for (int run = 0; run < 100; run++) {
+			World world = new World(100, 100);
+			Entity wall = new Box(700, 100, 3, 900);
+			world.addEntity(wall);
+			Entity mover = new Box(500 + random.nextInt(100),
+					500 + random.nextInt(100), 5 + random.nextInt(10),
+					5 + random.nextInt(10));
+			world.addEntity(mover);
+			mover.setSpeed(0.1 + random.nextDouble() * 3);
+			mover.setPropagationVector(1, random.nextBoolean() ? 1 : -1);
+			for (int tick = 0; tick < 300; tick++) {
+				world.update();
+				check(mover.getPosX() + mover.getW() <= wall.getPosX()
+						|| mover.getPosY() + mover.getH() <= wall.getPosY()
+						|| mover.getPosY() >= wall.getPosY() + wall.getH(),
+						"Crept into an entity");
+			}
+		}
+	}
+}
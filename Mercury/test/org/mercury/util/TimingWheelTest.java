@@ -0,0 +1,276 @@
+package org.mercury.util;
+
+import static org.mercury.Tests.check;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks TimingWheel against a brute force list of the tick each timer is
+ * due on, through random scheduling, rescheduling and cancelling long enough
+ * to cascade down from the upper levels, and then for timers far enough off
+ * to wait in the overflow bucket. Also checks delays of 0 and 1, cancelling
+ * before and after a timer cascades, and timers cancelling or rescheduling
+ * timers as they expire.
+ *
+ * @author tbertore
+ *
+ */
+public class TimingWheelTest {
+	// The number of ticks each level of the wheel reaches.
+	private static final long LEVEL1 = 64, LEVEL2 = 64 * 64,
+			LEVEL3 = 64 * 64 * 64, TOP = 64L * 64 * 64 * 64;
+
+	public static void main(String[] args) {
+		shortDelays();
+		cancel();
+		fromExpire();
+		random();
+		overflow();
+	}
+
+	/**
+	 * Records the ticks it expires on, and may run an action as it does.
+	 */
+	private static class Probe extends Timer {
+		private final TimingWheel wheel;
+		private final ArrayList<Long> expired = new ArrayList<Long>();
+		// Every timer sharing the log adds itself as it expires.
+		private ArrayList<Probe> log;
+		private Runnable action;
+
+		private Probe(TimingWheel wheel) {
+			this.wheel = wheel;
+		}
+
+		@Override
+		protected void expire() {
+			check(!isScheduled(), "Timer still scheduled as it expires");
+			expired.add(wheel.getTick());
+			if (log != null)
+				log.add(this);
+			if (action != null)
+				action.run();
+		}
+	}
+
+	private static void advance(TimingWheel wheel, long ticks) {
+		for (long tick = 0; tick < ticks; tick++)
+			wheel.advance();
+	}
+
+	/**
+	 * Delays of 0 and 1 both expire on the next tick, and negative delays
+	 * are treated as 0.
+	 */
+	private static void shortDelays() {
+		TimingWheel wheel = new TimingWheel();
+		advance(wheel, 5);
+		Probe zero = new Probe(wheel), one = new Probe(wheel);
+		Probe negative = new Probe(wheel), two = new Probe(wheel);
+		wheel.schedule(zero, 0);
+		wheel.schedule(one, 1);
+		wheel.schedule(negative, -3);
+		wheel.schedule(two, 2);
+		check(wheel.size() == 4 && zero.getDeadline() == 6, "Wrong deadline");
+		wheel.advance();
+		check(zero.expired.size() == 1 && zero.expired.get(0) == 6
+				&& one.expired.size() == 1 && one.expired.get(0) == 6
+				&& negative.expired.size() == 1 && two.expired.isEmpty(),
+				"Short delay expired on the wrong tick");
+		wheel.advance();
+		check(two.expired.size() == 1 && two.expired.get(0) == 7
+				&& wheel.size() == 0, "Delay of 2 expired on the wrong tick");
+		try {
+			new TimingWheel().schedule(zero, 1);
+			wheel.schedule(zero, 1);
+			check(false, "Scheduled a timer on two wheels");
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * Timers cancelled while still on an upper level, or after cascading to
+	 * a lower one, never expire. Rescheduling after a cascade moves them.
+	 */
+	private static void cancel() {
+		long[] delays = { LEVEL1 + 36, LEVEL2 + 100, LEVEL3 + 5000 };
+		for (long delay : delays) {
+			TimingWheel wheel = new TimingWheel();
+			advance(wheel, 10);
+			Probe before = new Probe(wheel), after = new Probe(wheel);
+			Probe moved = new Probe(wheel), kept = new Probe(wheel);
+			for (Probe probe : new Probe[] { before, after, moved, kept })
+				wheel.schedule(probe, delay);
+			long deadline = 10 + delay;
+			check(before.cancel() && !before.cancel() && !before.isScheduled(),
+					"Cancel failed");
+			// Just past the tick the timers cascade down to the lowest level.
+			advance(wheel, deadline - deadline % LEVEL1 + 1 - wheel.getTick());
+			check(wheel.size() == 3, "Timers expired before their deadline");
+			check(after.cancel(), "Cancel after cascading failed");
+			wheel.schedule(moved, 3);
+			long now = wheel.getTick();
+			advance(wheel, deadline - now + LEVEL1);
+			check(before.expired.isEmpty() && after.expired.isEmpty(),
+					"Cancelled timer expired");
+			check(moved.expired.size() == 1 && moved.expired.get(0) == now + 3,
+					"Rescheduled timer expired on " + moved.expired);
+			check(kept.expired.size() == 1 && kept.expired.get(0) == deadline,
+					"Timer expired on " + kept.expired + ", expected "
+							+ deadline);
+			check(wheel.size() == 0, "Timers left on the wheel");
+		}
+	}
+
+	/**
+	 * A timer may cancel another due on the same tick, or schedule itself
+	 * again, as it expires.
+	 */
+	private static void fromExpire() {
+		final TimingWheel wheel = new TimingWheel();
+		final Probe a = new Probe(wheel), b = new Probe(wheel);
+		final Probe repeat = new Probe(wheel);
+		a.action = new Runnable() {
+			@Override
+			public void run() {
+				b.cancel();
+			}
+		};
+		repeat.action = new Runnable() {
+			@Override
+			public void run() {
+				if (repeat.expired.size() < 5)
+					wheel.schedule(repeat, 0);
+			}
+		};
+		wheel.schedule(a, 70);
+		wheel.schedule(b, 70);
+		wheel.schedule(repeat, 1);
+		advance(wheel, 200);
+		check(a.expired.size() == 1 && b.expired.isEmpty(),
+				"Timer cancelled as another expired still expired");
+		check(repeat.expired.size() == 5 && repeat.expired.get(4) == 5,
+				"Timer scheduled from expire ran on " + repeat.expired);
+	}
+
+	/**
+	 * Random schedules, reschedules and cancels, checked each tick against
+	 * the deadline recorded for every scheduled timer.
+	 */
+	private static void random() {
+		Random random = new Random(1);
+		TimingWheel wheel = new TimingWheel();
+		ArrayList<Probe> log = new ArrayList<Probe>();
+		Probe[] probes = new Probe[2000];
+		for (int idx = 0; idx < probes.length; idx++) {
+			probes[idx] = new Probe(wheel);
+			probes[idx].log = log;
+		}
+		// Brute force: the deadline of every scheduled timer, and the timers
+		// due on each tick.
+		Map<Probe, Long> due = new HashMap<Probe, Long>();
+		Map<Long, Set<Probe>> byTick = new HashMap<Long, Set<Probe>>();
+		// Delays on either side of each level's reach.
+		long[] edges = { 0, 1, 2, LEVEL1 - 1, LEVEL1, LEVEL1 + 1, LEVEL2 - 1,
+				LEVEL2, LEVEL2 + 1, LEVEL3 - 1, LEVEL3, LEVEL3 + 1 };
+		long ticks = LEVEL3 + 5000;
+		for (long tick = 0; tick < ticks; tick++) {
+			int ops = random.nextInt(4);
+			for (int op = 0; op < ops; op++) {
+				Probe probe = probes[random.nextInt(probes.length)];
+				if (random.nextInt(4) == 0) {
+					check(probe.cancel() == due.containsKey(probe),
+							"Cancel disagrees with the brute force");
+					unschedule(due, byTick, probe);
+					continue;
+				}
+				long delay;
+				int kind = random.nextInt(10);
+				if (kind < 3)
+					delay = edges[random.nextInt(edges.length)];
+				else if (kind < 6)
+					delay = random.nextInt((int) LEVEL1);
+				else if (kind < 9)
+					delay = random.nextInt((int) LEVEL2);
+				else
+					delay = random.nextInt((int) LEVEL3 * 2);
+				wheel.schedule(probe, delay);
+				long deadline = wheel.getTick() + Math.max(1, delay);
+				unschedule(due, byTick, probe);
+				due.put(probe, deadline);
+				Set<Probe> probesDue = byTick.get(deadline);
+				if (probesDue == null) {
+					probesDue = new HashSet<Probe>();
+					byTick.put(deadline, probesDue);
+				}
+				probesDue.add(probe);
+				check(probe.getDeadline() == deadline && probe.isScheduled(),
+						"Wrong deadline");
+			}
+			long next = wheel.getTick() + 1;
+			Set<Probe> expected = byTick.remove(next);
+			if (expected == null)
+				expected = new HashSet<Probe>();
+			log.clear();
+			wheel.advance();
+			for (Probe probe : log)
+				check(expected.contains(probe), "Timer due on "
+						+ due.get(probe) + " expired on " + next);
+			check(log.size() == expected.size(), (expected.size() - log
+					.size()) + " timers due on " + next + " not expired");
+			for (Probe probe : expected)
+				due.remove(probe);
+			check(wheel.size() == due.size(), "Wheel holds " + wheel.size()
+					+ " timers, expected " + due.size());
+		}
+	}
+
+	private static void unschedule(Map<Probe, Long> due,
+			Map<Long, Set<Probe>> byTick, Probe probe) {
+		Long deadline = due.remove(probe);
+		if (deadline != null)
+			byTick.get(deadline).remove(probe);
+	}
+
+	/**
+	 * Timers beyond the top level wait in the overflow bucket until it is
+	 * sorted out again, and still expire on their deadline.
+	 */
+	private static void overflow() {
+		TimingWheel wheel = new TimingWheel();
+		advance(wheel, 12345);
+		long[] delays = { TOP - 1, TOP, TOP + 1, TOP + LEVEL3 + 7, 2 * TOP + 3,
+				2 * TOP + LEVEL2 };
+		Probe[] probes = new Probe[delays.length];
+		Probe early = new Probe(wheel), cancelled = new Probe(wheel);
+		wheel.schedule(early, TOP + 100);
+		wheel.schedule(cancelled, TOP + 100);
+		for (int idx = 0; idx < delays.length; idx++) {
+			probes[idx] = new Probe(wheel);
+			wheel.schedule(probes[idx], delays[idx]);
+		}
+		long start = wheel.getTick();
+		// Cancelled while overflowing, and once the overflow bucket has been
+		// sorted out.
+		advance(wheel, 10);
+		check(early.cancel(), "Overflowing timer not scheduled");
+		advance(wheel, TOP - 10);
+		check(cancelled.cancel(), "Overflowing timer not scheduled");
+		advance(wheel, 2 * TOP + LEVEL2 + 10 - TOP);
+		for (int idx = 0; idx < delays.length; idx++) {
+			check(probes[idx].expired.size() == 1
+					&& probes[idx].expired.get(0) == start + delays[idx],
+					"Timer due in " + delays[idx] + " expired on "
+							+ probes[idx].expired + ", started on " + start);
+		}
+		check(early.expired.isEmpty() && cancelled.expired.isEmpty()
+				&& wheel.size() == 0,
+				"Cancelled overflowing timer expired");
+	}
+}
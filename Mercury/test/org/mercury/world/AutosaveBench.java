@@ -0,0 +1,156 @@
+package org.mercury.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityManager;
+import org.mercury.util.SpatialGrid;
+
+/**
+ * Measures what autosaving costs the tick thread in a world of 1000 by 1000
+ * tiles and 100k packed entities, about 2000 of them moving and 20 tiles
+ * changing every tick. The same ticks are run without autosave and then
+ * saving every 100 ticks, and the time the tick thread spends on each tick
+ * is compared, as CPU time and as wall time. CPU time counts only the work
+ * of the tick thread, so it shows the cost of copying on a machine with a
+ * core to spare for the saver thread; wall time also counts waiting for the
+ * saver thread, and on a single core includes all of its work.
+ *
+ * @author tbertore
+ *
+ */
+public class AutosaveBench {
+	private static final int TILES = 1000;
+	private static final int COUNT = 100000;
+	private static final int TICKS = 1000;
+	private static final int INTERVAL = 100;
+	private static final int SAVING = 1, BEGIN = 2;
+	private static final ThreadMXBean THREADS = ManagementFactory
+			.getThreadMXBean();
+
+	public static void main(String[] args) throws IOException {
+		File f = File.createTempFile("autosave", ".bin");
+		try {
+			// The first pass warms up the JIT.
+			run(f);
+			long[][] plain = run(null);
+			long[][] saved = run(f);
+			long[] begins = new long[TICKS / INTERVAL];
+			int n = 0;
+			for (int tick = 0; tick < TICKS; tick++) {
+				if (saved[2][tick] == BEGIN)
+					begins[n++] = saved[3][tick];
+			}
+			begins = Arrays.copyOf(begins, n);
+			Arrays.sort(begins);
+			System.out.println(String.format(
+					"%d saves, begin on the tick thread p50 %.2f ms, max %.2f ms",
+					n, begins[n / 2] / 1e6, begins[n - 1] / 1e6));
+			System.out.println("                         cpu p50  cpu p99  cpu mean"
+					+ "  wall p50  wall p99  wall max");
+			print("no autosave", plain, saved[2], 0);
+			print("autosave", saved, saved[2], 0);
+			print("no autosave, same ticks", plain, saved[2], BEGIN);
+			print("autosave, begin ticks", saved, saved[2], BEGIN);
+			print("no autosave, same ticks", plain, saved[2], SAVING);
+			print("autosave, saving ticks", saved, saved[2], SAVING);
+		}
+		finally {
+			f.delete();
+			new File(f.getPath() + ".tmp").delete();
+		}
+	}
+
+	/**
+	 * Runs the ticks, autosaving to a file if one is given, and returns the
+	 * CPU and wall time of each tick in nanoseconds, whether a save was begun
+	 * on it or in progress after it, and the time taken to begin it.
+	 */
+	private static long[][] run(File f) throws IOException {
+		Random random = new Random(1);
+		World world = new World(TILES, TILES, new SpatialGrid(TILES
+				* Terrain.SIZE, TILES * Terrain.SIZE, 64));
+		EntityManager manager = world.getEntityManager();
+		manager.setPacked(true);
+		Entity[] boxes = new Entity[COUNT];
+		for (int idx = 0; idx < COUNT; idx++) {
+			boxes[idx] = new Box(random.nextInt(TILES * Terrain.SIZE - 16),
+					random.nextInt(TILES * Terrain.SIZE - 16), 8, 8);
+			boxes[idx].setSpeed(0.5 + random.nextDouble());
+			world.addEntity(boxes[idx]);
+		}
+		int[] moving = new int[2000];
+		for (int idx = 0; idx < moving.length; idx++) {
+			moving[idx] = idx;
+			boxes[idx].setPropagationVector(1, 0);
+		}
+		Autosave autosave = (f != null) ? new Autosave(world, f, INTERVAL)
+				: null;
+		long[] cpu = new long[TICKS], wall = new long[TICKS];
+		long[] saving = new long[TICKS], begin = new long[TICKS];
+		for (int tick = 0; tick < TICKS; tick++) {
+			long startCpu = THREADS.getCurrentThreadCpuTime();
+			long start = System.nanoTime();
+			// As many start moving as stop.
+			for (int idx = 0; idx < 20; idx++) {
+				int pick = random.nextInt(moving.length);
+				boxes[moving[pick]].setPropagationVector(0, 0);
+				moving[pick] = random.nextInt(COUNT);
+				boxes[moving[pick]].setPropagationVector(
+						random.nextInt(3) - 1, random.nextInt(2) * 2 - 1);
+			}
+			for (int idx = 0; idx < 20; idx++)
+				world.setTile(random.nextInt(TILES), random.nextInt(TILES),
+						random.nextInt(4), 0, Terrain.PATHING_GROUND);
+			if (autosave != null) {
+				int saves = autosave.getSaveCount();
+				boolean before = autosave.isSaving();
+				autosave.update();
+				if (autosave.isSaving())
+					saving[tick] = (!before || autosave.getSaveCount() > saves)
+							? BEGIN : SAVING;
+				begin[tick] = autosave.getLastBeginNanos();
+			}
+			world.update();
+			wall[tick] = System.nanoTime() - start;
+			cpu[tick] = THREADS.getCurrentThreadCpuTime() - startCpu;
+		}
+		if (autosave != null)
+			autosave.close();
+		return new long[][] { cpu, wall, saving, begin };
+	}
+
+	/**
+	 * Prints percentiles of the tick times, of every tick or only of those
+	 * on which the autosaving run begun a save, or had one in progress.
+	 */
+	private static void print(String name, long[][] times, long[] saving,
+			int which) {
+		int n = 0;
+		long[] cpu = new long[TICKS], wall = new long[TICKS];
+		long sum = 0;
+		for (int tick = 0; tick < TICKS; tick++) {
+			if (which != 0 && saving[tick] != which)
+				continue;
+			cpu[n] = times[0][tick];
+			wall[n] = times[1][tick];
+			sum += cpu[n];
+			n++;
+		}
+		cpu = Arrays.copyOf(cpu, n);
+		wall = Arrays.copyOf(wall, n);
+		Arrays.sort(cpu);
+		Arrays.sort(wall);
+		System.out.println(String.format(
+				"%-23s  %7.2f  %7.2f  %8.2f  %8.2f  %8.2f  %8.2f", name,
+				cpu[n / 2] / 1e6, cpu[n * 99 / 100] / 1e6, sum / 1e6 / n,
+				wall[n / 2] / 1e6, wall[n * 99 / 100] / 1e6,
+				wall[n - 1] / 1e6));
+	}
+}
@@ -0,0 +1,269 @@
+package org.mercury.world;
+
+import static org.mercury.Tests.check;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.gfx.Camera;
+
+/**
+ * Walks cameras over a region file and checks that the chunks loaded are
+ * those a least recently used list says, that every loaded chunk is still
+ * found once others have been evicted from the table around it or the table
+ * has grown, that changes survive eviction and reopening the file, and that
+ * entities may neither enter nor move over chunks which are not loaded.
+ *
+ * @author tbertore
+ *
+ */
+public class ChunkStoreTest {
+	private static final int SPAN = Terrain.SIZE * Chunk.SIZE;
+
+	public static void main(String[] args) throws Exception {
+		File f = File.createTempFile("region", ".bin");
+		try {
+			lru(f);
+			grow(f);
+			roundTrip(f);
+			unloaded(f);
+		}
+		finally {
+			f.delete();
+		}
+	}
+
+	/**
+	 * Updates the store until every chunk requested has been taken in.
+	 */
+	private static void settle(ChunkStore store) throws InterruptedException {
+		store.update();
+		while (store.getPendingCount() > 0) {
+			Thread.sleep(1);
+			store.update();
+		}
+	}
+
+	/**
+	 * Points a camera at a block of chunks.
+	 */
+	private static void view(Camera cam, int cx, int cy, int w, int h) {
+		cam.setTarget(cx * SPAN + 1, cy * SPAN + 1);
+		cam.setSize(w * SPAN - 2, h * SPAN - 2);
+	}
+
+	/**
+	 * Changes random tiles of a loaded chunk, recording them by tile index.
+	 */
+	private static void edit(ChunkStore store, Chunk c, Random random,
+			Map<Integer, int[]> tiles, int count) {
+		for (int idx = 0; idx < count; idx++) {
+			int lx = random.nextInt(Chunk.SIZE), ly = random.nextInt(Chunk.SIZE);
+			int[] tile = { random.nextInt(1000), random.nextInt(256) - 128,
+					random.nextInt(16) };
+			c.setTile(lx, ly, tile[0], tile[1], tile[2]);
+			tiles.put(c.cx * Chunk.SIZE + lx + (c.cy * Chunk.SIZE + ly)
+					* store.getTilesX(), tile);
+		}
+	}
+
+	/**
+	 * Checks every tile of a loaded chunk against those recorded, with tiles
+	 * never changed still empty.
+	 */
+	private static void checkTiles(ChunkStore store, Chunk c,
+			Map<Integer, int[]> tiles) {
+		for (int ly = 0; ly < Chunk.SIZE; ly++) {
+			for (int lx = 0; lx < Chunk.SIZE; lx++) {
+				int[] tile = tiles.get(c.cx * Chunk.SIZE + lx
+						+ (c.cy * Chunk.SIZE + ly) * store.getTilesX());
+				if (tile == null)
+					tile = new int[3];
+				check(c.getType(lx, ly) == tile[0]
+						&& c.getHeight(lx, ly) == tile[1]
+						&& c.getPathing(lx, ly) == tile[2], "Tile " + lx + ","
+						+ ly + " of chunk " + c.cx + "," + c.cy
+						+ " lost its changes");
+			}
+		}
+	}
+
+	/**
+	 * Checks that exactly the expected chunks are found, each where it
+	 * belongs.
+	 */
+	private static void checkLoaded(ChunkStore store, Map<Integer, ?> expected) {
+		for (int cy = 0; cy < store.getChunksY(); cy++) {
+			for (int cx = 0; cx < store.getChunksX(); cx++) {
+				Chunk c = store.getChunk(cx, cy);
+				boolean loaded = expected.containsKey(cx + cy
+						* store.getChunksX());
+				check((c != null) == loaded, "Chunk " + cx + "," + cy
+						+ (loaded ? " not found" : " still loaded"));
+				check(c == null || (c.cx == cx && c.cy == cy),
+						"Wrong chunk found at " + cx + "," + cy);
+			}
+		}
+		check(store.getLoadedCount() == expected.size(), store
+				.getLoadedCount() + " chunks loaded, expected "
+				+ expected.size());
+	}
+
+	/**
+	 * A camera showing one chunk at a time wanders over the world, changing
+	 * tiles wherever it goes. The store must hold the chunks a least recently
+	 * used list of the given capacity holds, and hand back the changes to a
+	 * chunk however often it was evicted in between.
+	 */
+	private static void lru(File f) throws Exception {
+		final int capacity = 8;
+		ChunkStore store = ChunkStore.create(f, 12, 12, capacity);
+		store.setMargin(0);
+		Camera cam = new Camera();
+		store.addCamera(cam);
+		Random random = new Random(1);
+		// The chunks expected to be loaded, least recently used first.
+		LinkedHashMap<Integer, Boolean> recent =
+				new LinkedHashMap<Integer, Boolean>(16, 0.75f, true);
+		Map<Integer, int[]> tiles = new HashMap<Integer, int[]>();
+		int cx = 0, cy = 0;
+		for (int step = 0; step < 3000; step++) {
+			if (random.nextInt(10) == 0) {
+				cx = random.nextInt(store.getChunksX());
+				cy = random.nextInt(store.getChunksY());
+			}
+			else {
+				cx = Math.max(0, Math.min(store.getChunksX() - 1, cx
+						+ random.nextInt(3) - 1));
+				cy = Math.max(0, Math.min(store.getChunksY() - 1, cy
+						+ random.nextInt(3) - 1));
+			}
+			view(cam, cx, cy, 1, 1);
+			settle(store);
+			recent.put(cx + cy * store.getChunksX(), true);
+			Iterator<Integer> eldest = recent.keySet().iterator();
+			while (recent.size() > capacity) {
+				eldest.next();
+				eldest.remove();
+			}
+			checkLoaded(store, recent);
+			Chunk c = store.getChunk(cx, cy);
+			checkTiles(store, c, tiles);
+			edit(store, c, random, tiles, 3);
+		}
+		store.close();
+	}
+
+	/**
+	 * A camera showing more chunks than the capacity grows the table well
+	 * past its first size, then moves away so all but the capacity are
+	 * evicted, and back so the table grows again.
+	 */
+	private static void grow(File f) throws Exception {
+		ChunkStore store = ChunkStore.create(f, 9, 9, 2);
+		store.setMargin(0);
+		Camera cam = new Camera();
+		store.addCamera(cam);
+		Random random = new Random(2);
+		Map<Integer, int[]> tiles = new HashMap<Integer, int[]>();
+		for (int round = 0; round < 3; round++) {
+			view(cam, 1, 2, 6, 5);
+			settle(store);
+			Map<Integer, Boolean> expected = new HashMap<Integer, Boolean>();
+			for (int cy = 2; cy < 7; cy++) {
+				for (int cx = 1; cx < 7; cx++) {
+					expected.put(cx + cy * store.getChunksX(), true);
+					Chunk c = store.getChunk(cx, cy);
+					check(c != null, "Chunk in view not loaded");
+					checkTiles(store, c, tiles);
+					edit(store, c, random, tiles, 5);
+				}
+			}
+			checkLoaded(store, expected);
+			// Only the chunk now in view is newer than the rest, so which
+			// other chunk is kept is not known.
+			view(cam, 8, 8 - round, 1, 1);
+			settle(store);
+			check(store.getLoadedCount() == 2
+					&& store.getChunk(8, 8 - round) != null,
+					"Evicted down to " + store.getLoadedCount() + " chunks");
+		}
+		store.close();
+	}
+
+	/**
+	 * Changes tiles all over the world, closes the region file and checks
+	 * that reopening it brings every change back.
+	 */
+	private static void roundTrip(File f) throws Exception {
+		ChunkStore store = ChunkStore.create(f, 5, 4, 4);
+		Camera cam = new Camera();
+		store.addCamera(cam);
+		Random random = new Random(3);
+		Map<Integer, int[]> tiles = new HashMap<Integer, int[]>();
+		view(cam, 0, 0, 5, 4);
+		settle(store);
+		for (int cy = 0; cy < 4; cy++)
+			for (int cx = 0; cx < 5; cx++)
+				edit(store, store.getChunk(cx, cy), random, tiles, 40);
+		store.close();
+		store = new ChunkStore(f, 4);
+		check(store.getChunksX() == 5 && store.getChunksY() == 4,
+				"Dimensions lost");
+		store.addCamera(cam);
+		settle(store);
+		for (int cy = 0; cy < 4; cy++)
+			for (int cx = 0; cx < 5; cx++)
+				checkTiles(store, store.getChunk(cx, cy), tiles);
+		store.close();
+	}
+
+	/**
+	 * Tiles whose chunk is not loaded block entities walking towards them,
+	 * and entities standing on them stay put until they are loaded.
+	 */
+	private static void unloaded(File f) throws Exception {
+		ChunkStore store = ChunkStore.create(f, 2, 1, 4);
+		store.setMargin(0);
+		Camera cam = new Camera();
+		view(cam, 0, 0, 1, 1);
+		store.addCamera(cam);
+		World world = new World(store);
+		settle(store);
+		check(!world.blocks(Chunk.SIZE - 1, 3, Terrain.PATHING_GROUND)
+				&& world.blocks(Chunk.SIZE, 3, Terrain.PATHING_GROUND),
+				"Tiles not loaded are open");
+		Entity walker = new Box(SPAN - 40, 100, 8, 8);
+		Entity stranded = new Box(SPAN + 100, 100, 8, 8);
+		world.addEntity(walker);
+		world.addEntity(stranded);
+		for (Entity e : new Entity[] { walker, stranded }) {
+			e.setSpeed(3);
+			e.setPropagationVector(1, 0);
+		}
+		for (int tick = 0; tick < 50; tick++)
+			world.update();
+		check(walker.getPosX() == SPAN - 8, "Walked to " + walker.getPosX()
+				+ " into a chunk not loaded");
+		check(stranded.getPosX() == SPAN + 100, "Moved over a chunk not loaded");
+		Camera other = new Camera();
+		view(other, 1, 0, 1, 1);
+		store.addCamera(other);
+		world.update();
+		while (store.getPendingCount() > 0) {
+			Thread.sleep(1);
+			world.update();
+		}
+		for (int tick = 0; tick < 10; tick++)
+			world.update();
+		check(walker.getPosX() > SPAN - 8 && stranded.getPosX() > SPAN + 100,
+				"Entities held once their chunks were loaded");
+		store.close();
+	}
+}
@@ -0,0 +1,89 @@
+package org.mercury.world;
+
+import java.util.Random;
+
+import org.mercury.Bench;
+
+/**
+ * Times FlowField builds across a 1000 by 1000 tile world of walls and lakes
+ * while the target walks a tile per build, as when a crowd chases the hero.
+ * Each build is made either from scratch, as after tiles change, or from the
+ * last field, over the whole world and within a range of 100 tiles. A
+ * field only starts from the last one when that covers a sixteenth of the
+ * world, so within the range both ways build from scratch. Also prints the
+ * tiles expanded per build, and the ticks a build takes at the default
+ * budget of update.
+ *
+ * @author tbertore
+ *
+ */
+public class FlowFieldBench {
+	private static final int TILES = 1000;
+	private static final int STEPS = 20;
+	private static final int BUDGET = 8192;
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		World world = new World(TILES, TILES);
+		for (int idx = 0; idx < 4000; idx++) {
+			// Walls up to 40 tiles long, across or down.
+			int x = random.nextInt(TILES), y = random.nextInt(TILES);
+			int length = 5 + random.nextInt(36);
+			boolean across = random.nextBoolean();
+			for (int step = 0; step < length; step++)
+				world.setTile(across ? Math.min(TILES - 1, x + step) : x,
+						across ? y : Math.min(TILES - 1, y + step), 0, 0,
+						Terrain.PATHING_NONE);
+		}
+		for (int idx = 0; idx < 300; idx++) {
+			int x = random.nextInt(TILES - 12), y = random.nextInt(TILES - 12);
+			world.getTiles().fill(x, y, 3 + random.nextInt(10),
+					3 + random.nextInt(10), 0, 0, Terrain.PATHING_WATER);
+		}
+		// A clear walk for the target along the middle row.
+		world.getTiles().fill(0, TILES / 2, TILES, 1, 0, 0, 0);
+		world.tilesChanged(0, 0, TILES, TILES);
+		System.out.println("range  build         ms/build  tiles/build"
+				+ "  ticks/build");
+		run(world, Integer.MAX_VALUE / 14, "all");
+		run(world, 100, "100");
+	}
+
+	private static void run(World world, int range, String name) {
+		print(world, range, name, "scratch", false);
+		print(world, range, name, "incremental", true);
+	}
+
+	private static void print(World world, int range, String name,
+			String build, final boolean incremental) {
+		final FlowField field = new FlowField(world, Terrain.PATHING_GROUND,
+				range);
+		final int[] x = { TILES / 2 };
+		long nanos = Bench.best(3, new Runnable() {
+			@Override
+			public void run() {
+				for (int step = 0; step < STEPS; step++) {
+					field.setTarget(x[0]++, TILES / 2);
+					if (!incremental)
+						field.tilesChanged(0, 0, 1, 1);
+					while (!field.update())
+						;
+				}
+			}
+		});
+		// Once more untimed, a tile per call, to count the tiles expanded.
+		int expanded = 0;
+		for (int step = 0; step < STEPS; step++) {
+			field.setTarget(x[0]++, TILES / 2);
+			if (!incremental)
+				field.tilesChanged(0, 0, 1, 1);
+			while (!field.update(1))
+				expanded++;
+		}
+		world.removeTileListener(field);
+		int tiles = expanded / STEPS;
+		System.out.println(String.format("%-5s  %-12s  %8.2f  %11d  %11d",
+				name, build, nanos / 1e6 / STEPS, tiles,
+				(tiles + BUDGET - 1) / BUDGET));
+	}
+}
@@ -0,0 +1,122 @@
+package org.mercury.world;
+
+import static org.mercury.Tests.check;
+
+import java.util.Random;
+
+/**
+ * Moves the target of a FlowField around random worlds of walls and water a
+ * few tiles at a time, so most builds start from the last one, and checks
+ * every build against a field built from scratch for the same target: each
+ * tile must cost the same, and its direction must step onto an open tile,
+ * without cutting a corner, whose cost is lower by exactly that step. With a
+ * range, no tile may cost more than it allows. Jumps of the target and tile
+ * changes in between force builds from scratch.
+ *
+ * @author tbertore
+ *
+ */
+public class FlowFieldTest {
+	private static final int MASK = Terrain.PATHING_GROUND;
+	private static final int TILES_X = 60, TILES_Y = 50;
+
+	public static void main(String[] args) {
+		run(1, Integer.MAX_VALUE / 14, 150);
+		run(2, 25, 100);
+		// Fields this small are always built from scratch.
+		run(3, 8, 0);
+	}
+
+	/**
+	 * Updates a field a tile at a time until it is built, and returns the
+	 * number of tiles expanded.
+	 */
+	private static int build(FlowField field) {
+		int expanded = 0;
+		while (!field.update(1))
+			expanded++;
+		return expanded;
+	}
+
+	/**
+	 * Checks 300 builds, at least the given number of which must have
+	 * started from the last field.
+	 */
+	private static void run(long seed, int range, int incremental) {
+		Random random = new Random(seed);
+		World world = new World(TILES_X, TILES_Y);
+		for (int idx = 0; idx < TILES_X * TILES_Y / 12; idx++)
+			world.setTile(random.nextInt(TILES_X), random.nextInt(TILES_Y), 0,
+					0, random.nextInt(3) == 0 ? Terrain.PATHING_WATER
+							: Terrain.PATHING_NONE);
+		FlowField field = new FlowField(world, MASK, range);
+		int tx = TILES_X / 2, ty = TILES_Y / 2;
+		int cheaper = 0;
+		for (int move = 0; move < 300; move++) {
+			int kind = random.nextInt(20);
+			if (kind == 0) {
+				tx = random.nextInt(TILES_X);
+				ty = random.nextInt(TILES_Y);
+			}
+			else if (kind == 1) {
+				world.setTile(random.nextInt(TILES_X),
+						random.nextInt(TILES_Y), 0, 0,
+						random.nextBoolean() ? Terrain.PATHING_GROUND
+								: Terrain.PATHING_NONE);
+			}
+			else {
+				// A step or two, mostly onto open tiles.
+				tx = Math.max(0, Math.min(TILES_X - 1, tx + random.nextInt(5)
+						- 2));
+				ty = Math.max(0, Math.min(TILES_Y - 1, ty + random.nextInt(5)
+						- 2));
+			}
+			field.setTarget(tx, ty);
+			int expanded = build(field);
+			FlowField fresh = new FlowField(world, MASK, range);
+			fresh.setTarget(tx, ty);
+			int expandedFresh = build(fresh);
+			world.removeTileListener(fresh);
+			if (expanded > 0 && expanded < expandedFresh)
+				cheaper++;
+			String name = "seed " + seed + ", move " + move + " to " + tx
+					+ "," + ty;
+			compare(world, field, fresh, range, tx, ty, name);
+		}
+		// Most builds follow a short move over unchanged tiles, and start
+		// from the last field.
+		check(cheaper >= incremental, "Only " + cheaper
+				+ " builds expanded fewer tiles than a build from scratch");
+	}
+
+	private static void compare(World world, FlowField field,
+			FlowField fresh, int range, int gx, int gy, String name) {
+		boolean blocked = world.blocks(gx, gy, MASK);
+		check(field.getFieldTarget() == (blocked ? FlowField.NONE : gx + gy
+				* TILES_X), name + ": field built for the wrong target");
+		for (int ty = 0; ty < TILES_Y; ty++) {
+			for (int tx = 0; tx < TILES_X; tx++) {
+				int cost = field.getCost(tx, ty);
+				String tile = name + ": tile " + tx + "," + ty;
+				check(cost == fresh.getCost(tx, ty), tile + " costs " + cost
+						+ ", from scratch " + fresh.getCost(tx, ty));
+				check(cost <= (long) range * 10, tile + " out of range");
+				int dir = field.getDirection(tx, ty);
+				if (cost == FlowField.NONE || cost == 0) {
+					check(dir == FlowField.NONE, tile
+							+ " has a direction without a walk to take");
+					continue;
+				}
+				check(dir != FlowField.NONE, tile + " has no direction");
+				int nx = tx + TileLayer.DX[dir], ny = ty + TileLayer.DY[dir];
+				boolean diagonal = (dir & 1) != 0;
+				check(!world.blocks(nx, ny, MASK)
+						&& (!diagonal || (!world.blocks(nx, ty, MASK) && !world
+								.blocks(tx, ny, MASK))), tile
+						+ " steps onto or past a blocked tile");
+				check(field.getCost(nx, ny) + (diagonal ? 14 : 10) == cost,
+						tile + " steps to a tile which does not lead on");
+			}
+		}
+	}
+}
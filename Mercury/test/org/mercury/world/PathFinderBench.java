@@ -0,0 +1,231 @@
+package org.mercury.world;
+
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.util.IntHeap;
+
+/**
+ * Compares the paths per second found across 1000 by 1000 tile worlds of
+ * walls and lakes, one open and one walled into rooms, by plain A* over every
+ * tile, by a PathFinder starting with no clusters built and nothing cached,
+ * by the same PathFinder once warm, and by a warm PathFinder while a tile
+ * changes every 10 paths. Long paths run between any two tiles, short ones
+ * to a goal within 100 tiles, as most NPC errands do. Every pair is
+ * reachable, so plain A* never floods a whole walled off region.
+ *
+ * @author tbertore
+ *
+ */
+public class PathFinderBench {
+	private static final int TILES = 1000;
+	private static final int LONG = 40;
+	private static final int SHORT = 400;
+	private static final int[] STEPS = { 1, 0, 10, -1, 0, 10, 0, 1, 10, 0,
+			-1, 10, 1, 1, 14, 1, -1, 14, -1, 1, 14, -1, -1, 14 };
+
+	public static void main(String[] args) {
+		System.out.println("map    finder      long paths/s  short paths/s");
+		run("open");
+		run("rooms");
+	}
+
+	/**
+	 * Builds the world of the named map and prints the rate of each finder.
+	 */
+	private static void run(String map) {
+		Random random = new Random(1);
+		World world = new World(TILES, TILES);
+		if (map.equals("rooms"))
+			rooms(world, random);
+		for (int idx = 0; idx < (map.equals("rooms") ? 2000 : 12000); idx++) {
+			// Walls up to 40 tiles long, across or down.
+			int x = random.nextInt(TILES), y = random.nextInt(TILES);
+			int length = 5 + random.nextInt(36);
+			boolean across = random.nextBoolean();
+			for (int step = 0; step < length; step++)
+				world.setTile(across ? Math.min(TILES - 1, x + step) : x,
+						across ? y : Math.min(TILES - 1, y + step), 0, 0,
+						Terrain.PATHING_NONE);
+		}
+		for (int idx = 0; idx < 600; idx++) {
+			int x = random.nextInt(TILES - 12), y = random.nextInt(TILES - 12);
+			int w = 3 + random.nextInt(10), h = 3 + random.nextInt(10);
+			for (int ty = y; ty < y + h; ty++) {
+				for (int tx = x; tx < x + w; tx++)
+					world.setTile(tx, ty, 0, 0, Terrain.PATHING_WATER);
+			}
+		}
+		int[] longPairs = pairs(world, random, LONG, TILES);
+		int[] shortPairs = pairs(world, random, SHORT, 100);
+		print(map, "plain A*", plain(world, longPairs),
+				plain(world, shortPairs));
+		print(map, "hpa cold", hpa(world, longPairs, true, false),
+				hpa(world, shortPairs, true, false));
+		print(map, "hpa warm", hpa(world, longPairs, false, false),
+				hpa(world, shortPairs, false, false));
+		print(map, "hpa edited", hpa(world, longPairs, false, true),
+				hpa(world, shortPairs, false, true));
+	}
+
+	/**
+	 * Walls the world into rooms of 24 by 24 tiles with a door of 2 tiles at
+	 * a random place in each wall, so straight lines mostly run into walls.
+	 */
+	private static void rooms(World world, Random random) {
+		for (int line = 24; line < TILES; line += 24) {
+			for (int step = 0; step < TILES; step++) {
+				world.setTile(line, step, 0, 0, Terrain.PATHING_NONE);
+				world.setTile(step, line, 0, 0, Terrain.PATHING_NONE);
+			}
+		}
+		for (int line = 24; line < TILES; line += 24) {
+			for (int room = 0; room < TILES; room += 24) {
+				int door = room + 1 + random.nextInt(21);
+				int end = Math.min(TILES, door + 2);
+				for (int step = door; step < end; step++) {
+					world.setTile(line, step, 0, 0, Terrain.PATHING_GROUND);
+					world.setTile(step, line, 0, 0, Terrain.PATHING_GROUND);
+				}
+			}
+		}
+	}
+
+	private static void print(String map, String name, double longRate,
+			double shortRate) {
+		System.out.println(String.format("%-5s  %-10s  %13.0f  %13.0f", map,
+				name, longRate, shortRate));
+	}
+
+	/**
+	 * Picks pairs of open tiles at most range tiles apart on each axis, with
+	 * a path between them.
+	 */
+	private static int[] pairs(World world, Random random, int count,
+			int range) {
+		PathFinder finder = new PathFinder(world, Terrain.PATHING_GROUND);
+		int[] pairs = new int[count * 4];
+		for (int idx = 0; idx < count;) {
+			int sx = random.nextInt(TILES), sy = random.nextInt(TILES);
+			int gx = Math.max(0, Math.min(TILES - 1, sx - range
+					+ random.nextInt(range * 2 + 1)));
+			int gy = Math.max(0, Math.min(TILES - 1, sy - range
+					+ random.nextInt(range * 2 + 1)));
+			if (finder.findPath(sx, sy, gx, gy) == null)
+				continue;
+			pairs[idx * 4] = sx;
+			pairs[idx * 4 + 1] = sy;
+			pairs[idx * 4 + 2] = gx;
+			pairs[idx * 4 + 3] = gy;
+			idx++;
+		}
+		world.removeTileListener(finder);
+		return pairs;
+	}
+
+	/**
+	 * Returns the paths per second found by a PathFinder, made anew for each
+	 * run if cold, and changing a tile every 10 paths if edited.
+	 */
+	private static double hpa(final World world, final int[] pairs,
+			final boolean cold, final boolean edited) {
+		final PathFinder[] finder = { new PathFinder(world,
+				Terrain.PATHING_GROUND) };
+		final Random random = new Random(2);
+		long nanos = Bench.best(3, new Runnable() {
+			@Override
+			public void run() {
+				if (cold) {
+					world.removeTileListener(finder[0]);
+					finder[0] = new PathFinder(world, Terrain.PATHING_GROUND);
+				}
+				for (int idx = 0; idx < pairs.length / 4; idx++) {
+					if (edited && idx % 10 == 0) {
+						// Raise or clear a rock somewhere, as building does.
+						int tx = random.nextInt(TILES);
+						int ty = random.nextInt(TILES);
+						boolean rock = world.getPathing(tx, ty)
+								== Terrain.PATHING_NONE;
+						world.setTile(tx, ty, 0, 0,
+								rock ? Terrain.PATHING_GROUND
+										: Terrain.PATHING_NONE);
+					}
+					finder[0].findPath(pairs[idx * 4], pairs[idx * 4 + 1],
+							pairs[idx * 4 + 2], pairs[idx * 4 + 3]);
+				}
+			}
+		});
+		world.removeTileListener(finder[0]);
+		return pairs.length / 4 / (nanos / 1e9);
+	}
+
+	/**
+	 * Returns the paths per second found by plain A* over every tile, with
+	 * the same costs and corner rule as PathFinder, and scratch arrays stamped
+	 * per search rather than cleared.
+	 */
+	private static double plain(final World world, final int[] pairs) {
+		final boolean[] open = new boolean[TILES * TILES];
+		for (int ty = 0; ty < TILES; ty++) {
+			for (int tx = 0; tx < TILES; tx++)
+				open[tx + ty * TILES] = !world.blocks(tx, ty,
+						Terrain.PATHING_GROUND);
+		}
+		final int[] cost = new int[TILES * TILES];
+		final int[] parent = new int[TILES * TILES];
+		final int[] stamp = new int[TILES * TILES];
+		final IntHeap heap = new IntHeap();
+		final long[] sink = new long[1];
+		long nanos = Bench.best(2, new Runnable() {
+			private int generation;
+
+			@Override
+			public void run() {
+				for (int idx = 0; idx < pairs.length / 4; idx++) {
+					int gx = pairs[idx * 4 + 2], gy = pairs[idx * 4 + 3];
+					int goal = gx + gy * TILES;
+					int start = pairs[idx * 4] + pairs[idx * 4 + 1] * TILES;
+					generation++;
+					heap.clear();
+					stamp[start] = generation;
+					cost[start] = 0;
+					heap.push(0, start);
+					while (!heap.isEmpty()) {
+						int f = heap.peekKey();
+						int tile = heap.pop();
+						int x = tile % TILES, y = tile / TILES;
+						if (f - heuristic(x, y, gx, gy) > cost[tile])
+							continue;
+						if (tile == goal)
+							break;
+						for (int step = 0; step < STEPS.length; step += 3) {
+							int nx = x + STEPS[step], ny = y + STEPS[step + 1];
+							if (nx < 0 || ny < 0 || nx >= TILES || ny >= TILES
+									|| !open[nx + ny * TILES]
+									|| !open[nx + y * TILES]
+									|| !open[x + ny * TILES])
+								continue;
+							int next = nx + ny * TILES;
+							int c = cost[tile] + STEPS[step + 2];
+							if (stamp[next] != generation || c < cost[next]) {
+								stamp[next] = generation;
+								cost[next] = c;
+								parent[next] = tile;
+								heap.push(c + heuristic(nx, ny, gx, gy), next);
+							}
+						}
+					}
+					// Walk the path back, as PathFinder does to return it.
+					for (int tile = goal; tile != start; tile = parent[tile])
+						sink[0]++;
+				}
+			}
+		});
+		return pairs.length / 4 / (nanos / 1e9);
+	}
+
+	private static int heuristic(int x, int y, int gx, int gy) {
+		int dx = Math.abs(x - gx), dy = Math.abs(y - gy);
+		return 10 * Math.max(dx, dy) + 4 * Math.min(dx, dy);
+	}
+}
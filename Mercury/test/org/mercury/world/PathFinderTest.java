@@ -0,0 +1,242 @@
+package org.mercury.world;
+
+import static org.mercury.Tests.check;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mercury.util.IntHeap;
+
+/**
+ * Checks the paths of PathFinder against plain A* over every tile, on random
+ * worlds of walls and water whose tiles change between queries. Every path
+ * must start next to the start and end on the goal, move one tile at a time,
+ * never step onto a blocked tile or cut the corner of one, and be found
+ * exactly when plain A* finds one. Paths through clusters are not always
+ * the shortest, so their cost is only checked to stay near the shortest.
+ * Also checks that cached segments are dropped once their tiles change.
+ *
+ * @author tbertore
+ *
+ */
+public class PathFinderTest {
+	private static final int MASK = Terrain.PATHING_GROUND;
+
+	public static void main(String[] args) {
+		random(64, 48, 8, 1);
+		random(70, 45, 16, 2);
+		random(33, 31, 5, 3);
+		invalidate();
+	}
+
+	/**
+	 * The cost of the shortest path by plain A* over every tile, with the
+	 * costs and rules PathFinder uses, or -1 if the goal cannot be reached.
+	 */
+	private static int shortest(World world, int sx, int sy, int gx, int gy) {
+		if (world.blocks(sx, sy, MASK) || world.blocks(gx, gy, MASK))
+			return -1;
+		int tilesX = world.getTilesX();
+		int[] cost = new int[tilesX * world.getTilesY()];
+		Arrays.fill(cost, Integer.MAX_VALUE);
+		IntHeap heap = new IntHeap();
+		cost[sx + sy * tilesX] = 0;
+		heap.push(estimate(sx, sy, gx, gy), sx + sy * tilesX);
+		while (!heap.isEmpty()) {
+			int key = heap.peekKey();
+			int tile = heap.pop();
+			int tx = tile % tilesX, ty = tile / tilesX;
+			if (key > cost[tile] + estimate(tx, ty, gx, gy))
+				continue;
+			if (tx == gx && ty == gy)
+				return cost[tile];
+			for (int dir = 0; dir < 8; dir++) {
+				int nx = tx + TileLayer.DX[dir], ny = ty + TileLayer.DY[dir];
+				if (!canStep(world, tx, ty, nx, ny))
+					continue;
+				int g = cost[tile] + ((dir & 1) != 0 ? 14 : 10);
+				int n = nx + ny * tilesX;
+				if (g < cost[n]) {
+					cost[n] = g;
+					heap.push(g + estimate(nx, ny, gx, gy), n);
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static int estimate(int tx, int ty, int gx, int gy) {
+		int dx = Math.abs(gx - tx), dy = Math.abs(gy - ty);
+		return 10 * Math.max(dx, dy) + 4 * Math.min(dx, dy);
+	}
+
+	/**
+	 * Checks if a step between two tiles is allowed: to one of the eight
+	 * neighbours, onto an open tile, and diagonally only past two open
+	 * tiles.
+	 */
+	private static boolean canStep(World world, int tx, int ty, int nx,
+			int ny) {
+		int dx = nx - tx, dy = ny - ty;
+		if (Math.abs(dx) > 1 || Math.abs(dy) > 1 || (dx == 0 && dy == 0))
+			return false;
+		if (world.blocks(nx, ny, MASK))
+			return false;
+		return dx == 0 || dy == 0
+				|| (!world.blocks(nx, ty, MASK) && !world.blocks(tx, ny, MASK));
+	}
+
+	/**
+	 * Checks a path found by PathFinder step by step, and returns its cost.
+	 */
+	private static int walk(World world, int[] path, int sx, int sy, int gx,
+			int gy, String query) {
+		int tilesX = world.getTilesX();
+		int tx = sx, ty = sy, cost = 0;
+		for (int idx = 0; idx < path.length; idx++) {
+			int nx = path[idx] % tilesX, ny = path[idx] / tilesX;
+			check(canStep(world, tx, ty, nx, ny), "Step " + idx + " of "
+					+ query + " from " + tx + "," + ty + " to " + nx + ","
+					+ ny + " is not allowed");
+			cost += (nx != tx && ny != ty) ? 14 : 10;
+			tx = nx;
+			ty = ny;
+		}
+		check(tx == gx && ty == gy, "Path of " + query + " ends at " + tx
+				+ "," + ty);
+		return cost;
+	}
+
+	/**
+	 * Sets a tile to one of open ground, a wall or water, which ground units
+	 * may not enter.
+	 */
+	private static void setRandomTile(World world, int tx, int ty,
+			Random random) {
+		int kind = random.nextInt(10);
+		world.setTile(tx, ty, 0, 0, (kind < 6) ? Terrain.PATHING_GROUND
+				: (kind < 8) ? Terrain.PATHING_NONE : Terrain.PATHING_WATER);
+	}
+
+	private static void random(int tilesX, int tilesY, int clusterSize,
+			long seed) {
+		Random random = new Random(seed);
+		World world = new World(tilesX, tilesY);
+		for (int idx = 0; idx < tilesX * tilesY / 16; idx++) {
+			// Walls across or down, and single tiles.
+			int x = random.nextInt(tilesX), y = random.nextInt(tilesY);
+			int length = random.nextBoolean() ? 1 : 2 + random.nextInt(8);
+			boolean across = random.nextBoolean();
+			for (int step = 0; step < length; step++) {
+				int tx = across ? x + step : x, ty = across ? y : y + step;
+				if (tx < tilesX && ty < tilesY)
+					world.setTile(tx, ty, 0, 0,
+							random.nextInt(3) == 0 ? Terrain.PATHING_WATER
+									: Terrain.PATHING_NONE);
+			}
+		}
+		PathFinder finder = new PathFinder(world, MASK, clusterSize, 64);
+		int found = 0, unreachable = 0;
+		long total = 0, totalBest = 0;
+		for (int query = 0; query < 3000; query++) {
+			int sx = random.nextInt(tilesX), sy = random.nextInt(tilesY);
+			int gx, gy;
+			if (random.nextBoolean()) {
+				gx = random.nextInt(tilesX);
+				gy = random.nextInt(tilesY);
+			}
+			else {
+				// Within a cluster or two, where paths are found directly or
+				// cached segments are reused most.
+				gx = Math.max(0, Math.min(tilesX - 1, sx + random.nextInt(
+						2 * clusterSize + 1) - clusterSize));
+				gy = Math.max(0, Math.min(tilesY - 1, sy + random.nextInt(
+						2 * clusterSize + 1) - clusterSize));
+			}
+			// Most queries run between open tiles.
+			if (random.nextInt(5) != 0) {
+				world.setTile(sx, sy, 0, 0, Terrain.PATHING_GROUND);
+				world.setTile(gx, gy, 0, 0, Terrain.PATHING_GROUND);
+			}
+			String name = "query " + query + " from " + sx + "," + sy + " to "
+					+ gx + "," + gy;
+			int best = shortest(world, sx, sy, gx, gy);
+			int[] path = finder.findPath(sx, sy, gx, gy);
+			check((path != null) == (best >= 0), name + (path == null
+					? " found no path, plain A* found one"
+					: " found a path, plain A* found none"));
+			if (path != null) {
+				int cost = walk(world, path, sx, sy, gx, gy, name);
+				check(cost >= best, name + " cheaper than the shortest path");
+				total += cost;
+				totalBest += best;
+				found++;
+				// Now and then change a tile of the path, so its cached
+				// segments must be dropped.
+				if (path.length > 0 && random.nextInt(4) == 0) {
+					int tile = path[random.nextInt(path.length)];
+					world.setTile(tile % tilesX, tile / tilesX, 0, 0,
+							Terrain.PATHING_NONE);
+				}
+			}
+			else
+				unreachable++;
+			int edits = random.nextInt(3);
+			for (int idx = 0; idx < edits; idx++)
+				setRandomTile(world, random.nextInt(tilesX),
+						random.nextInt(tilesY), random);
+		}
+		check(found > 1000 && unreachable > 100, "Only " + found
+				+ " paths found and " + unreachable + " unreachable");
+		// Refining through transitions costs a little, but never takes paths
+		// far out of their way on the whole.
+		check(total < totalBest * 1.15, "Paths cost " + (double) total
+				/ totalBest + " times the shortest on average");
+	}
+
+	/**
+	 * A path along a corridor is cached, blocked, opened again and taken a
+	 * different way, and must follow each change.
+	 */
+	private static void invalidate() {
+		World world = new World(40, 20);
+		// A wall across the world with a gap at each end.
+		for (int tx = 1; tx < 39; tx++)
+			world.setTile(tx, 10, 0, 0, Terrain.PATHING_NONE);
+		PathFinder finder = new PathFinder(world, MASK, 8, 64);
+		int[] first = finder.findPath(20, 5, 20, 15);
+		check(first != null && finder.getCachedSegments() > 0,
+				"No path cached");
+		walk(world, first, 20, 5, 20, 15, "first path");
+		// Close the gap the path took, so it must go round the other end.
+		int gap = contains(first, 10 * 40) ? 0 : 39;
+		world.setTile(gap, 10, 0, 0, Terrain.PATHING_WATER);
+		int[] second = finder.findPath(20, 5, 20, 15);
+		check(second != null, "No path round the other end");
+		walk(world, second, 20, 5, 20, 15, "second path");
+		check(!contains(second, gap + 10 * 40),
+				"Path still through the closed gap");
+		// Close both gaps: no path at all.
+		world.setTile(39 - gap, 10, 0, 0, Terrain.PATHING_NONE);
+		check(finder.findPath(20, 5, 20, 15) == null,
+				"Path found through a closed wall");
+		check(finder.findPath(20, 5, 20, 10) == null,
+				"Path found to a blocked goal");
+		// Open a gap in the middle: the path takes it.
+		world.setTile(20, 10, 0, 0, 0);
+		int[] third = finder.findPath(20, 5, 20, 15);
+		check(third != null && contains(third, 20 + 10 * 40),
+				"Path not through the new gap");
+		walk(world, third, 20, 5, 20, 15, "third path");
+		check(finder.findPath(20, 5, 20, 5).length == 0,
+				"Path from a tile to itself not empty");
+	}
+
+	private static boolean contains(int[] path, int tile) {
+		for (int step : path) {
+			if (step == tile)
+				return true;
+		}
+		return false;
+	}
+}
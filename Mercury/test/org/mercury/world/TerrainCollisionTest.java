@@ -0,0 +1,109 @@
+package org.mercury.world;
+
+import static org.mercury.Tests.check;
+
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityManager;
+
+/**
+ * Runs crowds of entities at random speeds and directions through a world of
+ * walls and water, and checks that no entity ever ends a tick overlapping a
+ * tile which blocks it or reaching past the edge of the world, in each of the
+ * ways EntityManager can update them.
+ *
+ * @author tbertore
+ *
+ */
+public class TerrainCollisionTest {
+	private static final int TILES = 40;
+	private static final int COUNT = 150;
+	private static final int TICKS = 1500;
+
+	public static void main(String[] args) {
+		for (int seed = 1; seed <= 2; seed++) {
+			run(seed, "serial");
+			run(seed, "packed");
+			run(seed, "two phase");
+		}
+	}
+
+	private static void run(int seed, String mode) {
+		Random random = new Random(seed);
+		World world = new World(TILES, TILES);
+		for (int idx = 0; idx < 120; idx++)
+			world.setTile(random.nextInt(TILES), random.nextInt(TILES), 0, 0,
+					Terrain.PATHING_NONE);
+		for (int idx = 0; idx < 120; idx++)
+			world.setTile(random.nextInt(TILES), random.nextInt(TILES), 0, 0,
+					Terrain.PATHING_WATER);
+		EntityManager manager = world.getEntityManager();
+		if (mode.equals("packed"))
+			manager.setPacked(true);
+		else if (mode.equals("two phase"))
+			manager.setParallelism(1);
+		Entity[] boxes = new Entity[COUNT];
+		for (int idx = 0; idx < COUNT; idx++) {
+			int size = 4 + random.nextInt(14);
+			// Half the entities may also swim.
+			int mask = (idx % 2 == 0) ? Terrain.PATHING_GROUND
+					: Terrain.PATHING_GROUND | Terrain.PATHING_WATER;
+			Entity e;
+			do {
+				e = new Box(random.nextInt(TILES * Terrain.SIZE - size),
+						random.nextInt(TILES * Terrain.SIZE - size), size, size);
+				e.setMovementMask(mask);
+			} while (blocked(world, e));
+			world.addEntity(e);
+			boxes[idx] = e;
+		}
+		boolean swam = false;
+		for (int tick = 0; tick < TICKS; tick++) {
+			for (Entity e : boxes) {
+				if (random.nextInt(20) != 0)
+					continue;
+				// Mostly walking pace, now and then far faster than a tile.
+				e.setSpeed(random.nextInt(8) == 0 ? 10 + random.nextDouble() * 40
+						: 0.1 + random.nextDouble() * 3);
+				e.setPropagationVector(random.nextInt(3) - 1,
+						random.nextInt(3) - 1);
+			}
+			world.update();
+			for (Entity e : boxes) {
+				check(!blocked(world, e), mode + ", seed " + seed
+						+ ": entity inside a blocking tile or past the world"
+						+ " edge after tick " + tick);
+				swam |= e.getMovementMask() != Terrain.PATHING_GROUND
+						&& onWater(world, e);
+			}
+		}
+		check(swam, mode + ": no entity able to swim entered water");
+	}
+
+	/**
+	 * Checks if an entity overlaps a tile it may not enter, or lies partly
+	 * outside the world.
+	 */
+	private static boolean blocked(World world, Entity e) {
+		double x = e.getPosX(), y = e.getPosY();
+		if (x < 0 || y < 0 || x + e.getW() > world.getWidth()
+				|| y + e.getH() > world.getHeight())
+			return true;
+		for (int ty = (int) y / Terrain.SIZE; ty * Terrain.SIZE < y + e.getH(); ty++) {
+			for (int tx = (int) x / Terrain.SIZE; tx * Terrain.SIZE < x
+					+ e.getW(); tx++) {
+				if (world.blocks(tx, ty, e.getMovementMask()))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean onWater(World world, Entity e) {
+		int tx = (int) (e.getPosX() + e.getW() / 2) / Terrain.SIZE;
+		int ty = (int) (e.getPosY() + e.getH() / 2) / Terrain.SIZE;
+		return world.getPathing(tx, ty) == Terrain.PATHING_WATER;
+	}
+}
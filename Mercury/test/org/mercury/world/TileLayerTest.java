@@ -0,0 +1,274 @@
+package org.mercury.world;
+
+import static org.mercury.Tests.check;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks TileLayer against a brute force grid of tiles through random tile
+ * changes, fills and copies, both within a layer so the source and target
+ * overlap and between layers, with rectangles reaching past every edge.
+ * Neighbour masks are checked against the grid as well, at the edges and
+ * corners in particular. Also checks that types stay bytes until one above
+ * 255 is stored, and read back the same once widened, including by a
+ * snapshot taken while they are.
+ *
+ * @author tbertore
+ *
+ */
+public class TileLayerTest {
+	public static void main(String[] args) {
+		random();
+		widen();
+		snapshot();
+	}
+
+	/**
+	 * A layer held as plain arrays of a tile's fields, indexed by column and
+	 * row.
+	 */
+	private static class Grid {
+		private final TileLayer layer;
+		private final int[][] types, heights, pathing;
+		// Set once a type too large for a byte is stored.
+		private boolean wide;
+
+		private Grid(int tilesX, int tilesY) {
+			layer = new TileLayer(tilesX, tilesY);
+			types = new int[tilesX][tilesY];
+			heights = new int[tilesX][tilesY];
+			pathing = new int[tilesX][tilesY];
+		}
+
+		private boolean contains(int tx, int ty) {
+			return tx >= 0 && ty >= 0 && tx < types.length
+					&& ty < types[0].length;
+		}
+
+		private void set(int tx, int ty, int type, int height, int flags) {
+			types[tx][ty] = type;
+			wide |= type > 255;
+			heights[tx][ty] = height;
+			pathing[tx][ty] = flags;
+		}
+
+		private void fill(int tx, int ty, int w, int h, int type, int height,
+				int flags) {
+			layer.fill(tx, ty, w, h, type, height, flags);
+			for (int y = ty; y < ty + h; y++)
+				for (int x = tx; x < tx + w; x++)
+					if (contains(x, y))
+						set(x, y, type, height, flags);
+		}
+
+		private void copy(Grid src, int sx, int sy, int w, int h, int dx,
+				int dy) {
+			layer.copy(src.layer, sx, sy, w, h, dx, dy);
+			// Read every source tile before writing any, as the source and
+			// target may overlap.
+			int[][][] read = new int[Math.max(0, w)][Math.max(0, h)][];
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++)
+					if (src.contains(sx + x, sy + y))
+						read[x][y] = new int[] { src.types[sx + x][sy + y],
+								src.heights[sx + x][sy + y],
+								src.pathing[sx + x][sy + y] };
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++)
+					if (read[x][y] != null && contains(dx + x, dy + y))
+						set(dx + x, dy + y, read[x][y][0], read[x][y][1],
+								read[x][y][2]);
+		}
+
+		private int neighbours(int tx, int ty, int flags) {
+			int mask = 0;
+			for (int dir = 0; dir < 8; dir++) {
+				int x = tx + TileLayer.DX[dir], y = ty + TileLayer.DY[dir];
+				if (contains(x, y) && (pathing[x][y] & flags) != 0)
+					mask |= 1 << dir;
+			}
+			return mask;
+		}
+
+		private void verify(String after) {
+			for (int ty = 0; ty < types[0].length; ty++) {
+				for (int tx = 0; tx < types.length; tx++) {
+					int type = types[tx][ty];
+					check(layer.getType(tx, ty) == type
+							&& layer.getType(layer.index(tx, ty)) == type
+							&& layer.getHeight(tx, ty) == heights[tx][ty]
+							&& layer.getPathing(tx, ty) == pathing[tx][ty],
+							"Tile " + tx + "," + ty + " differs after "
+								+ after);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A random type, now and then one too large for a byte.
+	 */
+	private static int type(Random random, boolean wide) {
+		return wide && random.nextInt(200) == 0 ? 256 + random.nextInt(32000)
+				: random.nextInt(256);
+	}
+
+	/**
+	 * A random start and length along an axis of a layer, often reaching
+	 * past one or both of its edges, and now and then empty or negative.
+	 */
+	private static int[] span(Random random, int size) {
+		int start = random.nextInt(size + 10) - 5;
+		int length = random.nextInt(size + 6) - 2;
+		return new int[] { start, length };
+	}
+
+	private static void random() {
+		Random random = new Random(1);
+		for (int round = 0; round < 40; round++) {
+			// Half the rounds store types too large for a byte part way in.
+			boolean wide = round % 2 == 1;
+			Grid[] grids = new Grid[2];
+			for (int idx = 0; idx < grids.length; idx++)
+				grids[idx] = new Grid(1 + random.nextInt(30),
+						1 + random.nextInt(30));
+			for (int op = 0; op < 300; op++) {
+				Grid grid = grids[random.nextInt(2)];
+				int tilesX = grid.types.length;
+				int tilesY = grid.types[0].length;
+				int kind = random.nextInt(4);
+				String after;
+				if (kind == 0) {
+					int tx = random.nextInt(tilesX);
+					int ty = random.nextInt(tilesY);
+					int type = type(random, wide);
+					int height = random.nextInt(256) - 128;
+					int flags = random.nextInt(256);
+					grid.layer.setTile(tx, ty, type, height, flags);
+					grid.set(tx, ty, type, height, flags);
+					after = "setTile";
+				}
+				else if (kind == 1) {
+					int[] x = span(random, tilesX), y = span(random, tilesY);
+					grid.fill(x[0], y[0], x[1], y[1], type(random, wide),
+							random.nextInt(256) - 128, random.nextInt(256));
+					after = "fill " + x[0] + "," + y[0] + " " + x[1] + "x"
+							+ y[1];
+				}
+				else {
+					// Within the layer, or from the other one.
+					Grid src = (kind == 2) ? grid : grids[random.nextInt(2)];
+					int srcX = src.types.length, srcY = src.types[0].length;
+					int[] x = span(random, Math.min(srcX, tilesX));
+					int[] y = span(random, Math.min(srcY, tilesY));
+					int sx = random.nextInt(srcX + 6) - 3;
+					int sy = random.nextInt(srcY + 6) - 3;
+					grid.copy(src, sx, sy, x[1], y[1], x[0], y[0]);
+					after = "copy " + sx + "," + sy + " " + x[1] + "x"
+							+ y[1] + " to " + x[0] + "," + y[0]
+							+ (src == grid ? " within a layer" : "");
+				}
+				grid.verify(after);
+				for (int idx = 0; idx < 20; idx++) {
+					// Edge tiles and corners half the time.
+					int tx = random.nextBoolean() ? random.nextInt(tilesX)
+							: (random.nextBoolean() ? 0 : tilesX - 1);
+					int ty = random.nextBoolean() ? random.nextInt(tilesY)
+							: (random.nextBoolean() ? 0 : tilesY - 1);
+					int flags = 1 << random.nextInt(8) | random.nextInt(256);
+					check(grid.layer.getNeighbours(tx, ty, flags) == grid
+							.neighbours(tx, ty, flags), "Neighbours of " + tx
+							+ "," + ty + " differ after " + after);
+				}
+			}
+			// Only storing a type too large for a byte widens a layer.
+			for (Grid grid : grids)
+				check(grid.layer.hasByteTypes() == !grid.wide, "Types "
+						+ (grid.wide ? "not widened" : "widened needlessly"));
+		}
+	}
+
+	/**
+	 * Types read back the same whether held as bytes or shorts, through
+	 * every way of storing one too large for a byte.
+	 */
+	private static void widen() {
+		TileLayer narrow = new TileLayer(8, 8);
+		narrow.fill(0, 0, 8, 8, 255, 1, 2);
+		check(narrow.hasByteTypes(), "Types held as shorts");
+		TileLayer wide = new TileLayer(8, 8);
+		wide.fill(0, 0, 8, 8, 7, 0, 0);
+		wide.setTile(7, 7, 300, 0, 0);
+		check(!wide.hasByteTypes() && wide.getType(7, 7) == 300
+				&& wide.getType(0, 0) == 7, "Types not widened");
+		// Copying small types from a wide layer keeps bytes, and copying a
+		// large one widens.
+		narrow.copy(wide, 0, 0, 7, 7, 0, 0);
+		check(narrow.hasByteTypes() && narrow.getType(0, 0) == 7
+				&& narrow.getType(7, 7) == 255, "Small types not copied");
+		narrow.copy(wide, 6, 6, 2, 2, 0, 0);
+		check(!narrow.hasByteTypes() && narrow.getType(1, 1) == 300
+				&& narrow.getType(7, 7) == 255 && narrow.getType(2, 2) == 7,
+				"Large type not copied");
+		// Copying small types from a narrow layer into a wide one.
+		TileLayer other = new TileLayer(8, 8);
+		other.fill(2, 2, 3, 3, 200, 0, 0);
+		wide.copy(other, 0, 0, 8, 8, 0, 0);
+		check(!wide.hasByteTypes() && wide.getType(3, 3) == 200
+				&& wide.getType(7, 7) == 0, "Types not copied to shorts");
+		TileLayer filled = new TileLayer(4, 4);
+		filled.fill(1, 1, 2, 2, 32767, 0, 0);
+		check(filled.getType(1, 2) == 32767 && filled.getType(0, 0) == 0,
+				"Large type not filled");
+		// Reading and writing types as shorts, as region files do.
+		short[] shorts = new short[64];
+		for (int idx = 0; idx < shorts.length; idx++)
+			shorts[idx] = (short) (idx * 3);
+		TileLayer read = new TileLayer(8, 8);
+		read.getTypes(ShortBuffer.wrap(shorts));
+		check(read.hasByteTypes(), "Small types read as shorts");
+		int hash = read.hashTypes();
+		shorts[63] = 1000;
+		TileLayer readWide = new TileLayer(8, 8);
+		readWide.getTypes(ShortBuffer.wrap(shorts));
+		check(!readWide.hasByteTypes() && readWide.getType(63) == 1000
+				&& readWide.getType(62) == 186, "Large type read wrong");
+		readWide.setTile(7, 7, 189, 0, 0);
+		check(readWide.hashTypes() == hash,
+				"Equal types hash differently at different widths");
+		short[] written = new short[64];
+		readWide.putTypes(ShortBuffer.wrap(written));
+		short[] writtenNarrow = new short[64];
+		read.putTypes(ShortBuffer.wrap(writtenNarrow));
+		check(Arrays.equals(written, writtenNarrow),
+				"Types written differently at different widths");
+	}
+
+	/**
+	 * Widening the types while a snapshot is taken keeps what the snapshot
+	 * saves as it was when the snapshot began.
+	 */
+	private static void snapshot() {
+		Random random = new Random(2);
+		World world = new World(70, 40);
+		for (int idx = 0; idx < 500; idx++)
+			world.setTile(random.nextInt(70), random.nextInt(40),
+					random.nextInt(256), random.nextInt(256) - 128,
+					random.nextInt(16));
+		TileLayer before = new TileLayer(70, 40);
+		before.copy(world.getTiles(), 0, 0, 70, 40, 0, 0);
+		WorldSnapshot s = WorldSnapshot.begin(world);
+		world.setTile(3, 4, 5000, 0, 0);
+		world.getTiles().fill(10, 10, 20, 5, 17, 2, 3);
+		s.complete();
+		check(!world.getTiles().hasByteTypes(), "Types not widened");
+		World restored = new World(70, 40);
+		s.restore(restored, null);
+		for (int idx = 0; idx < 70 * 40; idx++)
+			check(restored.getTiles().getType(idx) == before.getType(idx)
+					&& restored.getTiles().heights[idx] == before.heights[idx],
+					"Snapshot saved a tile changed after it began");
+	}
+}
@@ -0,0 +1,106 @@
+package org.mercury.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.mercury.Bench;
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityFactory;
+import org.mercury.util.SpatialGrid;
+
+/**
+ * Times each step of saving and loading a world of 1000 by 1000 tiles and
+ * 100k entities: capturing a snapshot, writing it, reading it back by
+ * mapping the file, and restoring it into an empty world, which recreates
+ * and registers every entity. The file is written to the temporary
+ * directory, so reads are served from the page cache after the first.
+ *
+ * @author tbertore
+ *
+ */
+public class WorldSnapshotBench {
+	private static final int TILES = 1000;
+	private static final int COUNT = 100000;
+	private static final int RUNS = 5;
+
+	private static final EntityFactory FACTORY = new EntityFactory() {
+		@Override
+		public Entity create(String kind, int x, int y) {
+			return new Box(x, y, 1, 1);
+		}
+	};
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(1);
+		final World world = create();
+		for (int idx = 0; idx < TILES * TILES / 10; idx++)
+			world.setTile(random.nextInt(TILES), random.nextInt(TILES),
+					random.nextInt(8), random.nextInt(4), Terrain.PATHING_NONE);
+		for (int idx = 0; idx < COUNT; idx++) {
+			Entity e = new Box(random.nextInt(TILES * Terrain.SIZE - 16),
+					random.nextInt(TILES * Terrain.SIZE - 16),
+					4 + random.nextInt(12), 4 + random.nextInt(12));
+			e.setSpeed(random.nextDouble() * 3);
+			world.addEntity(e);
+		}
+		final File f = File.createTempFile("snapshot", ".bin");
+		try {
+			final WorldSnapshot[] snapshot = { WorldSnapshot.capture(world) };
+			long capture = Bench.best(RUNS, new Runnable() {
+				@Override
+				public void run() {
+					snapshot[0] = WorldSnapshot.capture(world);
+				}
+			});
+			long write = Bench.best(RUNS, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						snapshot[0].write(f);
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			long read = Bench.best(RUNS, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						snapshot[0] = WorldSnapshot.read(f);
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			// Each restore needs an empty world, which is not timed.
+			long restore = Long.MAX_VALUE;
+			for (int run = 0; run <= RUNS; run++) {
+				World loaded = create();
+				long start = System.nanoTime();
+				snapshot[0].restore(loaded, FACTORY);
+				if (run > 0)
+					restore = Math.min(restore, System.nanoTime() - start);
+			}
+			System.out.println(String.format("%d tiles, %d entities, %.1f MB",
+					TILES * TILES, COUNT, f.length() / 1e6));
+			System.out.println("capture ms  write ms  read ms  restore ms"
+					+ "  save ms  load ms");
+			System.out.println(String.format(
+					"%10.1f  %8.1f  %7.1f  %10.1f  %7.1f  %7.1f", capture / 1e6,
+					write / 1e6, read / 1e6, restore / 1e6,
+					(capture + write) / 1e6, (read + restore) / 1e6));
+		}
+		finally {
+			f.delete();
+		}
+	}
+
+	private static World create() {
+		return new World(TILES, TILES, new SpatialGrid(TILES * Terrain.SIZE,
+				TILES * Terrain.SIZE, 64));
+	}
+}
@@ -0,0 +1,261 @@
+package org.mercury.world;
+
+import static org.mercury.Tests.check;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mercury.entity.Box;
+import org.mercury.entity.Entity;
+import org.mercury.entity.EntityFactory;
+import org.mercury.entity.EntityManager;
+import org.mercury.gfx.Animation;
+import org.mercury.gfx.AnimationList;
+import org.mercury.gfx.Sprite;
+
+/**
+ * Saves a world of random tiles, moving entities and entities part way
+ * through an animation, loads it into an empty world, and checks that every
+ * tile and entity field came back and that both worlds go on to tick alike.
+ * Also checks that a snapshot begun between two ticks and completed while the
+ * world goes on changing saves what an eager capture at that point does, and
+ * that files which are truncated, not snapshots or of another version are
+ * rejected.
+ *
+ * @author tbertore
+ *
+ */
+public class WorldSnapshotTest {
+	private static final int TILES_X = 60, TILES_Y = 50;
+	private static final String[] STATES = { "walk_test", "idle", "run" };
+
+	public static void main(String[] args) throws IOException {
+		File f = File.createTempFile("snapshot", ".bin");
+		File copy = File.createTempFile("snapshot", ".bin");
+		try {
+			roundTrip(f, copy);
+			background(f, copy, false);
+			background(f, copy, true);
+			rejected(f);
+		}
+		finally {
+			f.delete();
+			copy.delete();
+		}
+	}
+
+	/**
+	 * An entity whose looping animation keeps it awake, facing any of the
+	 * four orientations.
+	 */
+	private static class Flag extends Entity {
+		Flag(int x, int y) {
+			super(x, y, new AnimationList());
+			for (int orientation = 0; orientation < 4; orientation++)
+				animations.add("wave", new Animation(new Sprite[4], 3, true),
+						orientation);
+			animations.setLive("wave", AnimationList.NORTH);
+			setSize(8, 12);
+			setState("wave");
+		}
+	}
+
+	private static final EntityFactory FACTORY = new EntityFactory() {
+		@Override
+		public Entity create(String kind, int x, int y) {
+			if (kind.equals(Box.class.getName()))
+				return new Box(x, y, 1, 1);
+			if (kind.equals(Flag.class.getName()))
+				return new Flag(x, y);
+			return null;
+		}
+	};
+
+	private static World create(Random random) {
+		World world = new World(TILES_X, TILES_Y);
+		for (int idx = 0; idx < 400; idx++)
+			world.setTile(random.nextInt(TILES_X), random.nextInt(TILES_Y),
+					random.nextInt(5), random.nextInt(4), random.nextBoolean()
+							? Terrain.PATHING_NONE : Terrain.PATHING_WATER);
+		for (int idx = 0; idx < 300; idx++) {
+			Entity e = new Box(random.nextInt(TILES_X * Terrain.SIZE - 20),
+					random.nextInt(TILES_Y * Terrain.SIZE - 20),
+					2 + random.nextInt(18), 2 + random.nextInt(18));
+			e.setSpeed(random.nextDouble() * 4);
+			e.setMovementMask(random.nextBoolean() ? Terrain.PATHING_GROUND
+					: Terrain.PATHING_GROUND | Terrain.PATHING_WATER);
+			e.setState(STATES[random.nextInt(STATES.length)]);
+			world.addEntity(e);
+			e.setPropagationVector(random.nextInt(3) - 1,
+					random.nextInt(3) - 1);
+		}
+		for (int idx = 0; idx < 40; idx++) {
+			Flag flag = new Flag(random.nextInt(TILES_X * Terrain.SIZE - 8),
+					random.nextInt(TILES_Y * Terrain.SIZE - 12));
+			flag.getAnimations().setLive("wave", random.nextInt(4));
+			world.addEntity(flag);
+		}
+		return world;
+	}
+
+	private static void roundTrip(File f, File copy) throws IOException {
+		Random random = new Random(1);
+		World world = create(random);
+		// Part way through moves and animations.
+		for (int tick = 0; tick < 17; tick++)
+			world.update();
+		WorldSnapshot.save(world, f);
+		World loaded = new World(TILES_X, TILES_Y);
+		WorldSnapshot.load(f, loaded, FACTORY);
+		TileLayer a = world.getTiles(), b = loaded.getTiles();
+		for (int idx = 0; idx < TILES_X * TILES_Y; idx++)
+			check(a.getType(idx) == b.getType(idx)
+					&& a.heights[idx] == b.heights[idx]
+					&& a.pathing[idx] == b.pathing[idx], "Tile " + idx
+					+ " differs after loading");
+		EntityManager saved = world.getEntityManager();
+		EntityManager restored = loaded.getEntityManager();
+		check(saved.getEntityCount() == restored.getEntityCount(),
+				"Entity count differs after loading");
+		for (int idx = 0; idx < saved.getEntityCount(); idx++) {
+			Entity e = saved.getEntity(idx), r = restored.getEntity(idx);
+			check(e.getKind().equals(r.getKind()) && e.getW() == r.getW()
+					&& e.getH() == r.getH()
+					&& e.getMovementMask() == r.getMovementMask(), "Entity "
+					+ idx + " differs after loading");
+		}
+		check(world.hashState() == loaded.hashState(),
+				"World state differs after loading");
+		for (int tick = 0; tick < 100; tick++) {
+			world.update();
+			loaded.update();
+			check(world.hashState() == loaded.hashState(),
+					"Loaded world diverges after tick " + tick);
+		}
+		// A snapshot read back writes the same file again.
+		WorldSnapshot.read(f).write(copy);
+		check(Arrays.equals(bytes(f), bytes(copy)),
+				"File differs when written again");
+	}
+
+	/**
+	 * Begins a snapshot, then moves, resizes, restates, removes and adds
+	 * entities, advances their animations and changes tiles for 30 ticks
+	 * before completing it, reusing the arrays of an earlier snapshot.
+	 * Packed, entities added take the slots of those removed.
+	 */
+	private static void background(File f, File copy, boolean packed)
+			throws IOException {
+		Random random = new Random(3);
+		World world = create(random);
+		EntityManager manager = world.getEntityManager();
+		manager.setPacked(packed);
+		for (int tick = 0; tick < 5; tick++)
+			world.update();
+		WorldSnapshot spare = WorldSnapshot.capture(world);
+		spare.write(copy);
+		for (int tick = 0; tick < 5; tick++)
+			world.update();
+		WorldSnapshot.capture(world).write(f);
+		WorldSnapshot snapshot = WorldSnapshot.begin(world, spare);
+		for (int tick = 0; tick < 30; tick++) {
+			for (int idx = 0; idx < 20; idx++) {
+				Entity e = manager.getEntity(random.nextInt(manager
+						.getEntityCount()));
+				// Flags have only the one animation, for their own state.
+				int change = random.nextInt(6);
+				if (e instanceof Flag && (change == 0 || change == 3))
+					change = 2;
+				switch (change) {
+				case 0:
+					e.setPropagationVector(random.nextInt(3) - 1,
+							random.nextInt(3) - 1);
+					break;
+				case 1:
+					e.setSpeed(random.nextDouble() * 4);
+					break;
+				case 2:
+					// Only where the entity still fits in the world.
+					int w = 2 + random.nextInt(18), h = 2 + random.nextInt(18);
+					if (e.getPosX() + w <= TILES_X * Terrain.SIZE
+							&& e.getPosY() + h <= TILES_Y * Terrain.SIZE)
+						e.setSize(w, h);
+					break;
+				case 3:
+					e.setState(STATES[random.nextInt(STATES.length)]);
+					break;
+				case 4:
+					Entity box = new Box(random.nextInt(TILES_X * Terrain.SIZE
+							- 20), random.nextInt(TILES_Y * Terrain.SIZE - 20),
+							4, 4);
+					box.setMovementMask(Terrain.PATHING_GROUND);
+					world.addEntity(box);
+					break;
+				default:
+					manager.remove(e);
+				}
+			}
+			for (int idx = 0; idx < 10; idx++)
+				world.setTile(random.nextInt(TILES_X),
+						random.nextInt(TILES_Y), random.nextInt(5),
+						random.nextInt(4), Terrain.PATHING_GROUND);
+			world.update();
+		}
+		snapshot.write(copy);
+		snapshot.detach();
+		check(Arrays.equals(bytes(f), bytes(copy)), (packed ? "Packed"
+				: "Unpacked") + " snapshot completed later differs from a"
+				+ " capture");
+	}
+
+	private static void rejected(File f) throws IOException {
+		World world = create(new Random(2));
+		WorldSnapshot.save(world, f);
+		byte[] good = bytes(f);
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			file.setLength(good.length - 8);
+			fails(f, "truncated");
+			file.setLength(10);
+			fails(f, "shorter than a header");
+			file.setLength(0);
+			file.write(good);
+			file.seek(0);
+			file.writeInt(0x12345678);
+			fails(f, "not a snapshot");
+			file.seek(0);
+			file.write(good, 0, 4);
+			// The version follows the magic number, little endian.
+			file.write(WorldSnapshot.VERSION + 1);
+			fails(f, "of another version");
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	private static void fails(File f, String what) {
+		try {
+			WorldSnapshot.read(f);
+		}
+		catch (IOException e) {
+			return;
+		}
+		check(false, "Read a file " + what);
+	}
+
+	private static byte[] bytes(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+			return bytes;
+		}
+		finally {
+			file.close();
+		}
+	}
+}